@@ -0,0 +1,72 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.permission.PermissionService;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.repository.RepositoryService;
+
+import javax.ws.rs.core.Response;
+import java.util.function.Function;
+
+/**
+ * Base class for the REST resources of a repository, which are only available to repository administrators unless
+ * the resource requires another permission
+ */
+abstract class AbstractRepositoryResource {
+
+    private final PermissionService permissionService;
+    private final RepositoryService repositoryService;
+
+    AbstractRepositoryResource(PermissionService permissionService, RepositoryService repositoryService) {
+        this.permissionService = permissionService;
+        this.repositoryService = repositoryService;
+    }
+
+    /**
+     * Resolves the repository and checks that the current user administers it
+     *
+     * @param projectKey     the key of the project
+     * @param repositorySlug the slug of the repository
+     * @param callback       creates the response for the repository
+     * @return the response, or a {@code 404} if the repository does not exist or is not visible, or a {@code 403}
+     * if the current user is not a repository administrator
+     */
+    Response withRepository(String projectKey, String repositorySlug, Function<Repository, Response> callback) {
+        return withRepository(projectKey, repositorySlug, Permission.REPO_ADMIN, callback);
+    }
+
+    /**
+     * Resolves the repository and checks that the current user has the required permission on it
+     *
+     * @param projectKey     the key of the project
+     * @param repositorySlug the slug of the repository
+     * @param permission     the permission the current user requires
+     * @param callback       creates the response for the repository
+     * @return the response, or a {@code 404} if the repository does not exist or is not visible, or a {@code 403}
+     * if the current user does not have the permission
+     */
+    Response withRepository(String projectKey, String repositorySlug, Permission permission,
+                            Function<Repository, Response> callback) {
+        Repository repository = repositoryService.getBySlug(projectKey, repositorySlug);
+        if (repository == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        if (!permissionService.hasRepositoryPermission(repository, permission)) {
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+        return callback.apply(repository);
+    }
+
+    /**
+     * Mirrors are identified by their configured URL, which may be a template, or the URL it expands to for the
+     * repository. The settings have their URL templates expanded, as do the statuses and pauses keyed by them.
+     *
+     * @param settings      the mirror, with its URL expanded for the repository
+     * @param mirrorRepoUrl the URL identifying the mirror
+     * @param repository    the repository
+     * @return {@code true} if the URL identifies the mirror
+     */
+    static boolean isMirror(MirrorSettings settings, String mirrorRepoUrl, Repository repository) {
+        return settings.mirrorRepoUrl.equals(MirrorUrlTemplate.expand(mirrorRepoUrl, repository));
+    }
+}
@@ -0,0 +1,181 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.atlassian.sal.api.lifecycle.LifecycleAware;
+import com.atlassian.scheduler.JobRunner;
+import com.atlassian.scheduler.JobRunnerRequest;
+import com.atlassian.scheduler.JobRunnerResponse;
+import com.atlassian.scheduler.SchedulerService;
+import com.atlassian.scheduler.SchedulerServiceException;
+import com.atlassian.scheduler.config.JobConfig;
+import com.atlassian.scheduler.config.JobId;
+import com.atlassian.scheduler.config.JobRunnerKey;
+import com.atlassian.scheduler.config.RunMode;
+import com.atlassian.scheduler.config.Schedule;
+import net.java.ao.DBParam;
+import net.java.ao.Query;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static com.englishtown.bitbucket.hook.MirrorRepositoryHook.PROP_PREFIX;
+
+/**
+ * Default implementation of {@link MirrorAuditLog}, storing a {@link MirrorPushRecord} per push and a
+ * {@link MirrorPushRef} per changed ref. Pushes older than the configured retention, in days, are purged daily.
+ */
+public class DefaultMirrorAuditLog implements MirrorAuditLog, JobRunner, LifecycleAware {
+
+    static final String PROP_RETENTION = PROP_PREFIX + "audit.retention";
+
+    private static final JobId JOB_ID = JobId.of(DefaultMirrorAuditLog.class.getName());
+    private static final JobRunnerKey JOB_RUNNER_KEY = JobRunnerKey.of(DefaultMirrorAuditLog.class.getName());
+    private static final long PURGE_INTERVAL = TimeUnit.DAYS.toMillis(1L);
+
+    private static final String WHERE_REF = MirrorPushRef.COLUMN_REPOSITORY_ID + " = ? AND " +
+            MirrorPushRef.COLUMN_REF_HASH + " = ?";
+    private static final String WHERE_REPOSITORY = MirrorPushRecord.COLUMN_REPOSITORY_ID + " = ?";
+
+    private static final Logger log = LoggerFactory.getLogger(DefaultMirrorAuditLog.class);
+
+    private final ActiveObjects ao;
+    private final SchedulerService schedulerService;
+    private final long retention;
+
+    public DefaultMirrorAuditLog(ActiveObjects ao, ApplicationPropertiesService propertiesService,
+                                 SchedulerService schedulerService) {
+        this.ao = ao;
+        this.schedulerService = schedulerService;
+
+        retention = TimeUnit.DAYS.toMillis(propertiesService.getPluginProperty(PROP_RETENTION, 90L));
+    }
+
+    @Override
+    public void onStart() {
+        if (retention <= 0) {
+            log.debug("Mirror push history is kept indefinitely");
+            return;
+        }
+
+        schedulerService.registerJobRunner(JOB_RUNNER_KEY, this);
+        try {
+            schedulerService.scheduleJob(JOB_ID, JobConfig.forJobRunnerKey(JOB_RUNNER_KEY)
+                    .withRunMode(RunMode.RUN_ONCE_PER_CLUSTER)
+                    .withSchedule(Schedule.forInterval(PURGE_INTERVAL, new Date())));
+        } catch (SchedulerServiceException e) {
+            log.error("Failed to schedule purging of the mirror push history", e);
+        }
+    }
+
+    @Override
+    public void onStop() {
+        schedulerService.unregisterJobRunner(JOB_RUNNER_KEY);
+    }
+
+    @Override
+    public void record(MirrorPushEntry entry) {
+        ao.executeInTransaction(() -> {
+            MirrorPushRecord record = ao.create(MirrorPushRecord.class,
+                    new DBParam(MirrorPushRecord.COLUMN_REPOSITORY_ID, entry.getRepositoryId()),
+                    new DBParam(MirrorPushRecord.COLUMN_MIRROR_URL, entry.getMirrorUrl()),
+                    new DBParam(MirrorPushRecord.COLUMN_STARTED_AT, entry.getStartedAt()),
+                    new DBParam(MirrorPushRecord.COLUMN_FINISHED_AT, entry.getFinishedAt()),
+                    new DBParam(MirrorPushRecord.COLUMN_OUTCOME, entry.getOutcome()),
+                    new DBParam(MirrorPushRecord.COLUMN_REF_CHANGES, MirrorPushCodec.encode(entry.getRefChanges())));
+
+            Set<Integer> hashes = new HashSet<>();
+            for (MirrorRefChange refChange : entry.getRefChanges()) {
+                int hash = refChange.getRefId().hashCode();
+                if (hashes.add(hash)) {
+                    ao.create(MirrorPushRef.class,
+                            new DBParam(MirrorPushRef.COLUMN_PUSH_ID, record.getID()),
+                            new DBParam(MirrorPushRef.COLUMN_REF_HASH, hash),
+                            new DBParam(MirrorPushRef.COLUMN_REPOSITORY_ID, entry.getRepositoryId()),
+                            new DBParam(MirrorPushRef.COLUMN_STARTED_AT, entry.getStartedAt()));
+                }
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public boolean search(int repositoryId, @Nullable String refId, int start, int limit,
+                          Consumer<MirrorPushEntry> callback) {
+        if (refId == null) {
+            // Fetch one more than the limit to find out whether this is the last page
+            MirrorPushRecord[] records = ao.find(MirrorPushRecord.class, Query.select()
+                    .where(WHERE_REPOSITORY, repositoryId)
+                    .order("ID DESC")
+                    .offset(start)
+                    .limit(limit + 1));
+            for (int i = 0; i < Math.min(limit, records.length); i++) {
+                callback.accept(toEntry(records[i], null));
+            }
+            return records.length <= limit;
+        }
+
+        MirrorPushRef[] refs = ao.find(MirrorPushRef.class, Query.select()
+                .where(WHERE_REF, repositoryId, refId.hashCode())
+                .order(MirrorPushRef.COLUMN_PUSH_ID + " DESC")
+                .offset(start)
+                .limit(limit + 1));
+        Integer[] pushIds = Arrays.stream(refs)
+                .limit(limit)
+                .map(MirrorPushRef::getPushId)
+                .toArray(Integer[]::new);
+        for (MirrorPushRecord record : ao.get(MirrorPushRecord.class, pushIds)) {
+            MirrorPushEntry entry = record == null ? null : toEntry(record, refId);
+            // Skip pushes which were only found because another ref has the same hash
+            if (entry != null && !entry.getRefChanges().isEmpty()) {
+                callback.accept(entry);
+            }
+        }
+        return refs.length <= limit;
+    }
+
+    @Override
+    public int purge(long before) {
+        return ao.executeInTransaction(() -> {
+            ao.deleteWithSQL(MirrorPushRef.class, MirrorPushRef.COLUMN_STARTED_AT + " < ?", before);
+            return ao.deleteWithSQL(MirrorPushRecord.class, MirrorPushRecord.COLUMN_STARTED_AT + " < ?", before);
+        });
+    }
+
+    @Nullable
+    @Override
+    public JobRunnerResponse runJob(@Nonnull JobRunnerRequest request) {
+        int purged = purge(System.currentTimeMillis() - retention);
+
+        return JobRunnerResponse.success("Purged " + purged + " mirror push(es)");
+    }
+
+    private static MirrorPushEntry toEntry(MirrorPushRecord record, @Nullable String refId) {
+        List<MirrorRefChange> refChanges;
+        try {
+            refChanges = MirrorPushCodec.decode(record.getRefChanges());
+        } catch (IllegalArgumentException e) {
+            log.warn("Mirror push {} has corrupt ref changes", record.getID(), e);
+            refChanges = Collections.emptyList();
+        }
+        if (refId != null) {
+            refChanges = refChanges.stream()
+                    .filter(refChange -> refId.equals(refChange.getRefId()))
+                    .collect(Collectors.toList());
+        }
+
+        return new MirrorPushEntry(record.getID(), record.getRepositoryId(), record.getMirrorUrl(),
+                record.getStartedAt(), record.getFinishedAt(), record.getOutcome(), refChanges);
+    }
+}
@@ -0,0 +1,196 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.google.common.base.Strings;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import static com.englishtown.bitbucket.hook.MirrorRepositoryHook.PROP_PREFIX;
+
+/**
+ * Supplies credentials according to the {@link MirrorSettings#credentialType credential type} of each mirror:
+ * <ul>
+ * <li>{@link MirrorSettings#CREDENTIALS_STATIC static}: the configured username and password</li>
+ * <li>{@link MirrorSettings#CREDENTIALS_FILE file}: the configured username, and a password or token read from the
+ * file, so it can be rotated by another process</li>
+ * <li>{@link MirrorSettings#CREDENTIALS_TOKEN token}: an access token obtained from the configured endpoint with
+ * the OAuth 2 client credentials grant, using the configured username and password as the client ID and secret</li>
+ * </ul>
+ * Access tokens are cached in memory until shortly before they expire. Credentials files and token endpoints are only
+ * used if a system administrator {@link MirrorCredentialSources allowed} them.
+ */
+public class DefaultMirrorCredentialProvider implements MirrorCredentialProvider {
+
+    static final String PROP_TOKEN_TIMEOUT = PROP_PREFIX + "token.timeout";
+
+    /**
+     * Tokens are refreshed this long before they expire, so they don't expire during a push
+     */
+    static final long EXPIRY_MARGIN = TimeUnit.SECONDS.toMillis(60L);
+    /**
+     * How long a token is used if the endpoint does not say when it expires
+     */
+    static final long DEFAULT_LIFETIME = TimeUnit.MINUTES.toMillis(5L);
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final Logger log = LoggerFactory.getLogger(DefaultMirrorCredentialProvider.class);
+
+    private final LongSupplier clock;
+    private final MirrorCredentialStore credentialStore;
+    private final MirrorCredentialSources credentialSources;
+    private final int timeout;
+    private final ConcurrentMap<String, MirrorCredentials> tokens = new ConcurrentHashMap<>();
+
+    public DefaultMirrorCredentialProvider(MirrorCredentialStore credentialStore,
+                                           ApplicationPropertiesService propertiesService) {
+        this(credentialStore, propertiesService, System::currentTimeMillis);
+    }
+
+    DefaultMirrorCredentialProvider(MirrorCredentialStore credentialStore,
+                                    ApplicationPropertiesService propertiesService, LongSupplier clock) {
+        this.clock = clock;
+        this.credentialStore = credentialStore;
+
+        credentialSources = new MirrorCredentialSources(propertiesService);
+        timeout = (int) TimeUnit.SECONDS.toMillis(propertiesService.getPluginProperty(PROP_TOKEN_TIMEOUT, 10L));
+    }
+
+    @Override
+    public MirrorCredentials getCredentials(MirrorSettings settings) {
+        // Only http(s) has username/password
+        if (!settings.mirrorRepoUrl.toLowerCase(Locale.ROOT).startsWith("http")) {
+            return MirrorCredentials.NONE;
+        }
+
+        String username = Strings.nullToEmpty(settings.username);
+        if (settings.isFileCredentials()) {
+            return new MirrorCredentials(username, readFile(settings.credentialSource));
+        }
+        if (settings.isTokenCredentials()) {
+            String key = tokenKey(settings);
+            MirrorCredentials token = tokens.get(key);
+            if (token == null || token.isExpired(clock.getAsLong() + EXPIRY_MARGIN)) {
+                token = exchange(settings);
+                tokens.put(key, token);
+            }
+            return token;
+        }
+        return new MirrorCredentials(username, Strings.nullToEmpty(credentialStore.resolve(settings.password)));
+    }
+
+    @Override
+    public void invalidate(MirrorSettings settings) {
+        if (settings.isTokenCredentials()) {
+            tokens.remove(tokenKey(settings));
+        }
+    }
+
+    /**
+     * Requests an access token with the client credentials grant. The client ID and secret are sent with basic
+     * authentication, and the response is expected to be JSON with {@code access_token} and, optionally,
+     * {@code expires_in} in seconds and the {@code username} git should authenticate with.
+     */
+    private MirrorCredentials exchange(MirrorSettings settings) {
+        if (!credentialSources.isAllowedEndpoint(settings.credentialSource)) {
+            throw new IllegalStateException("The token endpoint " + settings.credentialSource + " is not in " +
+                    MirrorCredentialSources.PROP_TOKEN_ENDPOINTS);
+        }
+        String clientSecret = Strings.nullToEmpty(credentialStore.resolve(settings.password));
+        long now = clock.getAsLong();
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(settings.credentialSource).openConnection();
+            try {
+                // A redirect could lead anywhere, rather than to the allowed endpoint
+                connection.setInstanceFollowRedirects(false);
+                connection.setConnectTimeout(timeout);
+                connection.setReadTimeout(timeout);
+                connection.setDoOutput(true);
+                connection.setRequestMethod("POST");
+                connection.setRequestProperty("Accept", "application/json");
+                connection.setRequestProperty("Authorization", "Basic " + Base64.getEncoder()
+                        .encodeToString((settings.username + ":" + clientSecret).getBytes(StandardCharsets.UTF_8)));
+                connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write("grant_type=client_credentials".getBytes(StandardCharsets.UTF_8));
+                }
+
+                int status = connection.getResponseCode();
+                if (status / 100 != 2) {
+                    throw new IllegalStateException("The token endpoint " + settings.credentialSource +
+                            " responded with HTTP " + status);
+                }
+                try (InputStream in = connection.getInputStream()) {
+                    MirrorCredentials token = parseToken(in, settings.username, now);
+                    log.debug("Obtained an access token from {}, expiring in {}s", settings.credentialSource,
+                            TimeUnit.MILLISECONDS.toSeconds(token.getExpiresAt() - now));
+                    return token;
+                }
+            } finally {
+                connection.disconnect();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to obtain an access token from " + settings.credentialSource, e);
+        }
+    }
+
+    static MirrorCredentials parseToken(InputStream in, String defaultUsername, long now) throws IOException {
+        String accessToken = null;
+        String username = defaultUsername;
+        long lifetime = DEFAULT_LIFETIME;
+
+        try (JsonParser parser = JSON_FACTORY.createJsonParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("The token response is not a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("access_token".equals(field)) {
+                    accessToken = parser.getText();
+                } else if ("expires_in".equals(field) && value == JsonToken.VALUE_NUMBER_INT) {
+                    lifetime = TimeUnit.SECONDS.toMillis(parser.getLongValue());
+                } else if ("username".equals(field) && value == JsonToken.VALUE_STRING) {
+                    username = parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        if (Strings.isNullOrEmpty(accessToken)) {
+            throw new IOException("The token response has no access_token");
+        }
+        return new MirrorCredentials(Strings.nullToEmpty(username), accessToken, now + lifetime);
+    }
+
+    private String readFile(String path) {
+        try {
+            return new String(Files.readAllBytes(credentialSources.resolveFile(path)), StandardCharsets.UTF_8).trim();
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to read the mirror credentials from " + path, e);
+        }
+    }
+
+    private static String tokenKey(MirrorSettings settings) {
+        return settings.credentialSource + " " + settings.username;
+    }
+}
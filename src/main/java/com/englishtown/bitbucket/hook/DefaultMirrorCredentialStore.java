@@ -0,0 +1,115 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.bitbucket.scope.Scope;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import net.java.ao.DBParam;
+
+import java.util.Collection;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static com.englishtown.bitbucket.hook.MirrorStoredCredential.*;
+
+/**
+ * Default implementation of {@link MirrorCredentialStore}, storing a {@link MirrorStoredCredential} per password.
+ * <p>
+ * A stored password is never changed; a new password gets a new ID. So decrypted passwords can be cached by
+ * reference on every node without being invalidated, and resolving the password of a push is a cache hit.
+ */
+public class DefaultMirrorCredentialStore implements MirrorCredentialStore {
+
+    static final String REFERENCE_PREFIX = "stored:";
+
+    private static final String WHERE_CREDENTIAL = COLUMN_CREDENTIAL_ID + " = ?";
+    private static final String WHERE_SCOPE = COLUMN_SCOPE_KEY + " = ?";
+
+    private final ActiveObjects ao;
+    private final PasswordEncryptor passwordEncryptor;
+    private final Cache<String, String> passwords = CacheBuilder.newBuilder()
+            .expireAfterAccess(1L, TimeUnit.HOURS)
+            .maximumSize(10_000L)
+            .build();
+
+    public DefaultMirrorCredentialStore(ActiveObjects ao, PasswordEncryptor passwordEncryptor) {
+        this.ao = ao;
+        this.passwordEncryptor = passwordEncryptor;
+    }
+
+    @Override
+    public boolean isReference(String password) {
+        return password != null && password.startsWith(REFERENCE_PREFIX);
+    }
+
+    @Override
+    public String store(Scope scope, String password) {
+        String credentialId = UUID.randomUUID().toString();
+        String encrypted = passwordEncryptor.encrypt(password);
+
+        ao.executeInTransaction(() -> ao.create(MirrorStoredCredential.class,
+                new DBParam(COLUMN_CREDENTIAL_ID, credentialId),
+                new DBParam(COLUMN_PASSWORD, encrypted),
+                new DBParam(COLUMN_SCOPE_KEY, getScopeKey(scope))));
+
+        return REFERENCE_PREFIX + credentialId;
+    }
+
+    @Override
+    public String resolve(String password) {
+        if (!isReference(password)) {
+            return passwordEncryptor.decrypt(password);
+        }
+        try {
+            return passwords.get(password, () -> load(password.substring(REFERENCE_PREFIX.length())));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw new IllegalStateException("Failed to read the stored mirror password", e.getCause());
+        }
+    }
+
+    @Override
+    public void retain(Scope scope, Collection<String> references) {
+        ao.executeInTransaction(() -> {
+            for (MirrorStoredCredential credential : ao.find(MirrorStoredCredential.class, WHERE_SCOPE,
+                    getScopeKey(scope))) {
+                String reference = REFERENCE_PREFIX + credential.getCredentialId();
+                if (!references.contains(reference)) {
+                    ao.delete(credential);
+                    passwords.invalidate(reference);
+                }
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public int reencrypt(Scope scope) {
+        return ao.executeInTransaction(() -> {
+            int reencrypted = 0;
+            for (MirrorStoredCredential credential : ao.find(MirrorStoredCredential.class, WHERE_SCOPE,
+                    getScopeKey(scope))) {
+                if (passwordEncryptor.needsReencryption(credential.getPassword())) {
+                    credential.setPassword(passwordEncryptor.encrypt(credential.getPassword()));
+                    credential.save();
+                    ++reencrypted;
+                }
+            }
+            return reencrypted;
+        });
+    }
+
+    private String load(String credentialId) {
+        MirrorStoredCredential[] credentials = ao.executeInTransaction(() ->
+                ao.find(MirrorStoredCredential.class, WHERE_CREDENTIAL, credentialId));
+        if (credentials.length == 0) {
+            throw new IllegalStateException("The stored mirror password " + credentialId + " does not exist");
+        }
+        return passwordEncryptor.decrypt(credentials[0].getPassword());
+    }
+
+    static String getScopeKey(Scope scope) {
+        return scope.getType() + ":" + scope.getResourceId().orElse(0);
+    }
+}
@@ -0,0 +1,90 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import net.java.ao.DBParam;
+import net.java.ao.Query;
+
+import java.util.Collection;
+import java.util.function.BiConsumer;
+import java.util.function.LongUnaryOperator;
+
+import static com.englishtown.bitbucket.hook.MirrorFetchSchedule.*;
+
+/**
+ * Default implementation of {@link MirrorFetchSchedules}, storing a {@link MirrorFetchSchedule} per fetch mirror
+ */
+public class DefaultMirrorFetchSchedules implements MirrorFetchSchedules {
+
+    private static final String WHERE_MIRROR = COLUMN_REPOSITORY_ID + " = ? AND " + COLUMN_MIRROR_URL + " = ?";
+    private static final String WHERE_REPOSITORY = COLUMN_REPOSITORY_ID + " = ?";
+
+    private final ActiveObjects ao;
+
+    public DefaultMirrorFetchSchedules(ActiveObjects ao) {
+        this.ao = ao;
+    }
+
+    @Override
+    public void register(int repositoryId, String mirrorUrl) {
+        ao.executeInTransaction(() -> {
+            if (ao.count(MirrorFetchSchedule.class, WHERE_MIRROR, repositoryId, mirrorUrl) == 0) {
+                ao.create(MirrorFetchSchedule.class,
+                        new DBParam(COLUMN_REPOSITORY_ID, repositoryId),
+                        new DBParam(COLUMN_MIRROR_URL, mirrorUrl),
+                        new DBParam(COLUMN_POLL_INTERVAL, 0L), // Raised to the minimum after the first fetch
+                        new DBParam(COLUMN_NEXT_FETCH_AT, System.currentTimeMillis()));
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void retain(int repositoryId, Collection<String> mirrorUrls) {
+        ao.executeInTransaction(() -> {
+            for (MirrorFetchSchedule schedule : ao.find(MirrorFetchSchedule.class, WHERE_REPOSITORY, repositoryId)) {
+                if (!mirrorUrls.contains(schedule.getMirrorUrl())) {
+                    ao.delete(schedule);
+                }
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void clearAll(int repositoryId) {
+        ao.executeInTransaction(() -> ao.deleteWithSQL(MirrorFetchSchedule.class, WHERE_REPOSITORY, repositoryId));
+    }
+
+    @Override
+    public void claimDue(long now, int limit, long lease, BiConsumer<Integer, String> callback) {
+        MirrorFetchSchedule[] due = ao.executeInTransaction(() -> {
+            MirrorFetchSchedule[] schedules = ao.find(MirrorFetchSchedule.class, Query.select()
+                    .where(COLUMN_NEXT_FETCH_AT + " <= ?", now)
+                    .order(COLUMN_NEXT_FETCH_AT)
+                    .limit(limit));
+            for (MirrorFetchSchedule schedule : schedules) {
+                schedule.setNextFetchAt(now + lease);
+                schedule.save();
+            }
+            return schedules;
+        });
+
+        for (MirrorFetchSchedule schedule : due) {
+            callback.accept(schedule.getRepositoryId(), schedule.getMirrorUrl());
+        }
+    }
+
+    @Override
+    public void reschedule(int repositoryId, String mirrorUrl, long now, LongUnaryOperator nextInterval) {
+        ao.executeInTransaction(() -> {
+            for (MirrorFetchSchedule schedule : ao.find(MirrorFetchSchedule.class, WHERE_MIRROR, repositoryId,
+                    mirrorUrl)) {
+                long interval = nextInterval.applyAsLong(schedule.getPollInterval());
+                schedule.setPollInterval(interval);
+                schedule.setNextFetchAt(now + interval);
+                schedule.save();
+            }
+            return null;
+        });
+    }
+}
@@ -0,0 +1,65 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import net.java.ao.DBParam;
+import net.java.ao.Query;
+
+import java.util.function.BiConsumer;
+
+import static com.englishtown.bitbucket.hook.MirrorDirtyMarker.*;
+
+/**
+ * Default implementation of {@link MirrorOutbox}, storing a {@link MirrorDirtyMarker} per dirty mirror
+ */
+public class DefaultMirrorOutbox implements MirrorOutbox {
+
+    private static final String WHERE_MIRROR = COLUMN_REPOSITORY_ID + " = ? AND " + COLUMN_MIRROR_URL + " = ?";
+    private static final String WHERE_REPOSITORY = COLUMN_REPOSITORY_ID + " = ?";
+
+    private final ActiveObjects ao;
+
+    public DefaultMirrorOutbox(ActiveObjects ao) {
+        this.ao = ao;
+    }
+
+    @Override
+    public void markDirty(int repositoryId, String mirrorUrl) {
+        long now = System.currentTimeMillis();
+
+        ao.executeInTransaction(() -> {
+            MirrorDirtyMarker[] markers = ao.find(MirrorDirtyMarker.class, WHERE_MIRROR, repositoryId, mirrorUrl);
+            if (markers.length == 0) {
+                ao.create(MirrorDirtyMarker.class,
+                        new DBParam(COLUMN_REPOSITORY_ID, repositoryId),
+                        new DBParam(COLUMN_MIRROR_URL, mirrorUrl),
+                        new DBParam(COLUMN_MARKED_AT, now));
+            } else {
+                for (MirrorDirtyMarker marker : markers) {
+                    marker.setMarkedAt(now);
+                    marker.save();
+                }
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void clear(int repositoryId, String mirrorUrl, long pushStarted) {
+        ao.executeInTransaction(() -> ao.deleteWithSQL(MirrorDirtyMarker.class,
+                WHERE_MIRROR + " AND " + COLUMN_MARKED_AT + " <= ?", repositoryId, mirrorUrl, pushStarted));
+    }
+
+    @Override
+    public void clearAll(int repositoryId) {
+        ao.executeInTransaction(() -> ao.deleteWithSQL(MirrorDirtyMarker.class, WHERE_REPOSITORY, repositoryId));
+    }
+
+    @Override
+    public void forEachDirty(BiConsumer<Integer, String> callback) {
+        Query query = Query.select("ID, " + COLUMN_REPOSITORY_ID + ", " + COLUMN_MIRROR_URL)
+                .order(COLUMN_REPOSITORY_ID);
+
+        ao.stream(MirrorDirtyMarker.class, query,
+                marker -> callback.accept(marker.getRepositoryId(), marker.getMirrorUrl()));
+    }
+}
@@ -0,0 +1,75 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.sal.api.pluginsettings.PluginSettings;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.englishtown.bitbucket.hook.DefaultPasswordEncryptor.PLUGIN_SETTINGS_KEY;
+
+/**
+ * Default implementation of {@link MirrorPauseService}, storing the URLs of the paused mirrors of each repository in
+ * the plugin settings, which are shared by every node in the cluster
+ */
+public class DefaultMirrorPauseService implements MirrorPauseService {
+
+    static final String SETTINGS_PAUSED_PREFIX = "paused.";
+
+    private final PluginSettingsFactory pluginSettingsFactory;
+
+    public DefaultMirrorPauseService(PluginSettingsFactory pluginSettingsFactory) {
+        this.pluginSettingsFactory = pluginSettingsFactory;
+    }
+
+    @Override
+    public Set<String> getPaused(int repositoryId) {
+        Set<String> paused = new LinkedHashSet<>();
+        Object value = getPluginSettings().get(SETTINGS_PAUSED_PREFIX + repositoryId);
+        if (value instanceof List) {
+            for (Object url : (List<?>) value) {
+                paused.add(String.valueOf(url));
+            }
+        }
+        return paused;
+    }
+
+    @Override
+    public boolean isPaused(int repositoryId, String mirrorUrl) {
+        return getPaused(repositoryId).contains(mirrorUrl);
+    }
+
+    @Override
+    public synchronized void pause(int repositoryId, String mirrorUrl) {
+        Set<String> paused = getPaused(repositoryId);
+        if (paused.add(mirrorUrl)) {
+            getPluginSettings().put(SETTINGS_PAUSED_PREFIX + repositoryId, new ArrayList<>(paused));
+        }
+    }
+
+    @Override
+    public synchronized boolean resume(int repositoryId, String mirrorUrl) {
+        Set<String> paused = getPaused(repositoryId);
+        if (!paused.remove(mirrorUrl)) {
+            return false;
+        }
+
+        if (paused.isEmpty()) {
+            getPluginSettings().remove(SETTINGS_PAUSED_PREFIX + repositoryId);
+        } else {
+            getPluginSettings().put(SETTINGS_PAUSED_PREFIX + repositoryId, new ArrayList<>(paused));
+        }
+        return true;
+    }
+
+    @Override
+    public void clear(int repositoryId) {
+        getPluginSettings().remove(SETTINGS_PAUSED_PREFIX + repositoryId);
+    }
+
+    private PluginSettings getPluginSettings() {
+        return pluginSettingsFactory.createSettingsForKey(PLUGIN_SETTINGS_KEY);
+    }
+}
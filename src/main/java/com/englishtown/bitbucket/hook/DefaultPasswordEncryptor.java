@@ -1,46 +1,74 @@
 package com.englishtown.bitbucket.hook;
 
+import com.atlassian.beehive.ClusterLock;
+import com.atlassian.beehive.ClusterLockService;
 import com.atlassian.sal.api.pluginsettings.PluginSettings;
 import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
 
 import javax.crypto.*;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
-import java.io.UnsupportedEncodingException;
-import java.security.InvalidKeyException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.IntSupplier;
 
 /**
  * Service to encrypt/decrypt git user passwords
+ * <p>
+ * Passwords are encrypted with envelope encryption: each password is encrypted with its own random data key using
+ * AES-GCM, and the data key is encrypted with the current version of the key encryption key, which is stored in the
+ * plugin settings. Rotating the key encryption key adds a new version; older versions are kept so passwords encrypted
+ * with them can still be decrypted until they are re-encrypted. Passwords are stored as
+ * {@code encrypted:v2:<key version>:<base64>}, while passwords encrypted by earlier versions of the plugin, with
+ * {@code encrypted:<base64>}, are decrypted with the original key.
+ * <p>
+ * Keys are only created while holding a cluster lock, and are always read from the plugin settings, so every node of a
+ * cluster uses the same key for each version.
  */
 public class DefaultPasswordEncryptor implements PasswordEncryptor {
 
-    private SecretKey secretKey;
-
     static final String PLUGIN_SETTINGS_KEY = "com.englishtown.stash.hook.mirror";
     static final String ENCRYPTED_PREFIX = "encrypted:";
+    static final String ENCRYPTED_V2_PREFIX = ENCRYPTED_PREFIX + "v2:";
     static final String SETTINGS_CRYPTO_KEY = "crypto.key";
+    static final String SETTINGS_KEY_VERSION = "crypto.key.version";
+    static final String SETTINGS_KEY_PREFIX = "crypto.key.v";
+    static final String KEY_LOCK_NAME = PLUGIN_SETTINGS_KEY + ".crypto.key";
 
-    public DefaultPasswordEncryptor(PluginSettingsFactory settingsFactory) {
-        PluginSettings pluginSettings = settingsFactory.createSettingsForKey(PLUGIN_SETTINGS_KEY);
+    private static final String GCM = "AES/GCM/NoPadding";
+    private static final int IV_LENGTH = 12;
+    private static final int KEY_LENGTH = 32;
+    private static final int TAG_BITS = 128;
 
-        try {
-            String keyBase64;
-            Object value = pluginSettings.get(SETTINGS_CRYPTO_KEY);
+    // Looking up a cipher is much more expensive than initializing one, so each thread reuses its own
+    private static final ThreadLocal<Cipher> GCM_CIPHER = ThreadLocal.withInitial(() -> createCipher(GCM));
+    private static final ThreadLocal<Cipher> LEGACY_CIPHER = ThreadLocal.withInitial(() -> createCipher("AES"));
 
-            if (value == null || value.toString().isEmpty()) {
-                KeyGenerator gen = KeyGenerator.getInstance("AES");
-                secretKey = gen.generateKey();
-                keyBase64 = Base64.getEncoder().encodeToString(secretKey.getEncoded());
-                pluginSettings.put(SETTINGS_CRYPTO_KEY, keyBase64);
-            } else {
-                keyBase64 = value.toString();
-                byte[] data = Base64.getDecoder().decode(keyBase64);
-                secretKey = new SecretKeySpec(data, 0, data.length, "AES");
-            }
+    private final ClusterLock keyLock;
+    private final ConcurrentMap<Integer, SecretKey> keys = new ConcurrentHashMap<>();
+    private final PluginSettingsFactory settingsFactory;
+    private final SecureRandom random = new SecureRandom();
+    private final SecretKey legacyKey;
 
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
+    public DefaultPasswordEncryptor(PluginSettingsFactory settingsFactory, ClusterLockService lockService) {
+        this.settingsFactory = settingsFactory;
+
+        keyLock = lockService.getLockForName(KEY_LOCK_NAME);
+        PluginSettings pluginSettings = getPluginSettings();
+        Object value = pluginSettings.get(SETTINGS_CRYPTO_KEY);
+        legacyKey = value == null || value.toString().isEmpty() ? null : toKey(value.toString());
+        if (getKeyVersion(pluginSettings) == 0) {
+            // Other nodes may be starting at the same time, and only the first one should create the key
+            withKeyLock(() -> {
+                int version = getKeyVersion(getPluginSettings());
+                return version == 0 ? addKey() : version;
+            });
         }
     }
 
@@ -48,36 +76,15 @@ public class DefaultPasswordEncryptor implements PasswordEncryptor {
 
         try {
             int mode = encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE;
-            Cipher cipher = getCipher(mode);
+            Cipher cipher = LEGACY_CIPHER.get();
+            cipher.init(mode, legacyKey);
             return cipher.doFinal(data);
 
-        } catch (IllegalBlockSizeException e) {
-            throw new RuntimeException(e);
-        } catch (BadPaddingException e) {
+        } catch (GeneralSecurityException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private Cipher getCipher(int mode) {
-
-        try {
-            // Create Cipher
-            Cipher cipher = Cipher.getInstance("AES");
-
-            // Initialize Cipher with key
-            cipher.init(mode, secretKey);
-            return cipher;
-
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        } catch (NoSuchPaddingException e) {
-            throw new RuntimeException(e);
-        } catch (InvalidKeyException e) {
-            throw new RuntimeException(e);
-        }
-
-    }
-
     @Override
     public boolean isEncrypted(String password) {
         if (password == null || password.isEmpty()) {
@@ -86,17 +93,31 @@ public class DefaultPasswordEncryptor implements PasswordEncryptor {
         return password.startsWith(ENCRYPTED_PREFIX);
     }
 
+    @Override
+    public boolean needsReencryption(String password) {
+        return isEncrypted(password) && getVersion(password) != getKeyVersion(getPluginSettings());
+    }
+
     @Override
     public String encrypt(String password) {
         if (isEncrypted(password)) {
-            return password;
-        }
-        try {
-            byte[] encryptedData = runCipher(password.getBytes("UTF-8"), true);
-            return ENCRYPTED_PREFIX + Base64.getEncoder().encodeToString(encryptedData);
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
+            if (!needsReencryption(password)) {
+                return password;
+            }
+            password = decrypt(password);
         }
+
+        int version = getKeyVersion(getPluginSettings());
+        byte[] dataKey = new byte[KEY_LENGTH];
+        random.nextBytes(dataKey);
+
+        // The key version is authenticated with the data key, so it cannot be changed to another version
+        byte[] wrappedKey = seal(getKey(version), dataKey, associatedData(version));
+        byte[] encryptedData = seal(new SecretKeySpec(dataKey, "AES"), password.getBytes(StandardCharsets.UTF_8), null);
+
+        ByteBuffer buffer = ByteBuffer.allocate(4 + wrappedKey.length + encryptedData.length);
+        buffer.putInt(wrappedKey.length).put(wrappedKey).put(encryptedData);
+        return ENCRYPTED_V2_PREFIX + version + ":" + Base64.getEncoder().encodeToString(buffer.array());
     }
 
     @Override
@@ -104,13 +125,175 @@ public class DefaultPasswordEncryptor implements PasswordEncryptor {
         if (!isEncrypted(password)) {
             return password;
         }
-        try {
+        if (!password.startsWith(ENCRYPTED_V2_PREFIX)) {
+            if (legacyKey == null) {
+                throw new IllegalStateException("The password was encrypted with a key which no longer exists");
+            }
             byte[] encryptedData = Base64.getDecoder().decode(password.substring(ENCRYPTED_PREFIX.length()));
             byte[] clearData = runCipher(encryptedData, false);
-            return new String(clearData, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
+            return new String(clearData, StandardCharsets.UTF_8);
+        }
+
+        int version = getVersion(password);
+        ByteBuffer buffer = ByteBuffer.wrap(Base64.getDecoder().decode(
+                password.substring(password.indexOf(':', ENCRYPTED_V2_PREFIX.length()) + 1)));
+        byte[] wrappedKey = new byte[buffer.getInt()];
+        buffer.get(wrappedKey);
+        byte[] encryptedData = new byte[buffer.remaining()];
+        buffer.get(encryptedData);
+
+        byte[] dataKey = open(getKey(version), wrappedKey, associatedData(version));
+        return new String(open(new SecretKeySpec(dataKey, "AES"), encryptedData, null), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int rotateKey() {
+        return withKeyLock(this::addKey);
+    }
+
+    @Override
+    public int getKeyVersion() {
+        return getKeyVersion(getPluginSettings());
+    }
+
+    /**
+     * @return the version of the key the password was encrypted with, where {@code 0} is the original key
+     */
+    private static int getVersion(String password) {
+        if (!password.startsWith(ENCRYPTED_V2_PREFIX)) {
+            return 0;
+        }
+        int end = password.indexOf(':', ENCRYPTED_V2_PREFIX.length());
+        if (end < 0) {
+            throw new IllegalArgumentException("The encrypted password is malformed");
+        }
+        return Integer.parseInt(password.substring(ENCRYPTED_V2_PREFIX.length(), end));
+    }
+
+    /**
+     * Adds a new version of the key encryption key, and makes it the current version. Must be called while holding
+     * the {@link #KEY_LOCK_NAME key lock}.
+     *
+     * @return the new key version, as read back from the plugin settings
+     */
+    private int addKey() {
+        PluginSettings pluginSettings = getPluginSettings();
+        int version = getKeyVersion(pluginSettings) + 1;
+        // Never replace a key which was written without becoming the current version, in case it was used anyway
+        while (pluginSettings.get(SETTINGS_KEY_PREFIX + version) != null) {
+            version++;
+        }
+
+        String key = Base64.getEncoder().encodeToString(generateKey().getEncoded());
+        pluginSettings.put(SETTINGS_KEY_PREFIX + version, key);
+        pluginSettings.put(SETTINGS_KEY_VERSION, String.valueOf(version));
+
+        pluginSettings = getPluginSettings();
+        int current = getKeyVersion(pluginSettings);
+        if (current != version || !key.equals(String.valueOf(pluginSettings.get(SETTINGS_KEY_PREFIX + version)))) {
+            throw new IllegalStateException("Version " + version + " of the encryption key was not stored");
+        }
+        return current;
+    }
+
+    private int withKeyLock(IntSupplier action) {
+        keyLock.lock();
+        try {
+            return action.getAsInt();
+        } finally {
+            keyLock.unlock();
+        }
+    }
+
+    /**
+     * Keys are read from the plugin settings the first time they are used, including keys created by this node, so
+     * every node uses the stored key. Keys added by rotating the key on another node are found the same way.
+     */
+    private SecretKey getKey(int version) {
+        return keys.computeIfAbsent(version, v -> {
+            Object value = getPluginSettings().get(SETTINGS_KEY_PREFIX + v);
+            if (value == null || value.toString().isEmpty()) {
+                throw new IllegalStateException("Version " + v + " of the encryption key does not exist");
+            }
+            return toKey(value.toString());
+        });
+    }
+
+    private byte[] seal(SecretKey key, byte[] data, byte[] associatedData) {
+        byte[] iv = new byte[IV_LENGTH];
+        random.nextBytes(iv);
+        try {
+            Cipher cipher = GCM_CIPHER.get();
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+            if (associatedData != null) {
+                cipher.updateAAD(associatedData);
+            }
+            byte[] encrypted = cipher.doFinal(data);
+
+            byte[] result = new byte[IV_LENGTH + encrypted.length];
+            System.arraycopy(iv, 0, result, 0, IV_LENGTH);
+            System.arraycopy(encrypted, 0, result, IV_LENGTH, encrypted.length);
+            return result;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] open(SecretKey key, byte[] data, byte[] associatedData) {
+        try {
+            Cipher cipher = GCM_CIPHER.get();
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, data, 0, IV_LENGTH));
+            if (associatedData != null) {
+                cipher.updateAAD(associatedData);
+            }
+            return cipher.doFinal(data, IV_LENGTH, data.length - IV_LENGTH);
+        } catch (AEADBadTagException e) {
+            throw new IllegalStateException("The encrypted password has been tampered with", e);
+        } catch (GeneralSecurityException e) {
             throw new RuntimeException(e);
         }
     }
 
+    private static byte[] associatedData(int version) {
+        return (ENCRYPTED_V2_PREFIX + version).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private PluginSettings getPluginSettings() {
+        return settingsFactory.createSettingsForKey(PLUGIN_SETTINGS_KEY);
+    }
+
+    private static int getKeyVersion(PluginSettings pluginSettings) {
+        Object value = pluginSettings.get(SETTINGS_KEY_VERSION);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(value.toString());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static Cipher createCipher(String transformation) {
+        try {
+            return Cipher.getInstance(transformation);
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static SecretKey generateKey() {
+        try {
+            KeyGenerator gen = KeyGenerator.getInstance("AES");
+            gen.init(KEY_LENGTH * 8);
+            return gen.generateKey();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static SecretKey toKey(String keyBase64) {
+        byte[] data = Base64.getDecoder().decode(keyBase64);
+        return new SecretKeySpec(data, 0, data.length, "AES");
+    }
 }
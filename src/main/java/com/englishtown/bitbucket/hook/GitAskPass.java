@@ -0,0 +1,87 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.scm.ScmCommandBuilder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.function.Supplier;
+
+/**
+ * Passes credentials to git through a {@code GIT_ASKPASS} script, which answers git's username and password prompts
+ * from environment variables of the git process. Unlike credentials embedded in the URL, they are not visible on the
+ * command line of the process.
+ */
+class GitAskPass {
+
+    static final String ENV_PASSWORD = "MIRROR_GIT_PASSWORD";
+    static final String ENV_USERNAME = "MIRROR_GIT_USERNAME";
+
+    private static final String SCRIPT = "#!/bin/sh\n" +
+            "case \"$1\" in\n" +
+            "    Username*) printf '%s\\n' \"$" + ENV_USERNAME + "\" ;;\n" +
+            "    *) printf '%s\\n' \"$" + ENV_PASSWORD + "\" ;;\n" +
+            "esac\n";
+
+    private final Supplier<Path> directory;
+    private volatile Path script;
+
+    /**
+     * @param directory supplies the directory to write the script to
+     */
+    GitAskPass(Supplier<Path> directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Configures the command to authenticate with the credentials, if there are any. Git is never allowed to prompt
+     * on the terminal.
+     *
+     * @param builder     the builder of a command which talks to a mirror
+     * @param credentials the credentials of the mirror
+     */
+    void configure(ScmCommandBuilder<?> builder, MirrorCredentials credentials) {
+        builder.withEnvironment("GIT_TERMINAL_PROMPT", "0");
+        if (!credentials.isEmpty()) {
+            builder.withEnvironment("GIT_ASKPASS", getScript().toString());
+            builder.withEnvironment(ENV_USERNAME, credentials.getUsername());
+            builder.withEnvironment(ENV_PASSWORD, credentials.getPassword());
+        }
+    }
+
+    /**
+     * @return the script, which is written the first time it is needed
+     */
+    Path getScript() {
+        Path path = script;
+        if (path == null) {
+            synchronized (this) {
+                path = script;
+                if (path == null) {
+                    script = path = writeScript();
+                }
+            }
+        }
+        return path;
+    }
+
+    private Path writeScript() {
+        try {
+            Path dir = Files.createDirectories(directory.get());
+            Path temp = Files.createTempFile(dir, "mirror-askpass", ".tmp");
+            Files.write(temp, SCRIPT.getBytes(StandardCharsets.US_ASCII));
+            try {
+                Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rwx------"));
+            } catch (UnsupportedOperationException e) {
+                temp.toFile().setExecutable(true, true);
+            }
+            return Files.move(temp, dir.resolve("mirror-askpass.sh"), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to write the askpass script for mirror credentials", e);
+        }
+    }
+}
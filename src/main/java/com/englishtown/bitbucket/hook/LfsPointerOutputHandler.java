@@ -0,0 +1,88 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.scm.CommandOutputHandler;
+import com.atlassian.utils.process.BaseOutputHandler;
+import com.atlassian.utils.process.ProcessException;
+import com.google.common.io.ByteStreams;
+
+import javax.annotation.Nonnull;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the LFS pointers among the objects written by {@code git cat-file --batch}. Only blobs small enough to be
+ * pointers are read into memory; the content of other objects is skipped.
+ */
+class LfsPointerOutputHandler extends BaseOutputHandler implements CommandOutputHandler<Set<MirrorLfsObject>> {
+
+    /**
+     * Pointer files are always smaller than this, per the LFS specification
+     */
+    static final int MAX_POINTER_SIZE = 1024;
+
+    private static final Pattern OID = Pattern.compile("^oid sha256:([0-9a-f]{64})$", Pattern.MULTILINE);
+    private static final Pattern SIZE = Pattern.compile("^size (\\d{1,18})$", Pattern.MULTILINE);
+    private static final String VERSION = "version https://git-lfs.github.com/spec/";
+
+    private final Set<MirrorLfsObject> objects = new LinkedHashSet<>();
+
+    @Nonnull
+    @Override
+    public Set<MirrorLfsObject> getOutput() {
+        return objects;
+    }
+
+    @Override
+    public void process(InputStream output) throws ProcessException {
+        try (InputStream in = new BufferedInputStream(output)) {
+            String header;
+            while ((header = readLine(in)) != null) {
+                // <name> <type> <size>, or <name> missing
+                String[] parts = header.split(" ");
+                if (parts.length != 3) {
+                    continue;
+                }
+                long size = Long.parseLong(parts[2]);
+                if ("blob".equals(parts[1]) && size < MAX_POINTER_SIZE) {
+                    byte[] content = new byte[(int) size];
+                    ByteStreams.readFully(in, content);
+                    parse(new String(content, StandardCharsets.UTF_8));
+                } else {
+                    ByteStreams.skipFully(in, size);
+                }
+                // The content is followed by a newline
+                in.read();
+                resetWatchdog();
+            }
+        } catch (IOException | NumberFormatException e) {
+            throw new ProcessException(e);
+        }
+    }
+
+    private void parse(String content) {
+        if (!content.startsWith(VERSION)) {
+            return;
+        }
+        Matcher oid = OID.matcher(content);
+        Matcher size = SIZE.matcher(content);
+        if (oid.find() && size.find()) {
+            objects.add(new MirrorLfsObject(oid.group(1), Long.parseLong(size.group(1))));
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(100);
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            line.write(c);
+        }
+        return c == -1 && line.size() == 0 ? null : new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
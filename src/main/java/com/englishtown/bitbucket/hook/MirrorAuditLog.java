@@ -0,0 +1,38 @@
+package com.englishtown.bitbucket.hook;
+
+import javax.annotation.Nullable;
+import java.util.function.Consumer;
+
+/**
+ * Append-only history of the pushes to mirrors, answering when a ref change was pushed to a mirror
+ */
+public interface MirrorAuditLog {
+
+    /**
+     * Records a push
+     *
+     * @param entry the push to record
+     */
+    void record(MirrorPushEntry entry);
+
+    /**
+     * Streams a page of the recorded pushes of a repository, most recent first
+     *
+     * @param repositoryId the ID of the repository
+     * @param refId        if not {@code null}, only pushes which changed this fully qualified ref are returned, with
+     *                     only the changes to that ref
+     * @param start        the number of pushes to skip
+     * @param limit        the maximum number of pushes to return
+     * @param callback     receives each push
+     * @return {@code true} if there are no more pushes after this page
+     */
+    boolean search(int repositoryId, @Nullable String refId, int start, int limit, Consumer<MirrorPushEntry> callback);
+
+    /**
+     * Deletes the pushes which started before a given time
+     *
+     * @param before the time, in milliseconds since the epoch
+     * @return the number of pushes deleted
+     */
+    int purge(long before);
+}
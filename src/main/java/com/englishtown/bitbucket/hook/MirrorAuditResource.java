@@ -0,0 +1,125 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.permission.PermissionService;
+import com.atlassian.bitbucket.repository.RepositoryService;
+import com.google.common.base.Strings;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * REST resource for the {@link MirrorAuditLog push history} of a repository, available to repository administrators.
+ * Pages are written to the response as they are read, so large pages are never held in memory.
+ */
+@Path("/projects/{projectKey}/repos/{repositorySlug}/pushes")
+@Produces(MediaType.APPLICATION_JSON)
+public class MirrorAuditResource extends AbstractRepositoryResource {
+
+    static final int DEFAULT_LIMIT = 25;
+    static final int MAX_LIMIT = 1000;
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final MirrorAuditLog auditLog;
+
+    public MirrorAuditResource(MirrorAuditLog auditLog, PermissionService permissionService,
+                               RepositoryService repositoryService) {
+        super(permissionService, repositoryService);
+
+        this.auditLog = auditLog;
+    }
+
+    /**
+     * Streams a page of the pushes to the mirrors of a repository, most recent first
+     *
+     * @param projectKey     the key of the project
+     * @param repositorySlug the slug of the repository
+     * @param ref            if set, only pushes which changed this fully qualified ref are returned
+     * @param start          the number of pushes to skip
+     * @param limit          the maximum number of pushes to return, up to {@link #MAX_LIMIT}
+     * @return a Bitbucket style page of pushes
+     */
+    @GET
+    public Response getPushes(@PathParam("projectKey") String projectKey,
+                              @PathParam("repositorySlug") String repositorySlug,
+                              @QueryParam("ref") String ref,
+                              @QueryParam("start") @DefaultValue("0") int start,
+                              @QueryParam("limit") @DefaultValue("" + DEFAULT_LIMIT) int limit) {
+        return withRepository(projectKey, repositorySlug, repository -> {
+            int repositoryId = repository.getId();
+            String refId = Strings.emptyToNull(ref);
+            int pageStart = Math.max(0, start);
+            int pageLimit = Math.max(1, Math.min(MAX_LIMIT, limit));
+
+            StreamingOutput output = stream -> writePage(stream, repositoryId, refId, pageStart, pageLimit);
+            return Response.ok(output).build();
+        });
+    }
+
+    private void writePage(OutputStream stream, int repositoryId, String refId, int pageStart, int pageLimit)
+            throws IOException {
+        JsonGenerator json = JSON_FACTORY.createJsonGenerator(stream, JsonEncoding.UTF8);
+        json.writeStartObject();
+        json.writeArrayFieldStart("values");
+
+        int[] size = {0};
+        boolean lastPage;
+        try {
+            lastPage = auditLog.search(repositoryId, refId, pageStart, pageLimit, entry -> {
+                try {
+                    writeEntry(json, entry);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                ++size[0];
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        json.writeEndArray();
+        json.writeNumberField("size", size[0]);
+        json.writeNumberField("start", pageStart);
+        json.writeNumberField("limit", pageLimit);
+        json.writeBooleanField("isLastPage", lastPage);
+        if (!lastPage) {
+            json.writeNumberField("nextPageStart", pageStart + pageLimit);
+        }
+        json.writeEndObject();
+        json.flush();
+    }
+
+    private static void writeEntry(JsonGenerator json, MirrorPushEntry entry) throws IOException {
+        json.writeStartObject();
+        json.writeNumberField("id", entry.getId());
+        json.writeStringField("mirrorRepoUrl", entry.getMirrorUrl());
+        json.writeNumberField("startedAt", entry.getStartedAt());
+        json.writeNumberField("finishedAt", entry.getFinishedAt());
+        json.writeStringField("outcome", entry.getOutcome().name());
+
+        json.writeArrayFieldStart("refChanges");
+        for (MirrorRefChange refChange : entry.getRefChanges()) {
+            json.writeStartObject();
+            json.writeStringField("refId", refChange.getRefId());
+            json.writeStringField("fromHash", refChange.getFromHash());
+            json.writeStringField("toHash", refChange.getToHash());
+            json.writeStringField("type", refChange.getType().name());
+            json.writeEndObject();
+        }
+        json.writeEndArray();
+        json.writeEndObject();
+    }
+}
@@ -0,0 +1,126 @@
+package com.englishtown.bitbucket.hook;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Paces large pushes with token buckets for each mirror and each host, so their average transfer rate stays within
+ * the configured limits.
+ * <p>
+ * Git cannot limit the rate of a push itself, so a push is charged its estimated size when it starts. The buckets
+ * can go into debt, and another large push to the same mirror or host waits until the debt is paid off. A bucket
+ * holds at most {@link #BURST_SECONDS} seconds worth of transfer, so idle periods don't allow unlimited bursts.
+ */
+class MirrorBandwidthLimiter {
+
+    static final long BURST_SECONDS = 60L;
+
+    private final LongSupplier clock;
+    private final long hostRate;
+    // Guarded by this
+    private final Map<String, TokenBucket> buckets = new HashMap<>();
+
+    /**
+     * @param hostRate the limit for each host, in bytes per second, or {@code 0} for no limit
+     * @param clock    supplies the current time in milliseconds
+     */
+    MirrorBandwidthLimiter(long hostRate, LongSupplier clock) {
+        this.clock = clock;
+        this.hostRate = hostRate;
+    }
+
+    /**
+     * @return {@code true} if there is a limit for the mirror or for every host
+     */
+    boolean isLimited(long mirrorRate) {
+        return mirrorRate > 0L || hostRate > 0L;
+    }
+
+    /**
+     * Charges a push to the buckets of the mirror and host, if neither is in debt
+     *
+     * @param key        identifies the mirror
+     * @param mirrorRate the limit for the mirror, in bytes per second, or {@code 0} for no limit
+     * @param host       the host of the mirror
+     * @param bytes      the estimated size of the push
+     * @return {@code 0} if the push was charged and can start, or how many milliseconds to wait before trying again
+     */
+    synchronized long reserve(String key, long mirrorRate, String host, long bytes) {
+        long now = clock.getAsLong();
+        TokenBucket mirrorBucket = getBucket("mirror:" + key, mirrorRate, now);
+        TokenBucket hostBucket = getBucket("host:" + host, hostRate, now);
+
+        long delay = Math.max(mirrorBucket == null ? 0L : mirrorBucket.getDelay(),
+                hostBucket == null ? 0L : hostBucket.getDelay());
+        if (delay > 0L) {
+            return delay;
+        }
+        if (mirrorBucket != null) {
+            mirrorBucket.charge(bytes);
+        }
+        if (hostBucket != null) {
+            hostBucket.charge(bytes);
+        }
+        return 0L;
+    }
+
+    /**
+     * Drops the buckets of mirrors which are no longer pushed to, e.g. of a deleted repository
+     *
+     * @param keys matches the keys of the mirrors to drop
+     */
+    synchronized void forget(Predicate<String> keys) {
+        buckets.keySet().removeIf(name -> name.startsWith("mirror:") && keys.test(name.substring(7)));
+    }
+
+    private TokenBucket getBucket(String name, long rate, long now) {
+        if (rate <= 0L) {
+            buckets.remove(name);
+            return null;
+        }
+        TokenBucket bucket = buckets.get(name);
+        if (bucket == null || bucket.rate != rate) {
+            // The limit was changed, so start over with a full bucket
+            bucket = new TokenBucket(rate, now);
+            buckets.put(name, bucket);
+        }
+        bucket.refill(now);
+        return bucket;
+    }
+
+    private static class TokenBucket {
+
+        private final long rate;
+        private double tokens;
+        private long updated;
+
+        TokenBucket(long rate, long now) {
+            this.rate = rate;
+
+            tokens = getCapacity();
+            updated = now;
+        }
+
+        void charge(long bytes) {
+            tokens -= bytes;
+        }
+
+        /**
+         * @return how many milliseconds until the bucket is out of debt
+         */
+        long getDelay() {
+            return tokens >= 0d ? 0L : (long) Math.ceil(-tokens * 1000d / rate);
+        }
+
+        void refill(long now) {
+            tokens = Math.min(getCapacity(), tokens + (now - updated) * rate / 1000d);
+            updated = now;
+        }
+
+        private double getCapacity() {
+            return (double) rate * BURST_SECONDS;
+        }
+    }
+}
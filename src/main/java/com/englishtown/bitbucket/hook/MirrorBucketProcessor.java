@@ -1,54 +1,201 @@
 package com.englishtown.bitbucket.hook;
 
 import com.atlassian.bitbucket.concurrent.BucketProcessor;
+import com.atlassian.bitbucket.concurrent.BucketedExecutor;
 import com.atlassian.bitbucket.i18n.I18nService;
 import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.RefChangeType;
 import com.atlassian.bitbucket.repository.Repository;
 import com.atlassian.bitbucket.repository.RepositoryService;
+import com.atlassian.bitbucket.repository.SimpleMinimalRef;
+import com.atlassian.bitbucket.repository.SimpleRefChange;
+import com.atlassian.bitbucket.repository.StandardRefType;
 import com.atlassian.bitbucket.scm.Command;
+import com.atlassian.bitbucket.scm.CommandErrorHandler;
 import com.atlassian.bitbucket.scm.ScmCommandBuilder;
 import com.atlassian.bitbucket.scm.ScmService;
 import com.atlassian.bitbucket.scm.git.command.GitCommandExitHandler;
 import com.atlassian.bitbucket.server.ApplicationPropertiesService;
 import com.atlassian.bitbucket.user.SecurityService;
-import com.google.common.base.Strings;
+import com.atlassian.event.api.EventPublisher;
+import com.englishtown.bitbucket.hook.MirrorPushWatchdog.InFlightPush;
+import com.englishtown.bitbucket.hook.MirrorPushWatchdog.Phase;
+import com.englishtown.bitbucket.hook.MirrorStatusIndex.MirrorStatus;
+import com.englishtown.bitbucket.hook.PushTimeoutPolicy.Operation;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
-import java.net.URI;
-import java.net.URISyntaxException;
+import javax.annotation.Nullable;
 import java.time.Duration;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
+import static com.englishtown.bitbucket.hook.MirrorRepositoryHook.PROP_ATTEMPTS;
 import static com.englishtown.bitbucket.hook.MirrorRepositoryHook.PROP_PREFIX;
 
 public class MirrorBucketProcessor implements BucketProcessor<MirrorRequest> {
 
-    static final String PROP_TIMEOUT = PROP_PREFIX + "timeout";
+    static final String PROP_ASYNC = PROP_PREFIX + "async";
+    static final String PROP_BATCH_SIZE = PROP_PREFIX + "batch.size";
+    static final String PROP_FORK_AWARE = PROP_PREFIX + "fork.aware";
+    static final String PROP_FORK_WAIT = PROP_PREFIX + "fork.wait";
+    static final String PROP_HOST_BANDWIDTH = PROP_PREFIX + "host.bandwidth";
+    static final String PROP_HOST_CONCURRENCY = PROP_PREFIX + "host.concurrency";
+    static final String PROP_INCREMENTAL_MAX = PROP_PREFIX + "incremental.max";
+    static final String PROP_LARGE_REFS = PROP_PREFIX + "large.refs";
+    static final String PROP_LARGE_SIZE = PROP_PREFIX + "large.size";
+    static final String PROP_RETRY_DELAY = PROP_PREFIX + "retry.delay";
 
-    private static final String DEFAULT_REFSPEC = "+refs/heads/*:refs/heads/*";
+    private static final String BRANCH_PREFIX = "refs/heads/";
+    private static final String TAG_PREFIX = "refs/tags/";
+    private static final String ZERO_HASH = "0000000000000000000000000000000000000000";
+    private static final long FORK_POLL_INTERVAL = TimeUnit.SECONDS.toMillis(5L);
+    private static final long POLL_INTERVAL = 100L;
 
     private static final Logger log = LoggerFactory.getLogger(MirrorBucketProcessor.class);
 
+    private final GitAskPass askPass;
+    private final MirrorBandwidthLimiter bandwidthLimiter;
+    private final MirrorAuditLog auditLog;
+    private final MirrorCredentialProvider credentialProvider;
+    private final EventPublisher eventPublisher;
+    private final MirrorConcurrencyLimiter concurrencyLimiter;
+    private final ScheduledExecutorService executorService;
     private final I18nService i18nService;
-    private final PasswordEncryptor passwordEncryptor;
+    private final MirrorLfsUploader lfsUploader;
+    private final MirrorOutbox outbox;
+    private final MirrorPauseService pauseService;
     private final RepositoryService repositoryService;
     private final ScmService scmService;
     private final SecurityService securityService;
-    private final Duration timeout;
+    private final MirrorStatusIndex statusIndex;
+    private final PushTimeoutPolicy timeoutPolicy;
+    private final MirrorPushTracker pushTracker;
+    private final MirrorPushWatchdog pushWatchdog;
+    private final int attempts;
+    private final int batchSize;
+    private final boolean forkAware;
+    private final long forkWait;
+    private final int incrementalMax;
+    private final int largeRefs;
+    private final long retryDelay;
+    private final long largeSize;
+    private final ConcurrentMap<String, String> batchProgress = new ConcurrentHashMap<>();
+    // When the pushes to each mirror were cancelled, keyed by push key, or by repository ID and colon for every
+    // mirror of the repository. Repository IDs are never reused, so a day is only a bound on the memory used
+    private final Cache<String, Long> cancellations = CacheBuilder.newBuilder()
+            .expireAfterWrite(1L, TimeUnit.DAYS)
+            .build();
+    // The push keys of the mirrors which a push failed to update. Their next push is a full push, since an
+    // incremental push would only send its own changes and then clear the dirty marker left by the failed push
+    private final Set<String> failedMirrors = ConcurrentHashMap.newKeySet();
+    // When each fork push which is waiting behind a push of its origin first started waiting, by push key
+    private final ConcurrentMap<String, Long> forkWaits = new ConcurrentHashMap<>();
+    // The requests which arrived while an asynchronous push to the mirror was running, by mirror
+    private final Map<String, List<MirrorRequest>> queuedRequests = new HashMap<>();
+    private volatile BucketedExecutor<MirrorRequest> pushExecutor;
 
-    public MirrorBucketProcessor(I18nService i18nService, PasswordEncryptor passwordEncryptor,
+    public MirrorBucketProcessor(I18nService i18nService, MirrorCredentialProvider credentialProvider,
                                  ApplicationPropertiesService propertiesService, RepositoryService repositoryService,
-                                 ScmService scmService, SecurityService securityService) {
+                                 ScmService scmService, SecurityService securityService, MirrorOutbox outbox,
+                                 MirrorAuditLog auditLog, MirrorStatusIndex statusIndex,
+                                 MirrorPauseService pauseService, ScheduledExecutorService executorService,
+                                 MirrorConcurrencyLimiter concurrencyLimiter, MirrorPushWatchdog pushWatchdog,
+                                 EventPublisher eventPublisher) {
+        this.auditLog = auditLog;
+        this.concurrencyLimiter = concurrencyLimiter;
+        this.credentialProvider = credentialProvider;
+        this.eventPublisher = eventPublisher;
+        this.executorService = executorService;
         this.i18nService = i18nService;
-        this.passwordEncryptor = passwordEncryptor;
+        this.outbox = outbox;
+        this.pauseService = pauseService;
+        this.pushWatchdog = pushWatchdog;
         this.repositoryService = repositoryService;
         this.scmService = scmService;
         this.securityService = securityService;
+        this.statusIndex = statusIndex;
 
-        timeout = Duration.ofSeconds(propertiesService.getPluginProperty(PROP_TIMEOUT, 120L));
+        askPass = new GitAskPass(propertiesService::getTempDir);
+        timeoutPolicy = new PushTimeoutPolicy(propertiesService);
+        batchSize = propertiesService.getPluginProperty(PROP_BATCH_SIZE, 0);
+        incrementalMax = propertiesService.getPluginProperty(PROP_INCREMENTAL_MAX, 100);
+        attempts = propertiesService.getPluginProperty(PROP_ATTEMPTS, 5);
+        // The delay before the first retry of an asynchronous push, in milliseconds, doubling with each attempt
+        retryDelay = Math.max(1L, propertiesService.getPluginProperty(PROP_RETRY_DELAY, 5000L));
+        // Pushes which change more refs than this, or the first push of a repository larger than this many MiB, are
+        // large; they wait for the off-peak window and are charged to the bandwidth limits
+        largeRefs = propertiesService.getPluginProperty(PROP_LARGE_REFS, 50);
+        largeSize = propertiesService.getPluginProperty(PROP_LARGE_SIZE, 100L) * 1024L * 1024L;
+        // Fork pushes wait up to this many seconds for pushes of their origin to mirrors on the same host
+        forkAware = propertiesService.getPluginProperty(PROP_FORK_AWARE, false);
+        forkWait = TimeUnit.SECONDS.toMillis(Math.max(0L, propertiesService.getPluginProperty(PROP_FORK_WAIT, 300L)));
+        lfsUploader = propertiesService.getPluginProperty(MirrorLfsUploader.PROP_LFS, false) ?
+                new MirrorLfsUploader(propertiesService) : null;
+        bandwidthLimiter = new MirrorBandwidthLimiter(
+                Math.max(0L, propertiesService.getPluginProperty(PROP_HOST_BANDWIDTH, 0L)) * 1024L,
+                System::currentTimeMillis);
+        // Asynchronous pushes are limited per host instead of by the threads of the bucketed executor, which
+        // only prepare them
+        pushTracker = propertiesService.getPluginProperty(PROP_ASYNC, false) ? new MirrorPushTracker(executorService,
+                propertiesService.getPluginProperty(PROP_HOST_CONCURRENCY, 16), POLL_INTERVAL) : null;
+    }
+
+    /**
+     * @param pushExecutor the executor which deferred pushes are rescheduled on. Until it is set, pushes are not
+     *                     deferred
+     */
+    void setPushExecutor(BucketedExecutor<MirrorRequest> pushExecutor) {
+        this.pushExecutor = pushExecutor;
+    }
+
+    /**
+     * Cancels the pushes to a mirror, or to every mirror, of a repository which was deleted or moved. Requests which
+     * were created before the cancellation are dropped when they are processed instead of being pushed or retried,
+     * a running push is killed, and the state kept for the mirrors is purged. Requests created afterwards, e.g. when
+     * a repository is moved back, are pushed as usual.
+     *
+     * @param repositoryId the ID of the repository
+     * @param mirrorUrl    the URL of the mirror, or {@code null} for every mirror of the repository
+     */
+    void cancel(int repositoryId, @Nullable String mirrorUrl) {
+        String prefix = repositoryId + ":";
+        String cancelled = mirrorUrl == null ? prefix : prefix + mirrorUrl;
+        Predicate<String> keys = mirrorUrl == null ? key -> key.startsWith(prefix) : cancelled::equals;
+        cancellations.put(cancelled, System.currentTimeMillis());
+
+        synchronized (queuedRequests) {
+            queuedRequests.forEach((key, queued) -> {
+                if (keys.test(key)) {
+                    queued.clear();
+                }
+            });
+        }
+        batchProgress.keySet().removeIf(keys);
+        forkWaits.keySet().removeIf(keys);
+        failedMirrors.removeIf(keys);
+        timeoutPolicy.forget(keys);
+        bandwidthLimiter.forget(keys);
+        pushWatchdog.cancel(repositoryId, mirrorUrl);
     }
 
     @Override
@@ -58,90 +205,932 @@ public class MirrorBucketProcessor implements BucketProcessor<MirrorRequest> {
         }
         // Every request is for the same mirror URL, and the same repository ID. In case the
         // settings (e.g. username/password) have been changed since the first request was
-        // queued, we process the _last_ request in the list. Since mirroring pushes all of
-        // the configured refspecs, any single request should roll up changes from any number
-        // of requests
+        // queued, we process the _last_ request in the list. The ref changes of every request
+        // are merged, so the push covers the changes from any number of requests
         MirrorRequest request = requests.get(requests.size() - 1);
+        if (request.getSettings().isFetch()) {
+            // Mirrors which are fetched from are polled by the MirrorFetchScheduler instead
+            log.debug("{}: Ignoring push request for fetch mirror", request);
+            return;
+        }
+        if (pushTracker == null) {
+            push(new Push(key, requests));
+            return;
+        }
+
+        synchronized (queuedRequests) {
+            List<MirrorRequest> queued = queuedRequests.get(key);
+            if (queued != null) {
+                // Pushes to the same mirror never overlap, so the requests are pushed once the running push completes
+                log.debug("{}: Queued behind the push which is running", request);
+                queued.addAll(requests);
+                return;
+            }
+            queuedRequests.put(key, new ArrayList<>());
+        }
+        pushAsync(new Push(key, requests), 1);
+    }
+
+    /**
+     * Pushes to the mirror on this thread, throwing if the push fails so it is retried
+     */
+    private void push(Push push) {
+        long permit = concurrencyLimiter.acquire();
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            securityService.withPermission(Permission.REPO_READ, "Mirror changes")
+                    .call(() -> {
+                        if (!push.begin()) {
+                            return null;
+                        }
+                        try {
+                            RemotePush remotePush = push.prepare();
+                            if (remotePush != null) {
+                                push.inFlight.setPhase(Phase.PUSHING);
+                                Object result = runRemoteCommand(push.repository, push.key, push.getOperation(),
+                                        push.credentials, remotePush.builder, push.inFlight);
+                                remotePush.completed(result);
+                            }
+                        } catch (RuntimeException e) {
+                            push.failed(e);
+                            throw e;
+                        }
+                        push.succeeded();
 
-        securityService.withPermission(Permission.REPO_READ, "Mirror changes")
-                .call(() -> {
-                    Repository repository = repositoryService.getById(request.getRepositoryId());
-                    if (repository == null) {
-                        log.debug("{}: Repository has been deleted", request.getRepositoryId());
-                        return null;
-                    }
-                    if (repositoryService.isEmpty(repository)) {
-                        log.debug("{}: The repository is empty", repository);
                         return null;
-                    }
-                    runMirrorCommand(request.getSettings(), repository);
+                    });
+            succeeded = true;
+        } finally {
+            concurrencyLimiter.release(permit, succeeded, timeoutPolicy.isSlow(push.key, push.getOperation(),
+                    Duration.ofNanos(System.nanoTime() - start)));
+        }
+    }
+
+    /**
+     * Starts the push to the mirror without waiting for it to complete. Preparing the push, e.g. listing the refs
+     * to push, still happens on this thread, but the final remote command completes on the {@link MirrorPushTracker}.
+     * Failed pushes are retried after a delay, up to the configured number of attempts.
+     */
+    private void pushAsync(Push push, int attempt) {
+        String host = MirrorPushTracker.getHost(push.settings.mirrorRepoUrl);
+        if (!pushTracker.acquire(host, () -> pushAsync(push, attempt))) {
+            log.debug("{}: Waiting for a push to {} to complete", push.request, host);
+            return;
+        }
+        startAsync(push, host, attempt);
+    }
+
+    private void startAsync(Push push, String host, int attempt) {
+        long permit = concurrencyLimiter.tryAcquire(() -> startAsync(push, host, attempt));
+        if (permit < 0L) {
+            log.debug("{}: Waiting for the concurrency limit", push.request);
+            return;
+        }
+
+        boolean running = false;
+        RuntimeException failure = null;
+        try {
+            running = securityService.withPermission(Permission.REPO_READ, "Mirror changes")
+                    .call(() -> {
+                        if (!push.begin()) {
+                            return false;
+                        }
+                        try {
+                            RemotePush remotePush = push.prepare();
+                            if (remotePush == null) {
+                                push.succeeded();
+                                return false;
+                            }
+                            push.inFlight.setPhase(Phase.PUSHING);
+                            Operation operation = push.getOperation();
+                            Command<String> command = buildRemoteCommand(push.repository, push.key, operation,
+                                    push.credentials, remotePush.builder, push.inFlight);
+                            long start = System.nanoTime();
+                            pushTracker.track(command.start(), (result, error) -> {
+                                Duration duration = Duration.ofNanos(System.nanoTime() - start);
+                                concurrencyLimiter.release(permit, error == null,
+                                        timeoutPolicy.isSlow(push.key, operation, duration));
+                                pushTracker.release(host);
+                                if (error == null) {
+                                    timeoutPolicy.recordSuccess(push.key, operation, duration);
+                                    remotePush.completed(result);
+                                    push.succeeded();
+                                    finishAsync(push.key);
+                                } else {
+                                    timeoutPolicy.recordFailure(push.key, operation, duration);
+                                    push.failed(error);
+                                    retryAsync(push, attempt, error);
+                                }
+                            });
+                            return true;
+                        } catch (RuntimeException e) {
+                            push.failed(e);
+                            throw e;
+                        }
+                    });
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+
+        // Otherwise the push completes on the tracker
+        if (!running) {
+            concurrencyLimiter.release(permit, failure == null, false);
+            pushTracker.release(host);
+            if (failure == null) {
+                finishAsync(push.key);
+            } else {
+                retryAsync(push, attempt, failure);
+            }
+        }
+    }
+
+    private void retryAsync(Push push, int attempt, RuntimeException e) {
+        if (push.requests.stream().allMatch(this::isCancelled)) {
+            log.debug("{}: Not retrying the cancelled push", push.request);
+            finishAsync(push.key);
+            return;
+        }
+        if (attempt >= attempts) {
+            // The mirror is left dirty, so it is pushed to by the next reconciliation
+            log.error("{}: Giving up on the push after {} attempt(s)", push.request, attempt, e);
+            finishAsync(push.key);
+            return;
+        }
 
-                    return null;
-                });
+        long delay = retryDelay << Math.min(attempt - 1, 6);
+        log.warn("{}: Push failed, retrying in {}ms", push.request, delay, e);
+        executorService.schedule(() -> {
+            // Requests which were queued in the meantime are included in the retry
+            List<MirrorRequest> requests = new ArrayList<>(push.requests);
+            synchronized (queuedRequests) {
+                List<MirrorRequest> queued = queuedRequests.get(push.key);
+                if (queued != null) {
+                    requests.addAll(queued);
+                    queued.clear();
+                }
+            }
+            pushAsync(new Push(push.key, requests), attempt + 1);
+        }, delay, TimeUnit.MILLISECONDS);
     }
 
-    private void runMirrorCommand(MirrorSettings settings, Repository repository) {
+    /**
+     * Completes the asynchronous push of a mirror, starting another push if more requests were queued for it
+     */
+    private void finishAsync(String key) {
+        List<MirrorRequest> queued;
+        synchronized (queuedRequests) {
+            queued = queuedRequests.get(key);
+            if (queued == null || queued.isEmpty()) {
+                queuedRequests.remove(key);
+                return;
+            }
+            queuedRequests.put(key, new ArrayList<>());
+        }
+        executorService.execute(() -> pushAsync(new Push(key, queued), 1));
+    }
+
+    /**
+     * Defers a large push until the off-peak window of the mirror opens, or until the mirror and its host are within
+     * their bandwidth limits. The requests are rescheduled, leaving the mirror dirty in the meantime. Small pushes
+     * are never deferred.
+     *
+     * @return {@code true} if the push was deferred
+     */
+    private boolean defer(Push push) {
+        BucketedExecutor<MirrorRequest> executor = pushExecutor;
+        if (executor == null) {
+            return false;
+        }
+        long delay = getDeferral(push);
+        if (delay <= 0L) {
+            return false;
+        }
+
+        log.info("{}: Deferring large push for {}s", push.repository, TimeUnit.MILLISECONDS.toSeconds(delay));
+        statusIndex.onSkipped(push.request.getRepositoryId(), push.settings.mirrorRepoUrl, push.requests.size());
+        for (MirrorRequest request : push.requests) {
+            executor.schedule(request, delay, TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
+    /**
+     * @return {@code true} if the request was created before the pushes to its mirror were cancelled
+     */
+    private boolean isCancelled(MirrorRequest request) {
+        Long mirror = cancellations.getIfPresent(request.toString());
+        Long repository = cancellations.getIfPresent(request.getRepositoryId() + ":");
+        return (mirror != null && request.getCreated() <= mirror) ||
+                (repository != null && request.getCreated() <= repository);
+    }
+
+    /**
+     * In fork-aware mode, defers the push of a fork while a push of its origin to a mirror on the same host is queued
+     * or running, for up to the configured wait. A mirror which is a fork of the origin's mirror on that host shares
+     * its objects, so once the origin has been pushed, git only sends the objects which are new in the fork.
+     *
+     * @return {@code true} if the push was rescheduled
+     */
+    private boolean deferBehindOrigin(Push push) {
+        BucketedExecutor<MirrorRequest> executor = pushExecutor;
+        Repository origin = push.repository.getOrigin();
+        if (!forkAware || forkWait == 0L || executor == null || origin == null) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        long waitingSince = forkWaits.computeIfAbsent(push.key, key -> now);
+        if (now - waitingSince >= forkWait ||
+                !isPushPending(origin.getId(), MirrorPushTracker.getHost(push.settings.mirrorRepoUrl))) {
+            forkWaits.remove(push.key);
+            return false;
+        }
+
+        log.debug("{}: Waiting for the push of origin {} to {}", push.repository, origin,
+                MirrorPushTracker.getHost(push.settings.mirrorRepoUrl));
+        statusIndex.onSkipped(push.request.getRepositoryId(), push.settings.mirrorRepoUrl, push.requests.size());
+        for (MirrorRequest request : push.requests) {
+            executor.schedule(request, FORK_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
+    /**
+     * @return {@code true} if a push of the repository to a mirror on the host is running or queued on this node.
+     * A mirror whose last push failed is not waited for, as its retries may keep failing
+     */
+    private boolean isPushPending(int repositoryId, String host) {
+        for (InFlightPush push : pushWatchdog.getInFlight()) {
+            if (push.getRepositoryId() == repositoryId && host.equals(MirrorPushTracker.getHost(push.getMirrorUrl()))) {
+                return true;
+            }
+        }
+        for (Map.Entry<String, MirrorStatus> entry : statusIndex.getStatuses(repositoryId).entrySet()) {
+            MirrorStatus status = entry.getValue();
+            boolean failed = status.getLastFailure() > 0L && status.getLastFailure() >= status.getLastAttempt();
+            if (status.getQueued() > 0 && !failed && host.equals(MirrorPushTracker.getHost(entry.getKey()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return how many milliseconds to defer the push by, or {@code 0} if it can start now
+     */
+    private long getDeferral(Push push) {
+        MirrorSettings settings = push.settings;
+        MirrorWindow window = MirrorWindow.parse(settings.offPeakWindow);
+        long mirrorRate = Math.max(0L, settings.bandwidthLimit) * 1024L;
+        if (window == null && !bandwidthLimiter.isLimited(mirrorRate)) {
+            return 0L;
+        }
+
+        long size = getLargePushSize(push);
+        if (size < 0L) {
+            return 0L;
+        }
+        if (window != null) {
+            long wait = window.untilOpen(LocalTime.now()).toMillis();
+            if (wait > 0L) {
+                return wait;
+            }
+        }
+        return bandwidthLimiter.reserve(push.key, mirrorRate, MirrorPushTracker.getHost(settings.mirrorRepoUrl),
+                size);
+    }
+
+    /**
+     * Estimates whether a push is large. A push of the refs which changed is large if it changes more than the
+     * configured number of refs. A push of all refs is large if the mirror has not been pushed to successfully
+     * since startup, and the repository is larger than the configured size; otherwise the mirror is only missing a
+     * few changes.
+     *
+     * @return the size of the repository, as an upper bound of what the push transfers, or {@code -1} if the push
+     * is small
+     */
+    private long getLargePushSize(Push push) {
+        MirrorChangeSet changeSet = push.changeSet;
+        if (changeSet.isComplete() ? changeSet.size() <= largeRefs : timeoutPolicy.hasHistory(push.key)) {
+            return -1L;
+        }
+        long size = getRepositorySize(push.repository);
+        return changeSet.isComplete() || size > largeSize ? size : -1L;
+    }
+
+    /**
+     * Records the push in the audit log, with the merged ref changes of every coalesced request. Failing to record a
+     * push does not fail the push.
+     */
+    private void audit(MirrorRequest request, MirrorChangeSet changeSet, long started, MirrorPushOutcome outcome) {
+        List<MirrorRefChange> refChanges = new ArrayList<>(changeSet.getChanges());
+
+        try {
+            auditLog.record(new MirrorPushEntry(request.getRepositoryId(), request.getSettings().mirrorRepoUrl,
+                    started, System.currentTimeMillis(), outcome, refChanges));
+        } catch (RuntimeException e) {
+            log.warn("{}: Failed to record the push in the audit log", request, e);
+        }
+    }
+
+    /**
+     * Removes the mirror password from a message, in case it was not removed from git output before being included
+     * in an exception
+     */
+    private static String redact(MirrorCredentials credentials, String message) {
+        if (credentials == null || credentials.isEmpty()) {
+            return message;
+        }
+        return new PasswordHandler(credentials.getPassword(), null).cleanText(message);
+    }
+
+    /**
+     * Uploads the LFS objects referenced by the commits being pushed which the mirror does not have yet. This
+     * happens before the refs are pushed, so the mirror never has pointers to objects it is missing.
+     */
+    private void uploadLfsObjects(MirrorSettings settings, Repository repository, MirrorCredentials credentials,
+                                  MirrorChangeSet changeSet) {
+        // Only blobs small enough to be pointers are listed
+        ScmCommandBuilder<?> builder = scmService.createBuilder(repository)
+                .command("rev-list")
+                .argument("--objects")
+                .argument("--filter=blob:limit=" + LfsPointerOutputHandler.MAX_POINTER_SIZE);
+        if (changeSet.isComplete()) {
+            // Commits which were already on a ref are assumed to have been mirrored with their objects. If they
+            // were not, the batch API still only asks for the objects the mirror is missing
+            List<String> included = new ArrayList<>();
+            List<String> excluded = new ArrayList<>();
+            for (MirrorRefChange change : changeSet.getChanges()) {
+                if (change.getType() != RefChangeType.DELETE) {
+                    included.add(change.getToHash());
+                }
+                if (change.getType() == RefChangeType.UPDATE) {
+                    excluded.add(change.getFromHash());
+                }
+            }
+            if (included.isEmpty()) {
+                return;
+            }
+            included.forEach(builder::argument);
+            if (!excluded.isEmpty()) {
+                builder.argument("--not");
+                excluded.forEach(builder::argument);
+            }
+        } else {
+            builder.argument("--all");
+        }
+        Command<List<String>> listCommand = builder.build(new ObjectNamesOutputHandler());
+        listCommand.setTimeout(timeoutPolicy.getBaseTimeout());
+        List<String> names = listCommand.call();
+        if (names == null || names.isEmpty()) {
+            return;
+        }
+
+        Command<Set<MirrorLfsObject>> pointerCommand = scmService.createBuilder(repository)
+                .command("cat-file")
+                .argument("--batch")
+                .inputHandler(new ObjectNamesInputHandler(names))
+                .build(new LfsPointerOutputHandler());
+        pointerCommand.setTimeout(timeoutPolicy.getBaseTimeout());
+        Set<MirrorLfsObject> objects = pointerCommand.call();
+        if (objects == null || objects.isEmpty()) {
+            return;
+        }
+
+        log.debug("{}: The pushed commits refer to {} LFS object(s)", repository, objects.size());
+        lfsUploader.upload(settings.mirrorRepoUrl, repository.getHierarchyId(), credentials, objects);
+    }
+
+    /**
+     * Decides how to push the changes. Batches of refs are pushed on this thread, as each batch depends on the
+     * previous one.
+     *
+     * @param incremental whether only the refs in the change set are pushed, see {@link #isIncremental}
+     * @return the remote command which completes the push, or {@code null} if there is nothing to push
+     */
+    private RemotePush prepareRemotePush(MirrorSettings settings, Repository repository, String key,
+                                         MirrorCredentials credentials, MirrorChangeSet changeSet,
+                                         boolean incremental, InFlightPush inFlight) {
         log.debug("{}: Preparing to push changes to mirror", repository);
 
-        String password = passwordEncryptor.decrypt(settings.password);
-        String authenticatedUrl = getAuthenticatedUrl(settings.mirrorRepoUrl, settings.username, password);
+        List<Refspec> refspecs = settings.getRefspecs();
+        if (incremental) {
+            return pushIncrementally(settings, repository, credentials, refspecs, changeSet);
+        }
+        if (!changeSet.isEmpty()) {
+            log.debug("{}: Pushing all refs for {}", repository, changeSet.summarize());
+        }
+
+        SortedMap<String, String> refs = getLocalRefs(repository, refspecs);
+        if (batchSize > 0 && refs.size() > batchSize) {
+            return pushInBatches(settings, repository, key, credentials, refspecs, refs, inFlight);
+        }
 
         // Call push command with the prune flag and refspecs for heads and tags
         // Do not use the mirror flag as pull-request refs are included
+        ScmCommandBuilder<?> builder = createPushBuilder(settings, repository, credentials)
+                .argument("--prune"); // this deletes locally deleted branches
+        refspecs.forEach(refspec -> builder.argument(refspec.toString()));
+
+        return new RemotePush(builder, mapRefs(refs, refspecs), result ->
+                log.info("{}: Push completed with the following output:\n{}", repository, result));
+    }
+
+    /**
+     * A push only has to send the refs which changed if every request said what changed, and no earlier push to the
+     * mirror failed. Otherwise, e.g. after a settings change or a push which gave up, the mirror is reconciled by
+     * pushing all of the configured refspecs.
+     */
+    private boolean isIncremental(String key, MirrorChangeSet changeSet) {
+        return changeSet.isComplete() && changeSet.size() <= incrementalMax && !failedMirrors.contains(key);
+    }
+
+    /**
+     * Pushes only the refs in the change set which match the configured refspecs, deleting the refs which were
+     * deleted. Unlike a full push, this does not prune refs which were deleted from the mirror by other means.
+     */
+    private RemotePush pushIncrementally(MirrorSettings settings, Repository repository,
+                                         MirrorCredentials credentials, List<Refspec> refspecs,
+                                         MirrorChangeSet changeSet) {
+        List<String> explicit = new ArrayList<>();
+        Map<String, String> refTips = new TreeMap<>();
+        for (MirrorRefChange change : changeSet.getChanges()) {
+            String refId = change.getRefId();
+            for (Refspec refspec : refspecs) {
+                String mapped = refspec.map(refId);
+                if (mapped != null) {
+                    explicit.add(change.getType() == RefChangeType.DELETE ? ":" + mapped : refspec.forRef(refId));
+                    if (change.getType() != RefChangeType.DELETE) {
+                        refTips.put(mapped, change.getToHash());
+                    }
+                    break;
+                }
+            }
+        }
+
+        String summary = changeSet.summarize();
+        if (explicit.isEmpty()) {
+            log.info("{}: Nothing to push for {}", repository, summary);
+            return null;
+        }
+
+        ScmCommandBuilder<?> builder = createPushBuilder(settings, repository, credentials);
+        explicit.forEach(builder::argument);
+
+        return new RemotePush(builder, refTips, result ->
+                log.info("{}: Pushed {} with the following output:\n{}", repository, summary, result));
+    }
+
+    /**
+     * Pushes the matching refs in batches of {@link #batchSize}, in ref name order, followed by a final pruning push
+     * with the configured refspecs. Progress is recorded per batch, so a retry after a timeout or failure resumes
+     * after the last ref which was pushed successfully instead of starting over.
+     */
+    private RemotePush pushInBatches(MirrorSettings settings, Repository repository, String key,
+                                     MirrorCredentials credentials, List<Refspec> refspecs,
+                                     SortedMap<String, String> refs, InFlightPush inFlight) {
+        String lastPushed = batchProgress.get(key);
+        SortedMap<String, String> remaining = lastPushed == null ? refs : refs.tailMap(lastPushed + "\0");
+        int batches = (remaining.size() + batchSize - 1) / batchSize;
+
+        log.info("{}: Pushing {} of {} refs in {} batch(es) of up to {}{}", repository, remaining.size(),
+                refs.size(), batches, batchSize, lastPushed == null ? "" : " (resuming after " + lastPushed + ")");
+        inFlight.setPhase(Phase.PUSHING_BATCHES);
+
+        List<String> batch = new ArrayList<>(batchSize);
+        for (String ref : remaining.keySet()) {
+            for (Refspec refspec : refspecs) {
+                String explicit = refspec.forRef(ref);
+                if (explicit != null) {
+                    batch.add(explicit);
+                    break;
+                }
+            }
+            if (batch.size() == batchSize) {
+                pushBatch(settings, repository, key, credentials, batch, inFlight);
+                batchProgress.put(key, ref);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            pushBatch(settings, repository, key, credentials, batch, inFlight);
+        }
+
+        // Every ref is now up-to-date, so the final push only has to send deletions and any refs
+        // which were updated while the batches were being pushed
+        ScmCommandBuilder<?> builder = createPushBuilder(settings, repository, credentials)
+                .argument("--prune");
+        refspecs.forEach(refspec -> builder.argument(refspec.toString()));
+
+        return new RemotePush(builder, mapRefs(refs, refspecs), result -> {
+            batchProgress.remove(key);
+            log.info("{}: Batched push completed with the following output:\n{}", repository, result);
+        });
+    }
+
+    private void pushBatch(MirrorSettings settings, Repository repository, String key, MirrorCredentials credentials,
+                           List<String> refspecs, InFlightPush inFlight) {
+        ScmCommandBuilder<?> builder = createPushBuilder(settings, repository, credentials);
+        refspecs.forEach(builder::argument);
+
+        Object result = runRemoteCommand(repository, key, Operation.FULL, credentials, builder, inFlight);
+        log.debug("{}: Pushed batch of {} refs with the following output:\n{}", repository, refspecs.size(), result);
+    }
+
+    private ScmCommandBuilder<?> createPushBuilder(MirrorSettings settings, Repository repository,
+                                                   MirrorCredentials credentials) {
         ScmCommandBuilder<?> builder = scmService.createBuilder(repository)
                 .command("push")
-                .argument("--prune") // this deletes locally deleted branches
-                .argument(authenticatedUrl)
-                .argument("--force");
+                .argument(settings.mirrorRepoUrl)
+                .argument("--force")
+                .argument("--progress"); // keeps the idle timeout from killing pushes which are transferring data
 
         // Use an atomic transaction to have a consistent state
         if (settings.atomic) {
             builder.argument("--atomic");
         }
-
-        // Add refspec args
-        String refspecs = Strings.isNullOrEmpty(settings.refspec) ? DEFAULT_REFSPEC : settings.refspec;
-        for (String refspec : refspecs.split("\\s|\\n")) {
-            if (!Strings.isNullOrEmpty(refspec)) {
-                builder.argument(refspec);
-            }
+        if (forkAware && repository.isFork()) {
+            // Negotiates which commits the mirror already has, e.g. in the objects it shares with the mirror of the
+            // origin, instead of only trusting the refs it advertises. Versions of git before 2.31 ignore this
+            builder.withEnvironment("GIT_CONFIG_COUNT", "1")
+                    .withEnvironment("GIT_CONFIG_KEY_0", "push.negotiate")
+                    .withEnvironment("GIT_CONFIG_VALUE_0", "true");
         }
+        askPass.configure(builder, credentials);
+        return builder;
+    }
 
-        // Add tags refspec
-        if (settings.tags) {
-            builder.argument("+refs/tags/*:refs/tags/*");
-        }
-        // Add notes refspec
-        if (settings.notes) {
-            builder.argument("+refs/notes/*:refs/notes/*");
+    private Object runRemoteCommand(Repository repository, String key, Operation operation,
+                                    MirrorCredentials credentials, ScmCommandBuilder<?> builder,
+                                    InFlightPush inFlight) {
+        Command<String> command = buildRemoteCommand(repository, key, operation, credentials, builder, inFlight);
+
+        long start = System.nanoTime();
+        Object result;
+        try {
+            result = command.call();
+        } catch (RuntimeException e) {
+            timeoutPolicy.recordFailure(key, operation, Duration.ofNanos(System.nanoTime() - start));
+            throw e;
         }
+        timeoutPolicy.recordSuccess(key, operation, Duration.ofNanos(System.nanoTime() - start));
 
-        PasswordHandler passwordHandler = new PasswordHandler(settings.password,
+        return result;
+    }
+
+    /**
+     * @param inFlight the push the command is part of, which the {@link MirrorPushWatchdog} tracks the progress of,
+     *                 or {@code null} if the command is not part of a push
+     */
+    private Command<String> buildRemoteCommand(Repository repository, String key, Operation operation,
+                                               MirrorCredentials credentials, ScmCommandBuilder<?> builder,
+                                               InFlightPush inFlight) {
+        // The password is not on the command line, but the handler still removes it in case git echoes it
+        PasswordHandler passwordHandler = new PasswordHandler(credentials.getPassword(),
                 new GitCommandExitHandler(i18nService, repository));
+        CommandErrorHandler errorHandler = inFlight == null ? passwordHandler : inFlight.watch(passwordHandler);
 
-        Command<String> command = builder.errorHandler(passwordHandler)
+        Command<String> command = builder.errorHandler(errorHandler)
                 .exitHandler(passwordHandler)
                 .build(passwordHandler);
-        command.setTimeout(timeout);
+        command.setExecutionTimeout(timeoutPolicy.getTimeout(key, operation, () -> getRepositorySize(repository)));
+        command.setIdleTimeout(timeoutPolicy.getIdleTimeout());
+
+        return command;
+    }
+
+    /**
+     * Fetches the configured refspecs from a mirror into the repository. Refs are only created and fast-forwarded,
+     * never rewritten or deleted, since a fetch bypasses the branch permissions of the repository; a ref which has
+     * diverged from the mirror fails the fetch. The changed branches and tags are published as a
+     * {@link MirrorFetchedEvent}, so pull requests and other listeners see them as they would a push.
+     *
+     * @param settings   the mirror to fetch from
+     * @param repository the repository to fetch into
+     * @return {@code true} if the fetch changed any local ref
+     */
+    boolean fetch(MirrorSettings settings, Repository repository) {
+        int repositoryId = repository.getId();
+        String key = new MirrorRequest(repositoryId, settings).toString();
+        List<Refspec> refspecs = settings.getFetchRefspecs();
+        List<Refspec> localRefspecs = refspecs.stream()
+                .map(Refspec::reverse)
+                .collect(Collectors.toList());
+
+        SortedMap<String, String> before = getLocalRefs(repository, localRefspecs);
+
+        // Tags are only fetched by the tags refspec
+        ScmCommandBuilder<?> builder = scmService.createBuilder(repository)
+                .command("fetch")
+                .argument("--no-tags")
+                .argument("--progress")
+                .argument(settings.mirrorRepoUrl);
+        refspecs.forEach(refspec -> builder.argument(refspec.toString()));
+
+        statusIndex.onStarted(repositoryId, settings.mirrorRepoUrl, 0, System.currentTimeMillis());
+        MirrorCredentials credentials = null;
+        try {
+            credentials = credentialProvider.getCredentials(settings);
+            askPass.configure(builder, credentials);
+            // Fetches have their own history, so they don't change the timeout of pushes to the mirror
+            Object result = runRemoteCommand(repository, key, Operation.FETCH, credentials, builder, null);
+            log.debug("{}: Fetch completed with the following output:\n{}", repository, result);
+        } catch (RuntimeException e) {
+            credentialProvider.invalidate(settings);
+            statusIndex.onFailed(repositoryId, settings.mirrorRepoUrl, System.currentTimeMillis(),
+                    redact(credentials, e.getMessage()));
+            throw e;
+        }
+        statusIndex.onSucceeded(repositoryId, settings.mirrorRepoUrl, System.currentTimeMillis());
+
+        SortedMap<String, String> after = getLocalRefs(repository, localRefspecs);
+        List<RefChange> refChanges = getRefChanges(before, after);
+        if (!refChanges.isEmpty()) {
+            try {
+                eventPublisher.publish(new MirrorFetchedEvent(this, repository, settings.mirrorRepoUrl, refChanges));
+            } catch (RuntimeException e) {
+                log.warn("{}: Failed to publish {}", repository, MirrorFetchedEvent.class.getSimpleName(), e);
+            }
+        }
+        return !before.equals(after);
+    }
+
+    /**
+     * @return the changes to branches and tags between two snapshots of the local refs; other refs, e.g. notes, have
+     * no ref type in Bitbucket
+     */
+    static List<RefChange> getRefChanges(Map<String, String> before, Map<String, String> after) {
+        Set<String> refs = new TreeSet<>(before.keySet());
+        refs.addAll(after.keySet());
+
+        List<RefChange> results = new ArrayList<>();
+        for (String ref : refs) {
+            StandardRefType type;
+            String displayId;
+            if (ref.startsWith(BRANCH_PREFIX)) {
+                type = StandardRefType.BRANCH;
+                displayId = ref.substring(BRANCH_PREFIX.length());
+            } else if (ref.startsWith(TAG_PREFIX)) {
+                type = StandardRefType.TAG;
+                displayId = ref.substring(TAG_PREFIX.length());
+            } else {
+                continue;
+            }
+
+            String fromHash = before.getOrDefault(ref, ZERO_HASH);
+            String toHash = after.getOrDefault(ref, ZERO_HASH);
+            if (fromHash.equals(toHash)) {
+                continue;
+            }
+            results.add(new SimpleRefChange.Builder()
+                    .ref(new SimpleMinimalRef.Builder().id(ref).displayId(displayId).type(type).build())
+                    .fromHash(fromHash)
+                    .toHash(toHash)
+                    .type(!before.containsKey(ref) ? RefChangeType.ADD :
+                            !after.containsKey(ref) ? RefChangeType.DELETE : RefChangeType.UPDATE)
+                    .build());
+        }
+        return results;
+    }
+
+    private long getRepositorySize(Repository repository) {
+        Command<Long> command = scmService.createBuilder(repository)
+                .command("count-objects")
+                .argument("-v")
+                .build(new RepositorySizeOutputHandler());
+        command.setTimeout(timeoutPolicy.getBaseTimeout());
 
-        Object result = command.call();
-        log.info("{}: Push completed with the following output:\n{}", repository, result);
+        Long size = command.call();
+        return size == null ? 0L : size;
     }
 
-    String getAuthenticatedUrl(String mirrorRepoUrl, String username, String password) {
-        // Only http(s) has username/password
-        if (!mirrorRepoUrl.toLowerCase(Locale.ROOT).startsWith("http")) {
-            return mirrorRepoUrl;
+    /**
+     * Compares the local refs matching the configured refspecs with the refs advertised by the mirror
+     *
+     * @param settings   the mirror to compare with
+     * @param repository the local repository
+     * @return {@code true} if every local ref is at the same object on the mirror and the mirror has no refs which a
+     * pruning push would delete
+     */
+    boolean isInSync(MirrorSettings settings, Repository repository) {
+        MirrorCredentials credentials = credentialProvider.getCredentials(settings);
+        List<Refspec> refspecs = settings.getRefspecs();
+
+        SortedMap<String, String> expected = mapRefs(getLocalRefs(repository, refspecs), refspecs);
+
+        PasswordHandler passwordHandler = new PasswordHandler(credentials.getPassword(),
+                new GitCommandExitHandler(i18nService, repository));
+        ScmCommandBuilder<?> builder = scmService.createBuilder(repository)
+                .command("ls-remote")
+                .argument(settings.mirrorRepoUrl);
+        askPass.configure(builder, credentials);
+        Command<SortedMap<String, String>> command = builder.errorHandler(passwordHandler)
+                .exitHandler(passwordHandler)
+                .build(new RefsOutputHandler());
+        command.setTimeout(timeoutPolicy.getBaseTimeout());
+
+        SortedMap<String, String> remote = command.call();
+        if (remote == null) {
+            return expected.isEmpty();
+        }
+        remote.keySet().removeIf(ref -> refspecs.stream().noneMatch(refspec -> refspec.matchesDestination(ref)));
+
+        return expected.equals(remote);
+    }
+
+    private SortedMap<String, String> getLocalRefs(Repository repository, List<Refspec> refspecs) {
+        ScmCommandBuilder<?> builder = scmService.createBuilder(repository)
+                .command("for-each-ref")
+                .argument(RefsOutputHandler.FOR_EACH_REF_FORMAT);
+        refspecs.stream()
+                .map(Refspec::getSourcePrefix)
+                .distinct()
+                .forEach(builder::argument);
+
+        Command<SortedMap<String, String>> command = builder.build(new RefsOutputHandler());
+        command.setTimeout(timeoutPolicy.getBaseTimeout());
+
+        SortedMap<String, String> refs = command.call();
+        if (refs == null) {
+            return new TreeMap<>();
         }
+        refs.keySet().removeIf(ref -> refspecs.stream().noneMatch(refspec -> refspec.map(ref) != null));
+        return refs;
+    }
 
-        URI uri = URI.create(mirrorRepoUrl);
-        String userInfo = username + ":" + password;
+    /**
+     * @return the local refs keyed by the name they are pushed to on the mirror, by the first matching refspec
+     */
+    private static SortedMap<String, String> mapRefs(SortedMap<String, String> refs, List<Refspec> refspecs) {
+        SortedMap<String, String> mapped = new TreeMap<>();
+        refs.forEach((ref, objectId) -> {
+            for (Refspec refspec : refspecs) {
+                String destination = refspec.map(ref);
+                if (destination != null) {
+                    mapped.put(destination, objectId);
+                    break;
+                }
+            }
+        });
+        return mapped;
+    }
 
+    /**
+     * Publishes an event about a push. Failing to publish does not fail the push.
+     */
+    private void publish(MirrorPushEvent event) {
         try {
-            return new URI(uri.getScheme(), userInfo, uri.getHost(), uri.getPort(),
-                    uri.getPath(), uri.getQuery(), uri.getFragment()).toString();
-        } catch (URISyntaxException e) {
-            throw new IllegalStateException("The configured mirror URL (" + mirrorRepoUrl + ") is invalid", e);
+            eventPublisher.publish(event);
+        } catch (RuntimeException e) {
+            log.warn("{}: Failed to publish {}", event.getRepository(), event.getClass().getSimpleName(), e);
+        }
+    }
+
+    /**
+     * A push of the coalesced requests for one mirror
+     */
+    private final class Push {
+
+        private final MirrorChangeSet changeSet;
+        private final String key;
+        private final MirrorRequest request;
+        private final List<MirrorRequest> requests;
+        private final MirrorSettings settings;
+        private MirrorCredentials credentials;
+        private InFlightPush inFlight;
+        private boolean incremental;
+        private Map<String, String> refTips = Collections.emptyMap();
+        private Repository repository;
+        private long started;
+
+        Push(String key, List<MirrorRequest> requests) {
+            this.key = key;
+            this.requests = requests;
+
+            request = requests.get(requests.size() - 1);
+            settings = request.getSettings();
+            changeSet = MirrorChangeSet.merge(requests);
+        }
+
+        /**
+         * @return {@code false} if there is nothing to push to the mirror, e.g. because the repository has been
+         * deleted or the mirror is paused, or the push was deferred
+         */
+        boolean begin() {
+            started = System.currentTimeMillis();
+            if (requests.stream().allMatch(MirrorBucketProcessor.this::isCancelled)) {
+                log.debug("{}: Dropping the cancelled push", request);
+                return false;
+            }
+            repository = repositoryService.getById(request.getRepositoryId());
+            if (repository == null) {
+                log.debug("{}: Repository has been deleted", request.getRepositoryId());
+                outbox.clearAll(request.getRepositoryId());
+                statusIndex.remove(request.getRepositoryId());
+                pauseService.clear(request.getRepositoryId());
+                return false;
+            }
+            if (repositoryService.isEmpty(repository)) {
+                log.debug("{}: The repository is empty", repository);
+                outbox.clear(request.getRepositoryId(), settings.mirrorRepoUrl, started);
+                return false;
+            }
+            if (pauseService.isPaused(request.getRepositoryId(), settings.mirrorRepoUrl)) {
+                // Leave the mirror dirty; resuming it pushes the changes
+                log.debug("{}: Skipping push to paused mirror", repository);
+                statusIndex.onSkipped(request.getRepositoryId(), settings.mirrorRepoUrl, requests.size());
+                return false;
+            }
+            if (deferBehindOrigin(this) || defer(this)) {
+                return false;
+            }
+            statusIndex.onStarted(request.getRepositoryId(), settings.mirrorRepoUrl, requests.size(), started);
+            inFlight = pushWatchdog.track(repository, settings.mirrorRepoUrl);
+            publish(new MirrorPushStartedEvent(MirrorBucketProcessor.this, repository, settings.mirrorRepoUrl));
+            return true;
+        }
+
+        /**
+         * @return the kind of push, once it has been {@link #prepare() prepared}
+         */
+        Operation getOperation() {
+            return incremental ? Operation.INCREMENTAL : Operation.FULL;
+        }
+
+        RemotePush prepare() {
+            credentials = credentialProvider.getCredentials(settings);
+            if (lfsUploader != null && MirrorLfsUploader.isSupported(settings.mirrorRepoUrl)) {
+                inFlight.setPhase(Phase.UPLOADING_LFS);
+                uploadLfsObjects(settings, repository, credentials, changeSet);
+                inFlight.setPhase(Phase.PREPARING);
+            }
+            incremental = isIncremental(key, changeSet);
+            RemotePush remotePush = prepareRemotePush(settings, repository, key, credentials, changeSet, incremental,
+                    inFlight);
+            if (remotePush != null) {
+                refTips = remotePush.refTips;
+            }
+            return remotePush;
+        }
+
+        void failed(RuntimeException e) {
+            inFlight.close();
+            // The credentials may have been revoked, so they are obtained again for the retry
+            credentialProvider.invalidate(settings);
+            String error = redact(credentials, e.getMessage());
+            if (inFlight.isCancelled()) {
+                // The repository was deleted or moved, which purged the status of the mirror
+                error = "The push was cancelled because the repository was deleted or moved";
+            } else if (inFlight.isKilled()) {
+                error = "The push was killed after making no progress for " +
+                        TimeUnit.MILLISECONDS.toSeconds(pushWatchdog.getStallTimeout()) + "s while " +
+                        inFlight.getPhase().getDescription() + (error == null ? "" : ": " + error);
+            }
+            long now = System.currentTimeMillis();
+            if (!inFlight.isCancelled()) {
+                failedMirrors.add(key);
+                statusIndex.onFailed(request.getRepositoryId(), settings.mirrorRepoUrl, now, error);
+            }
+            audit(request, changeSet, started, MirrorPushOutcome.FAILED);
+            publish(new MirrorPushFailedEvent(MirrorBucketProcessor.this, repository, settings.mirrorRepoUrl, error,
+                    Duration.ofMillis(Math.max(0L, now - started))));
+        }
+
+        void succeeded() {
+            inFlight.close();
+            long now = System.currentTimeMillis();
+            statusIndex.onSucceeded(request.getRepositoryId(), settings.mirrorRepoUrl, now);
+            if (!incremental) {
+                // Every configured ref was pushed, including the changes of any push which failed
+                failedMirrors.remove(key);
+            }
+            audit(request, changeSet, started, MirrorPushOutcome.SUCCEEDED);
+            outbox.clear(request.getRepositoryId(), settings.mirrorRepoUrl, started);
+            publish(new MirrorPushSucceededEvent(MirrorBucketProcessor.this, repository, settings.mirrorRepoUrl,
+                    refTips, Duration.ofMillis(Math.max(0L, now - started))));
+        }
+    }
+
+    /**
+     * The remote command which completes a push, and what to do with its output once it succeeds
+     */
+    private static final class RemotePush {
+
+        private final ScmCommandBuilder<?> builder;
+        private final Consumer<Object> onCompleted;
+        private final Map<String, String> refTips;
+
+        /**
+         * @param refTips the object ID each ref on the mirror is pushed to, keyed by the name of the ref on the mirror
+         */
+        RemotePush(ScmCommandBuilder<?> builder, Map<String, String> refTips, Consumer<Object> onCompleted) {
+            this.builder = builder;
+            this.onCompleted = onCompleted;
+            this.refTips = refTips;
+        }
+
+        void completed(Object result) {
+            onCompleted.accept(result);
         }
     }
 }
@@ -0,0 +1,136 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.repository.RefChangeType;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * The net ref changes of a batch of {@link MirrorRequest MirrorRequests} for the same mirror. Successive changes to
+ * the same ref are folded into a single change from the first old hash to the last new hash, and refs which were
+ * created and deleted again, or which ended up where they started, are dropped.
+ */
+class MirrorChangeSet {
+
+    private static final Pattern ZERO_HASH = Pattern.compile("0+");
+
+    private final Map<String, MirrorRefChange> changes;
+    private final boolean complete;
+    private final int cancelled;
+
+    private MirrorChangeSet(Map<String, MirrorRefChange> changes, boolean complete, int cancelled) {
+        this.changes = changes;
+        this.complete = complete;
+        this.cancelled = cancelled;
+    }
+
+    /**
+     * Folds the ref changes of every request, in the order they were queued
+     *
+     * @param requests the requests to merge
+     * @return the merged change set
+     */
+    static MirrorChangeSet merge(List<MirrorRequest> requests) {
+        Map<String, MirrorRefChange> changes = new LinkedHashMap<>();
+        boolean complete = !requests.isEmpty();
+        for (MirrorRequest request : requests) {
+            List<MirrorRefChange> refChanges = request.getRefChanges();
+            if (refChanges.isEmpty()) {
+                // Pushes requested by the outbox sweeper, reconciler and settings changes don't say what changed
+                complete = false;
+            }
+            refChanges.forEach(refChange -> changes.merge(refChange.getRefId(), refChange, MirrorChangeSet::fold));
+        }
+
+        int before = changes.size();
+        changes.values().removeIf(MirrorChangeSet::isNoop);
+
+        return new MirrorChangeSet(changes, complete, before - changes.size());
+    }
+
+    /**
+     * @return the net change of each ref, in the order the refs were first changed
+     */
+    Collection<MirrorRefChange> getChanges() {
+        return Collections.unmodifiableCollection(changes.values());
+    }
+
+    /**
+     * @return {@code true} if every request described its ref changes, so the change set covers everything which
+     * has to be pushed
+     */
+    boolean isComplete() {
+        return complete;
+    }
+
+    boolean isEmpty() {
+        return changes.isEmpty();
+    }
+
+    int size() {
+        return changes.size();
+    }
+
+    /**
+     * @return a one line summary of the change set, e.g. {@code 3 ref(s): 1 created, 2 updated}
+     */
+    String summarize() {
+        int created = 0;
+        int updated = 0;
+        int deleted = 0;
+        for (MirrorRefChange change : changes.values()) {
+            if (change.getType() == RefChangeType.ADD) {
+                ++created;
+            } else if (change.getType() == RefChangeType.DELETE) {
+                ++deleted;
+            } else {
+                ++updated;
+            }
+        }
+
+        List<String> parts = new ArrayList<>();
+        if (created > 0) {
+            parts.add(created + " created");
+        }
+        if (updated > 0) {
+            parts.add(updated + " updated");
+        }
+        if (deleted > 0) {
+            parts.add(deleted + " deleted");
+        }
+        if (cancelled > 0) {
+            parts.add(cancelled + " cancelled out");
+        }
+        return changes.size() + " ref(s)" + (parts.isEmpty() ? "" : ": " + String.join(", ", parts));
+    }
+
+    static boolean isZero(String hash) {
+        return hash == null || ZERO_HASH.matcher(hash).matches();
+    }
+
+    private static MirrorRefChange fold(MirrorRefChange first, MirrorRefChange next) {
+        String fromHash = first.getFromHash();
+        String toHash = next.getToHash();
+
+        RefChangeType type;
+        if (isZero(fromHash)) {
+            type = RefChangeType.ADD;
+        } else if (isZero(toHash)) {
+            type = RefChangeType.DELETE;
+        } else {
+            type = RefChangeType.UPDATE;
+        }
+        return new MirrorRefChange(first.getRefId(), fromHash, toHash, type);
+    }
+
+    private static boolean isNoop(MirrorRefChange change) {
+        String fromHash = change.getFromHash();
+        String toHash = change.getToHash();
+        return isZero(fromHash) ? isZero(toHash) : fromHash.equals(toHash);
+    }
+}
@@ -0,0 +1,212 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.atlassian.sal.api.lifecycle.LifecycleAware;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.DoubleSupplier;
+
+import static com.englishtown.bitbucket.hook.MirrorRepositoryHook.PROP_PREFIX;
+import static com.englishtown.bitbucket.hook.MirrorRepositoryHook.PROP_THREADS;
+
+/**
+ * Limits the number of pushes which run at once, adapting the limit to how the pushes and the host are coping.
+ * <p>
+ * The limit grows by one for every {@code limit} pushes which succeed at the limit (additive increase), and is halved
+ * when a push fails, a push takes much longer than the recent pushes to the same mirror or the load average per CPU
+ * exceeds the configured maximum (multiplicative decrease). Only pushes which started after the last decrease can
+ * decrease the limit again, so one burst of slow pushes halves it once. The limit stays between the configured
+ * minimum and maximum.
+ * <p>
+ * Unless adaptive concurrency is enabled, pushes are not limited beyond the threads of the push executor.
+ */
+public class MirrorConcurrencyLimiter implements MirrorConcurrencyLimiterMXBean, LifecycleAware {
+
+    static final String PROP_ADAPTIVE = PROP_PREFIX + "adaptive";
+    static final String PROP_ADAPTIVE_LOAD = PROP_PREFIX + "adaptive.load";
+    static final String PROP_ADAPTIVE_MAX = PROP_PREFIX + "adaptive.max";
+    static final String PROP_ADAPTIVE_MIN = PROP_PREFIX + "adaptive.min";
+
+    static final String OBJECT_NAME = "com.englishtown.bitbucket.hook:type=MirrorConcurrencyLimiter";
+
+    private static final Logger log = LoggerFactory.getLogger(MirrorConcurrencyLimiter.class);
+
+    private final boolean adaptive;
+    private final ScheduledExecutorService executor;
+    private final DoubleSupplier load;
+    private final double maxLoad;
+    private final int max;
+    private final int min;
+    // Guarded by this
+    private final Deque<Runnable> waiters = new ArrayDeque<>();
+    private long epoch;
+    private double increase;
+    private int limit;
+    private int running;
+    private int waiting;
+
+    public MirrorConcurrencyLimiter(ApplicationPropertiesService propertiesService,
+                                    ScheduledExecutorService executorService) {
+        this(propertiesService, executorService, MirrorConcurrencyLimiter::getLoadPerProcessor);
+    }
+
+    MirrorConcurrencyLimiter(ApplicationPropertiesService propertiesService, ScheduledExecutorService executor,
+                             DoubleSupplier load) {
+        this.executor = executor;
+        this.load = load;
+
+        adaptive = propertiesService.getPluginProperty(PROP_ADAPTIVE, false);
+        min = Math.max(1, propertiesService.getPluginProperty(PROP_ADAPTIVE_MIN, 1));
+        max = Math.max(min, propertiesService.getPluginProperty(PROP_ADAPTIVE_MAX,
+                propertiesService.getPluginProperty(PROP_THREADS, 3)));
+        // The maximum load average, as a percentage of the number of processors
+        maxLoad = propertiesService.getPluginProperty(PROP_ADAPTIVE_LOAD, 100L) / 100d;
+
+        // Start low, and grow while the pushes keep up
+        limit = adaptive ? min : Integer.MAX_VALUE;
+    }
+
+    @Override
+    public void onStart() {
+        if (!adaptive) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            log.warn("Failed to register the mirror concurrency limit with JMX", e);
+        }
+    }
+
+    @Override
+    public void onStop() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            log.debug("Failed to unregister the mirror concurrency limit from JMX", e);
+        }
+    }
+
+    /**
+     * Waits until a push may run
+     *
+     * @return identifies the permit when it is {@link #release(long, boolean, boolean) released}
+     */
+    synchronized long acquire() {
+        ++waiting;
+        try {
+            while (running >= limit) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting to push", e);
+        } finally {
+            --waiting;
+        }
+        ++running;
+        return epoch;
+    }
+
+    /**
+     * Acquires a permit without waiting. If a push may not run now, {@code waiter} is run on the executor once a
+     * permit is released, and should try again.
+     *
+     * @param waiter starts the push once a permit is released
+     * @return identifies the permit, or {@code -1} if there is none
+     */
+    synchronized long tryAcquire(Runnable waiter) {
+        if (running >= limit) {
+            waiters.add(waiter);
+            return -1L;
+        }
+        ++running;
+        return epoch;
+    }
+
+    /**
+     * Releases a permit, adjusting the limit from the outcome of the push
+     *
+     * @param permit    the permit to release
+     * @param succeeded whether the push succeeded
+     * @param slow      whether the push took much longer than usual
+     */
+    void release(long permit, boolean succeeded, boolean slow) {
+        Runnable waiter;
+        synchronized (this) {
+            boolean saturated = running >= limit;
+            --running;
+            if (adaptive) {
+                if (!succeeded || slow || load.getAsDouble() > maxLoad) {
+                    decrease(permit, succeeded ? slow ? "a slow push" : "the load average" : "a failed push");
+                } else if (saturated) {
+                    increase();
+                }
+            }
+
+            waiter = waiters.poll();
+            notifyAll();
+        }
+        if (waiter != null) {
+            executor.execute(waiter);
+        }
+    }
+
+    @Override
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    @Override
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    @Override
+    public synchronized int getWaiting() {
+        return waiting + waiters.size();
+    }
+
+    private void decrease(long permit, String reason) {
+        // Pushes which started before the last decrease saw the old limit, so they don't decrease it again
+        if (permit != epoch || limit == min) {
+            return;
+        }
+        ++epoch;
+        increase = 0d;
+        limit = Math.max(min, limit / 2);
+        log.info("Decreased the mirror push concurrency to {} after {}", limit, reason);
+    }
+
+    private void increase() {
+        increase += 1d / limit;
+        if (increase >= 1d && limit < max) {
+            increase = 0d;
+            ++limit;
+            log.debug("Increased the mirror push concurrency to {}", limit);
+        }
+    }
+
+    /**
+     * @return the load average over the last minute divided by the number of processors, or {@code 0} if the load
+     * average is not available
+     */
+    private static double getLoadPerProcessor() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        double loadAverage = os.getSystemLoadAverage();
+        return loadAverage < 0d ? 0d : loadAverage / os.getAvailableProcessors();
+    }
+}
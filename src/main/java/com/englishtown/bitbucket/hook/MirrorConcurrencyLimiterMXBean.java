@@ -0,0 +1,23 @@
+package com.englishtown.bitbucket.hook;
+
+/**
+ * Exports the state of the {@link MirrorConcurrencyLimiter} over JMX, as
+ * {@value MirrorConcurrencyLimiter#OBJECT_NAME}
+ */
+public interface MirrorConcurrencyLimiterMXBean {
+
+    /**
+     * @return the number of pushes which may currently run at once
+     */
+    int getLimit();
+
+    /**
+     * @return the number of pushes which are running
+     */
+    int getRunning();
+
+    /**
+     * @return the number of pushes waiting for the limit
+     */
+    int getWaiting();
+}
@@ -0,0 +1,98 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.permission.PermissionService;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.repository.RepositoryService;
+
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Response;
+import java.util.function.BiFunction;
+
+/**
+ * REST resource to push to, pause and resume a single mirror of a repository, available to repository administrators.
+ * The mirror is identified by its configured URL, which may be a template, or the URL it expands to. Pausing a mirror
+ * which is fetched from pauses polling it.
+ */
+@Path("/projects/{projectKey}/repos/{repositorySlug}/mirrors")
+public class MirrorControlResource extends AbstractRepositoryResource {
+
+    private final MirrorRepositoryHook mirrorRepositoryHook;
+    private final MirrorPauseService pauseService;
+
+    public MirrorControlResource(MirrorRepositoryHook mirrorRepositoryHook, MirrorPauseService pauseService,
+                                 PermissionService permissionService, RepositoryService repositoryService) {
+        super(permissionService, repositoryService);
+
+        this.mirrorRepositoryHook = mirrorRepositoryHook;
+        this.pauseService = pauseService;
+    }
+
+    /**
+     * Pushes to a mirror immediately, rather than after the delay applied to pushes triggered by updates
+     *
+     * @return {@code 202} if the push was submitted, {@code 404} if the mirror is not configured or {@code 409} if
+     * the mirror is paused or fetched from
+     */
+    @POST
+    @Path("push")
+    public Response push(@PathParam("projectKey") String projectKey,
+                         @PathParam("repositorySlug") String repositorySlug,
+                         @QueryParam("mirrorRepoUrl") String mirrorRepoUrl) {
+        return withMirror(projectKey, repositorySlug, mirrorRepoUrl, (repository, settings) -> {
+            if (settings.isFetch() || pauseService.isPaused(repository.getId(), settings.mirrorRepoUrl)) {
+                return Response.status(Response.Status.CONFLICT).build();
+            }
+            mirrorRepositoryHook.pushNow(repository, settings);
+            return Response.status(Response.Status.ACCEPTED).build();
+        });
+    }
+
+    /**
+     * Pauses a mirror. Updates are still tracked while the mirror is paused, but not pushed.
+     *
+     * @return {@code 204} if the mirror is paused or {@code 404} if the mirror is not configured
+     */
+    @POST
+    @Path("pause")
+    public Response pause(@PathParam("projectKey") String projectKey,
+                          @PathParam("repositorySlug") String repositorySlug,
+                          @QueryParam("mirrorRepoUrl") String mirrorRepoUrl) {
+        return withMirror(projectKey, repositorySlug, mirrorRepoUrl, (repository, settings) -> {
+            pauseService.pause(repository.getId(), settings.mirrorRepoUrl);
+            return Response.noContent().build();
+        });
+    }
+
+    /**
+     * Resumes a paused mirror, immediately pushing any updates made while it was paused
+     *
+     * @return {@code 204} if the mirror is resumed or {@code 404} if the mirror is not configured
+     */
+    @POST
+    @Path("resume")
+    public Response resume(@PathParam("projectKey") String projectKey,
+                           @PathParam("repositorySlug") String repositorySlug,
+                           @QueryParam("mirrorRepoUrl") String mirrorRepoUrl) {
+        return withMirror(projectKey, repositorySlug, mirrorRepoUrl, (repository, settings) -> {
+            if (pauseService.resume(repository.getId(), settings.mirrorRepoUrl) && !settings.isFetch()) {
+                mirrorRepositoryHook.pushNow(repository, settings);
+            }
+            return Response.noContent().build();
+        });
+    }
+
+    private Response withMirror(String projectKey, String repositorySlug, String mirrorRepoUrl,
+                                BiFunction<Repository, MirrorSettings, Response> callback) {
+        return withRepository(projectKey, repositorySlug, repository -> {
+            for (MirrorSettings settings : mirrorRepositoryHook.getMirrorSettings(repository)) {
+                if (isMirror(settings, mirrorRepoUrl, repository)) {
+                    return callback.apply(repository, settings);
+                }
+            }
+            return Response.status(Response.Status.NOT_FOUND).build();
+        });
+    }
+}
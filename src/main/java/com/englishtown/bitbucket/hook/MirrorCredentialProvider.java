@@ -0,0 +1,23 @@
+package com.englishtown.bitbucket.hook;
+
+/**
+ * Supplies the credentials git authenticates to http(s) mirrors with. Credentials are passed to git through
+ * {@code GIT_ASKPASS}, so they never appear in the mirror URL or on the command line.
+ */
+public interface MirrorCredentialProvider {
+
+    /**
+     * @param settings the mirror
+     * @return the credentials for the mirror, or {@link MirrorCredentials#NONE} if the mirror does not authenticate
+     * with a username and password
+     * @throws IllegalStateException if the credentials cannot be obtained, e.g. because a token exchange failed
+     */
+    MirrorCredentials getCredentials(MirrorSettings settings);
+
+    /**
+     * Drops any cached credentials for the mirror, e.g. because they were rejected
+     *
+     * @param settings the mirror
+     */
+    void invalidate(MirrorSettings settings);
+}
@@ -0,0 +1,123 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.google.common.base.Strings;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import static com.englishtown.bitbucket.hook.MirrorRepositoryHook.PROP_PREFIX;
+
+/**
+ * Decides which {@link MirrorSettings#credentialSource credential sources} mirrors may use. Mirrors are configured by
+ * repository and project administrators, but it is the server which reads credentials files and calls token
+ * endpoints, so a system administrator has to allow them:
+ * <ul>
+ * <li>credentials files must be inside the directory set by {@link #PROP_CREDENTIALS_DIR}, once {@code ..} and
+ * symbolic links are resolved. Relative paths are resolved against that directory.</li>
+ * <li>token endpoints must be one of the http(s) URLs listed in {@link #PROP_TOKEN_ENDPOINTS}</li>
+ * </ul>
+ * Neither credential type can be used until it is allowed.
+ */
+class MirrorCredentialSources {
+
+    static final String PROP_CREDENTIALS_DIR = PROP_PREFIX + "credentials.dir";
+    static final String PROP_TOKEN_ENDPOINTS = PROP_PREFIX + "token.endpoints";
+
+    private final Path credentialsDir;
+    private final Set<URI> tokenEndpoints = new HashSet<>();
+
+    MirrorCredentialSources(ApplicationPropertiesService propertiesService) {
+        String dir = Strings.nullToEmpty(propertiesService.getPluginProperty(PROP_CREDENTIALS_DIR)).trim();
+        credentialsDir = dir.isEmpty() ? null : Paths.get(dir);
+
+        String endpoints = Strings.nullToEmpty(propertiesService.getPluginProperty(PROP_TOKEN_ENDPOINTS));
+        for (String endpoint : endpoints.split("[\\s,]+")) {
+            URI uri = normalize(endpoint);
+            if (uri != null) {
+                tokenEndpoints.add(uri);
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if the credentials file is in the allowed directory
+     */
+    boolean isAllowedFile(String path) {
+        try {
+            resolveFile(path);
+            return true;
+        } catch (IllegalArgumentException | IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return {@code true} if the token endpoint is one of the allowed endpoints
+     */
+    boolean isAllowedEndpoint(String url) {
+        URI uri = normalize(url);
+        return uri != null && tokenEndpoints.contains(uri);
+    }
+
+    /**
+     * @param path the configured path of a credentials file, absolute or relative to the credentials directory
+     * @return the real path of the file, or its normalized absolute path if it does not exist (yet)
+     * @throws IllegalArgumentException if file credentials are not allowed, or the file is outside the credentials
+     *                                  directory
+     * @throws IOException              if the credentials directory cannot be resolved
+     */
+    Path resolveFile(String path) throws IOException {
+        if (credentialsDir == null) {
+            throw new IllegalArgumentException("Credentials files are not allowed, since " + PROP_CREDENTIALS_DIR +
+                    " is not set");
+        }
+
+        Path dir = credentialsDir.toRealPath();
+        Path file;
+        try {
+            file = dir.resolve(Strings.nullToEmpty(path).trim());
+        } catch (InvalidPathException e) {
+            throw new IllegalArgumentException("Invalid credentials file " + path, e);
+        }
+        file = Files.exists(file) ? file.toRealPath() : file.toAbsolutePath().normalize();
+        if (file.equals(dir) || !file.startsWith(dir)) {
+            throw new IllegalArgumentException("The credentials file " + path + " is not in " + PROP_CREDENTIALS_DIR);
+        }
+        return file;
+    }
+
+    /**
+     * @return the URL with its scheme and host in lower case and any default port removed, so equivalent URLs are
+     * equal, or {@code null} if it is not a plain http(s) URL
+     */
+    @Nullable
+    private static URI normalize(String url) {
+        if (Strings.isNullOrEmpty(url)) {
+            return null;
+        }
+        try {
+            URI uri = new URI(url.trim()).normalize();
+            String scheme = Strings.nullToEmpty(uri.getScheme()).toLowerCase(Locale.ROOT);
+            if (!("http".equals(scheme) || "https".equals(scheme)) || uri.getHost() == null ||
+                    uri.getUserInfo() != null || uri.getFragment() != null) {
+                return null;
+            }
+            int defaultPort = "http".equals(scheme) ? 80 : 443;
+            int port = uri.getPort() == defaultPort ? -1 : uri.getPort();
+            String path = Strings.isNullOrEmpty(uri.getPath()) ? "/" : uri.getPath();
+            return new URI(scheme, null, uri.getHost().toLowerCase(Locale.ROOT), port, path, uri.getQuery(), null);
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.scope.Scope;
+
+import java.util.Collection;
+
+/**
+ * Stores the passwords of mirrors outside of the hook settings, which only hold a reference to the stored password
+ */
+public interface MirrorCredentialStore {
+
+    /**
+     * @param password the value of a password setting
+     * @return {@code true} if the value is a reference to a stored password
+     */
+    boolean isReference(String password);
+
+    /**
+     * Stores a password for a repository or project
+     *
+     * @param scope    the scope whose hook settings will refer to the password
+     * @param password the password, in clear text or encrypted
+     * @return the reference to put in the hook settings instead of the password
+     */
+    String store(Scope scope, String password);
+
+    /**
+     * Resolves the value of a password setting to the clear text password. Stored passwords are cached in memory.
+     *
+     * @param password a reference to a stored password, or a password in clear text or encrypted
+     * @return the password in clear text
+     */
+    String resolve(String password);
+
+    /**
+     * Deletes every password stored for a repository or project, except the referenced ones
+     *
+     * @param scope      the scope whose passwords to delete
+     * @param references the references which are still in the hook settings
+     */
+    void retain(Scope scope, Collection<String> references);
+
+    /**
+     * Re-encrypts the stored passwords of a repository or project which were encrypted with an older key
+     *
+     * @param scope the scope whose passwords to re-encrypt
+     * @return the number of passwords which were re-encrypted
+     */
+    int reencrypt(Scope scope);
+}
@@ -0,0 +1,55 @@
+package com.englishtown.bitbucket.hook;
+
+/**
+ * The username and password git authenticates to an http(s) mirror with, e.g. a short-lived access token
+ */
+class MirrorCredentials {
+
+    /**
+     * Used for mirrors which do not authenticate with a username and password, e.g. over ssh
+     */
+    static final MirrorCredentials NONE = new MirrorCredentials("", "", Long.MAX_VALUE);
+
+    private final String username;
+    private final String password;
+    private final long expiresAt;
+
+    MirrorCredentials(String username, String password) {
+        this(username, password, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param username  the username
+     * @param password  the password or token
+     * @param expiresAt when the password expires, in milliseconds since the epoch
+     */
+    MirrorCredentials(String username, String password, long expiresAt) {
+        this.username = username;
+        this.password = password;
+        this.expiresAt = expiresAt;
+    }
+
+    String getUsername() {
+        return username;
+    }
+
+    String getPassword() {
+        return password;
+    }
+
+    long getExpiresAt() {
+        return expiresAt;
+    }
+
+    boolean isEmpty() {
+        return username.isEmpty() && password.isEmpty();
+    }
+
+    /**
+     * @param time the time, in milliseconds since the epoch
+     * @return {@code true} if the password has expired by the given time
+     */
+    boolean isExpired(long time) {
+        return time >= expiresAt;
+    }
+}
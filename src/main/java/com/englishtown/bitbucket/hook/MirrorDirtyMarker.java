@@ -0,0 +1,40 @@
+package com.englishtown.bitbucket.hook;
+
+import net.java.ao.Entity;
+import net.java.ao.Preload;
+import net.java.ao.schema.Indexed;
+import net.java.ao.schema.NotNull;
+import net.java.ao.schema.StringLength;
+import net.java.ao.schema.Table;
+
+/**
+ * Active Objects entity recording that a mirror has changes which have not been pushed yet
+ */
+@Preload
+@Table("DIRTY_MIRROR")
+public interface MirrorDirtyMarker extends Entity {
+
+    String COLUMN_MARKED_AT = "MARKED_AT";
+    String COLUMN_MIRROR_URL = "MIRROR_URL";
+    String COLUMN_REPOSITORY_ID = "REPOSITORY_ID";
+
+    /**
+     * @return the time, in milliseconds since the epoch, at which the mirror was last marked dirty
+     */
+    @NotNull
+    long getMarkedAt();
+
+    void setMarkedAt(long markedAt);
+
+    @NotNull
+    @StringLength(450)
+    String getMirrorUrl();
+
+    void setMirrorUrl(String mirrorUrl);
+
+    @Indexed
+    @NotNull
+    int getRepositoryId();
+
+    void setRepositoryId(int repositoryId);
+}
@@ -0,0 +1,120 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.hook.repository.RepositoryHookTrigger;
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.setting.Settings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Hands hook events off the thread which updated the repository. Events are added to a lock-free queue, which is
+ * drained in batches by a single task on a background executor; a new task is only submitted when no task is
+ * already draining the queue.
+ */
+class MirrorEventDispatcher {
+
+    private static final Logger log = LoggerFactory.getLogger(MirrorEventDispatcher.class);
+
+    private final int batchSize;
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final Queue<MirrorEvent> events = new ConcurrentLinkedQueue<>();
+    private final Executor executor;
+    private final Consumer<List<MirrorEvent>> handler;
+
+    MirrorEventDispatcher(Executor executor, int batchSize, Consumer<List<MirrorEvent>> handler) {
+        this.batchSize = Math.max(1, batchSize);
+        this.executor = executor;
+        this.handler = handler;
+    }
+
+    /**
+     * Queues an event to be handled in the background
+     *
+     * @param event the event
+     */
+    void dispatch(MirrorEvent event) {
+        events.offer(event);
+        scheduleDrain();
+    }
+
+    private void drain() {
+        try {
+            List<MirrorEvent> batch = new ArrayList<>();
+            MirrorEvent event;
+            while (batch.size() < batchSize && (event = events.poll()) != null) {
+                batch.add(event);
+            }
+            if (!batch.isEmpty()) {
+                handler.accept(batch);
+            }
+        } catch (RuntimeException e) {
+            log.error("Failed to schedule mirror pushes", e);
+        } finally {
+            draining.set(false);
+        }
+
+        // Events may have been queued after the last poll, while this task still held the flag
+        if (!events.isEmpty()) {
+            scheduleDrain();
+        }
+    }
+
+    private void scheduleDrain() {
+        if (!draining.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            log.warn("The executor rejected the mirror event dispatcher; handling events on the calling thread");
+            drain();
+        }
+    }
+
+    /**
+     * A repository update, as received by {@link MirrorRepositoryHook#postUpdate}. The settings and ref changes are
+     * referenced, not copied, so creating an event is constant-time.
+     */
+    static class MirrorEvent {
+
+        private final Repository repository;
+        private final Collection<RefChange> refChanges;
+        private final Settings settings;
+        private final RepositoryHookTrigger trigger;
+
+        MirrorEvent(Repository repository, Settings settings, RepositoryHookTrigger trigger,
+                    Collection<RefChange> refChanges) {
+            this.repository = repository;
+            this.refChanges = refChanges;
+            this.settings = settings;
+            this.trigger = trigger;
+        }
+
+        Repository getRepository() {
+            return repository;
+        }
+
+        Collection<RefChange> getRefChanges() {
+            return refChanges;
+        }
+
+        Settings getSettings() {
+            return settings;
+        }
+
+        RepositoryHookTrigger getTrigger() {
+            return trigger;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.englishtown.bitbucket.hook;
+
+import net.java.ao.Entity;
+import net.java.ao.Preload;
+import net.java.ao.schema.Indexed;
+import net.java.ao.schema.NotNull;
+import net.java.ao.schema.StringLength;
+import net.java.ao.schema.Table;
+
+/**
+ * Active Objects entity recording when a fetch mirror is next polled, and the current polling interval
+ */
+@Preload
+@Table("FETCH_SCHEDULE")
+public interface MirrorFetchSchedule extends Entity {
+
+    String COLUMN_MIRROR_URL = "MIRROR_URL";
+    String COLUMN_NEXT_FETCH_AT = "NEXT_FETCH_AT";
+    String COLUMN_POLL_INTERVAL = "POLL_INTERVAL";
+    String COLUMN_REPOSITORY_ID = "REPOSITORY_ID";
+
+    @NotNull
+    @StringLength(450)
+    String getMirrorUrl();
+
+    void setMirrorUrl(String mirrorUrl);
+
+    /**
+     * @return the time, in milliseconds since the epoch, at which the mirror is next fetched from
+     */
+    @Indexed
+    @NotNull
+    long getNextFetchAt();
+
+    void setNextFetchAt(long nextFetchAt);
+
+    /**
+     * @return the current polling interval, in milliseconds
+     */
+    @NotNull
+    long getPollInterval();
+
+    void setPollInterval(long pollInterval);
+
+    @Indexed
+    @NotNull
+    int getRepositoryId();
+
+    void setRepositoryId(int repositoryId);
+}
@@ -0,0 +1,233 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.concurrent.BucketProcessor;
+import com.atlassian.bitbucket.concurrent.BucketedExecutor;
+import com.atlassian.bitbucket.concurrent.BucketedExecutorSettings;
+import com.atlassian.bitbucket.concurrent.ConcurrencyPolicy;
+import com.atlassian.bitbucket.concurrent.ConcurrencyService;
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.repository.RepositoryService;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.sal.api.lifecycle.LifecycleAware;
+import com.atlassian.scheduler.JobRunner;
+import com.atlassian.scheduler.JobRunnerRequest;
+import com.atlassian.scheduler.JobRunnerResponse;
+import com.atlassian.scheduler.SchedulerService;
+import com.atlassian.scheduler.SchedulerServiceException;
+import com.atlassian.scheduler.config.JobConfig;
+import com.atlassian.scheduler.config.JobId;
+import com.atlassian.scheduler.config.JobRunnerKey;
+import com.atlassian.scheduler.config.RunMode;
+import com.atlassian.scheduler.config.Schedule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polls the mirrors configured with the {@link MirrorSettings#DIRECTION_FETCH fetch} direction, fetching their changes
+ * into the repository.
+ * <p>
+ * Each mirror is polled on its own interval, which adapts to how often the mirror changes: it is halved whenever a
+ * fetch changes any ref, and grows by half whenever a fetch changes nothing, between the configured minimum and
+ * maximum. Fetches run on a bucketed executor limited to a configured number of threads. Since fetched changes do not
+ * trigger repository hooks, pushes to the push mirrors of the repository are scheduled after a fetch changes refs.
+ * <p>
+ * Fetches can also be requested when the mirror notifies that it has changed, see {@link #scheduleFetches}.
+ */
+public class MirrorFetchScheduler implements BucketProcessor<MirrorRequest>, JobRunner, LifecycleAware {
+
+    static final String PROP_PREFIX = "plugin.com.englishtown.stash-hook-mirror.fetch.";
+    static final String PROP_BATCH_SIZE = PROP_PREFIX + "batch.size";
+    static final String PROP_INTERVAL_MAX = PROP_PREFIX + "interval.max";
+    static final String PROP_INTERVAL_MIN = PROP_PREFIX + "interval.min";
+    static final String PROP_THREADS = PROP_PREFIX + "threads";
+
+    private static final JobId JOB_ID = JobId.of(MirrorFetchScheduler.class.getName());
+    private static final JobRunnerKey JOB_RUNNER_KEY = JobRunnerKey.of(MirrorFetchScheduler.class.getName());
+    private static final long POLL_INTERVAL = TimeUnit.SECONDS.toMillis(30L);
+
+    private static final Logger log = LoggerFactory.getLogger(MirrorFetchScheduler.class);
+
+    private final MirrorRepositoryHook mirrorRepositoryHook;
+    private final MirrorBucketProcessor mirrorProcessor;
+    private final MirrorPauseService pauseService;
+    private final RepositoryService repositoryService;
+    private final MirrorFetchSchedules schedules;
+    private final SchedulerService schedulerService;
+    private final SecurityService securityService;
+    private final BucketedExecutor<MirrorRequest> fetchExecutor;
+    private final int batchSize;
+    private final long maxInterval;
+    private final long minInterval;
+
+    public MirrorFetchScheduler(ApplicationPropertiesService propertiesService, ConcurrencyService concurrencyService,
+                                MirrorRepositoryHook mirrorRepositoryHook, MirrorBucketProcessor mirrorProcessor,
+                                MirrorFetchSchedules schedules, MirrorPauseService pauseService,
+                                RepositoryService repositoryService,
+                                SchedulerService schedulerService, SecurityService securityService) {
+        this.mirrorRepositoryHook = mirrorRepositoryHook;
+        this.mirrorProcessor = mirrorProcessor;
+        this.pauseService = pauseService;
+        this.repositoryService = repositoryService;
+        this.schedules = schedules;
+        this.schedulerService = schedulerService;
+        this.securityService = securityService;
+
+        batchSize = Math.max(1, propertiesService.getPluginProperty(PROP_BATCH_SIZE, 500));
+        minInterval = TimeUnit.SECONDS.toMillis(
+                Math.max(1L, propertiesService.getPluginProperty(PROP_INTERVAL_MIN, 60L)));
+        maxInterval = Math.max(minInterval,
+                TimeUnit.SECONDS.toMillis(propertiesService.getPluginProperty(PROP_INTERVAL_MAX, 3600L)));
+        int threads = propertiesService.getPluginProperty(PROP_THREADS, 2);
+
+        fetchExecutor = concurrencyService.getBucketedExecutor(getClass().getSimpleName(),
+                new BucketedExecutorSettings.Builder<>(MirrorRequest::toString, this)
+                        .batchSize(Integer.MAX_VALUE) // Coalesce all requests into a single fetch
+                        .maxAttempts(1) // A failed fetch is retried at the next poll
+                        .maxConcurrency(threads, ConcurrencyPolicy.PER_NODE)
+                        .build());
+    }
+
+    @Override
+    public void onStart() {
+        schedulerService.registerJobRunner(JOB_RUNNER_KEY, this);
+        try {
+            schedulerService.scheduleJob(JOB_ID, JobConfig.forJobRunnerKey(JOB_RUNNER_KEY)
+                    .withRunMode(RunMode.RUN_ONCE_PER_CLUSTER)
+                    .withSchedule(Schedule.forInterval(POLL_INTERVAL,
+                            new Date(System.currentTimeMillis() + POLL_INTERVAL))));
+        } catch (SchedulerServiceException e) {
+            log.error("Failed to schedule fetching from mirrors", e);
+        }
+    }
+
+    @Override
+    public void onStop() {
+        schedulerService.unregisterJobRunner(JOB_RUNNER_KEY);
+    }
+
+    /**
+     * Submits fetches for the mirrors which are due. The mirrors are leased for the maximum interval, so a mirror
+     * whose fetch is lost, e.g. because the node stopped, is fetched from again.
+     */
+    @Nullable
+    @Override
+    public JobRunnerResponse runJob(@Nonnull JobRunnerRequest request) {
+        int[] submitted = {0};
+        securityService.withPermission(Permission.REPO_READ, "Schedule mirror fetches")
+                .call(() -> {
+                    schedules.claimDue(System.currentTimeMillis(), batchSize, maxInterval,
+                            (repositoryId, mirrorUrl) -> {
+                                if (submit(repositoryId, mirrorUrl)) {
+                                    ++submitted[0];
+                                }
+                            });
+                    return null;
+                });
+
+        return JobRunnerResponse.success("Submitted " + submitted[0] + " mirror fetch(es)");
+    }
+
+    @Override
+    public void process(@Nonnull String key, @Nonnull List<MirrorRequest> requests) {
+        if (requests.isEmpty()) {
+            return;
+        }
+        MirrorRequest request = requests.get(requests.size() - 1);
+        MirrorSettings settings = request.getSettings();
+
+        securityService.withPermission(Permission.REPO_WRITE, "Fetch from mirror")
+                .call(() -> {
+                    Repository repository = repositoryService.getById(request.getRepositoryId());
+                    if (repository == null) {
+                        schedules.clearAll(request.getRepositoryId());
+                        return null;
+                    }
+
+                    boolean changed;
+                    try {
+                        changed = mirrorProcessor.fetch(settings, repository);
+                    } catch (RuntimeException e) {
+                        // Keep the interval, so a failing mirror is neither hammered nor left for longer
+                        log.warn("{}: Failed to fetch from mirror {}", repository, settings.mirrorRepoUrl, e);
+                        schedules.reschedule(repository.getId(), settings.mirrorRepoUrl, System.currentTimeMillis(),
+                                interval -> interval);
+                        return null;
+                    }
+
+                    schedules.reschedule(repository.getId(), settings.mirrorRepoUrl, System.currentTimeMillis(),
+                            interval -> nextInterval(interval, changed));
+                    if (changed) {
+                        log.info("{}: Fetched changes from mirror {}", repository, settings.mirrorRepoUrl);
+                        mirrorRepositoryHook.schedulePushes(repository,
+                                mirrorRepositoryHook.getMirrorSettings(repository));
+                    }
+                    return null;
+                });
+    }
+
+    /**
+     * Schedules fetches from the mirrors of a repository which are not paused, after a short delay so a burst of
+     * notifications is coalesced into a single fetch per mirror
+     *
+     * @param repository the repository to fetch into
+     * @param list       the mirrors to fetch from; mirrors which are pushed to are skipped
+     * @return the number of fetches scheduled
+     */
+    int scheduleFetches(Repository repository, List<MirrorSettings> list) {
+        int scheduled = 0;
+        for (MirrorSettings settings : list) {
+            if (settings.isFetch() && !pauseService.isPaused(repository.getId(), settings.mirrorRepoUrl)) {
+                fetchExecutor.schedule(new MirrorRequest(repository, settings), 5L, TimeUnit.SECONDS);
+                ++scheduled;
+            }
+        }
+        return scheduled;
+    }
+
+    /**
+     * @param interval the current polling interval, in milliseconds, or {@code 0} for a new mirror
+     * @param changed  whether the last fetch changed any ref
+     * @return the next polling interval, in milliseconds
+     */
+    long nextInterval(long interval, boolean changed) {
+        long next = changed ? interval / 2 : interval + interval / 2;
+        return Math.max(minInterval, Math.min(maxInterval, next));
+    }
+
+    private boolean submit(int repositoryId, String mirrorUrl) {
+        Repository repository = repositoryService.getById(repositoryId);
+        if (repository == null) {
+            schedules.clearAll(repositoryId);
+            return false;
+        }
+
+        List<String> fetchUrls = new ArrayList<>();
+        for (MirrorSettings settings : mirrorRepositoryHook.getMirrorSettings(repository)) {
+            if (settings.isFetch()) {
+                if (settings.mirrorRepoUrl.equals(mirrorUrl)) {
+                    if (pauseService.isPaused(repositoryId, mirrorUrl)) {
+                        // Polled again once the lease expires
+                        return false;
+                    }
+                    fetchExecutor.submit(new MirrorRequest(repositoryId, settings));
+                    return true;
+                }
+                fetchUrls.add(settings.mirrorRepoUrl);
+            }
+        }
+
+        // The mirror is no longer configured for fetching, or the hook has been disabled
+        log.debug("{}: Removing {} from the fetch schedule", repository, mirrorUrl);
+        schedules.retain(repositoryId, fetchUrls);
+        return false;
+    }
+}
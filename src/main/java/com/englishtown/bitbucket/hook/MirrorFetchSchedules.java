@@ -0,0 +1,56 @@
+package com.englishtown.bitbucket.hook;
+
+import java.util.Collection;
+import java.util.function.BiConsumer;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Durable polling schedule of the mirrors which are fetched from, shared by every node in the cluster
+ */
+public interface MirrorFetchSchedules {
+
+    /**
+     * Adds a mirror to the schedule, due immediately and with the minimum polling interval, unless it is already
+     * scheduled
+     *
+     * @param repositoryId the ID of the repository
+     * @param mirrorUrl    the URL of the mirror
+     */
+    void register(int repositoryId, String mirrorUrl);
+
+    /**
+     * Removes every mirror of a repository from the schedule, except the given ones
+     *
+     * @param repositoryId the ID of the repository
+     * @param mirrorUrls   the URLs of the mirrors to keep
+     */
+    void retain(int repositoryId, Collection<String> mirrorUrls);
+
+    /**
+     * Removes every mirror of a repository from the schedule
+     *
+     * @param repositoryId the ID of the repository
+     */
+    void clearAll(int repositoryId);
+
+    /**
+     * Claims the mirrors which are due to be fetched from, by moving their next fetch time out by the lease, so they
+     * are not claimed again while the fetch is queued or running
+     *
+     * @param now      the current time, in milliseconds since the epoch
+     * @param limit    the maximum number of mirrors to claim
+     * @param lease    how long, in milliseconds, until the mirrors can be claimed again if they are not rescheduled
+     * @param callback receives the repository ID and mirror URL of each claimed mirror
+     */
+    void claimDue(long now, int limit, long lease, BiConsumer<Integer, String> callback);
+
+    /**
+     * Schedules the next fetch from a mirror
+     *
+     * @param repositoryId the ID of the repository
+     * @param mirrorUrl    the URL of the mirror
+     * @param now          the current time, in milliseconds since the epoch
+     * @param nextInterval computes the next polling interval from the current one
+     */
+    void reschedule(int repositoryId, String mirrorUrl, long now, LongUnaryOperator nextInterval);
+}
@@ -0,0 +1,32 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.event.repository.AbstractRepositoryRefsChangedEvent;
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.Repository;
+
+import javax.annotation.Nonnull;
+import java.util.Collection;
+
+/**
+ * Published when a fetch from a mirror changed branches or tags of the repository. A fetch does not go through the
+ * repository hooks, so this event is how pull requests and other listeners for ref changes see the fetched changes.
+ */
+public class MirrorFetchedEvent extends AbstractRepositoryRefsChangedEvent {
+
+    private final String mirrorRepoUrl;
+
+    MirrorFetchedEvent(@Nonnull Object source, @Nonnull Repository repository, @Nonnull String mirrorRepoUrl,
+                       @Nonnull Collection<RefChange> refChanges) {
+        super(source, repository, refChanges);
+
+        this.mirrorRepoUrl = mirrorRepoUrl;
+    }
+
+    /**
+     * @return the URL of the mirror the changes were fetched from
+     */
+    @Nonnull
+    public String getMirrorRepoUrl() {
+        return mirrorRepoUrl;
+    }
+}
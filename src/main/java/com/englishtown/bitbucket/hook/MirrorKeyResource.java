@@ -0,0 +1,58 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.permission.PermissionService;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/**
+ * REST resource for the key mirror passwords are encrypted with, available to system administrators. Rotating the
+ * key encrypts passwords which are saved from then on with the new key, and the {@link MirrorPasswordMigrator}
+ * re-encrypts the stored passwords in the background.
+ */
+@Path("/keys")
+@Produces(MediaType.APPLICATION_JSON)
+public class MirrorKeyResource {
+
+    private final PasswordEncryptor passwordEncryptor;
+    private final PermissionService permissionService;
+
+    public MirrorKeyResource(PasswordEncryptor passwordEncryptor, PermissionService permissionService) {
+        this.passwordEncryptor = passwordEncryptor;
+        this.permissionService = permissionService;
+    }
+
+    /**
+     * @return the current key version, e.g. {@code {"version":2}}
+     */
+    @GET
+    public Response getKeyVersion() {
+        if (!permissionService.hasGlobalPermission(Permission.SYS_ADMIN)) {
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+        return toResponse(passwordEncryptor.getKeyVersion());
+    }
+
+    /**
+     * Adds a new key version
+     *
+     * @return the new key version
+     */
+    @POST
+    @Path("/rotate")
+    public Response rotate() {
+        if (!permissionService.hasGlobalPermission(Permission.SYS_ADMIN)) {
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+        return toResponse(passwordEncryptor.rotateKey());
+    }
+
+    private static Response toResponse(int version) {
+        return Response.ok("{\"version\":" + version + "}").build();
+    }
+}
@@ -0,0 +1,47 @@
+package com.englishtown.bitbucket.hook;
+
+import java.util.Objects;
+
+/**
+ * An LFS object referenced by a pointer file, identified by the SHA-256 of its content
+ */
+class MirrorLfsObject {
+
+    private final String oid;
+    private final long size;
+
+    MirrorLfsObject(String oid, long size) {
+        this.oid = oid;
+        this.size = size;
+    }
+
+    String getOid() {
+        return oid;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        MirrorLfsObject that = (MirrorLfsObject) o;
+        return size == that.size && oid.equals(that.oid);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(oid, size);
+    }
+
+    @Override
+    public String toString() {
+        return oid + " (" + size + " bytes)";
+    }
+}
@@ -0,0 +1,471 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.englishtown.bitbucket.hook.MirrorRepositoryHook.PROP_PREFIX;
+
+/**
+ * Uploads LFS objects to the LFS endpoint of an http(s) mirror with the
+ * <a href="https://github.com/git-lfs/git-lfs/blob/main/docs/api/batch.md">batch API</a> and the basic transfer
+ * adapter:
+ * <ul>
+ * <li>the endpoint is asked which objects it is missing, in batches of {@link #BATCH_SIZE}</li>
+ * <li>missing objects are streamed from the local LFS storage, a few at a time, so memory use does not depend on
+ * the size of the objects</li>
+ * <li>objects which are known to be on the endpoint are not asked about again, so a push which is retried after a
+ * failure resumes with the objects which were not uploaded yet</li>
+ * <li>an object which is already being uploaded to the endpoint, for another push, is not uploaded twice</li>
+ * </ul>
+ */
+class MirrorLfsUploader {
+
+    static final String PROP_LFS = PROP_PREFIX + "lfs";
+    static final String PROP_LFS_CONCURRENCY = PROP_PREFIX + "lfs.concurrency";
+    static final String PROP_LFS_STORAGE = PROP_PREFIX + "lfs.storage";
+    static final String PROP_LFS_TIMEOUT = PROP_PREFIX + "lfs.timeout";
+
+    static final int BATCH_SIZE = 100;
+    /**
+     * How many times an object is sent before its upload fails, e.g. when a pooled connection was closed by the
+     * server. A streamed request can't be retried by {@link HttpURLConnection} itself.
+     */
+    static final int UPLOAD_ATTEMPTS = 3;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final String MEDIA_TYPE = "application/vnd.git-lfs+json";
+
+    private static final Logger log = LoggerFactory.getLogger(MirrorLfsUploader.class);
+
+    private final ThreadPoolExecutor executor;
+    private final Path storage;
+    private final int timeout;
+    // Objects which are on each endpoint, by endpoint and oid
+    private final Cache<String, Boolean> present = CacheBuilder.newBuilder()
+            .maximumSize(100_000L)
+            .build();
+    // Uploads which are running, by endpoint and oid
+    private final ConcurrentMap<String, CompletableFuture<Void>> uploads = new ConcurrentHashMap<>();
+
+    MirrorLfsUploader(ApplicationPropertiesService propertiesService) {
+        this(getStorage(propertiesService), propertiesService.getPluginProperty(PROP_LFS_CONCURRENCY, 4),
+                (int) TimeUnit.SECONDS.toMillis(propertiesService.getPluginProperty(PROP_LFS_TIMEOUT, 60L)));
+    }
+
+    /**
+     * @param storage     the directory with the LFS objects of each repository, by hierarchy ID
+     * @param concurrency how many objects are uploaded at once
+     * @param timeout     the connect and read timeout, in milliseconds
+     */
+    MirrorLfsUploader(Path storage, int concurrency, int timeout) {
+        this.storage = storage;
+        this.timeout = timeout;
+
+        // Idle threads time out, so the pool does not have to be shut down
+        executor = new ThreadPoolExecutor(Math.max(1, concurrency), Math.max(1, concurrency), 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("mirror-lfs-upload-%d")
+                .build());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param mirrorUrl the URL of the mirror
+     * @return {@code true} if the mirror has an LFS endpoint which objects can be uploaded to
+     */
+    static boolean isSupported(String mirrorUrl) {
+        return mirrorUrl.toLowerCase(Locale.ROOT).startsWith("http");
+    }
+
+    /**
+     * Uploads the objects which the mirror does not have yet, returning once every upload has completed
+     *
+     * @param mirrorUrl   the URL of the mirror
+     * @param hierarchyId identifies the local storage of the repository
+     * @param credentials the credentials for the mirror
+     * @param objects     the objects the pushed commits refer to
+     * @return the number of objects which were uploaded
+     * @throws IllegalStateException if any object could not be uploaded
+     */
+    int upload(String mirrorUrl, String hierarchyId, MirrorCredentials credentials,
+               Collection<MirrorLfsObject> objects) {
+        String endpoint = getEndpoint(mirrorUrl);
+        List<MirrorLfsObject> unknown = new ArrayList<>();
+        for (MirrorLfsObject object : objects) {
+            if (present.getIfPresent(endpoint + " " + object.getOid()) == null) {
+                unknown.add(object);
+            }
+        }
+
+        List<CompletableFuture<Void>> transfers = new ArrayList<>();
+        for (List<MirrorLfsObject> batch : Lists.partition(unknown, BATCH_SIZE)) {
+            for (Transfer transfer : requestBatch(endpoint, credentials, batch)) {
+                String key = endpoint + " " + transfer.oid;
+                if (transfer.upload == null) {
+                    present.put(key, true);
+                    continue;
+                }
+                Path file = getFile(hierarchyId, transfer.oid);
+                if (file == null) {
+                    // The mirror is left with a pointer to a missing object, as it would be without LFS mirroring
+                    log.warn("{}: LFS object {} is not in the local storage; skipping it", mirrorUrl, transfer.oid);
+                    continue;
+                }
+                transfers.add(startUpload(key, transfer, file));
+            }
+        }
+
+        // Every upload is waited for, so the ones which succeeded are remembered when a push is retried
+        RuntimeException failure = null;
+        for (CompletableFuture<Void> transfer : transfers) {
+            try {
+                transfer.join();
+            } catch (CompletionException e) {
+                if (failure == null) {
+                    failure = new IllegalStateException("Failed to upload LFS objects to " + endpoint,
+                            e.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        if (!transfers.isEmpty()) {
+            log.info("{}: Uploaded {} of {} LFS object(s)", mirrorUrl, transfers.size(), objects.size());
+        }
+        return transfers.size();
+    }
+
+    /**
+     * Starts uploading an object, unless it is already being uploaded to the same endpoint
+     */
+    private CompletableFuture<Void> startUpload(String key, Transfer transfer, Path file) {
+        CompletableFuture<Void> upload = new CompletableFuture<>();
+        CompletableFuture<Void> running = uploads.putIfAbsent(key, upload);
+        if (running != null) {
+            return running;
+        }
+        executor.execute(() -> {
+            try {
+                transfer(transfer, file);
+                present.put(key, true);
+                uploads.remove(key, upload);
+                upload.complete(null);
+            } catch (RuntimeException e) {
+                uploads.remove(key, upload);
+                upload.completeExceptionally(e);
+            }
+        });
+        return upload;
+    }
+
+    /**
+     * @return the LFS endpoint of the mirror, by the convention git-lfs uses when none is configured
+     */
+    static String getEndpoint(String mirrorUrl) {
+        String url = mirrorUrl;
+        while (url.endsWith("/")) {
+            url = url.substring(0, url.length() - 1);
+        }
+        return (url.endsWith(".git") ? url : url + ".git") + "/info/lfs";
+    }
+
+    private Path getFile(String hierarchyId, String oid) {
+        Path directory = storage.resolve(hierarchyId);
+        for (Path file : new Path[]{directory.resolve(oid),
+                directory.resolve(oid.substring(0, 2)).resolve(oid.substring(2, 4)).resolve(oid)}) {
+            if (Files.isRegularFile(file)) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    private List<Transfer> requestBatch(String endpoint, MirrorCredentials credentials,
+                                        List<MirrorLfsObject> objects) {
+        HttpURLConnection connection = open(endpoint + "/objects/batch", "POST", credentials);
+        try {
+            connection.setRequestProperty("Accept", MEDIA_TYPE);
+            connection.setRequestProperty("Content-Type", MEDIA_TYPE);
+            try (OutputStream out = connection.getOutputStream();
+                 JsonGenerator generator = JSON_FACTORY.createJsonGenerator(out, JsonEncoding.UTF8)) {
+                generator.writeStartObject();
+                generator.writeStringField("operation", "upload");
+                generator.writeArrayFieldStart("transfers");
+                generator.writeString("basic");
+                generator.writeEndArray();
+                generator.writeArrayFieldStart("objects");
+                for (MirrorLfsObject object : objects) {
+                    generator.writeStartObject();
+                    generator.writeStringField("oid", object.getOid());
+                    generator.writeNumberField("size", object.getSize());
+                    generator.writeEndObject();
+                }
+                generator.writeEndArray();
+                generator.writeEndObject();
+            }
+
+            checkStatus(connection, "The LFS batch request");
+            try (InputStream in = connection.getInputStream()) {
+                return parseBatch(in);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("The LFS batch request to " + endpoint + " failed", e);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private void transfer(Transfer transfer, Path file) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                send(transfer, file);
+                break;
+            } catch (IOException e) {
+                if (attempt >= UPLOAD_ATTEMPTS) {
+                    throw new IllegalStateException("Failed to upload LFS object " + transfer.oid, e);
+                }
+                log.debug("Failed to upload LFS object {}; retrying", transfer.oid, e);
+            }
+        }
+
+        if (transfer.verify != null) {
+            verify(transfer);
+        }
+        log.debug("Uploaded LFS object {}", transfer.oid);
+    }
+
+    private void send(Transfer transfer, Path file) throws IOException {
+        HttpURLConnection connection = open(transfer.upload.href, "PUT", null);
+        try {
+            transfer.upload.headers.forEach(connection::setRequestProperty);
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+            // Streams the object without buffering it
+            connection.setFixedLengthStreamingMode(Files.size(file));
+            try (InputStream in = Files.newInputStream(file);
+                 OutputStream out = connection.getOutputStream()) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            }
+            checkStatus(connection, "The upload of LFS object " + transfer.oid);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private void verify(Transfer transfer) {
+        HttpURLConnection connection = open(transfer.verify.href, "POST", null);
+        try {
+            transfer.verify.headers.forEach(connection::setRequestProperty);
+            connection.setRequestProperty("Accept", MEDIA_TYPE);
+            connection.setRequestProperty("Content-Type", MEDIA_TYPE);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(("{\"oid\":\"" + transfer.oid + "\",\"size\":" + transfer.size + "}")
+                        .getBytes(StandardCharsets.UTF_8));
+            }
+            checkStatus(connection, "The verification of LFS object " + transfer.oid);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to verify LFS object " + transfer.oid, e);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * @param credentials the credentials to authenticate with, or {@code null} if the request is authenticated by
+     *                    the headers of an action instead
+     */
+    private HttpURLConnection open(String url, String method, MirrorCredentials credentials) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
+            connection.setDoOutput(true);
+            connection.setRequestMethod(method);
+            if (credentials != null && !credentials.isEmpty()) {
+                connection.setRequestProperty("Authorization", "Basic " + Base64.getEncoder().encodeToString(
+                        (credentials.getUsername() + ":" + credentials.getPassword())
+                                .getBytes(StandardCharsets.UTF_8)));
+            }
+            return connection;
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to connect to " + url, e);
+        }
+    }
+
+    private static void checkStatus(HttpURLConnection connection, String request) throws IOException {
+        int status = connection.getResponseCode();
+        if (status / 100 != 2) {
+            throw new IllegalStateException(request + " failed with HTTP " + status);
+        }
+    }
+
+    /**
+     * Reads the objects of a batch response. Objects without an upload action are already on the endpoint.
+     */
+    static List<Transfer> parseBatch(InputStream in) throws IOException {
+        List<Transfer> transfers = new ArrayList<>();
+        try (JsonParser parser = JSON_FACTORY.createJsonParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("The LFS batch response is not a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("objects".equals(field) && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        transfers.add(parseObject(parser));
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return transfers;
+    }
+
+    private static Transfer parseObject(JsonParser parser) throws IOException {
+        Transfer transfer = new Transfer();
+        String error = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("oid".equals(field)) {
+                transfer.oid = parser.getText();
+            } else if ("size".equals(field) && value == JsonToken.VALUE_NUMBER_INT) {
+                transfer.size = parser.getLongValue();
+            } else if ("actions".equals(field) && value == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String action = parser.getCurrentName();
+                    parser.nextToken();
+                    if ("upload".equals(action)) {
+                        transfer.upload = parseAction(parser);
+                    } else if ("verify".equals(action)) {
+                        transfer.verify = parseAction(parser);
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else if ("error".equals(field) && value == JsonToken.START_OBJECT) {
+                error = parseError(parser);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (error != null) {
+            throw new IllegalStateException("The LFS endpoint rejected object " + transfer.oid + ": " + error);
+        }
+        if (Strings.isNullOrEmpty(transfer.oid)) {
+            throw new IOException("The LFS batch response has an object without an oid");
+        }
+        return transfer;
+    }
+
+    private static Action parseAction(JsonParser parser) throws IOException {
+        Action action = new Action();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("href".equals(field)) {
+                action.href = parser.getText();
+            } else if ("header".equals(field) && value == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    parser.nextToken();
+                    action.headers.put(name, parser.getText());
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (Strings.isNullOrEmpty(action.href)) {
+            throw new IOException("The LFS batch response has an action without an href");
+        }
+        return action;
+    }
+
+    private static String parseError(JsonParser parser) throws IOException {
+        String code = "";
+        String message = "";
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if ("code".equals(field)) {
+                code = parser.getText();
+            } else if ("message".equals(field)) {
+                message = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return message + " (" + code + ")";
+    }
+
+    private static Path getStorage(ApplicationPropertiesService propertiesService) {
+        String storage = propertiesService.getPluginProperty(PROP_LFS_STORAGE);
+        if (Strings.isNullOrEmpty(storage)) {
+            return propertiesService.getSharedHomeDir().resolve("data").resolve("git-lfs").resolve("storage");
+        }
+        return Paths.get(storage);
+    }
+
+    /**
+     * An object in a batch response, with what to do to upload it
+     */
+    static class Transfer {
+
+        String oid;
+        long size;
+        Action upload;
+        Action verify;
+    }
+
+    /**
+     * A request the endpoint asked to be made, to an URL which may be elsewhere, e.g. an object store
+     */
+    static class Action {
+
+        String href;
+        final Map<String, String> headers = new HashMap<>();
+    }
+}
@@ -0,0 +1,42 @@
+package com.englishtown.bitbucket.hook;
+
+import java.util.function.BiConsumer;
+
+/**
+ * Durable record of the mirrors which have changes that have not been pushed yet, so that pending pushes survive
+ * node restarts and plugin upgrades
+ */
+public interface MirrorOutbox {
+
+    /**
+     * Marks a mirror as having changes to push
+     *
+     * @param repositoryId the ID of the repository
+     * @param mirrorUrl    the URL of the mirror
+     */
+    void markDirty(int repositoryId, String mirrorUrl);
+
+    /**
+     * Clears the dirty marker of a mirror, unless it was marked again after {@code pushStarted}
+     *
+     * @param repositoryId the ID of the repository
+     * @param mirrorUrl    the URL of the mirror
+     * @param pushStarted  the time, in milliseconds since the epoch, at which the successful push started
+     */
+    void clear(int repositoryId, String mirrorUrl, long pushStarted);
+
+    /**
+     * Clears the dirty markers of every mirror of a repository
+     *
+     * @param repositoryId the ID of the repository
+     */
+    void clearAll(int repositoryId);
+
+    /**
+     * Streams every dirty mirror
+     *
+     * @param callback receives the repository ID and mirror URL of each dirty mirror
+     */
+    void forEachDirty(BiConsumer<Integer, String> callback);
+
+}
@@ -0,0 +1,90 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.repository.RepositoryService;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.sal.api.lifecycle.LifecycleAware;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * Re-schedules pushes for every mirror left dirty in the {@link MirrorOutbox} when the plugin starts, so that pushes
+ * which were queued or being retried when the node stopped are not lost
+ */
+public class MirrorOutboxSweeper implements LifecycleAware {
+
+    private static final Logger log = LoggerFactory.getLogger(MirrorOutboxSweeper.class);
+
+    private final MirrorRepositoryHook mirrorRepositoryHook;
+    private final MirrorOutbox outbox;
+    private final RepositoryService repositoryService;
+    private final SecurityService securityService;
+
+    public MirrorOutboxSweeper(MirrorRepositoryHook mirrorRepositoryHook, MirrorOutbox outbox,
+                               RepositoryService repositoryService, SecurityService securityService) {
+        this.mirrorRepositoryHook = mirrorRepositoryHook;
+        this.outbox = outbox;
+        this.repositoryService = repositoryService;
+        this.securityService = securityService;
+    }
+
+    @Override
+    public void onStart() {
+        try {
+            sweep();
+        } catch (Exception e) {
+            log.error("Failed to re-schedule pushes for dirty mirrors", e);
+        }
+    }
+
+    @Override
+    public void onStop() {
+    }
+
+    /**
+     * Schedules pushes for every dirty mirror which is still configured, and clears the markers of the rest
+     */
+    void sweep() {
+        Map<Integer, Set<String>> dirty = new LinkedHashMap<>();
+        outbox.forEachDirty((repositoryId, mirrorUrl) ->
+                dirty.computeIfAbsent(repositoryId, id -> new HashSet<>()).add(mirrorUrl));
+        if (dirty.isEmpty()) {
+            return;
+        }
+        log.info("Re-scheduling pushes for dirty mirrors of {} repositories", dirty.size());
+
+        securityService.withPermission(Permission.REPO_READ, "Re-schedule mirror pushes")
+                .call(() -> {
+                    dirty.forEach(this::reschedule);
+                    return null;
+                });
+    }
+
+    private void reschedule(int repositoryId, Set<String> mirrorUrls) {
+        Repository repository = repositoryService.getById(repositoryId);
+        if (repository == null) {
+            log.debug("{}: Repository has been deleted", repositoryId);
+            outbox.clearAll(repositoryId);
+            return;
+        }
+
+        List<MirrorSettings> mirrors = new ArrayList<>();
+        for (MirrorSettings settings : mirrorRepositoryHook.getMirrorSettings(repository)) {
+            if (mirrorUrls.remove(settings.mirrorRepoUrl)) {
+                mirrors.add(settings);
+            }
+        }
+
+        // Anything left over is no longer configured, or the hook has been disabled
+        long now = System.currentTimeMillis();
+        mirrorUrls.forEach(mirrorUrl -> outbox.clear(repositoryId, mirrorUrl, now));
+
+        if (!mirrors.isEmpty()) {
+            log.debug("{}: Re-scheduling pushes for {} dirty mirror(s)", repository, mirrors.size());
+            mirrorRepositoryHook.schedulePushes(repository, mirrors);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.repository.RepositoryService;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.bitbucket.util.Page;
+import com.atlassian.bitbucket.util.PageRequestImpl;
+import com.atlassian.sal.api.lifecycle.LifecycleAware;
+import com.atlassian.sal.api.pluginsettings.PluginSettings;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import com.atlassian.scheduler.JobRunner;
+import com.atlassian.scheduler.JobRunnerRequest;
+import com.atlassian.scheduler.JobRunnerResponse;
+import com.atlassian.scheduler.SchedulerService;
+import com.atlassian.scheduler.SchedulerServiceException;
+import com.atlassian.scheduler.config.JobConfig;
+import com.atlassian.scheduler.config.JobId;
+import com.atlassian.scheduler.config.JobRunnerKey;
+import com.atlassian.scheduler.config.RunMode;
+import com.atlassian.scheduler.config.Schedule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import static com.englishtown.bitbucket.hook.DefaultPasswordEncryptor.PLUGIN_SETTINGS_KEY;
+import static com.englishtown.bitbucket.hook.MirrorRepositoryHook.PROP_PREFIX;
+
+/**
+ * Re-encrypts the mirror passwords of every repository after the {@link PasswordEncryptor#rotateKey() key is
+ * rotated}, including passwords encrypted by earlier versions of the plugin.
+ * <p>
+ * Each run migrates the next page of repositories, continuing where the previous run stopped, so the settings are
+ * rewritten gradually instead of all at once. Once every repository has been migrated to the current key version,
+ * runs do nothing until the key is rotated again. Passwords which are saved in the meantime are re-encrypted as
+ * they are saved.
+ */
+public class MirrorPasswordMigrator implements JobRunner, LifecycleAware {
+
+    static final String PROP_INTERVAL = PROP_PREFIX + "reencrypt.interval";
+    static final String PROP_PAGE_SIZE = PROP_PREFIX + "reencrypt.page.size";
+    static final String SETTINGS_CURSOR = "reencrypt.cursor";
+    static final String SETTINGS_FAILURES = "reencrypt.failures";
+    static final String SETTINGS_PASS_VERSION = "reencrypt.pass.version";
+    static final String SETTINGS_VERSION = "reencrypt.version";
+
+    private static final JobId JOB_ID = JobId.of(MirrorPasswordMigrator.class.getName());
+    private static final JobRunnerKey JOB_RUNNER_KEY = JobRunnerKey.of(MirrorPasswordMigrator.class.getName());
+
+    private static final Logger log = LoggerFactory.getLogger(MirrorPasswordMigrator.class);
+
+    private final MirrorRepositoryHook mirrorRepositoryHook;
+    private final PasswordEncryptor passwordEncryptor;
+    private final PluginSettingsFactory pluginSettingsFactory;
+    private final RepositoryService repositoryService;
+    private final SchedulerService schedulerService;
+    private final SecurityService securityService;
+    private final long interval;
+    private final int pageSize;
+
+    public MirrorPasswordMigrator(ApplicationPropertiesService propertiesService,
+                                  MirrorRepositoryHook mirrorRepositoryHook, PasswordEncryptor passwordEncryptor,
+                                  PluginSettingsFactory pluginSettingsFactory, RepositoryService repositoryService,
+                                  SchedulerService schedulerService, SecurityService securityService) {
+        this.mirrorRepositoryHook = mirrorRepositoryHook;
+        this.passwordEncryptor = passwordEncryptor;
+        this.pluginSettingsFactory = pluginSettingsFactory;
+        this.repositoryService = repositoryService;
+        this.schedulerService = schedulerService;
+        this.securityService = securityService;
+
+        interval = TimeUnit.MINUTES.toMillis(propertiesService.getPluginProperty(PROP_INTERVAL, 10L));
+        pageSize = Math.max(1, propertiesService.getPluginProperty(PROP_PAGE_SIZE, 100));
+    }
+
+    @Override
+    public void onStart() {
+        if (interval <= 0) {
+            log.debug("Mirror password re-encryption is disabled");
+            return;
+        }
+
+        schedulerService.registerJobRunner(JOB_RUNNER_KEY, this);
+        try {
+            schedulerService.scheduleJob(JOB_ID, JobConfig.forJobRunnerKey(JOB_RUNNER_KEY)
+                    .withRunMode(RunMode.RUN_ONCE_PER_CLUSTER)
+                    .withSchedule(Schedule.forInterval(interval, new Date(System.currentTimeMillis() + interval))));
+        } catch (SchedulerServiceException e) {
+            log.error("Failed to schedule mirror password re-encryption", e);
+        }
+    }
+
+    @Override
+    public void onStop() {
+        schedulerService.unregisterJobRunner(JOB_RUNNER_KEY);
+    }
+
+    /**
+     * Re-encrypts the passwords of the next page of repositories, if they have not all been migrated to the current
+     * key version yet
+     */
+    @Nullable
+    @Override
+    public JobRunnerResponse runJob(@Nonnull JobRunnerRequest request) {
+        PluginSettings pluginSettings = pluginSettingsFactory.createSettingsForKey(PLUGIN_SETTINGS_KEY);
+        int version = passwordEncryptor.getKeyVersion();
+        if (version == getInt(pluginSettings, SETTINGS_VERSION)) {
+            return JobRunnerResponse.success("Every password is encrypted with key version " + version);
+        }
+        int start = getInt(pluginSettings, SETTINGS_CURSOR);
+        if (start == 0) {
+            // If the key is rotated again during the pass, another pass is needed for the new version
+            pluginSettings.put(SETTINGS_PASS_VERSION, String.valueOf(version));
+        }
+
+        int[] migrated = {0};
+        int[] failed = {0};
+        Page<Repository> page = securityService.withPermission(Permission.REPO_READ, "Re-encrypt mirror passwords")
+                .call(() -> {
+                    Page<Repository> repositories = repositoryService.findAll(new PageRequestImpl(start, pageSize));
+                    for (Repository repository : repositories.getValues()) {
+                        try {
+                            if (mirrorRepositoryHook.reencryptPasswords(repository)) {
+                                ++migrated[0];
+                            }
+                        } catch (RuntimeException e) {
+                            // The next pass tries again
+                            log.warn("{}: Failed to re-encrypt the mirror passwords", repository, e);
+                            ++failed[0];
+                        }
+                    }
+                    return repositories;
+                });
+
+        // Repositories which failed are retried by another pass, before the migration is considered complete
+        int failures = (start == 0 ? 0 : getInt(pluginSettings, SETTINGS_FAILURES)) + failed[0];
+        if (page.getIsLastPage()) {
+            pluginSettings.put(SETTINGS_CURSOR, "0");
+            pluginSettings.put(SETTINGS_FAILURES, "0");
+            if (failures == 0) {
+                int passVersion = getInt(pluginSettings, SETTINGS_PASS_VERSION);
+                pluginSettings.put(SETTINGS_VERSION, String.valueOf(passVersion));
+                log.info("Re-encrypted the mirror passwords of every repository with key version {}", passVersion);
+            }
+        } else {
+            pluginSettings.put(SETTINGS_CURSOR, String.valueOf(start + page.getSize()));
+            pluginSettings.put(SETTINGS_FAILURES, String.valueOf(failures));
+        }
+
+        return JobRunnerResponse.success("Re-encrypted the passwords of " + migrated[0] + " of " + page.getSize() +
+                " repositories from " + start);
+    }
+
+    private static int getInt(PluginSettings pluginSettings, String key) {
+        Object value = pluginSettings.get(key);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(value.toString()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.englishtown.bitbucket.hook;
+
+import java.util.Set;
+
+/**
+ * Tracks which mirrors are paused. Changes to a paused mirror are still recorded in the {@link MirrorOutbox}, but
+ * are not pushed until the mirror is resumed.
+ */
+public interface MirrorPauseService {
+
+    /**
+     * @param repositoryId the ID of the repository
+     * @return the URLs of the paused mirrors of the repository
+     */
+    Set<String> getPaused(int repositoryId);
+
+    /**
+     * @param repositoryId the ID of the repository
+     * @param mirrorUrl    the URL of the mirror
+     * @return {@code true} if the mirror is paused
+     */
+    boolean isPaused(int repositoryId, String mirrorUrl);
+
+    /**
+     * Pauses a mirror
+     *
+     * @param repositoryId the ID of the repository
+     * @param mirrorUrl    the URL of the mirror
+     */
+    void pause(int repositoryId, String mirrorUrl);
+
+    /**
+     * Resumes a paused mirror
+     *
+     * @param repositoryId the ID of the repository
+     * @param mirrorUrl    the URL of the mirror
+     * @return {@code true} if the mirror was paused
+     */
+    boolean resume(int repositoryId, String mirrorUrl);
+
+    /**
+     * Resumes every mirror of a repository
+     *
+     * @param repositoryId the ID of the repository
+     */
+    void clear(int repositoryId);
+}
@@ -0,0 +1,119 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.repository.RefChangeType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Encodes the ref changes of a push into a compact binary form for the {@link MirrorAuditLog}. Hex object IDs are
+ * stored as raw bytes, and the whole record is deflated, which collapses the shared {@code refs/heads/} prefixes and
+ * the zero IDs of created and deleted refs.
+ */
+class MirrorPushCodec {
+
+    private static final int VERSION = 1;
+    // Marks an object ID which is not an even number of hex digits, stored as a string instead
+    private static final int NOT_HEX = 0xFF;
+
+    private MirrorPushCodec() {
+    }
+
+    static byte[] encode(List<MirrorRefChange> refChanges) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + refChanges.size() * 32);
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+            out.writeByte(VERSION);
+            out.writeInt(refChanges.size());
+            for (MirrorRefChange refChange : refChanges) {
+                out.writeUTF(refChange.getRefId());
+                out.writeByte(refChange.getType().ordinal());
+                writeHash(out, refChange.getFromHash());
+                writeHash(out, refChange.getToHash());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to encode ref changes", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param bytes the encoded ref changes, may be {@code null} or empty for pushes without any ref changes
+     * @return the decoded ref changes
+     * @throws IllegalArgumentException if the bytes were not written by {@link #encode}
+     */
+    static List<MirrorRefChange> decode(byte[] bytes) {
+        if (bytes == null || bytes.length == 0) {
+            return Collections.emptyList();
+        }
+
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(bytes)))) {
+            int version = in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported ref changes version " + version);
+            }
+
+            int count = in.readInt();
+            List<MirrorRefChange> refChanges = new ArrayList<>(count);
+            RefChangeType[] types = RefChangeType.values();
+            for (int i = 0; i < count; i++) {
+                String refId = in.readUTF();
+                RefChangeType type = types[in.readUnsignedByte()];
+                refChanges.add(new MirrorRefChange(refId, readHash(in), readHash(in), type));
+            }
+            return refChanges;
+        } catch (IOException | ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Failed to decode ref changes", e);
+        }
+    }
+
+    private static String readHash(DataInputStream in) throws IOException {
+        int length = in.readUnsignedByte();
+        if (length == NOT_HEX) {
+            return in.readUTF();
+        }
+
+        byte[] hash = new byte[length];
+        in.readFully(hash);
+
+        StringBuilder builder = new StringBuilder(length * 2);
+        for (byte b : hash) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    private static void writeHash(DataOutputStream out, String hash) throws IOException {
+        String value = hash == null ? "" : hash;
+        int length = value.length() / 2;
+        if (value.length() % 2 != 0 || length >= NOT_HEX || !isHex(value)) {
+            out.writeByte(NOT_HEX);
+            out.writeUTF(value);
+            return;
+        }
+
+        out.writeByte(length);
+        for (int i = 0; i < value.length(); i += 2) {
+            out.writeByte(Character.digit(value.charAt(i), 16) << 4 | Character.digit(value.charAt(i + 1), 16));
+        }
+    }
+
+    private static boolean isHex(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            // Upper case digits would not survive the round trip
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
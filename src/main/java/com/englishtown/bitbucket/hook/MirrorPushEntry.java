@@ -0,0 +1,67 @@
+package com.englishtown.bitbucket.hook;
+
+import java.util.List;
+
+/**
+ * A push to a mirror, as recorded in the {@link MirrorAuditLog}
+ */
+class MirrorPushEntry {
+
+    private final int id;
+    private final int repositoryId;
+    private final String mirrorUrl;
+    private final long startedAt;
+    private final long finishedAt;
+    private final MirrorPushOutcome outcome;
+    private final List<MirrorRefChange> refChanges;
+
+    MirrorPushEntry(int repositoryId, String mirrorUrl, long startedAt, long finishedAt, MirrorPushOutcome outcome,
+                    List<MirrorRefChange> refChanges) {
+        this(0, repositoryId, mirrorUrl, startedAt, finishedAt, outcome, refChanges);
+    }
+
+    MirrorPushEntry(int id, int repositoryId, String mirrorUrl, long startedAt, long finishedAt,
+                    MirrorPushOutcome outcome, List<MirrorRefChange> refChanges) {
+        this.id = id;
+        this.repositoryId = repositoryId;
+        this.mirrorUrl = mirrorUrl;
+        this.startedAt = startedAt;
+        this.finishedAt = finishedAt;
+        this.outcome = outcome;
+        this.refChanges = refChanges;
+    }
+
+    /**
+     * @return the ID of the entry, or {@code 0} if it has not been recorded yet
+     */
+    int getId() {
+        return id;
+    }
+
+    int getRepositoryId() {
+        return repositoryId;
+    }
+
+    String getMirrorUrl() {
+        return mirrorUrl;
+    }
+
+    long getStartedAt() {
+        return startedAt;
+    }
+
+    long getFinishedAt() {
+        return finishedAt;
+    }
+
+    MirrorPushOutcome getOutcome() {
+        return outcome;
+    }
+
+    /**
+     * @return the ref changes which were pushed, or an empty list if the push was not triggered by ref changes
+     */
+    List<MirrorRefChange> getRefChanges() {
+        return refChanges;
+    }
+}
@@ -0,0 +1,30 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.event.repository.RepositoryEvent;
+import com.atlassian.bitbucket.repository.Repository;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Base class for the events published as a repository is pushed to one of its mirrors, so other plugins can react to
+ * changes reaching a mirror instead of polling it. The events are published on the node which pushes, and listeners
+ * are called asynchronously where possible, so they never hold up a push.
+ */
+public abstract class MirrorPushEvent extends RepositoryEvent {
+
+    private final String mirrorRepoUrl;
+
+    MirrorPushEvent(@Nonnull Object source, @Nonnull Repository repository, @Nonnull String mirrorRepoUrl) {
+        super(source, repository);
+
+        this.mirrorRepoUrl = mirrorRepoUrl;
+    }
+
+    /**
+     * @return the URL of the mirror, which identifies it among the mirrors of the repository
+     */
+    @Nonnull
+    public String getMirrorRepoUrl() {
+        return mirrorRepoUrl;
+    }
+}
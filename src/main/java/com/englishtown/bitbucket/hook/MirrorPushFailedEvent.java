@@ -0,0 +1,43 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.event.api.AsynchronousPreferred;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.time.Duration;
+
+/**
+ * Published when a push to a mirror fails. The push may still be retried, and the mirror stays dirty until a push
+ * succeeds.
+ */
+@AsynchronousPreferred
+public class MirrorPushFailedEvent extends MirrorPushEvent {
+
+    private final Duration duration;
+    private final String error;
+
+    MirrorPushFailedEvent(@Nonnull Object source, @Nonnull Repository repository, @Nonnull String mirrorRepoUrl,
+                          @Nullable String error, @Nonnull Duration duration) {
+        super(source, repository, mirrorRepoUrl);
+
+        this.duration = duration;
+        this.error = error;
+    }
+
+    /**
+     * @return how long the push ran before it failed
+     */
+    @Nonnull
+    public Duration getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return the error message, with any password removed
+     */
+    @Nullable
+    public String getError() {
+        return error;
+    }
+}
@@ -0,0 +1,10 @@
+package com.englishtown.bitbucket.hook;
+
+/**
+ * The outcome of a push to a mirror, as recorded in the {@link MirrorAuditLog}
+ */
+public enum MirrorPushOutcome {
+
+    FAILED,
+    SUCCEEDED
+}
@@ -0,0 +1,63 @@
+package com.englishtown.bitbucket.hook;
+
+import net.java.ao.Entity;
+import net.java.ao.schema.Indexed;
+import net.java.ao.schema.NotNull;
+import net.java.ao.schema.StringLength;
+import net.java.ao.schema.Table;
+
+/**
+ * Active Objects entity recording a single push to a mirror. The ref changes which were pushed are stored in the
+ * compact binary form written by {@link MirrorPushCodec}, and indexed by {@link MirrorPushRef}.
+ */
+@Table("PUSH_RECORD")
+public interface MirrorPushRecord extends Entity {
+
+    String COLUMN_FINISHED_AT = "FINISHED_AT";
+    String COLUMN_MIRROR_URL = "MIRROR_URL";
+    String COLUMN_OUTCOME = "OUTCOME";
+    String COLUMN_REF_CHANGES = "REF_CHANGES";
+    String COLUMN_REPOSITORY_ID = "REPOSITORY_ID";
+    String COLUMN_STARTED_AT = "STARTED_AT";
+
+    /**
+     * @return the time, in milliseconds since the epoch, at which the push finished
+     */
+    @NotNull
+    long getFinishedAt();
+
+    void setFinishedAt(long finishedAt);
+
+    @NotNull
+    @StringLength(450)
+    String getMirrorUrl();
+
+    void setMirrorUrl(String mirrorUrl);
+
+    @NotNull
+    MirrorPushOutcome getOutcome();
+
+    void setOutcome(MirrorPushOutcome outcome);
+
+    /**
+     * @return the ref changes which were pushed, encoded by {@link MirrorPushCodec}
+     */
+    byte[] getRefChanges();
+
+    void setRefChanges(byte[] refChanges);
+
+    @Indexed
+    @NotNull
+    int getRepositoryId();
+
+    void setRepositoryId(int repositoryId);
+
+    /**
+     * @return the time, in milliseconds since the epoch, at which the push started
+     */
+    @Indexed
+    @NotNull
+    long getStartedAt();
+
+    void setStartedAt(long startedAt);
+}
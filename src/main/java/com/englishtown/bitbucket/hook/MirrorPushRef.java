@@ -0,0 +1,54 @@
+package com.englishtown.bitbucket.hook;
+
+import net.java.ao.Entity;
+import net.java.ao.Preload;
+import net.java.ao.schema.Indexed;
+import net.java.ao.schema.NotNull;
+import net.java.ao.schema.Table;
+
+/**
+ * Active Objects entity indexing the {@link MirrorPushRecord pushes} which changed a ref. Refs are indexed by the hash
+ * of their ID to keep the index small; lookups have to check the decoded ref changes for hash collisions.
+ */
+@Preload
+@Table("PUSH_REF")
+public interface MirrorPushRef extends Entity {
+
+    String COLUMN_PUSH_ID = "PUSH_ID";
+    String COLUMN_REF_HASH = "REF_HASH";
+    String COLUMN_REPOSITORY_ID = "REPOSITORY_ID";
+    String COLUMN_STARTED_AT = "STARTED_AT";
+
+    /**
+     * @return the ID of the {@link MirrorPushRecord}
+     */
+    @Indexed
+    @NotNull
+    int getPushId();
+
+    void setPushId(int pushId);
+
+    /**
+     * @return the {@link String#hashCode() hash} of the ref ID
+     */
+    @Indexed
+    @NotNull
+    int getRefHash();
+
+    void setRefHash(int refHash);
+
+    @Indexed
+    @NotNull
+    int getRepositoryId();
+
+    void setRepositoryId(int repositoryId);
+
+    /**
+     * @return the start time of the push, duplicated from the {@link MirrorPushRecord} to apply retention
+     */
+    @Indexed
+    @NotNull
+    long getStartedAt();
+
+    void setStartedAt(long startedAt);
+}
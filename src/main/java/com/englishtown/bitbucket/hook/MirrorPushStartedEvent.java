@@ -0,0 +1,18 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.event.api.AsynchronousPreferred;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Published when a push to a mirror starts. Every push which starts is followed by a
+ * {@link MirrorPushSucceededEvent} or a {@link MirrorPushFailedEvent}.
+ */
+@AsynchronousPreferred
+public class MirrorPushStartedEvent extends MirrorPushEvent {
+
+    MirrorPushStartedEvent(@Nonnull Object source, @Nonnull Repository repository, @Nonnull String mirrorRepoUrl) {
+        super(source, repository, mirrorRepoUrl);
+    }
+}
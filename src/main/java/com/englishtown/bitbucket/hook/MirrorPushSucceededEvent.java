@@ -0,0 +1,45 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.event.api.AsynchronousPreferred;
+
+import javax.annotation.Nonnull;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Published when a push to a mirror succeeds
+ */
+@AsynchronousPreferred
+public class MirrorPushSucceededEvent extends MirrorPushEvent {
+
+    private final Duration duration;
+    private final Map<String, String> refTips;
+
+    MirrorPushSucceededEvent(@Nonnull Object source, @Nonnull Repository repository, @Nonnull String mirrorRepoUrl,
+                             @Nonnull Map<String, String> refTips, @Nonnull Duration duration) {
+        super(source, repository, mirrorRepoUrl);
+
+        this.duration = duration;
+        this.refTips = Collections.unmodifiableMap(new TreeMap<>(refTips));
+    }
+
+    /**
+     * @return how long the push took
+     */
+    @Nonnull
+    public Duration getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return the object ID each ref on the mirror was pushed to, keyed by the name of the ref on the mirror. Refs
+     * which were deleted are not included, and the map is empty if there was nothing to push
+     */
+    @Nonnull
+    public Map<String, String> getRefTips() {
+        return refTips;
+    }
+}
@@ -0,0 +1,193 @@
+package com.englishtown.bitbucket.hook;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Tracks pushes which run asynchronously, so no thread waits for a push to complete.
+ * <p>
+ * The output of the git processes is drained by the process engine of the {@link
+ * com.atlassian.bitbucket.scm.ScmService ScmService}, and a single task on the shared executor polls the running
+ * commands for completion while any are running. The number of pushes to each host is limited by a budget instead
+ * of by the number of threads; pushes which exceed the budget wait until a push to the same host completes.
+ */
+class MirrorPushTracker {
+
+    private static final Logger log = LoggerFactory.getLogger(MirrorPushTracker.class);
+
+    private final ScheduledExecutorService executor;
+    private final int hostBudget;
+    private final long pollInterval;
+    private final Queue<TrackedPush<?>> running = new ConcurrentLinkedQueue<>();
+    // Guarded by this
+    private final Map<String, Integer> hostPushes = new HashMap<>();
+    private final Map<String, Deque<Runnable>> waiting = new HashMap<>();
+    private ScheduledFuture<?> poller;
+
+    /**
+     * @param executor     runs the poller and the pushes which were waiting for budget
+     * @param hostBudget   the maximum number of pushes to each host
+     * @param pollInterval how often running pushes are checked for completion, in milliseconds
+     */
+    MirrorPushTracker(ScheduledExecutorService executor, int hostBudget, long pollInterval) {
+        this.executor = executor;
+        this.hostBudget = Math.max(1, hostBudget);
+        this.pollInterval = Math.max(1L, pollInterval);
+    }
+
+    /**
+     * Takes one push from the budget of the host. If the budget is used up, the push is started by running
+     * {@code waiter} on the executor once a push to the host {@link #release(String) is released}.
+     *
+     * @param host   the host to push to
+     * @param waiter starts the push once there is budget, if there is none now
+     * @return {@code true} if the push can start now
+     */
+    synchronized boolean acquire(String host, Runnable waiter) {
+        int pushes = hostPushes.getOrDefault(host, 0);
+        if (pushes >= hostBudget) {
+            waiting.computeIfAbsent(host, h -> new ArrayDeque<>()).add(waiter);
+            return false;
+        }
+        hostPushes.put(host, pushes + 1);
+        return true;
+    }
+
+    /**
+     * Returns a push to the budget of the host, starting the next push which is waiting for it
+     *
+     * @param host the host which was pushed to
+     */
+    void release(String host) {
+        Runnable next = null;
+        synchronized (this) {
+            int pushes = hostPushes.getOrDefault(host, 0) - 1;
+            if (pushes > 0) {
+                hostPushes.put(host, pushes);
+            } else {
+                hostPushes.remove(host);
+            }
+
+            // The next push acquires the budget again, and waits again if another push took it in the meantime
+            Deque<Runnable> waiters = waiting.get(host);
+            if (waiters != null) {
+                next = waiters.poll();
+                if (waiters.isEmpty()) {
+                    waiting.remove(host);
+                }
+            }
+        }
+        if (next != null) {
+            executor.execute(next);
+        }
+    }
+
+    /**
+     * @param future   a running push
+     * @param callback called on the poller with the result of the push, or the exception it failed with
+     */
+    <T> void track(Future<T> future, BiConsumer<T, RuntimeException> callback) {
+        running.add(new TrackedPush<>(future, callback));
+        synchronized (this) {
+            if (poller == null) {
+                poller = executor.scheduleWithFixedDelay(this::poll, pollInterval, pollInterval,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * @return the number of pushes which are running
+     */
+    int getRunning() {
+        return running.size();
+    }
+
+    void poll() {
+        for (Iterator<TrackedPush<?>> iterator = running.iterator(); iterator.hasNext(); ) {
+            TrackedPush<?> push = iterator.next();
+            if (push.future.isDone()) {
+                iterator.remove();
+                push.complete();
+            }
+        }
+        synchronized (this) {
+            // Pushes tracked after this check start the poller again
+            if (running.isEmpty() && poller != null) {
+                poller.cancel(false);
+                poller = null;
+            }
+        }
+    }
+
+    /**
+     * @return the host of a mirror URL, for both URLs and scp-like {@code user@host:path} addresses
+     */
+    static String getHost(String url) {
+        try {
+            String host = new URI(url).getHost();
+            if (host != null) {
+                return host.toLowerCase(Locale.ROOT);
+            }
+        } catch (URISyntaxException e) {
+            // Fall through to scp-like addresses
+        }
+        int colon = url.indexOf(':');
+        if (colon > 0) {
+            return url.substring(url.lastIndexOf('@', colon) + 1, colon).toLowerCase(Locale.ROOT);
+        }
+        return url.toLowerCase(Locale.ROOT);
+    }
+
+    private static class TrackedPush<T> {
+
+        private final BiConsumer<T, RuntimeException> callback;
+        private final Future<T> future;
+
+        TrackedPush(Future<T> future, BiConsumer<T, RuntimeException> callback) {
+            this.callback = callback;
+            this.future = future;
+        }
+
+        void complete() {
+            T result = null;
+            RuntimeException error = null;
+            try {
+                result = future.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                error = cause instanceof RuntimeException ? (RuntimeException) cause :
+                        new IllegalStateException(cause);
+            } catch (CancellationException e) {
+                error = e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                error = new IllegalStateException("Interrupted while completing a push", e);
+            }
+
+            try {
+                callback.accept(result, error);
+            } catch (RuntimeException e) {
+                log.error("Failed to complete a push", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.project.Project;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.scm.CommandErrorHandler;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.atlassian.sal.api.lifecycle.LifecycleAware;
+import com.atlassian.utils.process.ProcessException;
+import com.atlassian.utils.process.Watchdog;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import static com.englishtown.bitbucket.hook.MirrorRepositoryHook.PROP_PREFIX;
+
+/**
+ * Tracks the pushes in flight on this node, and cancels the git process of any push which has made no progress for
+ * the configured stall timeout. Progress is output on stderr, where git reports its progress while pushing, so a
+ * push which is still transferring data is never killed however long it takes.
+ * <p>
+ * The execution and idle timeouts of the process engine still apply. The watchdog catches remotes which accept the
+ * connection and then stall sooner, so the push is retried, and it lists the in-flight pushes for operators.
+ */
+public class MirrorPushWatchdog implements LifecycleAware {
+
+    static final String PROP_STALL_TIMEOUT = PROP_PREFIX + "stall.timeout";
+
+    private static final Logger log = LoggerFactory.getLogger(MirrorPushWatchdog.class);
+
+    private final LongSupplier clock;
+    private final ScheduledExecutorService executor;
+    private final AtomicLong nextId = new AtomicLong();
+    private final ConcurrentMap<Long, InFlightPush> pushes = new ConcurrentHashMap<>();
+    private final long stallTimeout;
+    private ScheduledFuture<?> checker;
+
+    public MirrorPushWatchdog(ApplicationPropertiesService propertiesService,
+                              ScheduledExecutorService executorService) {
+        this(propertiesService, executorService, System::currentTimeMillis);
+    }
+
+    MirrorPushWatchdog(ApplicationPropertiesService propertiesService, ScheduledExecutorService executor,
+                       LongSupplier clock) {
+        this.clock = clock;
+        this.executor = executor;
+
+        // In seconds, 0 to only track pushes without killing them
+        stallTimeout = TimeUnit.SECONDS.toMillis(Math.max(0L,
+                propertiesService.getPluginProperty(PROP_STALL_TIMEOUT, 30L)));
+    }
+
+    @Override
+    public synchronized void onStart() {
+        if (stallTimeout == 0L || checker != null) {
+            return;
+        }
+        long interval = Math.max(100L, stallTimeout / 4L);
+        checker = executor.scheduleWithFixedDelay(() -> {
+            try {
+                check();
+            } catch (RuntimeException e) {
+                log.warn("Failed to check for stalled pushes", e);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void onStop() {
+        if (checker != null) {
+            checker.cancel(false);
+            checker = null;
+        }
+    }
+
+    /**
+     * Cancels the git process of every push which has made no progress for the stall timeout
+     */
+    void check() {
+        long now = clock.getAsLong();
+        for (InFlightPush push : pushes.values()) {
+            if (push.isStalled(now, stallTimeout)) {
+                log.warn("{}: Killing the push to {}, which made no progress for {}s while {}", push.repository,
+                        push.mirrorUrl, TimeUnit.MILLISECONDS.toSeconds(now - push.lastActivity),
+                        push.phase.getDescription());
+                push.kill();
+            }
+        }
+    }
+
+    /**
+     * Cancels the pushes to a mirror, or to every mirror, of a repository, killing their git command if one is
+     * running or as soon as one starts
+     *
+     * @param mirrorUrl the URL of the mirror, or {@code null} for every mirror of the repository
+     */
+    void cancel(int repositoryId, @Nullable String mirrorUrl) {
+        for (InFlightPush push : pushes.values()) {
+            if (push.repositoryId == repositoryId && (mirrorUrl == null || mirrorUrl.equals(push.mirrorUrl))) {
+                log.info("{}: Cancelling the push to {}", push.repository, push.mirrorUrl);
+                push.cancel();
+            }
+        }
+    }
+
+    /**
+     * @return the pushes in flight on this node, oldest first
+     */
+    List<InFlightPush> getInFlight() {
+        List<InFlightPush> results = new ArrayList<>(pushes.values());
+        results.sort(Comparator.comparingLong(InFlightPush::getStarted).thenComparingLong(push -> push.id));
+        return results;
+    }
+
+    /**
+     * @return the stall timeout in milliseconds, or {@code 0} if stalled pushes are not killed
+     */
+    long getStallTimeout() {
+        return stallTimeout;
+    }
+
+    /**
+     * Starts tracking a push, which must be {@link InFlightPush#close() closed} once it completes
+     */
+    InFlightPush track(Repository repository, String mirrorUrl) {
+        InFlightPush push = new InFlightPush(nextId.incrementAndGet(), repository, mirrorUrl, clock.getAsLong());
+        pushes.put(push.id, push);
+        return push;
+    }
+
+    /**
+     * What an in-flight push is doing
+     */
+    enum Phase {
+
+        PREPARING("preparing"),
+        UPLOADING_LFS("uploading LFS objects"),
+        PUSHING_BATCHES("pushing batches of refs"),
+        PUSHING("pushing");
+
+        private final String description;
+
+        Phase(String description) {
+            this.description = description;
+        }
+
+        String getDescription() {
+            return description;
+        }
+    }
+
+    /**
+     * A push which is in flight. Its progress is recorded by the {@link #watch(CommandErrorHandler) watched} error
+     * handlers of its git commands.
+     */
+    class InFlightPush {
+
+        private final AtomicLong bytes = new AtomicLong();
+        private final long id;
+        private final String mirrorUrl;
+        private final String repository;
+        private final int repositoryId;
+        private final long started;
+        private volatile boolean cancelled;
+        private volatile boolean killed;
+        private volatile long lastActivity;
+        private volatile Phase phase = Phase.PREPARING;
+        // The process of the git command which is running, if any
+        private volatile Watchdog process;
+
+        private InFlightPush(long id, Repository repository, String mirrorUrl, long started) {
+            this.id = id;
+            this.mirrorUrl = mirrorUrl;
+            this.started = started;
+
+            Project project = repository.getProject();
+            this.repository = project == null ? repository.getSlug() : project.getKey() + "/" + repository.getSlug();
+            repositoryId = repository.getId();
+            lastActivity = started;
+        }
+
+        void close() {
+            pushes.remove(id);
+        }
+
+        /**
+         * @return the number of bytes of progress output seen
+         */
+        long getBytes() {
+            return bytes.get();
+        }
+
+        long getLastActivity() {
+            return lastActivity;
+        }
+
+        String getMirrorUrl() {
+            return mirrorUrl;
+        }
+
+        Phase getPhase() {
+            return phase;
+        }
+
+        /**
+         * @return the project key and slug of the repository
+         */
+        String getRepository() {
+            return repository;
+        }
+
+        int getRepositoryId() {
+            return repositoryId;
+        }
+
+        long getStarted() {
+            return started;
+        }
+
+        /**
+         * @return {@code true} if the push was {@link MirrorPushWatchdog#cancel(int, String) cancelled}
+         */
+        boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * @return {@code true} if the watchdog killed the push for making no progress
+         */
+        boolean isKilled() {
+            return killed;
+        }
+
+        void setPhase(Phase phase) {
+            this.phase = phase;
+            lastActivity = clock.getAsLong();
+        }
+
+        /**
+         * Wraps the error handler of a git command of the push, so its output counts as progress and the watchdog
+         * can cancel the command
+         */
+        CommandErrorHandler watch(CommandErrorHandler handler) {
+            return new ProgressHandler(this, handler);
+        }
+
+        private boolean isStalled(long now, long timeout) {
+            return timeout > 0L && process != null && !killed && !cancelled && now - lastActivity >= timeout;
+        }
+
+        private void cancel() {
+            cancelled = true;
+            Watchdog current = process;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+
+        private void kill() {
+            Watchdog current = process;
+            if (current != null) {
+                killed = true;
+                current.cancel();
+            }
+        }
+
+        private void onProgress(int read) {
+            if (read > 0) {
+                bytes.addAndGet(read);
+            }
+            lastActivity = clock.getAsLong();
+        }
+
+        private void onStarted(Watchdog watchdog) {
+            lastActivity = clock.getAsLong();
+            process = watchdog;
+            if (cancelled) {
+                watchdog.cancel();
+            }
+        }
+
+        private void onCompleted() {
+            process = null;
+            lastActivity = clock.getAsLong();
+        }
+    }
+
+    private static class ProgressHandler implements CommandErrorHandler {
+
+        private final CommandErrorHandler delegate;
+        private final InFlightPush push;
+
+        ProgressHandler(InFlightPush push, CommandErrorHandler delegate) {
+            this.delegate = delegate;
+            this.push = push;
+        }
+
+        @Override
+        public void complete() throws ProcessException {
+            push.onCompleted();
+            delegate.complete();
+        }
+
+        @Override
+        public void process(InputStream input) throws ProcessException {
+            delegate.process(new FilterInputStream(input) {
+                @Override
+                public int read() throws IOException {
+                    int read = super.read();
+                    push.onProgress(read == -1 ? 0 : 1);
+                    return read;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int read = super.read(b, off, len);
+                    push.onProgress(read);
+                    return read;
+                }
+            });
+        }
+
+        @Override
+        public void setWatchdog(Watchdog watchdog) {
+            push.onStarted(watchdog);
+            delegate.setWatchdog(watchdog);
+        }
+    }
+}
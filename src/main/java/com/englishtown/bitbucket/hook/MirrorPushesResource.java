@@ -0,0 +1,76 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.permission.PermissionService;
+import com.englishtown.bitbucket.hook.MirrorPushWatchdog.InFlightPush;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * REST resource for the pushes in flight on this node, available to system administrators, e.g. to find pushes which
+ * are stuck on a slow mirror
+ */
+@Path("/pushes")
+@Produces(MediaType.APPLICATION_JSON)
+public class MirrorPushesResource {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final PermissionService permissionService;
+    private final MirrorPushWatchdog pushWatchdog;
+
+    public MirrorPushesResource(PermissionService permissionService, MirrorPushWatchdog pushWatchdog) {
+        this.permissionService = permissionService;
+        this.pushWatchdog = pushWatchdog;
+    }
+
+    /**
+     * @return the pushes in flight, oldest first, with their phase, how long they have been running and how long
+     * since they last made progress, in milliseconds
+     */
+    @GET
+    public Response getInFlight() {
+        if (!permissionService.hasGlobalPermission(Permission.SYS_ADMIN)) {
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+
+        List<InFlightPush> pushes = pushWatchdog.getInFlight();
+        long now = System.currentTimeMillis();
+        StreamingOutput output = stream -> {
+            JsonGenerator json = JSON_FACTORY.createJsonGenerator(stream, JsonEncoding.UTF8);
+            writePushes(json, pushes, now);
+            json.flush();
+        };
+        return Response.ok(output).build();
+    }
+
+    static void writePushes(JsonGenerator json, List<InFlightPush> pushes, long now) throws IOException {
+        json.writeStartObject();
+        json.writeArrayFieldStart("values");
+        for (InFlightPush push : pushes) {
+            json.writeStartObject();
+            json.writeNumberField("repositoryId", push.getRepositoryId());
+            json.writeStringField("repository", push.getRepository());
+            json.writeStringField("mirrorRepoUrl", push.getMirrorUrl());
+            json.writeStringField("phase", push.getPhase().name().toLowerCase(Locale.ROOT));
+            json.writeNumberField("started", push.getStarted());
+            json.writeNumberField("elapsed", Math.max(0L, now - push.getStarted()));
+            json.writeNumberField("idle", Math.max(0L, now - push.getLastActivity()));
+            json.writeNumberField("progressBytes", push.getBytes());
+            json.writeEndObject();
+        }
+        json.writeEndArray();
+        json.writeEndObject();
+    }
+}
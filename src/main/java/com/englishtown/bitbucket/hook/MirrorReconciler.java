@@ -0,0 +1,202 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.concurrent.BucketProcessor;
+import com.atlassian.bitbucket.concurrent.BucketedExecutor;
+import com.atlassian.bitbucket.concurrent.BucketedExecutorSettings;
+import com.atlassian.bitbucket.concurrent.ConcurrencyPolicy;
+import com.atlassian.bitbucket.concurrent.ConcurrencyService;
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.repository.RepositoryService;
+import com.atlassian.bitbucket.scm.git.GitScm;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.bitbucket.util.Page;
+import com.atlassian.bitbucket.util.PageRequestImpl;
+import com.atlassian.sal.api.lifecycle.LifecycleAware;
+import com.atlassian.sal.api.pluginsettings.PluginSettings;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import com.atlassian.scheduler.JobRunner;
+import com.atlassian.scheduler.JobRunnerRequest;
+import com.atlassian.scheduler.JobRunnerResponse;
+import com.atlassian.scheduler.SchedulerService;
+import com.atlassian.scheduler.SchedulerServiceException;
+import com.atlassian.scheduler.config.JobConfig;
+import com.atlassian.scheduler.config.JobId;
+import com.atlassian.scheduler.config.JobRunnerKey;
+import com.atlassian.scheduler.config.RunMode;
+import com.atlassian.scheduler.config.Schedule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.englishtown.bitbucket.hook.DefaultPasswordEncryptor.PLUGIN_SETTINGS_KEY;
+
+/**
+ * Periodically compares the refs of each mirrored repository with the refs advertised by its mirrors, and schedules
+ * pushes for any mirror which has drifted, e.g. because every retry failed or the mirror was written to directly.
+ * <p>
+ * Each run checks the next page of repositories, continuing where the previous run stopped, so the cost of a run is
+ * bounded regardless of the number of repositories. The {@code git ls-remote} checks run on a bucketed executor
+ * limited to a configured number of threads.
+ */
+public class MirrorReconciler implements BucketProcessor<MirrorRequest>, JobRunner, LifecycleAware {
+
+    static final String PROP_PREFIX = "plugin.com.englishtown.stash-hook-mirror.reconcile.";
+    static final String PROP_INTERVAL = PROP_PREFIX + "interval";
+    static final String PROP_PAGE_SIZE = PROP_PREFIX + "page.size";
+    static final String PROP_THREADS = PROP_PREFIX + "threads";
+    static final String SETTINGS_CURSOR = "reconcile.cursor";
+
+    private static final JobId JOB_ID = JobId.of(MirrorReconciler.class.getName());
+    private static final JobRunnerKey JOB_RUNNER_KEY = JobRunnerKey.of(MirrorReconciler.class.getName());
+
+    private static final Logger log = LoggerFactory.getLogger(MirrorReconciler.class);
+
+    private final MirrorRepositoryHook mirrorRepositoryHook;
+    private final MirrorBucketProcessor pushProcessor;
+    private final PluginSettingsFactory pluginSettingsFactory;
+    private final RepositoryService repositoryService;
+    private final SchedulerService schedulerService;
+    private final SecurityService securityService;
+    private final BucketedExecutor<MirrorRequest> reconcileExecutor;
+    private final long interval;
+    private final int pageSize;
+
+    public MirrorReconciler(ApplicationPropertiesService propertiesService, ConcurrencyService concurrencyService,
+                            MirrorRepositoryHook mirrorRepositoryHook, MirrorBucketProcessor pushProcessor,
+                            PluginSettingsFactory pluginSettingsFactory, RepositoryService repositoryService,
+                            SchedulerService schedulerService, SecurityService securityService) {
+        this.mirrorRepositoryHook = mirrorRepositoryHook;
+        this.pushProcessor = pushProcessor;
+        this.pluginSettingsFactory = pluginSettingsFactory;
+        this.repositoryService = repositoryService;
+        this.schedulerService = schedulerService;
+        this.securityService = securityService;
+
+        interval = TimeUnit.MINUTES.toMillis(propertiesService.getPluginProperty(PROP_INTERVAL, 60L));
+        pageSize = Math.max(1, propertiesService.getPluginProperty(PROP_PAGE_SIZE, 500));
+        int threads = propertiesService.getPluginProperty(PROP_THREADS, 2);
+
+        reconcileExecutor = concurrencyService.getBucketedExecutor(getClass().getSimpleName(),
+                new BucketedExecutorSettings.Builder<>(MirrorRequest::toString, this)
+                        .batchSize(Integer.MAX_VALUE) // Coalesce all requests into a single check
+                        .maxAttempts(1) // The next cycle checks again
+                        .maxConcurrency(threads, ConcurrencyPolicy.PER_NODE)
+                        .build());
+    }
+
+    @Override
+    public void onStart() {
+        if (interval <= 0) {
+            log.debug("Mirror reconciliation is disabled");
+            return;
+        }
+
+        schedulerService.registerJobRunner(JOB_RUNNER_KEY, this);
+        try {
+            schedulerService.scheduleJob(JOB_ID, JobConfig.forJobRunnerKey(JOB_RUNNER_KEY)
+                    .withRunMode(RunMode.RUN_ONCE_PER_CLUSTER)
+                    .withSchedule(Schedule.forInterval(interval, new Date(System.currentTimeMillis() + interval))));
+        } catch (SchedulerServiceException e) {
+            log.error("Failed to schedule mirror reconciliation", e);
+        }
+    }
+
+    @Override
+    public void onStop() {
+        schedulerService.unregisterJobRunner(JOB_RUNNER_KEY);
+    }
+
+    /**
+     * Checks the next page of repositories, wrapping around to the first page after the last one
+     */
+    @Nullable
+    @Override
+    public JobRunnerResponse runJob(@Nonnull JobRunnerRequest request) {
+        PluginSettings pluginSettings = pluginSettingsFactory.createSettingsForKey(PLUGIN_SETTINGS_KEY);
+        int start = getCursor(pluginSettings);
+
+        int[] checked = {0};
+        Page<Repository> page = securityService.withPermission(Permission.REPO_READ, "Reconcile mirrors")
+                .call(() -> {
+                    Page<Repository> repositories = repositoryService.findAll(new PageRequestImpl(start, pageSize));
+                    for (Repository repository : repositories.getValues()) {
+                        checked[0] += submit(repository);
+                    }
+                    return repositories;
+                });
+
+        int next = page.getIsLastPage() ? 0 : start + page.getSize();
+        pluginSettings.put(SETTINGS_CURSOR, String.valueOf(next));
+
+        return JobRunnerResponse.success("Checking " + checked[0] + " mirror(s) of " + page.getSize() +
+                " repositories from " + start);
+    }
+
+    /**
+     * Compares the repository with a single mirror, scheduling a push if they differ
+     */
+    @Override
+    public void process(@Nonnull String key, @Nonnull List<MirrorRequest> requests) {
+        if (requests.isEmpty()) {
+            return;
+        }
+        MirrorRequest request = requests.get(requests.size() - 1);
+        MirrorSettings settings = request.getSettings();
+
+        securityService.withPermission(Permission.REPO_READ, "Reconcile mirror")
+                .call(() -> {
+                    Repository repository = repositoryService.getById(request.getRepositoryId());
+                    if (repository == null || repositoryService.isEmpty(repository)) {
+                        return null;
+                    }
+
+                    try {
+                        if (!pushProcessor.isInSync(settings, repository)) {
+                            log.info("{}: Mirror has drifted from the repository; scheduling a push", repository);
+                            mirrorRepositoryHook.schedulePushes(repository, Collections.singletonList(settings));
+                        }
+                    } catch (RuntimeException e) {
+                        // Schedule a push anyway; it reports whatever is wrong with the mirror
+                        log.warn("{}: Failed to compare with mirror; scheduling a push", repository, e);
+                        mirrorRepositoryHook.schedulePushes(repository, Collections.singletonList(settings));
+                    }
+                    return null;
+                });
+    }
+
+    private int submit(Repository repository) {
+        if (!GitScm.ID.equalsIgnoreCase(repository.getScmId())) {
+            return 0;
+        }
+
+        int submitted = 0;
+        for (MirrorSettings settings : mirrorRepositoryHook.getMirrorSettings(repository)) {
+            // Mirrors which are fetched from are reconciled by polling them
+            if (!settings.isFetch()) {
+                reconcileExecutor.submit(new MirrorRequest(repository, settings));
+                ++submitted;
+            }
+        }
+        return submitted;
+    }
+
+    private static int getCursor(PluginSettings pluginSettings) {
+        Object value = pluginSettings.get(SETTINGS_CURSOR);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(value.toString()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
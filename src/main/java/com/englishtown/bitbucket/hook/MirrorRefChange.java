@@ -0,0 +1,49 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.RefChangeType;
+
+import java.io.Serializable;
+
+/**
+ * A serializable copy of a {@link RefChange}, carried by {@link MirrorRequest MirrorRequests}
+ */
+class MirrorRefChange implements Serializable {
+
+    private final String refId;
+    private final String fromHash;
+    private final String toHash;
+    private final RefChangeType type;
+
+    MirrorRefChange(RefChange refChange) {
+        this(refChange.getRef().getId(), refChange.getFromHash(), refChange.getToHash(), refChange.getType());
+    }
+
+    MirrorRefChange(String refId, String fromHash, String toHash, RefChangeType type) {
+        this.refId = refId;
+        this.fromHash = fromHash;
+        this.toHash = toHash;
+        this.type = type;
+    }
+
+    String getRefId() {
+        return refId;
+    }
+
+    String getFromHash() {
+        return fromHash;
+    }
+
+    String getToHash() {
+        return toHash;
+    }
+
+    RefChangeType getType() {
+        return type;
+    }
+
+    @Override
+    public String toString() {
+        return refId + ": " + fromHash + " -> " + toHash + " (" + type + ")";
+    }
+}
@@ -4,16 +4,30 @@ import com.atlassian.bitbucket.concurrent.BucketedExecutor;
 import com.atlassian.bitbucket.concurrent.BucketedExecutorSettings;
 import com.atlassian.bitbucket.concurrent.ConcurrencyPolicy;
 import com.atlassian.bitbucket.concurrent.ConcurrencyService;
+import com.atlassian.bitbucket.event.hook.RepositoryHookSettingsChangedEvent;
+import com.atlassian.bitbucket.event.repository.RepositoryDeletedEvent;
+import com.atlassian.bitbucket.event.repository.RepositoryModifiedEvent;
+import com.atlassian.bitbucket.event.repository.RepositoryRefsChangedEvent;
 import com.atlassian.bitbucket.hook.repository.*;
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.project.Project;
 import com.atlassian.bitbucket.repository.Repository;
 import com.atlassian.bitbucket.scm.git.GitScm;
+import com.atlassian.bitbucket.scope.ProjectScope;
 import com.atlassian.bitbucket.scope.RepositoryScope;
 import com.atlassian.bitbucket.scope.Scope;
 import com.atlassian.bitbucket.scope.ScopeVisitor;
+import com.atlassian.bitbucket.scope.Scopes;
 import com.atlassian.bitbucket.server.ApplicationPropertiesService;
 import com.atlassian.bitbucket.setting.Settings;
 import com.atlassian.bitbucket.setting.SettingsValidationErrors;
 import com.atlassian.bitbucket.setting.SettingsValidator;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.event.api.EventListener;
+import com.englishtown.bitbucket.hook.MirrorEventDispatcher.MirrorEvent;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,13 +35,23 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nonnull;
 import java.net.URI;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 public class MirrorRepositoryHook implements PostRepositoryHook<RepositoryHookRequest>, SettingsValidator {
 
+    static final String HOOK_KEY = "com.englishtown.stash-hook-mirror:mirror-repository-hook";
     static final String PROP_PREFIX = "plugin.com.englishtown.stash-hook-mirror.push.";
     static final String PROP_ATTEMPTS = PROP_PREFIX + "attempts";
+    static final String PROP_DISPATCH_BATCH_SIZE = PROP_PREFIX + "dispatch.batch.size";
+    static final String PROP_SETTINGS_CACHE_TTL = PROP_PREFIX + "settings.cache.ttl";
     static final String PROP_THREADS = PROP_PREFIX + "threads";
+    static final String PROP_GLOBAL_PREFIX = "plugin.com.englishtown.stash-hook-mirror.global.";
     static final String SETTING_MIRROR_REPO_URL = "mirrorRepoUrl";
     static final String SETTING_USERNAME = "username";
     static final String SETTING_PASSWORD = "password";
@@ -35,33 +59,86 @@ public class MirrorRepositoryHook implements PostRepositoryHook<RepositoryHookRe
     static final String SETTING_TAGS = "tags";
     static final String SETTING_NOTES = "notes";
     static final String SETTING_ATOMIC = "atomic";
+    static final String SETTING_DIRECTION = "direction";
+    static final String SETTING_CREDENTIAL_TYPE = "credentialType";
+    static final String SETTING_CREDENTIAL_SOURCE = "credentialSource";
+    static final String SETTING_OFF_PEAK_WINDOW = "offPeakWindow";
+    static final String SETTING_BANDWIDTH_LIMIT = "bandwidthLimit";
+    static final String SETTING_IGNORED_TRIGGERS = "ignoredTriggers";
 
     /**
-     * Trigger types that don't cause a mirror to happen
+     * Trigger types that don't cause a mirror to happen. Each mirror may ignore more, see
+     * {@link MirrorSettings#ignoredTriggers}
      */
     private static Set<RepositoryHookTrigger> TRIGGERS_TO_IGNORE =
             ImmutableSet.of(
                     StandardRepositoryHookTrigger.UNKNOWN
             );
 
-    private final PasswordEncryptor passwordEncryptor;
-    private final SettingsReflectionHelper settingsReflectionHelper;
+    private final MirrorCredentialSources credentialSources;
+    private final MirrorCredentialStore credentialStore;
+    private final MirrorEventDispatcher eventDispatcher;
+    private final MirrorFetchSchedules fetchSchedules;
+    private final MirrorOutbox outbox;
+    private final MirrorPauseService pauseService;
+    private final MirrorBucketProcessor pushProcessor;
+    private final RepositoryHookService repositoryHookService;
+    private final SecurityService securityService;
+    private final MirrorStatusIndex statusIndex;
     private final BucketedExecutor<MirrorRequest> pushExecutor;
+    private final Cache<Integer, List<MirrorSettings>> configuredMirrors;
+    private final MirrorSettings globalSettings;
+    // Set while the settings are rewritten to move passwords to the credential store, which should not push to the
+    // mirrors since nothing else changed
+    private final ThreadLocal<Boolean> rewriting = new ThreadLocal<>();
+    // The references to the passwords stored by validate, per scope, until the settings have been saved
+    private final ConcurrentMap<String, List<String>> pendingReferences = new ConcurrentHashMap<>();
 
     private static final Logger logger = LoggerFactory.getLogger(MirrorRepositoryHook.class);
 
     public MirrorRepositoryHook(ConcurrencyService concurrencyService,
-                                PasswordEncryptor passwordEncryptor,
+                                MirrorCredentialStore credentialStore,
                                 ApplicationPropertiesService propertiesService,
                                 MirrorBucketProcessor pushProcessor,
-                                SettingsReflectionHelper settingsReflectionHelper) {
+                                MirrorOutbox outbox,
+                                RepositoryHookService repositoryHookService,
+                                SecurityService securityService,
+                                ScheduledExecutorService executorService,
+                                MirrorStatusIndex statusIndex,
+                                MirrorPauseService pauseService,
+                                MirrorFetchSchedules fetchSchedules) {
         logger.debug("MirrorRepositoryHook: init started");
 
-        this.passwordEncryptor = passwordEncryptor;
-        this.settingsReflectionHelper = settingsReflectionHelper;
+        this.credentialStore = credentialStore;
+        this.fetchSchedules = fetchSchedules;
+        this.outbox = outbox;
+        this.pauseService = pauseService;
+        this.pushProcessor = pushProcessor;
+        this.repositoryHookService = repositoryHookService;
+        this.securityService = securityService;
+        this.statusIndex = statusIndex;
+
+        credentialSources = new MirrorCredentialSources(propertiesService);
 
         int attempts = propertiesService.getPluginProperty(PROP_ATTEMPTS, 5);
         int threads = propertiesService.getPluginProperty(PROP_THREADS, 3);
+        if (propertiesService.getPluginProperty(MirrorConcurrencyLimiter.PROP_ADAPTIVE, false)) {
+            // The MirrorConcurrencyLimiter decides how many of the threads push at once
+            threads = Math.max(threads, propertiesService.getPluginProperty(MirrorConcurrencyLimiter.PROP_ADAPTIVE_MAX,
+                    threads));
+        }
+        int dispatchBatchSize = propertiesService.getPluginProperty(PROP_DISPATCH_BATCH_SIZE, 100);
+        long cacheTtl = Math.max(0L, propertiesService.getPluginProperty(PROP_SETTINGS_CACHE_TTL, 60L));
+
+        // Resolved settings are cached per repository, and dropped when settings are saved on this node. Other
+        // nodes pick up changes once their entries expire
+        configuredMirrors = CacheBuilder.newBuilder()
+                .expireAfterWrite(cacheTtl, TimeUnit.SECONDS)
+                .maximumSize(cacheTtl > 0L ? 10_000L : 0L)
+                .build();
+        globalSettings = getGlobalSettings(propertiesService);
+
+        eventDispatcher = new MirrorEventDispatcher(executorService, dispatchBatchSize, this::dispatchEvents);
 
         pushExecutor = concurrencyService.getBucketedExecutor(getClass().getSimpleName(),
                 new BucketedExecutorSettings.Builder<>(MirrorRequest::toString, pushProcessor)
@@ -69,12 +146,15 @@ public class MirrorRepositoryHook implements PostRepositoryHook<RepositoryHookRe
                         .maxAttempts(attempts)
                         .maxConcurrency(threads, ConcurrencyPolicy.PER_NODE)
                         .build());
+        // Pushes which are deferred to an off-peak window, or by a bandwidth limit, are rescheduled on the executor
+        pushProcessor.setPushExecutor(pushExecutor);
 
         logger.debug("MirrorRepositoryHook: init completed");
     }
 
     /**
-     * Schedules pushes to apply the latest changes to any configured mirrors.
+     * Queues the update to be mirrored. Resolving the configured mirrors and scheduling pushes to them happens on a
+     * background thread, so the only cost on the thread which updated the repository is queueing a single event.
      *
      * @param context provides hook settings and a way to obtain the commits added/removed
      * @param request provides details about the refs that have been updated
@@ -91,18 +171,14 @@ public class MirrorRepositoryHook implements PostRepositoryHook<RepositoryHookRe
             return;
         }
 
-        List<MirrorSettings> mirrorSettings = getMirrorSettings(context.getSettings());
-        if (mirrorSettings.isEmpty()) {
-            logger.debug("{}: Mirroring is not configured", repository);
-        } else {
-            logger.debug("{}: Scheduling pushes for {} remote(s) after {}",
-                    repository, mirrorSettings.size(), request.getTrigger());
-            schedulePushes(repository, mirrorSettings);
-        }
+        eventDispatcher.dispatch(new MirrorEvent(repository, context.getSettings(), request.getTrigger(),
+                request.getRefChanges()));
     }
 
     /**
-     * Validate the given {@code settings} before they are persisted., and encrypts any user-supplied password.
+     * Validate the given {@code settings} before they are persisted, and moves any user-supplied password to the
+     * {@link MirrorCredentialStore}, so only a reference to it is pushed with. The saved settings are rewritten with
+     * the references once they have been saved, see {@link #onSettingsChanged}.
      *
      * @param settings to be validated
      * @param errors   callback for reporting validation errors.
@@ -117,7 +193,14 @@ public class MirrorRepositoryHook implements PostRepositoryHook<RepositoryHookRe
                 return scope.getRepository();
             }
         });
-        if (repository == null) {
+        Project project = scope.accept(new ScopeVisitor<Project>() {
+
+            @Override
+            public Project visit(@Nonnull ProjectScope scope) {
+                return scope.getProject();
+            }
+        });
+        if (repository == null && project == null) {
             return;
         }
 
@@ -130,12 +213,36 @@ public class MirrorRepositoryHook implements PostRepositoryHook<RepositoryHookRe
                 if (!validate(ms, errors)) {
                     ok = false;
                 }
+                if (repository == null && !validateForProject(ms, errors)) {
+                    ok = false;
+                }
             }
 
-            // If no errors, run the mirror command
             if (ok) {
-                updateSettings(mirrorSettings, settings);
-                schedulePushes(repository, mirrorSettings);
+                storePasswords(scope, mirrorSettings);
+            }
+
+            if (ok && repository == null) {
+                // Every repository of the project may inherit the settings
+                configuredMirrors.invalidateAll();
+                logger.debug("{}: Updated the mirrors of the project", project.getKey());
+            } else if (ok) {
+                // If no errors, run the mirror command
+                configuredMirrors.invalidate(repository.getId());
+                statusIndex.retain(repository.getId(), mirrorSettings.stream()
+                        .map(ms -> ms.mirrorRepoUrl)
+                        .collect(Collectors.toList()));
+
+                List<String> fetchUrls = mirrorSettings.stream()
+                        .filter(MirrorSettings::isFetch)
+                        .map(ms -> ms.mirrorRepoUrl)
+                        .collect(Collectors.toList());
+                fetchSchedules.retain(repository.getId(), fetchUrls);
+                fetchUrls.forEach(url -> fetchSchedules.register(repository.getId(), url));
+
+                if (rewriting.get() == null) {
+                    schedulePushes(repository, expand(mirrorSettings, repository));
+                }
             }
         } catch (Exception e) {
             logger.error("Error running MirrorRepositoryHook validate.", e);
@@ -143,6 +250,399 @@ public class MirrorRepositoryHook implements PostRepositoryHook<RepositoryHookRe
         }
     }
 
+    /**
+     * Retrieves the mirrors of a repository: those configured for the repository or inherited from its project, if
+     * the hook is enabled, followed by the global mirror, if one is configured. URL templates are expanded for the
+     * repository.
+     *
+     * @param repository the repository
+     * @return the mirrors, or an empty list if the hook is not enabled or not configured and there is no global mirror
+     */
+    List<MirrorSettings> getMirrorSettings(Repository repository) {
+        return withGlobal(getConfiguredMirrors(repository.getId(), () -> readMirrorSettings(repository)), repository);
+    }
+
+    /**
+     * @return the mirrors followed by the global mirror, expanded for the repository, if one is configured
+     */
+    private List<MirrorSettings> withGlobal(List<MirrorSettings> configured, Repository repository) {
+        if (globalSettings == null) {
+            return configured;
+        }
+
+        List<MirrorSettings> mirrors = new ArrayList<>(configured);
+        mirrors.add(globalSettings.withUrl(MirrorUrlTemplate.expand(globalSettings.mirrorRepoUrl, repository)));
+        return mirrors;
+    }
+
+    /**
+     * @return {@code true} if the repository was renamed or moved to another project, which changes the URLs of
+     * mirrors which are templates
+     */
+    private static boolean isMoved(Repository oldRepository, Repository repository) {
+        Project oldProject = oldRepository.getProject();
+        Project project = repository.getProject();
+        return !Objects.equals(oldRepository.getSlug(), repository.getSlug()) ||
+                !Objects.equals(oldProject == null ? null : oldProject.getKey(),
+                        project == null ? null : project.getKey());
+    }
+
+    /**
+     * Schedules pushes to the global mirror, if one is configured, whenever any Git repository's refs change,
+     * whether or not the hook is enabled for it
+     */
+    @EventListener
+    public void onRefsChanged(RepositoryRefsChangedEvent event) {
+        Repository repository = event.getRepository();
+        if (globalSettings == null || !GitScm.ID.equalsIgnoreCase(repository.getScmId()) ||
+                // The MirrorFetchScheduler pushes fetched changes to every mirror, including the global mirror
+                event instanceof MirrorFetchedEvent) {
+            return;
+        }
+
+        List<MirrorRefChange> refChanges = new ArrayList<>();
+        event.getRefChanges().forEach(refChange -> refChanges.add(new MirrorRefChange(refChange)));
+        schedulePushes(repository, Collections.singletonList(
+                globalSettings.withUrl(MirrorUrlTemplate.expand(globalSettings.mirrorRepoUrl, repository))),
+                refChanges);
+    }
+
+    /**
+     * Cancels the pushes of a deleted repository and purges everything kept for its mirrors, rather than leaving
+     * each queued push and retry to find out that the repository is gone
+     */
+    @EventListener
+    public void onRepositoryDeleted(RepositoryDeletedEvent event) {
+        Repository repository = event.getRepository();
+        int repositoryId = repository.getId();
+
+        pushProcessor.cancel(repositoryId, null);
+        configuredMirrors.invalidate(repositoryId);
+        outbox.clearAll(repositoryId);
+        statusIndex.remove(repositoryId);
+        pauseService.clear(repositoryId);
+        fetchSchedules.clearAll(repositoryId);
+        credentialStore.retain(Scopes.repository(repository), Collections.emptyList());
+        logger.debug("{}: Cancelled the pushes of the deleted repository", repositoryId);
+    }
+
+    /**
+     * Follows a repository which was renamed or moved to another project with the mirrors whose URLs are templates.
+     * Pushes to the URLs the mirrors had before are cancelled and their state is purged, a paused mirror stays
+     * paused, and every ref is pushed to the new URLs in a single batch, since the mirrors there may be empty.
+     */
+    @EventListener
+    public void onRepositoryModified(RepositoryModifiedEvent event) {
+        Repository oldRepository = event.getOldValue();
+        Repository repository = event.getNewValue();
+        if (!GitScm.ID.equalsIgnoreCase(repository.getScmId()) || !isMoved(oldRepository, repository)) {
+            return;
+        }
+
+        int repositoryId = repository.getId();
+        configuredMirrors.invalidate(repositoryId);
+        List<MirrorSettings> configured = securityService.withPermission(Permission.REPO_ADMIN,
+                "Read mirror settings").call(() -> readConfiguredMirrors(repository));
+        List<MirrorSettings> mirrors = withGlobal(expand(configured, repository), repository);
+        List<MirrorSettings> oldMirrors = withGlobal(expand(configured, oldRepository), oldRepository);
+        Set<String> urls = mirrors.stream()
+                .map(ms -> ms.mirrorRepoUrl)
+                .collect(Collectors.toSet());
+
+        List<MirrorSettings> moved = new ArrayList<>();
+        for (int i = 0; i < mirrors.size(); i++) {
+            MirrorSettings ms = mirrors.get(i);
+            String oldUrl = oldMirrors.get(i).mirrorRepoUrl;
+            if (!urls.contains(oldUrl)) {
+                if (pauseService.isPaused(repositoryId, oldUrl)) {
+                    pauseService.pause(repositoryId, ms.mirrorRepoUrl);
+                }
+                if (!ms.isFetch()) {
+                    moved.add(ms);
+                }
+            }
+        }
+
+        // Also purge any other mirror which is tracked for the repository but is no longer configured
+        Set<String> oldUrls = new HashSet<>(statusIndex.getStatuses(repositoryId).keySet());
+        oldUrls.addAll(pauseService.getPaused(repositoryId));
+        oldMirrors.forEach(ms -> oldUrls.add(ms.mirrorRepoUrl));
+        oldUrls.removeAll(urls);
+        long now = System.currentTimeMillis();
+        for (String oldUrl : oldUrls) {
+            pushProcessor.cancel(repositoryId, oldUrl);
+            outbox.clear(repositoryId, oldUrl, now);
+            pauseService.resume(repositoryId, oldUrl);
+        }
+        statusIndex.retain(repositoryId, urls);
+        List<String> fetchUrls = mirrors.stream()
+                .filter(MirrorSettings::isFetch)
+                .map(ms -> ms.mirrorRepoUrl)
+                .collect(Collectors.toList());
+        fetchSchedules.retain(repositoryId, fetchUrls);
+        fetchUrls.forEach(url -> fetchSchedules.register(repositoryId, url));
+
+        if (!moved.isEmpty()) {
+            logger.info("{}: Pushing to {} mirror(s) at their new URLs", repository, moved.size());
+            schedulePushes(repository, moved);
+        }
+    }
+
+    /**
+     * Rewrites the saved hook settings as they were normalized by validate: the passwords are replaced with the
+     * references to the passwords stored while validating, and the credentials of mirrors which are not pushed to
+     * over http(s) are cleared. The stored passwords which are no longer referenced are then deleted. This waits for
+     * the settings to be saved, since the previous settings still reference the old passwords until then.
+     *
+     * @param event the event raised when the settings of a hook are saved
+     */
+    @EventListener
+    public void onSettingsChanged(RepositoryHookSettingsChangedEvent event) {
+        RepositoryHook hook = event.getRepositoryHook();
+        if (hook == null || !HOOK_KEY.equals(hook.getDetails().getKey()) || event.getSettings() == null) {
+            return;
+        }
+
+        Scope scope = event.getScope();
+        List<String> pending = pendingReferences.remove(DefaultMirrorCredentialStore.getScopeKey(scope));
+        Map<String, Object> values = new HashMap<>(event.getSettings().asMap());
+        boolean changed = false;
+        for (Map.Entry<String, Object> entry : event.getSettings().asMap().entrySet()) {
+            if (!entry.getKey().startsWith(SETTING_MIRROR_REPO_URL)) {
+                continue;
+            }
+
+            String suffix = entry.getKey().substring(SETTING_MIRROR_REPO_URL.length());
+            if (!isHttp(String.valueOf(entry.getValue()))) {
+                // Only http should have username or password
+                changed |= replace(values, SETTING_USERNAME + suffix, "") |
+                        replace(values, SETTING_PASSWORD + suffix, "") |
+                        replace(values, SETTING_CREDENTIAL_TYPE + suffix, MirrorSettings.CREDENTIALS_STATIC) |
+                        replace(values, SETTING_CREDENTIAL_SOURCE + suffix, "");
+                continue;
+            }
+
+            Object password = values.get(SETTING_PASSWORD + suffix);
+            if (password instanceof String && !((String) password).isEmpty() &&
+                    !credentialStore.isReference((String) password)) {
+                values.put(SETTING_PASSWORD + suffix, getReference(scope, (String) password, pending));
+                changed = true;
+            }
+        }
+
+        if (changed) {
+            securityService.withPermission(Permission.PROJECT_ADMIN, "Rewrite mirror settings")
+                    .call(() -> {
+                        setSettings(scope, values);
+                        return null;
+                    });
+        }
+
+        List<String> references = new ArrayList<>();
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            if (entry.getKey().startsWith(SETTING_PASSWORD) && entry.getValue() instanceof String &&
+                    credentialStore.isReference((String) entry.getValue())) {
+                references.add((String) entry.getValue());
+            }
+        }
+        credentialStore.retain(scope, references);
+    }
+
+    /**
+     * Moves passwords which are still in the hook settings of a repository, e.g. encrypted by an earlier version of
+     * the plugin, to the {@link MirrorCredentialStore}, and re-encrypts stored passwords which were encrypted with an
+     * older key
+     *
+     * @param repository the repository to re-encrypt the passwords of
+     * @return {@code true} if any password was moved or re-encrypted
+     */
+    boolean reencryptPasswords(Repository repository) {
+        Scope scope = Scopes.repository(repository);
+
+        return securityService.withPermission(Permission.REPO_ADMIN, "Re-encrypt mirror passwords")
+                .call(() -> {
+                    RepositoryHookSettings hookSettings = repositoryHookService.getSettings(
+                            new GetRepositoryHookSettingsRequest.Builder(scope, HOOK_KEY).build());
+                    boolean moved = hookSettings != null && migratePasswords(scope, hookSettings.getSettings());
+
+                    return credentialStore.reencrypt(scope) > 0 || moved;
+                });
+    }
+
+    /**
+     * Moves the passwords of the mirrors which are being validated to the store, before the settings are saved, and
+     * replaces them with the references to the stored passwords. The references are kept until the settings have been
+     * saved, so the saved settings can be rewritten with them.
+     */
+    private void storePasswords(Scope scope, List<MirrorSettings> mirrorSettings) {
+        List<String> references = new ArrayList<>();
+        for (MirrorSettings ms : mirrorSettings) {
+            if (!ms.password.isEmpty() && !credentialStore.isReference(ms.password)) {
+                ms.password = credentialStore.store(scope, ms.password);
+                references.add(ms.password);
+            }
+        }
+
+        String key = DefaultMirrorCredentialStore.getScopeKey(scope);
+        if (references.isEmpty()) {
+            pendingReferences.remove(key);
+        } else {
+            pendingReferences.put(key, references);
+        }
+    }
+
+    /**
+     * @return the reference to the password stored by validate, or to the password stored now if it was saved
+     * without being validated on this node
+     */
+    private String getReference(Scope scope, String password, List<String> pending) {
+        if (pending != null) {
+            for (String reference : pending) {
+                if (password.equals(credentialStore.resolve(reference))) {
+                    return reference;
+                }
+            }
+        }
+        return credentialStore.store(scope, password);
+    }
+
+    /**
+     * Replaces the value of the {@code key}, if it is set
+     *
+     * @return {@code true} if the value was replaced
+     */
+    private static boolean replace(Map<String, Object> values, String key, String value) {
+        if (!values.containsKey(key) || value.equals(values.get(key))) {
+            return false;
+        }
+        values.put(key, value);
+        return true;
+    }
+
+    /**
+     * Moves passwords which are still in persisted settings to the store, and rewrites the settings through the hook
+     * service with references to them, without pushing to the mirrors. The stored passwords which are no longer
+     * referenced are deleted once the settings are saved.
+     *
+     * @return {@code true} if any password was moved to the store
+     */
+    private boolean migratePasswords(Scope scope, Settings settings) {
+        Map<String, Object> values = new HashMap<>(settings.asMap());
+        if (!replacePasswords(scope, values)) {
+            return false;
+        }
+
+        setSettings(scope, values);
+        return true;
+    }
+
+    /**
+     * Rewrites the hook settings through the hook service, without pushing to the mirrors
+     */
+    private void setSettings(Scope scope, Map<String, Object> values) {
+        rewriting.set(Boolean.TRUE);
+        try {
+            repositoryHookService.setSettings(new SetRepositoryHookSettingsRequest.Builder(scope, HOOK_KEY)
+                    .settings(repositoryHookService.createSettingsBuilder().addAll(values).build())
+                    .build());
+        } finally {
+            rewriting.remove();
+        }
+    }
+
+    /**
+     * Stores the passwords in the values which are not references to stored passwords yet, and replaces them with
+     * the references
+     *
+     * @return {@code true} if any password was replaced
+     */
+    private boolean replacePasswords(Scope scope, Map<String, Object> values) {
+        boolean replaced = false;
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            if (entry.getKey().startsWith(SETTING_PASSWORD) && entry.getValue() instanceof String &&
+                    !((String) entry.getValue()).isEmpty() && !credentialStore.isReference((String) entry.getValue())) {
+                entry.setValue(credentialStore.store(scope, (String) entry.getValue()));
+                replaced = true;
+            }
+        }
+        return replaced;
+    }
+
+    private List<MirrorSettings> getConfiguredMirrors(int repositoryId, Callable<List<MirrorSettings>> loader) {
+        try {
+            return configuredMirrors.get(repositoryId, loader);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to read the mirror settings", e.getCause());
+        }
+    }
+
+    private List<MirrorSettings> readMirrorSettings(Repository repository) {
+        return securityService.withPermission(Permission.REPO_ADMIN, "Read mirror settings")
+                .call(() -> expand(readConfiguredMirrors(repository), repository));
+    }
+
+    /**
+     * @return the mirrors configured for the repository or inherited from its project, with their URL templates
+     * not yet expanded, or an empty list if the hook is not enabled or not configured
+     */
+    private List<MirrorSettings> readConfiguredMirrors(Repository repository) {
+        Scope scope = Scopes.repository(repository);
+        RepositoryHook hook = repositoryHookService.getByKey(scope, HOOK_KEY);
+        if (hook == null || !hook.isEnabled()) {
+            return Collections.emptyList();
+        }
+        RepositoryHookSettings hookSettings = repositoryHookService.getSettings(
+                new GetRepositoryHookSettingsRequest.Builder(scope, HOOK_KEY).build());
+        if (hookSettings == null) {
+            return Collections.emptyList();
+        }
+        return getMirrorSettings(hookSettings.getSettings());
+    }
+
+    private static List<MirrorSettings> expand(List<MirrorSettings> list, Repository repository) {
+        return list.stream()
+                .map(ms -> ms.withUrl(MirrorUrlTemplate.expand(ms.mirrorRepoUrl, repository)))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Reads the global mirror from the application properties, e.g.
+     * {@code plugin.com.englishtown.stash-hook-mirror.global.url=https://backup.example.com/scm/{project}/{repo}.git}
+     */
+    private static MirrorSettings getGlobalSettings(ApplicationPropertiesService propertiesService) {
+        String url = propertiesService.getPluginProperty(PROP_GLOBAL_PREFIX + "url");
+        if (Strings.isNullOrEmpty(url)) {
+            return null;
+        }
+        if (!MirrorUrlTemplate.isPerRepository(url)) {
+            logger.error("The global mirror URL {} does not contain {}; ignoring it", url, MirrorUrlTemplate.REPO);
+            return null;
+        }
+
+        MirrorSettings ms = new MirrorSettings();
+        ms.mirrorRepoUrl = url;
+        ms.username = Strings.nullToEmpty(propertiesService.getPluginProperty(PROP_GLOBAL_PREFIX + "username"));
+        ms.password = Strings.nullToEmpty(propertiesService.getPluginProperty(PROP_GLOBAL_PREFIX + "password"));
+        ms.refspec = Strings.nullToEmpty(propertiesService.getPluginProperty(PROP_GLOBAL_PREFIX + "refspec"));
+        ms.tags = propertiesService.getPluginProperty(PROP_GLOBAL_PREFIX + "tags", true);
+        ms.notes = propertiesService.getPluginProperty(PROP_GLOBAL_PREFIX + "notes", true);
+        ms.atomic = propertiesService.getPluginProperty(PROP_GLOBAL_PREFIX + "atomic", true);
+        ms.credentialType = propertiesService.getPluginProperty(PROP_GLOBAL_PREFIX + "credentials",
+                MirrorSettings.CREDENTIALS_STATIC);
+        ms.credentialSource = Strings.nullToEmpty(
+                propertiesService.getPluginProperty(PROP_GLOBAL_PREFIX + "credentials.source"));
+        ms.offPeakWindow = Strings.nullToEmpty(propertiesService.getPluginProperty(PROP_GLOBAL_PREFIX + "window"));
+        ms.bandwidthLimit = Math.max(0L, propertiesService.getPluginProperty(PROP_GLOBAL_PREFIX + "bandwidth", 0L));
+        try {
+            MirrorWindow.parse(ms.offPeakWindow);
+        } catch (IllegalArgumentException e) {
+            logger.error("The global mirror window {} is invalid; ignoring it", ms.offPeakWindow);
+            ms.offPeakWindow = "";
+        }
+        ms.suffix = "global";
+        return ms;
+    }
+
     private List<MirrorSettings> getMirrorSettings(Settings settings) {
         return getMirrorSettings(settings, true, true, true);
     }
@@ -164,6 +664,13 @@ public class MirrorRepositoryHook implements PostRepositoryHook<RepositoryHookRe
                 ms.tags = (settings.getBoolean(SETTING_TAGS + suffix, defTags));
                 ms.notes = (settings.getBoolean(SETTING_NOTES + suffix, defNotes));
                 ms.atomic = (settings.getBoolean(SETTING_ATOMIC + suffix, defAtomic));
+                ms.direction = settings.getString(SETTING_DIRECTION + suffix, MirrorSettings.DIRECTION_PUSH);
+                ms.credentialType = settings.getString(SETTING_CREDENTIAL_TYPE + suffix,
+                        MirrorSettings.CREDENTIALS_STATIC);
+                ms.credentialSource = settings.getString(SETTING_CREDENTIAL_SOURCE + suffix, "");
+                ms.offPeakWindow = Strings.nullToEmpty(settings.getString(SETTING_OFF_PEAK_WINDOW + suffix, ""));
+                ms.bandwidthLimit = parseBandwidthLimit(settings.getString(SETTING_BANDWIDTH_LIMIT + suffix, ""));
+                ms.ignoredTriggers = Strings.nullToEmpty(settings.getString(SETTING_IGNORED_TRIGGERS + suffix, ""));
                 ms.suffix = String.valueOf(count++);
 
                 results.add(ms);
@@ -173,75 +680,274 @@ public class MirrorRepositoryHook implements PostRepositoryHook<RepositoryHookRe
         return results;
     }
 
-    private void schedulePushes(Repository repository, List<MirrorSettings> list) {
-        list.forEach(settings -> pushExecutor.schedule(new MirrorRequest(repository, settings), 5L, TimeUnit.SECONDS));
+    /**
+     * @return the limit in KiB/s, {@code 0} if it is empty or {@code -1} if it is not a number
+     */
+    private static long parseBandwidthLimit(String value) {
+        if (Strings.isNullOrEmpty(value) || value.trim().isEmpty()) {
+            return 0L;
+        }
+        try {
+            long limit = Long.parseLong(value.trim());
+            return limit < 0L ? -1L : limit;
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    /**
+     * Schedules pushes for a batch of queued events, coalescing the events for each repository and using the most
+     * recent settings. Each mirror is only pushed the changes of events whose trigger it does not ignore.
+     */
+    private void dispatchEvents(List<MirrorEvent> events) {
+        Map<Integer, MirrorEvent> latest = new LinkedHashMap<>();
+        Map<Integer, List<MirrorEvent>> repositoryEvents = new HashMap<>();
+        for (MirrorEvent event : events) {
+            int repositoryId = event.getRepository().getId();
+            latest.put(repositoryId, event);
+            repositoryEvents.computeIfAbsent(repositoryId, id -> new ArrayList<>()).add(event);
+        }
+
+        latest.forEach((repositoryId, event) -> {
+            Repository repository = event.getRepository();
+            List<MirrorSettings> mirrorSettings = getConfiguredMirrors(repositoryId,
+                    () -> expand(getMirrorSettings(event.getSettings()), repository));
+            if (mirrorSettings.isEmpty()) {
+                logger.debug("{}: Mirroring is not configured", repository);
+                return;
+            }
+
+            logger.debug("{}: Scheduling pushes for {} remote(s)", repository, mirrorSettings.size());
+            Set<String> paused = pauseService.getPaused(repositoryId);
+            for (MirrorSettings settings : mirrorSettings) {
+                List<MirrorRefChange> refChanges = new ArrayList<>();
+                boolean triggered = false;
+                for (MirrorEvent repositoryEvent : repositoryEvents.get(repositoryId)) {
+                    if (!settings.isIgnored(repositoryEvent.getTrigger())) {
+                        triggered = true;
+                        repositoryEvent.getRefChanges().forEach(refChange ->
+                                refChanges.add(new MirrorRefChange(refChange)));
+                    }
+                }
+                if (triggered) {
+                    schedulePush(repository, settings, refChanges, paused);
+                } else {
+                    logger.debug("{}: Mirror {} ignores the triggers of the update", repository,
+                            settings.mirrorRepoUrl);
+                }
+            }
+        });
+    }
+
+    /**
+     * Marks the mirrors dirty in the {@link MirrorOutbox}, so they are pushed even if this node restarts before the
+     * push completes, and schedules pushes to them. Mirrors which are fetched from are skipped.
+     *
+     * @param repository the repository to mirror
+     * @param list       the mirrors to push to
+     */
+    void schedulePushes(Repository repository, List<MirrorSettings> list) {
+        schedulePushes(repository, list, Collections.emptyList());
+    }
+
+    private void schedulePushes(Repository repository, List<MirrorSettings> list, List<MirrorRefChange> refChanges) {
+        Set<String> paused = pauseService.getPaused(repository.getId());
+        list.forEach(settings -> schedulePush(repository, settings, refChanges, paused));
+    }
+
+    /**
+     * Schedules a push of the ref changes to a mirror, unless it is fetched from, or none of the changed refs match
+     * its refspecs so the push would have nothing to do. No ref changes means they are not known, so every ref is
+     * pushed.
+     */
+    private void schedulePush(Repository repository, MirrorSettings settings, List<MirrorRefChange> refChanges,
+                              Set<String> paused) {
+        if (settings.isFetch()) {
+            return;
+        }
+        if (!refChanges.isEmpty() && !isMirrored(settings, refChanges)) {
+            logger.debug("{}: None of the changed refs are mirrored to {}", repository, settings.mirrorRepoUrl);
+            return;
+        }
+        MirrorRequest request = new MirrorRequest(repository.getId(), settings, refChanges);
+        outbox.markDirty(request.getRepositoryId(), settings.mirrorRepoUrl);
+        if (paused.contains(settings.mirrorRepoUrl)) {
+            // The outbox marker makes sure the changes are pushed once the mirror is resumed
+            logger.debug("{}: Not scheduling a push to paused mirror {}", repository, settings.mirrorRepoUrl);
+            return;
+        }
+        statusIndex.onQueued(request.getRepositoryId(), settings.mirrorRepoUrl);
+        pushExecutor.schedule(request, 5L, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return {@code true} if the mirror is pushed to over http(s), which is the only scheme using the username and
+     * password
+     */
+    private static boolean isHttp(String mirrorRepoUrl) {
+        try {
+            // Placeholders are not valid in a URI, so check the URL as it would be expanded
+            URI uri = URI.create(MirrorUrlTemplate.expand(mirrorRepoUrl, "project", "repo"));
+            return uri.getScheme().toLowerCase().startsWith("http");
+        } catch (Exception ex) {
+            // Not a valid url, assume it is something git can read
+            return false;
+        }
+    }
+
+    private static boolean isValidRefspec(String refspec) {
+        for (String part : refspec.split("\\s+")) {
+            try {
+                if (!part.isEmpty()) {
+                    Refspec.parse(part);
+                }
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isMirrored(MirrorSettings settings, List<MirrorRefChange> refChanges) {
+        List<Refspec> refspecs;
+        try {
+            refspecs = settings.getRefspecs();
+        } catch (IllegalArgumentException e) {
+            // The push reports the invalid refspec
+            return true;
+        }
+        for (MirrorRefChange refChange : refChanges) {
+            for (Refspec refspec : refspecs) {
+                if (refspec.map(refChange.getRefId()) != null) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Submits a push to a single mirror without the usual delay, which otherwise gives a burst of updates a chance
+     * to be coalesced
+     *
+     * @param repository the repository to mirror
+     * @param settings   the mirror to push to
+     */
+    void pushNow(Repository repository, MirrorSettings settings) {
+        MirrorRequest request = new MirrorRequest(repository, settings);
+        outbox.markDirty(request.getRepositoryId(), settings.mirrorRepoUrl);
+        statusIndex.onQueued(request.getRepositoryId(), settings.mirrorRepoUrl);
+        pushExecutor.submit(request);
     }
 
     private boolean validate(MirrorSettings ms, SettingsValidationErrors errors) {
         boolean result = true;
-        boolean isHttp = false;
+        boolean isHttp = isHttp(ms.mirrorRepoUrl);
 
         if (ms.mirrorRepoUrl.isEmpty()) {
             result = false;
             errors.addFieldError(SETTING_MIRROR_REPO_URL + ms.suffix, "The mirror repo url is required.");
-        } else {
-            try {
-                URI uri = URI.create(ms.mirrorRepoUrl);
-                String scheme = uri.getScheme().toLowerCase();
-
-                if (scheme.startsWith("http")) {
-                    isHttp = true;
-                    if (ms.mirrorRepoUrl.contains("@")) {
-                        result = false;
-                        errors.addFieldError(SETTING_MIRROR_REPO_URL + ms.suffix,
-                                "The username and password should not be included.");
-                    }
-                }
-            } catch (Exception ex) {
-                // Not a valid url, assume it is something git can read
+        } else if (isHttp && ms.mirrorRepoUrl.contains("@")) {
+            result = false;
+            errors.addFieldError(SETTING_MIRROR_REPO_URL + ms.suffix,
+                    "The username and password should not be included.");
+        }
 
-            }
+        if (!MirrorSettings.CREDENTIALS_STATIC.equals(ms.credentialType) && !ms.isFileCredentials() &&
+                !ms.isTokenCredentials()) {
+            result = false;
+            errors.addFieldError(SETTING_CREDENTIAL_TYPE + ms.suffix,
+                    "The credentials should be static, file or token.");
         }
 
-        // HTTP must have username and password
+        // HTTP must have username and password, unless the password is read from a file
         if (isHttp) {
             if (ms.username.isEmpty()) {
                 result = false;
                 errors.addFieldError(SETTING_USERNAME + ms.suffix, "The username is required when using http(s).");
             }
 
-            if (ms.password.isEmpty()) {
+            if (ms.password.isEmpty() && !ms.isFileCredentials()) {
                 result = false;
                 errors.addFieldError(SETTING_PASSWORD + ms.suffix, "The password is required when using http(s).");
             }
+
+            // The server reads the file or calls the endpoint, so a system administrator has to allow it
+            if (ms.isFileCredentials() && ms.credentialSource.isEmpty()) {
+                result = false;
+                errors.addFieldError(SETTING_CREDENTIAL_SOURCE + ms.suffix, "The credentials file is required.");
+            } else if (ms.isFileCredentials() && !credentialSources.isAllowedFile(ms.credentialSource)) {
+                result = false;
+                errors.addFieldError(SETTING_CREDENTIAL_SOURCE + ms.suffix, "The credentials file should be in " +
+                        "the directory allowed by the system administrator.");
+            }
+            if (ms.isTokenCredentials() && !ms.credentialSource.toLowerCase(Locale.ROOT).startsWith("http")) {
+                result = false;
+                errors.addFieldError(SETTING_CREDENTIAL_SOURCE + ms.suffix,
+                        "The token endpoint should be an http(s) URL.");
+            } else if (ms.isTokenCredentials() && !credentialSources.isAllowedEndpoint(ms.credentialSource)) {
+                result = false;
+                errors.addFieldError(SETTING_CREDENTIAL_SOURCE + ms.suffix,
+                        "The token endpoint should be one allowed by the system administrator.");
+            }
         } else {
             // Only http should have username or password
             ms.password = ms.username = "";
+            ms.credentialType = MirrorSettings.CREDENTIALS_STATIC;
+            ms.credentialSource = "";
+        }
+
+        if (!MirrorSettings.DIRECTION_PUSH.equals(ms.direction) && !ms.isFetch()) {
+            result = false;
+            errors.addFieldError(SETTING_DIRECTION + ms.suffix, "The direction should be push or fetch.");
         }
 
         if (!ms.refspec.isEmpty()) {
-            if (!ms.refspec.contains(":")) {
+            // Each refspec is checked, since an invalid one fails every push of the mirror
+            if (!isValidRefspec(ms.refspec)) {
+                result = false;
+                errors.addFieldError(SETTING_REFSPEC + ms.suffix, "Each refspec should be in the form " +
+                        "[+]<src>[:<dest>], separated by spaces.");
+            } else if (ms.isFetch() && Arrays.stream(ms.refspec.split("\\s+")).anyMatch(part -> part.startsWith("+"))) {
+                // Fetches bypass branch permissions, so they must not be able to rewrite history
                 result = false;
-                errors.addFieldError(SETTING_REFSPEC + ms.suffix, "A refspec should be in the form <src>:<dest>.");
+                errors.addFieldError(SETTING_REFSPEC + ms.suffix,
+                        "A fetch mirror only fast-forwards refs, so its refspecs can't start with +.");
             }
         }
 
+        try {
+            MirrorWindow.parse(ms.offPeakWindow);
+        } catch (IllegalArgumentException e) {
+            result = false;
+            errors.addFieldError(SETTING_OFF_PEAK_WINDOW + ms.suffix,
+                    "The off-peak window should be in the form HH:mm-HH:mm.");
+        }
+
+        if (ms.bandwidthLimit < 0L) {
+            result = false;
+            errors.addFieldError(SETTING_BANDWIDTH_LIMIT + ms.suffix,
+                    "The bandwidth limit should be a whole number of KiB/s.");
+        }
+
         return result;
     }
 
-    private void updateSettings(List<MirrorSettings> mirrorSettings, Settings settings) {
-        Map<String, Object> values = new HashMap<>();
-        for (MirrorSettings ms : mirrorSettings) {
-            values.put(SETTING_MIRROR_REPO_URL + ms.suffix, ms.mirrorRepoUrl);
-            values.put(SETTING_USERNAME + ms.suffix, ms.username);
-            values.put(SETTING_PASSWORD + ms.suffix, (ms.password.isEmpty() ? ms.password : passwordEncryptor.encrypt(ms.password)));
-            values.put(SETTING_REFSPEC + ms.suffix, ms.refspec);
-            values.put(SETTING_TAGS + ms.suffix, ms.tags);
-            values.put(SETTING_NOTES + ms.suffix, ms.notes);
-            values.put(SETTING_ATOMIC + ms.suffix, ms.atomic);
+    /**
+     * Mirrors configured for a project are inherited by every repository of the project, so their URLs must be
+     * templates which expand to a different URL for each repository
+     */
+    private boolean validateForProject(MirrorSettings ms, SettingsValidationErrors errors) {
+        boolean result = true;
+        if (!ms.mirrorRepoUrl.isEmpty() && !MirrorUrlTemplate.isPerRepository(ms.mirrorRepoUrl)) {
+            result = false;
+            errors.addFieldError(SETTING_MIRROR_REPO_URL + ms.suffix,
+                    "The mirror repo url of a project must contain " + MirrorUrlTemplate.REPO + ".");
         }
-
-        // Unfortunately the settings are stored in an immutable map, so need to cheat with reflection
-        settingsReflectionHelper.set(values, settings);
+        if (ms.isFetch()) {
+            result = false;
+            errors.addFieldError(SETTING_DIRECTION + ms.suffix, "The mirrors of a project can only be pushed to.");
+        }
+        return result;
     }
 }
@@ -3,25 +3,51 @@ package com.englishtown.bitbucket.hook;
 import com.atlassian.bitbucket.repository.Repository;
 
 import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
 
 class MirrorRequest implements Serializable {
 
+    private final long created;
     private final int repositoryId;
     private final MirrorSettings settings;
+    private final List<MirrorRefChange> refChanges;
 
     MirrorRequest(Repository repository, MirrorSettings settings) {
         this(repository.getId(), settings);
     }
 
     MirrorRequest(int repositoryId, MirrorSettings settings) {
+        this(repositoryId, settings, Collections.emptyList());
+    }
+
+    MirrorRequest(int repositoryId, MirrorSettings settings, List<MirrorRefChange> refChanges) {
         this.repositoryId = repositoryId;
         this.settings = settings;
+        this.refChanges = refChanges;
+
+        created = System.currentTimeMillis();
+    }
+
+    /**
+     * @return when the request was created, in milliseconds since the epoch
+     */
+    long getCreated() {
+        return created;
     }
 
     int getRepositoryId() {
         return repositoryId;
     }
 
+    /**
+     * @return the ref changes which triggered the request, or an empty list if the request was not triggered by
+     * ref changes, e.g. when the hook settings are saved
+     */
+    List<MirrorRefChange> getRefChanges() {
+        return refChanges;
+    }
+
     MirrorSettings getSettings() {
         return settings;
     }
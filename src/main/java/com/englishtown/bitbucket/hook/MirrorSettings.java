@@ -1,9 +1,23 @@
 package com.englishtown.bitbucket.hook;
 
+import com.atlassian.bitbucket.hook.repository.RepositoryHookTrigger;
+import com.google.common.base.Strings;
+
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 
 class MirrorSettings implements Serializable {
 
+    static final String CREDENTIALS_FILE = "file";
+    static final String CREDENTIALS_STATIC = "static";
+    static final String CREDENTIALS_TOKEN = "token";
+    static final String DIRECTION_FETCH = "fetch";
+    static final String DIRECTION_PUSH = "push";
+
+    private static final String DEFAULT_REFSPEC = "+refs/heads/*:refs/heads/*";
+
     String mirrorRepoUrl;
     String username;
     String password;
@@ -12,4 +26,121 @@ class MirrorSettings implements Serializable {
     boolean tags;
     boolean notes;
     boolean atomic;
+    String direction = DIRECTION_PUSH;
+    String credentialType = CREDENTIALS_STATIC;
+    String credentialSource = "";
+    String offPeakWindow = "";
+    /**
+     * The limit of the average rate of large pushes, in KiB/s, {@code 0} for no limit or {@code -1} if the setting is
+     * not a number
+     */
+    long bandwidthLimit;
+    /**
+     * The IDs of the hook triggers whose updates are not pushed to the mirror, separated by spaces or commas, e.g.
+     * {@code file-edit pull-request-merge}
+     */
+    String ignoredTriggers = "";
+
+    /**
+     * @return the refspecs to push: the configured refspecs, or all branches if none are configured, followed by the
+     * tags and notes if they are mirrored
+     */
+    List<Refspec> getRefspecs() {
+        List<Refspec> results = new ArrayList<>();
+
+        String value = Strings.isNullOrEmpty(refspec) ? DEFAULT_REFSPEC : refspec;
+        for (String part : value.split("\\s|\\n")) {
+            if (!Strings.isNullOrEmpty(part)) {
+                results.add(Refspec.parse(part));
+            }
+        }
+        if (tags) {
+            results.add(Refspec.parse("+refs/tags/*:refs/tags/*"));
+        }
+        if (notes) {
+            results.add(Refspec.parse("+refs/notes/*:refs/notes/*"));
+        }
+        return results;
+    }
+
+    /**
+     * @return the refspecs to fetch: the {@link #getRefspecs() refspecs} without forcing, so a fetch only creates
+     * and fast-forwards refs and never rewrites or deletes refs of the repository, and with their destinations, so
+     * a fetch updates the same refs a push would
+     */
+    List<Refspec> getFetchRefspecs() {
+        List<Refspec> results = new ArrayList<>();
+        getRefspecs().forEach(refspec -> results.add(refspec.withoutForce().withDestination()));
+        return results;
+    }
+
+    /**
+     * @return {@code true} if changes are fetched from the remote into the repository, rather than pushed to it
+     */
+    boolean isFetch() {
+        return DIRECTION_FETCH.equals(direction);
+    }
+
+    /**
+     * @param trigger what updated the repository
+     * @return {@code true} if the update should not be pushed to the mirror
+     */
+    boolean isIgnored(RepositoryHookTrigger trigger) {
+        if (Strings.isNullOrEmpty(ignoredTriggers) || trigger == null) {
+            return false;
+        }
+        String id = normalizeTrigger(trigger.getId());
+        for (String ignored : ignoredTriggers.split("[\\s,]+")) {
+            if (!ignored.isEmpty() && normalizeTrigger(ignored).equals(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return {@code true} if the password is read from the file at {@link #credentialSource}
+     */
+    boolean isFileCredentials() {
+        return CREDENTIALS_FILE.equals(credentialType);
+    }
+
+    /**
+     * @return {@code true} if an access token is obtained from the endpoint at {@link #credentialSource}, using the
+     * username and password as client credentials
+     */
+    boolean isTokenCredentials() {
+        return CREDENTIALS_TOKEN.equals(credentialType);
+    }
+
+    /**
+     * @param url the URL of the copy
+     * @return a copy of these settings for another mirror URL, e.g. after expanding a URL template
+     */
+    MirrorSettings withUrl(String url) {
+        MirrorSettings copy = new MirrorSettings();
+        copy.mirrorRepoUrl = url;
+        copy.username = username;
+        copy.password = password;
+        copy.suffix = suffix;
+        copy.refspec = refspec;
+        copy.tags = tags;
+        copy.notes = notes;
+        copy.atomic = atomic;
+        copy.direction = direction;
+        copy.credentialType = credentialType;
+        copy.credentialSource = credentialSource;
+        copy.offPeakWindow = offPeakWindow;
+        copy.bandwidthLimit = bandwidthLimit;
+        copy.ignoredTriggers = ignoredTriggers;
+        return copy;
+    }
+
+    /**
+     * Trigger IDs are compared ignoring case, and underscores match dashes, so {@code PULL_REQUEST_MERGE} matches
+     * {@code pull-request-merge}
+     */
+    private static String normalizeTrigger(String id) {
+        return id.toLowerCase(Locale.ROOT).replace('_', '-');
+    }
 }
@@ -0,0 +1,151 @@
+package com.englishtown.bitbucket.hook;
+
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.UnaryOperator;
+
+/**
+ * In-memory index of the push status of each mirror on this node, updated as pushes are queued and processed. Each
+ * update atomically replaces an immutable {@link MirrorStatus}, so reads never block pushes.
+ */
+public class MirrorStatusIndex {
+
+    // Error messages are shown in the UI, so long git output is truncated
+    static final int MAX_ERROR_LENGTH = 2000;
+
+    private final ConcurrentMap<Integer, ConcurrentMap<String, MirrorStatus>> statuses = new ConcurrentHashMap<>();
+
+    /**
+     * @param repositoryId the ID of the repository
+     * @return the status of each mirror of the repository, keyed by mirror URL
+     */
+    Map<String, MirrorStatus> getStatuses(int repositoryId) {
+        Map<String, MirrorStatus> repositoryStatuses = statuses.get(repositoryId);
+        if (repositoryStatuses == null) {
+            return Collections.emptyMap();
+        }
+        return Collections.unmodifiableMap(repositoryStatuses);
+    }
+
+    /**
+     * Records that a push to a mirror has been queued
+     */
+    void onQueued(int repositoryId, String mirrorUrl) {
+        update(repositoryId, mirrorUrl, status -> status.withQueued(status.queued + 1));
+    }
+
+    /**
+     * Records that a push to a mirror has started, processing the given number of queued requests
+     */
+    void onStarted(int repositoryId, String mirrorUrl, int requests, long time) {
+        update(repositoryId, mirrorUrl, status -> new MirrorStatus(Math.max(0, status.queued - requests), time,
+                status.lastSuccess, status.lastFailure, status.lastError));
+    }
+
+    /**
+     * Records that queued requests were dropped without pushing, because the mirror is paused
+     */
+    void onSkipped(int repositoryId, String mirrorUrl, int requests) {
+        update(repositoryId, mirrorUrl, status -> status.withQueued(Math.max(0, status.queued - requests)));
+    }
+
+    void onSucceeded(int repositoryId, String mirrorUrl, long time) {
+        update(repositoryId, mirrorUrl, status -> new MirrorStatus(status.queued, status.lastAttempt, time,
+                status.lastFailure, status.lastError));
+    }
+
+    /**
+     * Records that a push to a mirror has failed
+     *
+     * @param error the error message, which must already have any password removed
+     */
+    void onFailed(int repositoryId, String mirrorUrl, long time, @Nullable String error) {
+        String message = error != null && error.length() > MAX_ERROR_LENGTH ?
+                error.substring(0, MAX_ERROR_LENGTH) + "..." : error;
+        update(repositoryId, mirrorUrl, status -> new MirrorStatus(status.queued, status.lastAttempt,
+                status.lastSuccess, time, message));
+    }
+
+    /**
+     * Removes the status of every mirror of a repository
+     */
+    void remove(int repositoryId) {
+        statuses.remove(repositoryId);
+    }
+
+    /**
+     * Removes the status of any mirror of a repository which is no longer configured
+     *
+     * @param repositoryId the ID of the repository
+     * @param mirrorUrls   the URLs of the configured mirrors
+     */
+    void retain(int repositoryId, Collection<String> mirrorUrls) {
+        Map<String, MirrorStatus> repositoryStatuses = statuses.get(repositoryId);
+        if (repositoryStatuses != null) {
+            repositoryStatuses.keySet().retainAll(mirrorUrls);
+        }
+    }
+
+    private void update(int repositoryId, String mirrorUrl, UnaryOperator<MirrorStatus> update) {
+        statuses.computeIfAbsent(repositoryId, id -> new ConcurrentHashMap<>())
+                .compute(mirrorUrl, (url, status) -> update.apply(status == null ? MirrorStatus.NONE : status));
+    }
+
+    /**
+     * An immutable snapshot of the status of a mirror. Times are in milliseconds since the epoch, or {@code 0} if the
+     * event has not happened since this node started.
+     */
+    static class MirrorStatus {
+
+        static final MirrorStatus NONE = new MirrorStatus(0, 0L, 0L, 0L, null);
+
+        private final int queued;
+        private final long lastAttempt;
+        private final long lastSuccess;
+        private final long lastFailure;
+        private final String lastError;
+
+        MirrorStatus(int queued, long lastAttempt, long lastSuccess, long lastFailure, String lastError) {
+            this.queued = queued;
+            this.lastAttempt = lastAttempt;
+            this.lastSuccess = lastSuccess;
+            this.lastFailure = lastFailure;
+            this.lastError = lastError;
+        }
+
+        /**
+         * @return the number of requests waiting to be pushed
+         */
+        int getQueued() {
+            return queued;
+        }
+
+        long getLastAttempt() {
+            return lastAttempt;
+        }
+
+        long getLastSuccess() {
+            return lastSuccess;
+        }
+
+        long getLastFailure() {
+            return lastFailure;
+        }
+
+        /**
+         * @return the error message of the last failed push, with any password removed
+         */
+        @Nullable
+        String getLastError() {
+            return lastError;
+        }
+
+        private MirrorStatus withQueued(int queued) {
+            return new MirrorStatus(queued, lastAttempt, lastSuccess, lastFailure, lastError);
+        }
+    }
+}
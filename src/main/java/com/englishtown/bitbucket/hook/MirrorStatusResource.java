@@ -0,0 +1,94 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.permission.PermissionService;
+import com.atlassian.bitbucket.repository.RepositoryService;
+import com.englishtown.bitbucket.hook.MirrorStatusIndex.MirrorStatus;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * REST resource for the {@link MirrorStatusIndex status} of the mirrors of a repository, available to repository
+ * administrators. The status is read from memory, so it is cheap enough to poll from the hook settings form.
+ */
+@Path("/projects/{projectKey}/repos/{repositorySlug}/status")
+@Produces(MediaType.APPLICATION_JSON)
+public class MirrorStatusResource extends AbstractRepositoryResource {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final MirrorPauseService pauseService;
+    private final MirrorStatusIndex statusIndex;
+
+    public MirrorStatusResource(MirrorPauseService pauseService, PermissionService permissionService,
+                                RepositoryService repositoryService, MirrorStatusIndex statusIndex) {
+        super(permissionService, repositoryService);
+
+        this.pauseService = pauseService;
+        this.statusIndex = statusIndex;
+    }
+
+    /**
+     * @param projectKey     the key of the project
+     * @param repositorySlug the slug of the repository
+     * @return the status of every mirror of the repository which is paused, or has been pushed to or queued on this
+     * node
+     */
+    @GET
+    public Response getStatus(@PathParam("projectKey") String projectKey,
+                              @PathParam("repositorySlug") String repositorySlug) {
+        return withRepository(projectKey, repositorySlug, repository -> {
+            Map<String, MirrorStatus> statuses = new TreeMap<>(statusIndex.getStatuses(repository.getId()));
+            Set<String> paused = pauseService.getPaused(repository.getId());
+            paused.forEach(url -> statuses.putIfAbsent(url, MirrorStatus.NONE));
+
+            StreamingOutput output = stream -> {
+                JsonGenerator json = JSON_FACTORY.createJsonGenerator(stream, JsonEncoding.UTF8);
+                writeStatuses(json, statuses, paused);
+                json.flush();
+            };
+            return Response.ok(output).build();
+        });
+    }
+
+    static void writeStatuses(JsonGenerator json, Map<String, MirrorStatus> statuses, Set<String> paused)
+            throws IOException {
+        json.writeStartObject();
+        json.writeArrayFieldStart("values");
+        for (Map.Entry<String, MirrorStatus> entry : statuses.entrySet()) {
+            MirrorStatus status = entry.getValue();
+
+            json.writeStartObject();
+            json.writeStringField("mirrorRepoUrl", entry.getKey());
+            json.writeBooleanField("paused", paused.contains(entry.getKey()));
+            json.writeNumberField("queued", status.getQueued());
+            writeTime(json, "lastAttempt", status.getLastAttempt());
+            writeTime(json, "lastSuccess", status.getLastSuccess());
+            writeTime(json, "lastFailure", status.getLastFailure());
+            if (status.getLastError() != null) {
+                json.writeStringField("lastError", status.getLastError());
+            }
+            json.writeEndObject();
+        }
+        json.writeEndArray();
+        json.writeEndObject();
+    }
+
+    private static void writeTime(JsonGenerator json, String field, long time) throws IOException {
+        if (time > 0) {
+            json.writeNumberField(field, time);
+        }
+    }
+}
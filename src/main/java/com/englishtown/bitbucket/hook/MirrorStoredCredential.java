@@ -0,0 +1,48 @@
+package com.englishtown.bitbucket.hook;
+
+import net.java.ao.Entity;
+import net.java.ao.schema.Indexed;
+import net.java.ao.schema.NotNull;
+import net.java.ao.schema.StringLength;
+import net.java.ao.schema.Table;
+
+/**
+ * Active Objects entity holding the encrypted password or token of a mirror, which the hook settings refer to by
+ * its credential ID
+ */
+@Table("CREDENTIAL")
+public interface MirrorStoredCredential extends Entity {
+
+    String COLUMN_CREDENTIAL_ID = "CREDENTIAL_ID";
+    String COLUMN_PASSWORD = "PASSWORD";
+    String COLUMN_SCOPE_KEY = "SCOPE_KEY";
+
+    /**
+     * @return a random ID, which changes whenever the password changes
+     */
+    @Indexed
+    @NotNull
+    @StringLength(64)
+    String getCredentialId();
+
+    void setCredentialId(String credentialId);
+
+    /**
+     * @return the password, encrypted by the {@link PasswordEncryptor}
+     */
+    @NotNull
+    @StringLength(StringLength.UNLIMITED)
+    String getPassword();
+
+    void setPassword(String password);
+
+    /**
+     * @return the repository or project whose hook settings refer to the credential, e.g. {@code REPOSITORY:1}
+     */
+    @Indexed
+    @NotNull
+    @StringLength(64)
+    String getScopeKey();
+
+    void setScopeKey(String scopeKey);
+}
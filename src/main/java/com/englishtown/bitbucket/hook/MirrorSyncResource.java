@@ -0,0 +1,61 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.permission.PermissionService;
+import com.atlassian.bitbucket.repository.RepositoryService;
+
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Response;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * REST resource notifying that the mirrors a repository is fetched from have changed, so they are fetched from
+ * without waiting for the next poll. It is intended to be called from a webhook of the mirror, authenticated as a
+ * user or access token with write access to the repository.
+ */
+@Path("/projects/{projectKey}/repos/{repositorySlug}/sync")
+public class MirrorSyncResource extends AbstractRepositoryResource {
+
+    private final MirrorFetchScheduler fetchScheduler;
+    private final MirrorRepositoryHook mirrorRepositoryHook;
+
+    public MirrorSyncResource(MirrorFetchScheduler fetchScheduler, MirrorRepositoryHook mirrorRepositoryHook,
+                              PermissionService permissionService, RepositoryService repositoryService) {
+        super(permissionService, repositoryService);
+
+        this.fetchScheduler = fetchScheduler;
+        this.mirrorRepositoryHook = mirrorRepositoryHook;
+    }
+
+    /**
+     * Schedules fetches from the mirrors of the repository. Notifications received within a few seconds of each
+     * other are coalesced into a single fetch per mirror.
+     *
+     * @param mirrorRepoUrl the URL of the mirror which changed, as configured or expanded for the repository, or
+     *                      {@code null} to fetch from every mirror
+     * @return {@code 202} if any fetch was scheduled, {@code 404} if the repository is not fetched from the mirror
+     * or {@code 409} if every matching mirror is paused
+     */
+    @POST
+    public Response sync(@PathParam("projectKey") String projectKey,
+                         @PathParam("repositorySlug") String repositorySlug,
+                         @QueryParam("mirrorRepoUrl") String mirrorRepoUrl) {
+        return withRepository(projectKey, repositorySlug, Permission.REPO_WRITE, repository -> {
+            List<MirrorSettings> mirrors = mirrorRepositoryHook.getMirrorSettings(repository).stream()
+                    .filter(MirrorSettings::isFetch)
+                    .filter(settings -> mirrorRepoUrl == null || isMirror(settings, mirrorRepoUrl, repository))
+                    .collect(Collectors.toList());
+            if (mirrors.isEmpty()) {
+                return Response.status(Response.Status.NOT_FOUND).build();
+            }
+            if (fetchScheduler.scheduleFetches(repository, mirrors) == 0) {
+                return Response.status(Response.Status.CONFLICT).build();
+            }
+            return Response.status(Response.Status.ACCEPTED).build();
+        });
+    }
+}
@@ -0,0 +1,51 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.repository.Repository;
+
+import java.util.Locale;
+
+/**
+ * Expands the placeholders in mirror URLs configured for a project or globally, e.g.
+ * {@code https://backup.example.com/scm/{project}/{repo}.git}
+ */
+class MirrorUrlTemplate {
+
+    /**
+     * Replaced with the project key, in lower case as it appears in Bitbucket clone URLs
+     */
+    static final String PROJECT = "{project}";
+    /**
+     * Replaced with the repository slug
+     */
+    static final String REPO = "{repo}";
+
+    private MirrorUrlTemplate() {
+    }
+
+    /**
+     * @param url        the configured URL, which may or may not contain placeholders
+     * @param repository the repository to expand the placeholders for
+     * @return the URL with its placeholders expanded
+     */
+    static String expand(String url, Repository repository) {
+        if (url == null || url.indexOf('{') < 0) {
+            return url;
+        }
+        return expand(url, repository.getProject().getKey(), repository.getSlug());
+    }
+
+    static String expand(String url, String projectKey, String repositorySlug) {
+        if (url == null || url.indexOf('{') < 0) {
+            return url;
+        }
+        return url.replace(PROJECT, projectKey.toLowerCase(Locale.ROOT))
+                .replace(REPO, repositorySlug);
+    }
+
+    /**
+     * @return {@code true} if the URL is specific to each repository
+     */
+    static boolean isPerRepository(String url) {
+        return url.contains(REPO);
+    }
+}
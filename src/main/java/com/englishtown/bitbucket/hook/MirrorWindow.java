@@ -0,0 +1,71 @@
+package com.englishtown.bitbucket.hook;
+
+import com.google.common.base.Strings;
+
+import java.time.Duration;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+
+/**
+ * A daily window, e.g. {@code 22:00-06:00}, in the time zone of the server, during which large pushes to a mirror
+ * are allowed. A window which ends before it starts spans midnight.
+ */
+class MirrorWindow {
+
+    private final LocalTime end;
+    private final LocalTime start;
+
+    private MirrorWindow(LocalTime start, LocalTime end) {
+        this.end = end;
+        this.start = start;
+    }
+
+    /**
+     * @param window the window, as {@code HH:mm-HH:mm}
+     * @return the window, or {@code null} if {@code window} is empty
+     * @throws IllegalArgumentException if the window is malformed
+     */
+    static MirrorWindow parse(String window) {
+        if (Strings.isNullOrEmpty(window) || window.trim().isEmpty()) {
+            return null;
+        }
+        String[] times = window.trim().split("\\s*-\\s*");
+        if (times.length != 2) {
+            throw new IllegalArgumentException("The window should be in the form HH:mm-HH:mm");
+        }
+        try {
+            MirrorWindow result = new MirrorWindow(LocalTime.parse(times[0]), LocalTime.parse(times[1]));
+            if (result.start.equals(result.end)) {
+                throw new IllegalArgumentException("The window should not start and end at the same time");
+            }
+            return result;
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("The window should be in the form HH:mm-HH:mm", e);
+        }
+    }
+
+    /**
+     * @param now the time of day
+     * @return {@link Duration#ZERO} if the window is open, or how long until it opens
+     */
+    Duration untilOpen(LocalTime now) {
+        if (isOpen(now)) {
+            return Duration.ZERO;
+        }
+        Duration wait = Duration.between(now, start);
+        return wait.isNegative() ? wait.plusDays(1L) : wait;
+    }
+
+    private boolean isOpen(LocalTime now) {
+        if (start.isBefore(end)) {
+            return !now.isBefore(start) && now.isBefore(end);
+        }
+        // The window spans midnight
+        return !now.isBefore(start) || now.isBefore(end);
+    }
+
+    @Override
+    public String toString() {
+        return start + "-" + end;
+    }
+}
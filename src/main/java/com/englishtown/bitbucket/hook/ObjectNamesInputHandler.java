@@ -0,0 +1,49 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.scm.CommandInputHandler;
+import com.atlassian.utils.process.Watchdog;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Writes object names to {@code git cat-file --batch}, one per line
+ */
+class ObjectNamesInputHandler implements CommandInputHandler {
+
+    private final List<String> names;
+    private Watchdog watchdog;
+
+    ObjectNamesInputHandler(List<String> names) {
+        this.names = names;
+    }
+
+    @Override
+    public void complete() {
+    }
+
+    @Override
+    public void process(OutputStream input) {
+        try (Writer writer = new OutputStreamWriter(input, StandardCharsets.US_ASCII)) {
+            for (String name : names) {
+                writer.write(name);
+                writer.write('\n');
+                if (watchdog != null) {
+                    watchdog.resetWatchdog();
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write the object names", e);
+        }
+    }
+
+    @Override
+    public void setWatchdog(Watchdog watchdog) {
+        this.watchdog = watchdog;
+    }
+}
@@ -0,0 +1,31 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.scm.CommandOutputHandler;
+import com.atlassian.utils.process.LineOutputHandler;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the trees and blobs listed by {@code git rev-list --objects}. Commits are listed without a path, and are
+ * skipped.
+ */
+class ObjectNamesOutputHandler extends LineOutputHandler implements CommandOutputHandler<List<String>> {
+
+    private final List<String> names = new ArrayList<>();
+
+    @Nonnull
+    @Override
+    public List<String> getOutput() {
+        return names;
+    }
+
+    @Override
+    protected void processLine(int lineNum, String line) {
+        int space = line.indexOf(' ');
+        if (space > 0) {
+            names.add(line.substring(0, space));
+        }
+    }
+}
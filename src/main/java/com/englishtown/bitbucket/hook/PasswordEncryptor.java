@@ -14,7 +14,16 @@ public interface PasswordEncryptor {
     boolean isEncrypted(String password);
 
     /**
-     * Encrypts the password if it is not already encrypted
+     * Checks whether the password is encrypted with a key other than the current one
+     *
+     * @param password the password to check
+     * @return true if the password is encrypted, and should be encrypted again with the current key
+     */
+    boolean needsReencryption(String password);
+
+    /**
+     * Encrypts the password if it is not already encrypted with the current key. Passwords encrypted with an older
+     * key are re-encrypted.
      *
      * @param password the password to encrypt
      * @return encrypted password
@@ -29,4 +38,17 @@ public interface PasswordEncryptor {
      */
     String decrypt(String password);
 
+    /**
+     * Adds a new version of the key passwords are encrypted with. Passwords encrypted with older versions can still
+     * be decrypted.
+     *
+     * @return the new key version
+     */
+    int rotateKey();
+
+    /**
+     * @return the version of the key passwords are encrypted with
+     */
+    int getKeyVersion();
+
 }
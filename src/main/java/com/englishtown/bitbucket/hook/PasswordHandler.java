@@ -3,19 +3,26 @@ package com.englishtown.bitbucket.hook;
 import com.atlassian.bitbucket.scm.CommandErrorHandler;
 import com.atlassian.bitbucket.scm.CommandExitHandler;
 import com.atlassian.bitbucket.scm.CommandOutputHandler;
-import com.atlassian.utils.process.StringOutputHandler;
+import com.atlassian.utils.process.BaseOutputHandler;
+import com.atlassian.utils.process.ProcessException;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Handles removing passwords from output text
  */
-class PasswordHandler extends StringOutputHandler
+class PasswordHandler extends BaseOutputHandler
         implements CommandOutputHandler<String>, CommandErrorHandler, CommandExitHandler {
 
     private final String target;
     private final CommandExitHandler exitHandler;
+    private final StringBuffer output = new StringBuffer();
 
     private static final String PASSWORD_REPLACEMENT = ":*****@";
 
@@ -31,9 +38,57 @@ class PasswordHandler extends StringOutputHandler
         return text.replace(target, PASSWORD_REPLACEMENT);
     }
 
+    /**
+     * Collapses progress output, where git overwrites the current line using carriage returns, to the final state
+     * of each line
+     *
+     * @param text the text to trim
+     * @return the trimmed text
+     */
+    static String trimProgress(String text) {
+        if (text == null || text.indexOf('\r') < 0) {
+            return text;
+        }
+        StringBuilder builder = new StringBuilder(text.length());
+        for (String line : text.split("\n", -1)) {
+            String[] updates = line.split("\r");
+            String last = "";
+            for (int i = updates.length - 1; i >= 0; i--) {
+                if (!updates[i].isEmpty()) {
+                    last = updates[i];
+                    break;
+                }
+            }
+            if (builder.length() > 0) {
+                builder.append('\n');
+            }
+            builder.append(last);
+        }
+        return builder.toString();
+    }
+
     @Override
     public String getOutput() {
-        return cleanText(super.getOutput());
+        return cleanText(trimProgress(output.toString()));
+    }
+
+    /**
+     * Reads the output in chunks, resetting the watchdog after each one so that the idle timeout only applies
+     * while the process produces no output at all
+     */
+    @Override
+    public void process(InputStream input) throws ProcessException {
+        Reader reader = new InputStreamReader(input, StandardCharsets.UTF_8);
+        char[] buffer = new char[4096];
+        try {
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                output.append(buffer, 0, read);
+                resetWatchdog();
+            }
+        } catch (IOException e) {
+            throw new ProcessException(e);
+        }
     }
 
     @Override
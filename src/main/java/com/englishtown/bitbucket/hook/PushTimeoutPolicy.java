@@ -0,0 +1,220 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+import static com.englishtown.bitbucket.hook.MirrorRepositoryHook.PROP_PREFIX;
+
+/**
+ * Computes the execution timeout for each remote command from the size of the repository and the recent durations of
+ * the same kind of command for the mirror. Incremental pushes, full pushes and fetches take very different times, so
+ * each {@link Operation} has its own history.
+ */
+class PushTimeoutPolicy {
+
+    static final String PROP_TIMEOUT = PROP_PREFIX + "timeout";
+    static final String PROP_TIMEOUT_FACTOR = PROP_PREFIX + "timeout.factor";
+    static final String PROP_TIMEOUT_IDLE = PROP_PREFIX + "timeout.idle";
+    static final String PROP_TIMEOUT_MAX = PROP_PREFIX + "timeout.max";
+    static final String PROP_TIMEOUT_MIN = PROP_PREFIX + "timeout.min";
+    static final String PROP_TIMEOUT_THROUGHPUT = PROP_PREFIX + "timeout.throughput";
+
+    static final int HISTORY_SIZE = 50;
+    static final int MIN_SAMPLES = 5;
+    /**
+     * A push is slow if it takes this many times as long as the median push to the mirror
+     */
+    static final int SLOW_FACTOR = 2;
+
+    private final Duration baseTimeout;
+    private final int factor;
+    private final Duration idleTimeout;
+    private final Duration maxTimeout;
+    private final Duration minTimeout;
+    private final long throughput;
+    private final ConcurrentMap<String, ConcurrentMap<Operation, PushHistory>> histories = new ConcurrentHashMap<>();
+
+    PushTimeoutPolicy(ApplicationPropertiesService propertiesService) {
+        baseTimeout = Duration.ofSeconds(propertiesService.getPluginProperty(PROP_TIMEOUT, 120L));
+        factor = Math.max(1, propertiesService.getPluginProperty(PROP_TIMEOUT_FACTOR, 3));
+        idleTimeout = Duration.ofSeconds(propertiesService.getPluginProperty(PROP_TIMEOUT_IDLE, 60L));
+        minTimeout = Duration.ofSeconds(propertiesService.getPluginProperty(PROP_TIMEOUT_MIN, 30L));
+        maxTimeout = Duration.ofSeconds(propertiesService.getPluginProperty(PROP_TIMEOUT_MAX, 3600L));
+        // Minimum expected transfer rate, in KiB/s, used to scale the timeout by the repository size
+        throughput = Math.max(1L, propertiesService.getPluginProperty(PROP_TIMEOUT_THROUGHPUT, 1024L)) * 1024L;
+    }
+
+    /**
+     * @return the configured base timeout, also applied to the local git commands run before a push
+     */
+    Duration getBaseTimeout() {
+        return baseTimeout;
+    }
+
+    /**
+     * @return the timeout after which a push which has not produced any output, including progress, is killed
+     */
+    Duration getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Computes the execution timeout for the next command run against a mirror: the base timeout extended by the time
+     * it takes to transfer the whole repository at the configured minimum throughput, or, if it is longer and
+     * {@link #MIN_SAMPLES} commands of the same kind have been recorded, their p99 duration multiplied by the
+     * configured factor. The history only ever extends the timeout, so a mirror which has only had small pushes
+     * still gets enough time for a full push.
+     *
+     * @param key          identifies the mirror
+     * @param operation    the kind of command to run
+     * @param sizeSupplier supplies the size of the repository in bytes
+     * @return the execution timeout, between the configured minimum and maximum
+     */
+    Duration getTimeout(String key, Operation operation, LongSupplier sizeSupplier) {
+        Duration timeout = baseTimeout.plusSeconds(Math.max(0L, sizeSupplier.getAsLong()) / throughput);
+        PushHistory history = getHistory(key, operation);
+        if (history != null && history.size() >= MIN_SAMPLES) {
+            Duration recent = Duration.ofMillis(history.percentile(0.99) * factor);
+            if (recent.compareTo(timeout) > 0) {
+                timeout = recent;
+            }
+        }
+
+        if (timeout.compareTo(minTimeout) < 0) {
+            return minTimeout;
+        }
+        if (timeout.compareTo(maxTimeout) > 0) {
+            return maxTimeout;
+        }
+        return timeout;
+    }
+
+    /**
+     * @param key       identifies the mirror
+     * @param operation the kind of push
+     * @param duration  how long a push took
+     * @return {@code true} if the push took much longer than the recent pushes of the same kind to the mirror, or
+     * {@code false} if there is not enough history to tell
+     */
+    boolean isSlow(String key, Operation operation, Duration duration) {
+        PushHistory history = getHistory(key, operation);
+        return history != null && history.size() >= MIN_SAMPLES &&
+                duration.toMillis() > history.percentile(0.5) * SLOW_FACTOR;
+    }
+
+    /**
+     * @param key identifies the mirror
+     * @return {@code true} if a push to the mirror has succeeded since startup
+     */
+    boolean hasHistory(String key) {
+        Map<Operation, PushHistory> operations = histories.get(key);
+        return operations != null && (operations.containsKey(Operation.INCREMENTAL) ||
+                operations.containsKey(Operation.FULL));
+    }
+
+    /**
+     * Forgets the durations of the pushes to mirrors which are no longer pushed to, e.g. of a deleted repository
+     *
+     * @param keys matches the keys of the mirrors to forget
+     */
+    void forget(Predicate<String> keys) {
+        histories.keySet().removeIf(keys);
+    }
+
+    /**
+     * Records the duration of a successful command
+     *
+     * @param key       identifies the mirror
+     * @param operation the kind of command
+     * @param duration  how long the command took
+     */
+    void recordSuccess(String key, Operation operation, Duration duration) {
+        histories.computeIfAbsent(key, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(operation, o -> new PushHistory())
+                .add(duration.toMillis());
+    }
+
+    /**
+     * Records the duration of a failed command if it ran for longer than every recorded command of the same kind,
+     * e.g. because it timed out, so the next attempt is given longer. Quicker failures, e.g. authentication failures,
+     * say nothing about how long the command takes.
+     *
+     * @param key       identifies the mirror
+     * @param operation the kind of command
+     * @param duration  how long the command ran before it failed
+     */
+    void recordFailure(String key, Operation operation, Duration duration) {
+        PushHistory history = getHistory(key, operation);
+        if (history != null) {
+            history.addIfLongest(duration.toMillis());
+        }
+    }
+
+    private PushHistory getHistory(String key, Operation operation) {
+        Map<Operation, PushHistory> operations = histories.get(key);
+        return operations == null ? null : operations.get(operation);
+    }
+
+    /**
+     * The kinds of remote commands, which each have their own history
+     */
+    enum Operation {
+
+        /**
+         * A push of only the refs which changed
+         */
+        INCREMENTAL,
+        /**
+         * A push of every configured ref, or a batch of them
+         */
+        FULL,
+        /**
+         * A fetch from a mirror
+         */
+        FETCH
+    }
+
+    /**
+     * A fixed size ring buffer of the most recent push durations, in milliseconds
+     */
+    private static class PushHistory {
+
+        private final long[] durations = new long[HISTORY_SIZE];
+        private int count;
+        private int next;
+
+        synchronized void add(long duration) {
+            durations[next] = duration;
+            next = (next + 1) % durations.length;
+            count = Math.min(count + 1, durations.length);
+        }
+
+        synchronized void addIfLongest(long duration) {
+            for (int i = 0; i < count; i++) {
+                if (durations[i] >= duration) {
+                    return;
+                }
+            }
+            add(duration);
+        }
+
+        synchronized long percentile(double percentile) {
+            long[] sorted = Arrays.copyOf(durations, count);
+            Arrays.sort(sorted);
+
+            int rank = (int) Math.ceil(percentile * count);
+            return sorted[Math.max(0, rank - 1)];
+        }
+
+        synchronized int size() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.scm.CommandOutputHandler;
+import com.atlassian.utils.process.LineOutputHandler;
+
+import javax.annotation.Nonnull;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Collects the output of {@code git for-each-ref --format="%(objectname) %(refname)"} or {@code git ls-remote}
+ * into a map of ref name to object id, sorted by ref name
+ */
+class RefsOutputHandler extends LineOutputHandler implements CommandOutputHandler<SortedMap<String, String>> {
+
+    static final String FOR_EACH_REF_FORMAT = "--format=%(objectname) %(refname)";
+
+    private static final String PEELED_SUFFIX = "^{}";
+
+    private final SortedMap<String, String> refs = new TreeMap<>();
+
+    @Nonnull
+    @Override
+    public SortedMap<String, String> getOutput() {
+        return refs;
+    }
+
+    @Override
+    protected void processLine(int lineNum, String line) {
+        String[] parts = line.trim().split("\\s+", 2);
+        if (parts.length != 2 || parts[1].endsWith(PEELED_SUFFIX)) {
+            return;
+        }
+        refs.put(parts[1], parts[0]);
+    }
+}
@@ -0,0 +1,163 @@
+package com.englishtown.bitbucket.hook;
+
+import javax.annotation.Nullable;
+
+/**
+ * A parsed git refspec of the form {@code [+]<src>[:<dst>]}, supporting a single {@code *} wildcard on each side. As
+ * with git, a refspec without a destination updates the ref with the same name as the source.
+ */
+class Refspec {
+
+    private static final String WILDCARD = "*";
+    // Characters git does not allow in ref names, see git-check-ref-format
+    private static final String INVALID_CHARS = " ~^:?[\\";
+
+    private final boolean force;
+    private final String source;
+    private final String destination;
+    private final boolean sourceOnly;
+
+    private Refspec(boolean force, String source, String destination, boolean sourceOnly) {
+        this.force = force;
+        this.source = source;
+        this.destination = destination;
+        this.sourceOnly = sourceOnly;
+    }
+
+    /**
+     * Parses a refspec
+     *
+     * @param refspec the refspec to parse, e.g. {@code +refs/heads/*:refs/heads/*} or {@code refs/heads/main}
+     * @return the parsed refspec
+     * @throws IllegalArgumentException if the refspec is not in the form {@code [+]<src>[:<dst>]}, contains
+     *                                  characters which are not allowed in ref names, or has a wildcard on only one
+     *                                  side
+     */
+    static Refspec parse(String refspec) {
+        boolean force = refspec.startsWith("+");
+        String value = force ? refspec.substring(1) : refspec;
+
+        int index = value.indexOf(':');
+        String source = index < 0 ? value : value.substring(0, index);
+        String destination = index < 0 ? value : value.substring(index + 1);
+        if ((index < 0 && source.isEmpty()) || !isValid(source) || !isValid(destination) ||
+                (!destination.isEmpty() && source.contains(WILDCARD) != destination.contains(WILDCARD))) {
+            throw new IllegalArgumentException("A refspec should be in the form [+]<src>[:<dst>]: " + refspec);
+        }
+        return new Refspec(force, source, destination, index < 0);
+    }
+
+    private static boolean isValid(String pattern) {
+        if (pattern.contains("..") || pattern.contains("@{") ||
+                pattern.indexOf(WILDCARD) != pattern.lastIndexOf(WILDCARD)) {
+            return false;
+        }
+        for (char c : pattern.toCharArray()) {
+            if (c < ' ' || c == 0x7f || INVALID_CHARS.indexOf(c) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean isForce() {
+        return force;
+    }
+
+    String getSource() {
+        return source;
+    }
+
+    String getDestination() {
+        return destination;
+    }
+
+    /**
+     * @return the longest literal prefix of the source which ends at a slash, suitable as a {@code for-each-ref}
+     * pattern, or the full source if it contains no wildcard
+     */
+    String getSourcePrefix() {
+        int index = source.indexOf(WILDCARD);
+        if (index < 0) {
+            return source;
+        }
+        return source.substring(0, source.lastIndexOf('/', index) + 1);
+    }
+
+    /**
+     * Maps a local ref through this refspec
+     *
+     * @param ref the fully qualified local ref, e.g. {@code refs/heads/master}
+     * @return the remote ref the local ref is pushed to, or {@code null} if the ref does not match the source
+     */
+    @Nullable
+    String map(String ref) {
+        int index = source.indexOf(WILDCARD);
+        if (index < 0) {
+            return source.equals(ref) ? destination : null;
+        }
+
+        String prefix = source.substring(0, index);
+        String suffix = source.substring(index + 1);
+        if (ref.length() < prefix.length() + suffix.length() || !ref.startsWith(prefix) || !ref.endsWith(suffix)) {
+            return null;
+        }
+
+        String match = ref.substring(prefix.length(), ref.length() - suffix.length());
+        return destination.replace(WILDCARD, match);
+    }
+
+    /**
+     * @param ref the fully qualified remote ref
+     * @return {@code true} if the ref matches the destination, i.e. pushing this refspec with {@code --prune} would
+     * update or delete it
+     */
+    boolean matchesDestination(String ref) {
+        return reverse().map(ref) != null;
+    }
+
+    /**
+     * @return this refspec with the source and destination swapped, e.g. to match the local refs a fetch updates
+     */
+    Refspec reverse() {
+        return new Refspec(force, destination, source, sourceOnly);
+    }
+
+    /**
+     * @return this refspec without the {@code +}, so the refs it updates are only fast-forwarded
+     */
+    Refspec withoutForce() {
+        return force ? new Refspec(false, source, destination, sourceOnly) : this;
+    }
+
+    /**
+     * Creates an explicit refspec pushing a single matching ref
+     *
+     * @param ref the fully qualified local ref
+     * @return the explicit refspec, or {@code null} if the ref does not match the source
+     */
+    @Nullable
+    String forRef(String ref) {
+        String mapped = map(ref);
+        if (mapped == null) {
+            return null;
+        }
+        return (force ? "+" : "") + ref + ":" + mapped;
+    }
+
+    /**
+     * @return this refspec with its destination, even if it was configured without one. Fetching a refspec without a
+     * destination only updates {@code FETCH_HEAD}, rather than the ref with the same name.
+     */
+    Refspec withDestination() {
+        return sourceOnly ? new Refspec(force, source, destination, false) : this;
+    }
+
+    /**
+     * @return the refspec as it was configured, which is passed to git unchanged
+     */
+    @Override
+    public String toString() {
+        return (force ? "+" : "") + (sourceOnly ? source : source + ":" + destination);
+    }
+}
@@ -0,0 +1,42 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.scm.CommandOutputHandler;
+import com.atlassian.utils.process.LineOutputHandler;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Sums the loose and packed object sizes reported by {@code git count-objects -v}, in bytes
+ */
+class RepositorySizeOutputHandler extends LineOutputHandler implements CommandOutputHandler<Long> {
+
+    private static final String SIZE = "size:";
+    private static final String SIZE_PACK = "size-pack:";
+
+    private long size;
+
+    @Nonnull
+    @Override
+    public Long getOutput() {
+        return size;
+    }
+
+    @Override
+    protected void processLine(int lineNum, String line) {
+        String value;
+        if (line.startsWith(SIZE)) {
+            value = line.substring(SIZE.length());
+        } else if (line.startsWith(SIZE_PACK)) {
+            value = line.substring(SIZE_PACK.length());
+        } else {
+            return;
+        }
+
+        try {
+            // Sizes are reported in KiB
+            size += Long.parseLong(value.trim()) * 1024L;
+        } catch (NumberFormatException e) {
+            // Ignore anything git reports which isn't a number
+        }
+    }
+}
@@ -1,4 +1,4 @@
-define('et/hook/mirror', ['jquery', 'exports'], function ($, exports) {
+define('et/hook/mirror', ['jquery', 'bitbucket/util/state', 'exports'], function ($, state, exports) {
 
     exports.init = function (createSubView, createButton) {
         $('#et-add-button').click(function () {
@@ -35,7 +35,111 @@ define('et/hook/mirror', ['jquery', 'exports'], function ($, exports) {
             })
         }
 
+        function formatTime(time) {
+            return new Date(time).toLocaleString();
+        }
+
+        function restUrl(resource) {
+            var project = state.getProject(), repository = state.getRepository();
+            if (!project || !repository) {
+                return null;
+            }
+            return AJS.contextPath() + '/rest/mirror/1.0/projects/' + encodeURIComponent(project.key) +
+                '/repos/' + encodeURIComponent(repository.slug) + '/' + resource;
+        }
+
+        // Statuses and pauses are keyed by the URL a template expands to, as in MirrorUrlTemplate
+        function expandUrl(url) {
+            var project = state.getProject(), repository = state.getRepository();
+            if (!url || !project || !repository) {
+                return url;
+            }
+            return url.split('{project}').join(project.key.toLowerCase())
+                .split('{repo}').join(repository.slug);
+        }
+
+        function control(action, mirrorRepoUrl) {
+            $.ajax({
+                url: restUrl('mirrors/' + action) + '?mirrorRepoUrl=' + encodeURIComponent(mirrorRepoUrl),
+                type: 'POST',
+                headers: {'X-Atlassian-Token': 'no-check'}
+            }).always(loadStatus);
+        }
+
+        function renderStatus(container, status, mirrorRepoUrl) {
+            var type, title, message, html, controls;
+
+            container.empty();
+            if (!mirrorRepoUrl) {
+                return;
+            }
+            status = status || {};
+
+            if (status.paused) {
+                type = 'warning';
+                title = 'Paused';
+            } else if (status.lastFailure && !(status.lastSuccess > status.lastFailure)) {
+                type = 'error';
+                title = 'Last push failed at ' + formatTime(status.lastFailure);
+                message = status.lastError;
+            } else if (status.lastSuccess) {
+                type = 'success';
+                title = 'Last pushed at ' + formatTime(status.lastSuccess);
+            } else {
+                type = 'info';
+                title = 'Waiting for the first push';
+            }
+            if (status.queued > 0) {
+                title += ' (' + status.queued + ' queued)';
+            }
+
+            html = $('<div class="aui-message"/>').addClass('aui-message-' + type)
+                .append($('<p class="title"/>').append($('<strong/>').text(title)));
+            if (message) {
+                html.append($('<pre/>').text(message));
+            }
+
+            controls = $('<p/>');
+            if (!status.paused) {
+                controls.append($(createButton({text: 'Push now', extraClasses: 'et-push-button',
+                    extraAttributes: 'type=button'})).click(function () {
+                    control('push', mirrorRepoUrl);
+                }));
+            }
+            controls.append($(createButton({text: status.paused ? 'Resume' : 'Pause',
+                extraClasses: 'et-pause-button', extraAttributes: 'type=button'})).click(function () {
+                control(status.paused ? 'resume' : 'pause', mirrorRepoUrl);
+            }));
+
+            container.append(html.append(controls));
+        }
+
+        function loadStatus() {
+            var url = restUrl('status');
+            if (!url) {
+                return;
+            }
+
+            $.ajax({
+                url: url,
+                dataType: 'json'
+            }).done(function (data) {
+                var statuses = {};
+                $.each(data.values || [], function (i, status) {
+                    statuses[status.mirrorRepoUrl] = status;
+                });
+
+                // Only mirrors which have been saved can be controlled
+                $('.et-mirror-group').each(function () {
+                    var group = $(this), input = group.find('.et-mirror-repo input');
+                    var saved = expandUrl(input.prop('defaultValue'));
+                    renderStatus(group.find('.et-mirror-status'), statuses[saved], saved);
+                });
+            });
+        }
+
         addRemoveButton();
+        loadStatus();
     }
 
 });
\ No newline at end of file
@@ -0,0 +1,234 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+import static org.mockito.AdditionalAnswers.returnsFirstArg;
+import static org.mockito.AdditionalAnswers.returnsLastArg;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link DefaultMirrorCredentialProvider}
+ */
+public class DefaultMirrorCredentialProviderTest {
+
+    private static final String URL_HTTP = "https://bitbucket-mirror.englishtown.com/scm/test/test.git";
+
+    @Rule
+    public MockitoRule mockitoRule = MockitoJUnit.rule().silent();
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Mock
+    private MirrorCredentialStore credentialStore;
+    @Mock
+    private ApplicationPropertiesService propertiesService;
+
+    private final AtomicLong clock = new AtomicLong(1_000_000L);
+    private final List<String> authorizations = new ArrayList<>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private DefaultMirrorCredentialProvider provider;
+    private HttpServer server;
+
+    @Before
+    public void setup() throws IOException {
+        when(credentialStore.resolve(anyString())).thenAnswer(returnsFirstArg());
+        when(propertiesService.getPluginProperty(anyString(), anyLong())).thenAnswer(returnsLastArg());
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/token", exchange -> {
+            authorizations.add(exchange.getRequestHeaders().getFirst("Authorization"));
+            byte[] body = ("{\"access_token\":\"token-" + requests.incrementAndGet() +
+                    "\",\"token_type\":\"bearer\",\"expires_in\":300}").getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+
+        when(propertiesService.getPluginProperty(eq(MirrorCredentialSources.PROP_CREDENTIALS_DIR)))
+                .thenReturn(temporaryFolder.getRoot().getPath());
+        when(propertiesService.getPluginProperty(eq(MirrorCredentialSources.PROP_TOKEN_ENDPOINTS)))
+                .thenReturn("https://auth.englishtown.com/token " + tokenEndpoint());
+        provider = new DefaultMirrorCredentialProvider(credentialStore, propertiesService, clock::get);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testStaticCredentials() {
+        MirrorCredentials credentials = provider.getCredentials(settings(MirrorSettings.CREDENTIALS_STATIC, ""));
+
+        assertEquals("user", credentials.getUsername());
+        assertEquals("secret", credentials.getPassword());
+        assertFalse(credentials.isExpired(Long.MAX_VALUE - 1L));
+    }
+
+    @Test
+    public void testCredentialsForSsh() {
+        MirrorSettings settings = settings(MirrorSettings.CREDENTIALS_TOKEN, tokenEndpoint())
+                .withUrl("ssh://git@bitbucket-mirror.englishtown.com/scm/test/test.git");
+
+        assertTrue(provider.getCredentials(settings).isEmpty());
+        assertEquals(0, requests.get());
+    }
+
+    @Test
+    public void testFileCredentials() throws IOException {
+        Path file = temporaryFolder.newFile("token").toPath();
+        Files.write(file, "rotated-token\n".getBytes(StandardCharsets.UTF_8));
+        MirrorSettings settings = settings(MirrorSettings.CREDENTIALS_FILE, file.toString());
+
+        assertEquals("rotated-token", provider.getCredentials(settings).getPassword());
+
+        // The file is read every time, so rotated tokens are picked up
+        Files.write(file, "next-token".getBytes(StandardCharsets.UTF_8));
+        MirrorCredentials credentials = provider.getCredentials(settings);
+        assertEquals("user", credentials.getUsername());
+        assertEquals("next-token", credentials.getPassword());
+    }
+
+    @Test
+    public void testFileCredentialsWithRelativePath() throws IOException {
+        Files.write(temporaryFolder.newFile("token").toPath(), "relative-token".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals("relative-token",
+                provider.getCredentials(settings(MirrorSettings.CREDENTIALS_FILE, "token")).getPassword());
+    }
+
+    @Test
+    public void testFileCredentialsOutsideDirectory() throws IOException {
+        File outside = File.createTempFile("bitbucket", ".properties");
+        try {
+            for (String path : new String[]{outside.getPath(), "../" + outside.getName(), "sub/../../x"}) {
+                try {
+                    provider.getCredentials(settings(MirrorSettings.CREDENTIALS_FILE, path));
+                    fail("Expected " + path + " to be rejected");
+                } catch (IllegalStateException expected) {
+                    assertTrue(expected.getMessage().contains(MirrorCredentialSources.PROP_CREDENTIALS_DIR));
+                }
+            }
+        } finally {
+            Files.delete(outside.toPath());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testFileCredentialsNotAllowed() throws IOException {
+        when(propertiesService.getPluginProperty(eq(MirrorCredentialSources.PROP_CREDENTIALS_DIR))).thenReturn(null);
+        provider = new DefaultMirrorCredentialProvider(credentialStore, propertiesService, clock::get);
+        Path file = temporaryFolder.newFile("token").toPath();
+
+        provider.getCredentials(settings(MirrorSettings.CREDENTIALS_FILE, file.toString()));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testFileCredentialsWithMissingFile() {
+        provider.getCredentials(settings(MirrorSettings.CREDENTIALS_FILE,
+                temporaryFolder.getRoot().toPath().resolve("missing").toString()));
+    }
+
+    @Test
+    public void testTokenCredentials() {
+        MirrorSettings settings = settings(MirrorSettings.CREDENTIALS_TOKEN, tokenEndpoint());
+
+        MirrorCredentials credentials = provider.getCredentials(settings);
+        assertEquals("user", credentials.getUsername());
+        assertEquals("token-1", credentials.getPassword());
+        assertEquals("Basic " + Base64.getEncoder().encodeToString("user:secret".getBytes(StandardCharsets.UTF_8)),
+                authorizations.get(0));
+
+        // The token is reused until shortly before it expires
+        clock.addAndGet(TimeUnit.SECONDS.toMillis(200L));
+        assertEquals("token-1", provider.getCredentials(settings).getPassword());
+        assertEquals(1, requests.get());
+
+        clock.addAndGet(TimeUnit.SECONDS.toMillis(50L));
+        assertEquals("token-2", provider.getCredentials(settings).getPassword());
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void testTokenCredentialsWithEndpointNotAllowed() {
+        MirrorSettings settings = settings(MirrorSettings.CREDENTIALS_TOKEN, tokenEndpoint() + "/other");
+
+        try {
+            provider.getCredentials(settings);
+            fail("Expected the endpoint to be rejected");
+        } catch (IllegalStateException expected) {
+            assertTrue(expected.getMessage().contains(MirrorCredentialSources.PROP_TOKEN_ENDPOINTS));
+        }
+        assertEquals(0, requests.get());
+    }
+
+    @Test
+    public void testInvalidateTokenCredentials() {
+        MirrorSettings settings = settings(MirrorSettings.CREDENTIALS_TOKEN, tokenEndpoint());
+
+        assertEquals("token-1", provider.getCredentials(settings).getPassword());
+        provider.invalidate(settings);
+        assertEquals("token-2", provider.getCredentials(settings).getPassword());
+    }
+
+    @Test
+    public void testParseToken() throws IOException {
+        MirrorCredentials credentials = DefaultMirrorCredentialProvider.parseToken(new ByteArrayInputStream(
+                ("{\"scope\":[\"repo\"],\"username\":\"x-token-auth\",\"access_token\":\"abc\"}")
+                        .getBytes(StandardCharsets.UTF_8)), "user", 1000L);
+
+        assertEquals("x-token-auth", credentials.getUsername());
+        assertEquals("abc", credentials.getPassword());
+        assertEquals(1000L + DefaultMirrorCredentialProvider.DEFAULT_LIFETIME, credentials.getExpiresAt());
+    }
+
+    @Test(expected = IOException.class)
+    public void testParseTokenWithoutAccessToken() throws IOException {
+        DefaultMirrorCredentialProvider.parseToken(new ByteArrayInputStream(
+                "{\"error\":\"invalid_client\"}".getBytes(StandardCharsets.UTF_8)), "user", 1000L);
+    }
+
+    private String tokenEndpoint() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/token";
+    }
+
+    private static MirrorSettings settings(String credentialType, String credentialSource) {
+        MirrorSettings settings = new MirrorSettings();
+        settings.mirrorRepoUrl = URL_HTTP;
+        settings.username = "user";
+        settings.password = "secret";
+        settings.credentialType = credentialType;
+        settings.credentialSource = credentialSource;
+        return settings;
+    }
+}
@@ -0,0 +1,132 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.scope.Scope;
+import com.atlassian.bitbucket.scope.Scopes;
+import com.atlassian.sal.api.transaction.TransactionCallback;
+import net.java.ao.DBParam;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link DefaultMirrorCredentialStore}
+ */
+public class DefaultMirrorCredentialStoreTest {
+
+    @Rule
+    public MockitoRule mockitoRule = MockitoJUnit.rule().silent();
+
+    @Mock
+    private ActiveObjects ao;
+    @Mock
+    private PasswordEncryptor passwordEncryptor;
+
+    private Scope scope;
+    private DefaultMirrorCredentialStore store;
+
+    @Before
+    public void setup() {
+        when(ao.executeInTransaction(any())).thenAnswer(invocation ->
+                invocation.<TransactionCallback<?>>getArgument(0).doInTransaction());
+        when(passwordEncryptor.encrypt(anyString())).thenAnswer(invocation -> "encrypted:" + invocation.getArgument(0));
+        when(passwordEncryptor.decrypt(anyString())).thenAnswer(invocation ->
+                invocation.<String>getArgument(0).substring("encrypted:".length()));
+
+        Repository repository = mock(Repository.class);
+        when(repository.getId()).thenReturn(1);
+        scope = Scopes.repository(repository);
+        store = new DefaultMirrorCredentialStore(ao, passwordEncryptor);
+    }
+
+    @Test
+    public void testStore() {
+        String reference = store.store(scope, "secret");
+
+        assertTrue(store.isReference(reference));
+        assertFalse(store.isReference("encrypted:secret"));
+        verify(passwordEncryptor).encrypt(eq("secret"));
+        verify(ao).create(eq(MirrorStoredCredential.class),
+                any(DBParam.class), any(DBParam.class), any(DBParam.class));
+    }
+
+    @Test
+    public void testResolveIsCached() {
+        MirrorStoredCredential credential = mockCredential("id", "encrypted:secret");
+        when(ao.find(eq(MirrorStoredCredential.class), anyString(), eq("id")))
+                .thenReturn(new MirrorStoredCredential[]{credential});
+
+        assertEquals("secret", store.resolve("stored:id"));
+        assertEquals("secret", store.resolve("stored:id"));
+
+        verify(ao).find(eq(MirrorStoredCredential.class), anyString(), eq("id"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testResolveMissing() {
+        when(ao.find(eq(MirrorStoredCredential.class), anyString(), eq("id")))
+                .thenReturn(new MirrorStoredCredential[0]);
+
+        store.resolve("stored:id");
+    }
+
+    @Test
+    public void testResolveInlinePassword() {
+        assertEquals("secret", store.resolve("encrypted:secret"));
+
+        verifyZeroInteractions(ao);
+    }
+
+    @Test
+    public void testRetain() {
+        MirrorStoredCredential kept = mockCredential("kept", "encrypted:kept");
+        MirrorStoredCredential removed = mockCredential("removed", "encrypted:removed");
+        when(ao.find(eq(MirrorStoredCredential.class), anyString(), eq("REPOSITORY:1")))
+                .thenReturn(new MirrorStoredCredential[]{kept, removed});
+
+        store.retain(scope, Collections.singletonList("stored:kept"));
+
+        verify(ao).delete(removed);
+        verify(ao, never()).delete(kept);
+    }
+
+    @Test
+    public void testReencrypt() {
+        MirrorStoredCredential current = mockCredential("current", "encrypted:v2:2:current");
+        MirrorStoredCredential stale = mockCredential("stale", "encrypted:v2:1:stale");
+        when(ao.find(eq(MirrorStoredCredential.class), anyString(), eq("REPOSITORY:1")))
+                .thenReturn(new MirrorStoredCredential[]{current, stale});
+        when(passwordEncryptor.needsReencryption(eq("encrypted:v2:1:stale"))).thenReturn(true);
+        doReturn("encrypted:v2:2:stale").when(passwordEncryptor).encrypt(eq("encrypted:v2:1:stale"));
+
+        assertEquals(1, store.reencrypt(scope));
+
+        verify(stale).setPassword(eq("encrypted:v2:2:stale"));
+        verify(stale).save();
+        verify(current, never()).save();
+    }
+
+    @Test
+    public void testGetScopeKey() {
+        assertEquals("REPOSITORY:1", DefaultMirrorCredentialStore.getScopeKey(scope));
+        assertEquals("GLOBAL:0", DefaultMirrorCredentialStore.getScopeKey(Scopes.global()));
+    }
+
+    private static MirrorStoredCredential mockCredential(String credentialId, String password) {
+        MirrorStoredCredential credential = mock(MirrorStoredCredential.class);
+        when(credential.getCredentialId()).thenReturn(credentialId);
+        when(credential.getPassword()).thenReturn(password);
+        return credential;
+    }
+}
@@ -0,0 +1,85 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.sal.api.pluginsettings.PluginSettings;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import static com.englishtown.bitbucket.hook.DefaultPasswordEncryptor.PLUGIN_SETTINGS_KEY;
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link DefaultMirrorPauseService}
+ */
+public class DefaultMirrorPauseServiceTest {
+
+    private static final String URL_1 = "ssh://git@bitbucket-mirror.englishtown.com/scm/test/one.git";
+    private static final String URL_2 = "ssh://git@bitbucket-mirror.englishtown.com/scm/test/two.git";
+
+    @Rule
+    public MockitoRule mockitoRule = MockitoJUnit.rule().silent();
+
+    @Mock
+    private PluginSettings pluginSettings;
+    @Mock
+    private PluginSettingsFactory pluginSettingsFactory;
+    private DefaultMirrorPauseService pauseService;
+    private final Map<String, Object> values = new HashMap<>();
+
+    @Before
+    public void setup() {
+        when(pluginSettingsFactory.createSettingsForKey(eq(PLUGIN_SETTINGS_KEY))).thenReturn(pluginSettings);
+        when(pluginSettings.get(anyString())).thenAnswer(invocation -> values.get(invocation.<String>getArgument(0)));
+        when(pluginSettings.put(anyString(), any())).thenAnswer(invocation ->
+                values.put(invocation.getArgument(0), invocation.getArgument(1)));
+        when(pluginSettings.remove(anyString())).thenAnswer(invocation ->
+                values.remove(invocation.<String>getArgument(0)));
+
+        pauseService = new DefaultMirrorPauseService(pluginSettingsFactory);
+    }
+
+    @Test
+    public void testPauseAndResume() {
+        assertFalse(pauseService.isPaused(1, URL_1));
+
+        pauseService.pause(1, URL_1);
+        pauseService.pause(1, URL_2);
+        pauseService.pause(1, URL_1);
+
+        assertTrue(pauseService.isPaused(1, URL_1));
+        assertFalse(pauseService.isPaused(2, URL_1));
+        assertEquals(new LinkedHashSet<>(Arrays.asList(URL_1, URL_2)), pauseService.getPaused(1));
+
+        assertTrue(pauseService.resume(1, URL_1));
+        assertFalse(pauseService.resume(1, URL_1));
+        assertEquals(Collections.singleton(URL_2), pauseService.getPaused(1));
+
+        assertTrue(pauseService.resume(1, URL_2));
+        assertTrue(values.isEmpty());
+    }
+
+    @Test
+    public void testClear() {
+        pauseService.pause(1, URL_1);
+        pauseService.pause(2, URL_1);
+
+        pauseService.clear(1);
+
+        assertTrue(pauseService.getPaused(1).isEmpty());
+        assertTrue(pauseService.isPaused(2, URL_1));
+    }
+}
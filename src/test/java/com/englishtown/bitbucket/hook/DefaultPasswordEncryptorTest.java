@@ -1,16 +1,28 @@
 package com.englishtown.bitbucket.hook;
 
+import com.atlassian.beehive.ClusterLock;
+import com.atlassian.beehive.ClusterLockService;
 import com.atlassian.sal.api.pluginsettings.PluginSettings;
 import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnit;
 import org.mockito.junit.MockitoRule;
 
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
 import static org.junit.Assert.*;
-import static org.mockito.Mockito.when;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
 
 /**
  * DefaultPasswordEncryptor unit tests
@@ -20,22 +32,31 @@ public class DefaultPasswordEncryptorTest {
     private final static String CRYPTO_KEY = "m3ys5YexQc7irRlmJeCwAw==";
 
     @Rule
-    public MockitoRule mockitoRule = MockitoJUnit.rule();
+    public MockitoRule mockitoRule = MockitoJUnit.rule().silent();
 
+    @Mock
+    private ClusterLock keyLock;
+    @Mock
+    private ClusterLockService lockService;
     @Mock
     private PluginSettings pluginSettings;
     @Mock
     private PluginSettingsFactory pluginSettingsFactory;
 
     private DefaultPasswordEncryptor encryptor;
+    private final Map<String, Object> values = new HashMap<>();
 
     @Before
     public void setUp() {
+        values.put(DefaultPasswordEncryptor.SETTINGS_CRYPTO_KEY, CRYPTO_KEY);
         when(pluginSettingsFactory.createSettingsForKey(DefaultPasswordEncryptor.PLUGIN_SETTINGS_KEY))
                 .thenReturn(pluginSettings);
-        when(pluginSettings.get(DefaultPasswordEncryptor.SETTINGS_CRYPTO_KEY)).thenReturn(CRYPTO_KEY);
+        when(pluginSettings.get(anyString())).thenAnswer(invocation -> values.get(invocation.<String>getArgument(0)));
+        when(pluginSettings.put(anyString(), any())).thenAnswer(invocation ->
+                values.put(invocation.getArgument(0), invocation.getArgument(1)));
+        when(lockService.getLockForName(DefaultPasswordEncryptor.KEY_LOCK_NAME)).thenReturn(keyLock);
 
-        encryptor = new DefaultPasswordEncryptor(pluginSettingsFactory);
+        encryptor = new DefaultPasswordEncryptor(pluginSettingsFactory, lockService);
     }
 
     @Test
@@ -82,4 +103,130 @@ public class DefaultPasswordEncryptorTest {
         String redecrypted = encryptor.decrypt(decrypted);
         assertEquals(decrypted, redecrypted);
     }
+
+    @Test
+    public void testEncryptWithVersionedKey() {
+        assertEquals(1, encryptor.getKeyVersion());
+
+        String encrypted = encryptor.encrypt("test");
+        assertTrue(encrypted.startsWith(DefaultPasswordEncryptor.ENCRYPTED_V2_PREFIX + "1:"));
+        assertFalse(encryptor.needsReencryption(encrypted));
+        // Every password has its own data key and IV
+        assertNotEquals(encrypted, encryptor.encrypt(encryptor.decrypt(encrypted)));
+        assertEquals("test", encryptor.decrypt(encrypted));
+        assertEquals("p\u00e4ssw\u00f6rd", encryptor.decrypt(encryptor.encrypt("p\u00e4ssw\u00f6rd")));
+    }
+
+    @Test
+    public void testDecryptLegacyPassword() throws Exception {
+        Cipher cipher = Cipher.getInstance("AES");
+        byte[] key = Base64.getDecoder().decode(CRYPTO_KEY);
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+        String legacy = DefaultPasswordEncryptor.ENCRYPTED_PREFIX +
+                Base64.getEncoder().encodeToString(cipher.doFinal("test".getBytes(StandardCharsets.UTF_8)));
+
+        assertTrue(encryptor.needsReencryption(legacy));
+        assertEquals("test", encryptor.decrypt(legacy));
+
+        // Encrypting a password which was encrypted with an older key re-encrypts it
+        String reencrypted = encryptor.encrypt(legacy);
+        assertTrue(reencrypted.startsWith(DefaultPasswordEncryptor.ENCRYPTED_V2_PREFIX));
+        assertFalse(encryptor.needsReencryption(reencrypted));
+        assertEquals("test", encryptor.decrypt(reencrypted));
+    }
+
+    @Test
+    public void testRotateKey() {
+        String encrypted = encryptor.encrypt("test");
+
+        assertEquals(2, encryptor.rotateKey());
+        assertEquals("2", values.get(DefaultPasswordEncryptor.SETTINGS_KEY_VERSION));
+        assertTrue(encryptor.needsReencryption(encrypted));
+        assertEquals("test", encryptor.decrypt(encrypted));
+
+        String reencrypted = encryptor.encrypt(encrypted);
+        assertTrue(reencrypted.startsWith(DefaultPasswordEncryptor.ENCRYPTED_V2_PREFIX + "2:"));
+        assertEquals("test", encryptor.decrypt(reencrypted));
+    }
+
+    @Test
+    public void testKeysAreSharedBetweenNodes() {
+        // Another node reads the keys from the same plugin settings, including keys added after it started
+        DefaultPasswordEncryptor other = new DefaultPasswordEncryptor(pluginSettingsFactory, lockService);
+        encryptor.rotateKey();
+
+        String encrypted = encryptor.encrypt("test");
+        assertEquals("test", other.decrypt(encrypted));
+        assertFalse(other.needsReencryption(encrypted));
+    }
+
+    @Test
+    public void testKeysAreCreatedWhileHoldingTheClusterLock() {
+        InOrder inOrder = inOrder(keyLock, pluginSettings);
+        inOrder.verify(keyLock).lock();
+        inOrder.verify(pluginSettings).put(eq(DefaultPasswordEncryptor.SETTINGS_KEY_PREFIX + "1"), anyString());
+        inOrder.verify(pluginSettings).put(DefaultPasswordEncryptor.SETTINGS_KEY_VERSION, "1");
+        inOrder.verify(keyLock).unlock();
+
+        encryptor.rotateKey();
+        inOrder.verify(keyLock).lock();
+        inOrder.verify(pluginSettings).put(eq(DefaultPasswordEncryptor.SETTINGS_KEY_PREFIX + "2"), anyString());
+        inOrder.verify(pluginSettings).put(DefaultPasswordEncryptor.SETTINGS_KEY_VERSION, "2");
+        inOrder.verify(keyLock).unlock();
+    }
+
+    @Test
+    public void testKeyCreatedByAnotherNodeIsUsed() {
+        // Another node created the key while this node was waiting for the lock
+        values.clear();
+        doAnswer(invocation -> {
+            values.put(DefaultPasswordEncryptor.SETTINGS_KEY_PREFIX + "1", CRYPTO_KEY);
+            values.put(DefaultPasswordEncryptor.SETTINGS_KEY_VERSION, "1");
+            return null;
+        }).when(keyLock).lock();
+
+        encryptor = new DefaultPasswordEncryptor(pluginSettingsFactory, lockService);
+
+        assertEquals(CRYPTO_KEY, values.get(DefaultPasswordEncryptor.SETTINGS_KEY_PREFIX + "1"));
+        assertNull(values.get(DefaultPasswordEncryptor.SETTINGS_KEY_PREFIX + "2"));
+        assertEquals("test", encryptor.decrypt(encryptor.encrypt("test")));
+    }
+
+    @Test
+    public void testRotateKeyDoesNotReplaceKeys() {
+        // A key which was written, but never became the current version
+        values.put(DefaultPasswordEncryptor.SETTINGS_KEY_PREFIX + "2", CRYPTO_KEY);
+
+        assertEquals(3, encryptor.rotateKey());
+        assertEquals(CRYPTO_KEY, values.get(DefaultPasswordEncryptor.SETTINGS_KEY_PREFIX + "2"));
+        assertEquals("3", values.get(DefaultPasswordEncryptor.SETTINGS_KEY_VERSION));
+    }
+
+    @Test
+    public void testRotateKeyUsesTheStoredKey() {
+        encryptor.rotateKey();
+        // Whatever is in the plugin settings is used, rather than the key this node generated
+        values.put(DefaultPasswordEncryptor.SETTINGS_KEY_PREFIX + "2", CRYPTO_KEY);
+
+        String encrypted = encryptor.encrypt("test");
+        DefaultPasswordEncryptor other = new DefaultPasswordEncryptor(pluginSettingsFactory, lockService);
+        assertEquals("test", other.decrypt(encrypted));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRotateKeyFailsIfTheKeyWasNotStored() {
+        doAnswer(invocation -> null).when(pluginSettings)
+                .put(eq(DefaultPasswordEncryptor.SETTINGS_KEY_VERSION), anyString());
+
+        encryptor.rotateKey();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDecryptTamperedKeyVersion() {
+        encryptor.rotateKey();
+        String encrypted = encryptor.encrypt("test");
+
+        encryptor.decrypt(encrypted.replace(DefaultPasswordEncryptor.ENCRYPTED_V2_PREFIX + "2:",
+                DefaultPasswordEncryptor.ENCRYPTED_V2_PREFIX + "1:"));
+    }
 }
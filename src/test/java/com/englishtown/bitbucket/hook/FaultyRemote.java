@@ -0,0 +1,150 @@
+package com.englishtown.bitbucket.hook;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+/**
+ * Fronts a local remote for {@link MirrorFaultInjectionTest}. Git runs it through the {@code ext::} transport, and it
+ * relays the git protocol between git and {@code git receive-pack}, injecting the faults configured in a properties
+ * file:
+ * <ul>
+ * <li>{@value #LATENCY}: milliseconds to wait before connecting to the remote</li>
+ * <li>{@value #RATE}: bytes per second sent to the remote, {@code 0} for no limit</li>
+ * <li>{@value #HANG_AFTER}: bytes after which the remote stops responding, {@code -1} to never hang</li>
+ * <li>{@value #HANG_FOR}: milliseconds the remote stops responding for, after which it exits</li>
+ * <li>{@value #REJECT}: the number of connections to reject before accepting any</li>
+ * </ul>
+ * Every connection is counted in a file next to the configuration. Only the JDK is used, so the wrapper can run with
+ * just the test classes on its class path.
+ */
+public class FaultyRemote {
+
+    static final String HANG_AFTER = "hangAfter";
+    static final String HANG_FOR = "hangFor";
+    static final String LATENCY = "latency";
+    static final String RATE = "rate";
+    static final String REJECT = "reject";
+
+    static final String CONNECTIONS_SUFFIX = ".connections";
+
+
+    public static void main(String[] args) throws Exception {
+        Path config = Paths.get(args[0]);
+        String service = args[1];
+        String remote = args[2];
+
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(config.toFile())) {
+            properties.load(in);
+        }
+        long hangAfter = Long.parseLong(properties.getProperty(HANG_AFTER, "-1"));
+        long hangFor = Long.parseLong(properties.getProperty(HANG_FOR, "60000"));
+        long latency = Long.parseLong(properties.getProperty(LATENCY, "0"));
+        long rate = Long.parseLong(properties.getProperty(RATE, "0"));
+        int reject = Integer.parseInt(properties.getProperty(REJECT, "0"));
+
+        int connection = countConnection(Paths.get(config + CONNECTIONS_SUFFIX));
+        if (connection <= reject) {
+            System.err.println("fatal: the remote rejected connection " + connection + " (injected)");
+            System.exit(128);
+        }
+        Thread.sleep(latency);
+
+        // git-receive-pack is run as "git receive-pack", as the dashed form is not always on the path
+        Process process = new ProcessBuilder("git", service.replaceFirst("^git-", ""), remote).start();
+        Thread stdout = pump(process.getInputStream(), System.out);
+        Thread stderr = pump(process.getErrorStream(), System.err);
+
+        byte[] buffer = new byte[8192];
+        long forwarded = 0L;
+        long started = System.nanoTime();
+        OutputStream upstream = process.getOutputStream();
+        int read;
+        while ((read = System.in.read(buffer)) != -1) {
+            if (hangAfter >= 0L && forwarded + read > hangAfter) {
+                // Stop responding, while still reading what git sends, until long after git should have given up
+                long until = System.currentTimeMillis() + hangFor;
+                while (System.in.read(buffer) != -1) {
+                    // Discard
+                }
+                Thread.sleep(Math.max(0L, until - System.currentTimeMillis()));
+                process.destroy();
+                System.exit(1);
+            }
+            upstream.write(buffer, 0, read);
+            upstream.flush();
+            forwarded += read;
+            if (rate > 0L) {
+                long due = started + forwarded * 1_000_000_000L / rate;
+                long wait = due - System.nanoTime();
+                if (wait > 0L) {
+                    Thread.sleep(wait / 1_000_000L, (int) (wait % 1_000_000L));
+                }
+            }
+        }
+        upstream.close();
+
+        int exitCode = process.waitFor();
+        stdout.join();
+        stderr.join();
+        System.out.flush();
+        System.exit(exitCode);
+    }
+
+    /**
+     * @return how many connections were made so far, including this one
+     */
+    static int countConnection(Path counter) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(counter.toFile(), "rw");
+             FileChannel channel = file.getChannel();
+             FileLock ignored = channel.lock()) {
+            String value = file.length() == 0L ? "0" : file.readLine().trim();
+            int count = Integer.parseInt(value) + 1;
+            file.setLength(0L);
+            file.write(String.valueOf(count).getBytes(StandardCharsets.US_ASCII));
+            return count;
+        }
+    }
+
+    /**
+     * @return how many connections were made to the remote with the configuration
+     */
+    static int getConnections(Path config) throws IOException {
+        Path counter = Paths.get(config + CONNECTIONS_SUFFIX);
+        if (!Files.exists(counter)) {
+            return 0;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(counter.toFile(), "r");
+             FileChannel channel = file.getChannel();
+             FileLock ignored = channel.lock(0L, Long.MAX_VALUE, true)) {
+            return file.length() == 0L ? 0 : Integer.parseInt(file.readLine().trim());
+        }
+    }
+
+    private static Thread pump(InputStream in, OutputStream out) {
+        Thread thread = new Thread(() -> {
+            byte[] buffer = new byte[8192];
+            try {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // The remote or git went away
+            }
+        });
+        thread.start();
+        return thread;
+    }
+}
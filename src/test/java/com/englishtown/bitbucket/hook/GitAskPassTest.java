@@ -0,0 +1,87 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.scm.git.command.GitScmCommandBuilder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link GitAskPass}
+ */
+public class GitAskPassTest {
+
+    @Rule
+    public MockitoRule mockitoRule = MockitoJUnit.rule().silent();
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Mock
+    private GitScmCommandBuilder builder;
+
+    @Test
+    public void testConfigure() {
+        Path directory = temporaryFolder.getRoot().toPath();
+        GitAskPass askPass = new GitAskPass(() -> directory);
+
+        askPass.configure(builder, new MirrorCredentials("user", "secret"));
+
+        verify(builder).withEnvironment(eq("GIT_TERMINAL_PROMPT"), eq("0"));
+        verify(builder).withEnvironment(eq("GIT_ASKPASS"), eq(directory.resolve("mirror-askpass.sh").toString()));
+        verify(builder).withEnvironment(eq(GitAskPass.ENV_USERNAME), eq("user"));
+        verify(builder).withEnvironment(eq(GitAskPass.ENV_PASSWORD), eq("secret"));
+    }
+
+    @Test
+    public void testConfigureWithoutCredentials() {
+        GitAskPass askPass = new GitAskPass(() -> {
+            throw new AssertionError("The script should not be written");
+        });
+
+        askPass.configure(builder, MirrorCredentials.NONE);
+
+        verify(builder).withEnvironment(eq("GIT_TERMINAL_PROMPT"), eq("0"));
+        verifyNoMoreInteractions(builder);
+    }
+
+    @Test
+    public void testScript() throws Exception {
+        GitAskPass askPass = new GitAskPass(() -> temporaryFolder.getRoot().toPath());
+        Path script = askPass.getScript();
+
+        assertSame(script, askPass.getScript());
+        assertTrue(Files.isExecutable(script));
+        assertEquals("user", run(script, "Username for 'https://mirror': "));
+        assertEquals("p@ss word", run(script, "Password for 'https://user@mirror': "));
+    }
+
+    private static String run(Path script, String prompt) throws IOException, InterruptedException {
+        ProcessBuilder processBuilder = new ProcessBuilder(script.toString(), prompt);
+        processBuilder.environment().put(GitAskPass.ENV_USERNAME, "user");
+        processBuilder.environment().put(GitAskPass.ENV_PASSWORD, "p@ss word");
+        Process process = processBuilder.start();
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (InputStream in = process.getInputStream()) {
+            byte[] buffer = new byte[256];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+        }
+        assertEquals(0, process.waitFor());
+        return new String(output.toByteArray(), StandardCharsets.UTF_8).trim();
+    }
+}
@@ -0,0 +1,47 @@
+package com.englishtown.bitbucket.hook;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for {@link LfsPointerOutputHandler}
+ */
+public class LfsPointerOutputHandlerTest {
+
+    private static final String OID = "4d7a214614ab2935c943f9e0ff69d22eadbb8f32b1258daaa5e2ca24d17e2393";
+
+    @Test
+    public void testProcess() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        write(output, "1111111111111111111111111111111111111111", "tree", "100644 README\0binary-tree-entry");
+        write(output, "2222222222222222222222222222222222222222", "blob",
+                "version https://git-lfs.github.com/spec/v1\noid sha256:" + OID + "\nsize 12345\n");
+        write(output, "3333333333333333333333333333333333333333", "blob", "Not a pointer\noid sha256:" + OID);
+        output.write("4444444444444444444444444444444444444444 missing\n".getBytes(StandardCharsets.UTF_8));
+        StringBuilder large = new StringBuilder("version https://git-lfs.github.com/spec/v1\n");
+        while (large.length() < LfsPointerOutputHandler.MAX_POINTER_SIZE) {
+            large.append("padding\n");
+        }
+        write(output, "5555555555555555555555555555555555555555", "blob", large.toString());
+
+        LfsPointerOutputHandler handler = new LfsPointerOutputHandler();
+        handler.process(new ByteArrayInputStream(output.toByteArray()));
+
+        assertEquals(Collections.singleton(new MirrorLfsObject(OID, 12345L)), handler.getOutput());
+    }
+
+    private static void write(ByteArrayOutputStream output, String name, String type, String content)
+            throws IOException {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        output.write((name + " " + type + " " + bytes.length + "\n").getBytes(StandardCharsets.UTF_8));
+        output.write(bytes);
+        output.write('\n');
+    }
+}
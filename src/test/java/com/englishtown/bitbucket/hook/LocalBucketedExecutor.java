@@ -0,0 +1,146 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.concurrent.BucketProcessor;
+import com.atlassian.bitbucket.concurrent.BucketedExecutor;
+
+import javax.annotation.Nonnull;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Processes tasks like Bitbucket's bucketed executor, on a fixed number of threads: the tasks for a bucket are
+ * coalesced into one batch, a bucket is never processed by more than one thread at a time, and a batch which fails
+ * is retried up to a maximum number of attempts.
+ * <p>
+ * It also counts the attempts, and how many threads were busy processing at once, so tests can assert on how long
+ * pushes occupy the threads.
+ */
+class LocalBucketedExecutor<T extends Serializable> implements BucketedExecutor<T> {
+
+    private final AtomicInteger attempts = new AtomicInteger();
+    private final Function<T, String> bucketFunction;
+    private final AtomicInteger busy = new AtomicInteger();
+    private final AtomicInteger maxBusy = new AtomicInteger();
+    private final int maxAttempts;
+    private final BucketProcessor<T> processor;
+    private final ScheduledThreadPoolExecutor threads;
+    // Guarded by this
+    private final Map<String, List<T>> pending = new HashMap<>();
+    private final Set<String> processing = new HashSet<>();
+    private int scheduled;
+
+    LocalBucketedExecutor(Function<T, String> bucketFunction, BucketProcessor<T> processor, int maxAttempts,
+                          int threadCount) {
+        this.bucketFunction = bucketFunction;
+        this.maxAttempts = maxAttempts;
+        this.processor = processor;
+
+        threads = new ScheduledThreadPoolExecutor(threadCount);
+    }
+
+    /**
+     * Waits until no tasks are pending, scheduled or being processed
+     *
+     * @return {@code false} if the executor was still busy after the timeout
+     */
+    synchronized boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!pending.isEmpty() || !processing.isEmpty() || scheduled > 0) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0L) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    /**
+     * @return how many times a batch was passed to the processor
+     */
+    int getAttempts() {
+        return attempts.get();
+    }
+
+    /**
+     * @return the largest number of threads which were processing batches at once
+     */
+    int getMaxBusy() {
+        return maxBusy.get();
+    }
+
+    @Override
+    public void schedule(@Nonnull T task, long delay, @Nonnull TimeUnit unit) {
+        synchronized (this) {
+            ++scheduled;
+        }
+        threads.schedule(() -> {
+            synchronized (this) {
+                --scheduled;
+            }
+            submit(task);
+        }, delay, unit);
+    }
+
+    @Override
+    public void shutdown() {
+        threads.shutdownNow();
+    }
+
+    @Override
+    public void submit(@Nonnull T task) {
+        String bucket = bucketFunction.apply(task);
+        synchronized (this) {
+            pending.computeIfAbsent(bucket, key -> new ArrayList<>()).add(task);
+            if (!processing.add(bucket)) {
+                // The thread processing the bucket picks the task up when it is done
+                return;
+            }
+        }
+        threads.execute(() -> process(bucket, 1));
+    }
+
+    private void process(String bucket, int attempt) {
+        List<T> batch;
+        synchronized (this) {
+            batch = pending.remove(bucket);
+            if (batch == null) {
+                processing.remove(bucket);
+                notifyAll();
+                return;
+            }
+        }
+
+        int current = busy.incrementAndGet();
+        maxBusy.accumulateAndGet(current, Math::max);
+        attempts.incrementAndGet();
+        boolean retry = false;
+        try {
+            processor.process(bucket, batch);
+        } catch (RuntimeException e) {
+            retry = attempt < maxAttempts;
+            if (retry) {
+                // Tasks which arrived in the meantime are retried with the batch
+                synchronized (this) {
+                    List<T> arrived = pending.put(bucket, batch);
+                    if (arrived != null) {
+                        batch.addAll(arrived);
+                    }
+                }
+            }
+        } finally {
+            busy.decrementAndGet();
+        }
+        int next = retry ? attempt + 1 : 1;
+        threads.execute(() -> process(bucket, next));
+    }
+}
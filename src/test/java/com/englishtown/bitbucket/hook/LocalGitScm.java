@@ -0,0 +1,361 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.scm.Command;
+import com.atlassian.bitbucket.scm.CommandErrorHandler;
+import com.atlassian.bitbucket.scm.CommandExitHandler;
+import com.atlassian.bitbucket.scm.CommandFuture;
+import com.atlassian.bitbucket.scm.CommandInputHandler;
+import com.atlassian.bitbucket.scm.CommandOutputHandler;
+import com.atlassian.bitbucket.scm.ScmService;
+import com.atlassian.bitbucket.scm.git.command.GitCommand;
+import com.atlassian.bitbucket.scm.git.command.GitScmCommandBuilder;
+import com.atlassian.utils.process.OutputHandler;
+import com.atlassian.utils.process.Watchdog;
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.RETURNS_DEFAULTS;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Runs the commands built through its {@link #getScmService() ScmService} as real git processes in a local
+ * repository. Like Bitbucket's process engine, commands are killed when they exceed their execution timeout, or
+ * produce no output for their idle timeout, and {@link Command#start() started} commands run on a separate thread.
+ * <p>
+ * The builders and commands are Mockito mocks which answer the methods the mirror plugin uses.
+ */
+class LocalGitScm {
+
+    private static final Duration DEFAULT_TIMEOUT = Duration.ofMinutes(2L);
+    private static final long KILL_GRACE_PERIOD = 1000L;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Map<String, String> environment = new HashMap<>();
+    private final AtomicInteger killed = new AtomicInteger();
+    private final Path repository;
+    private final AtomicInteger running = new AtomicInteger();
+
+    /**
+     * @param repository the directory git runs in, as the repository being mirrored
+     */
+    LocalGitScm(Path repository) {
+        this.repository = repository;
+
+        // Allows remotes to be fronted by FaultyRemote
+        environment.put("GIT_CONFIG_PARAMETERS", "'protocol.ext.allow=always'");
+    }
+
+    ScmService getScmService() {
+        ScmService scmService = mock(ScmService.class);
+        doAnswer(invocation -> newBuilder()).when(scmService).createBuilder(any());
+        return scmService;
+    }
+
+    /**
+     * @return the number of commands which were killed for exceeding a timeout
+     */
+    int getKilled() {
+        return killed.get();
+    }
+
+    /**
+     * @return the number of git processes which are running
+     */
+    int getRunning() {
+        return running.get();
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Runs git in a directory, outside of any timeouts, e.g. to set up a repository
+     *
+     * @return the output of git
+     */
+    static String git(Path directory, String... args) {
+        List<String> command = new ArrayList<>();
+        command.add("git");
+        for (String arg : args) {
+            command.add(arg);
+        }
+        try {
+            Process process = new ProcessBuilder(command)
+                    .directory(directory.toFile())
+                    .redirectErrorStream(true)
+                    .start();
+            process.getOutputStream().close();
+            String output = new String(ByteStreams.toByteArray(process.getInputStream()), StandardCharsets.UTF_8);
+            if (process.waitFor() != 0) {
+                throw new IllegalStateException(command + " failed:\n" + output);
+            }
+            return output;
+        } catch (IOException e) {
+            throw new IllegalStateException(command + " failed", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(command + " was interrupted", e);
+        }
+    }
+
+    /**
+     * @return {@code true} if git can be run
+     */
+    static boolean isGitAvailable() {
+        try {
+            Process process = new ProcessBuilder("git", "--version").redirectErrorStream(true).start();
+            ByteStreams.exhaust(process.getInputStream());
+            return process.waitFor() == 0;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private GitScmCommandBuilder newBuilder() {
+        LocalCommand<Object> spec = new LocalCommand<>();
+        return mock(GitScmCommandBuilder.class, invocation -> {
+            Object[] args = invocation.getArguments();
+            switch (invocation.getMethod().getName()) {
+                case "argument":
+                    spec.arguments.add((String) args[0]);
+                    break;
+                case "clearArguments":
+                    spec.arguments.clear();
+                    break;
+                case "command":
+                    spec.command = (String) args[0];
+                    break;
+                case "errorHandler":
+                    spec.errorHandler = (CommandErrorHandler) args[0];
+                    break;
+                case "exitHandler":
+                    spec.exitHandler = (CommandExitHandler) args[0];
+                    break;
+                case "inputHandler":
+                    spec.inputHandler = (CommandInputHandler) args[0];
+                    break;
+                case "withEnvironment":
+                    spec.environment.put((String) args[0], (String) args[1]);
+                    break;
+                case "build":
+                    @SuppressWarnings("unchecked")
+                    CommandOutputHandler<Object> outputHandler = (CommandOutputHandler<Object>) args[0];
+                    spec.outputHandler = outputHandler;
+                    return spec.toCommand();
+                default:
+                    return RETURNS_DEFAULTS.answer(invocation);
+            }
+            return invocation.getMock();
+        });
+    }
+
+    private final class LocalCommand<T> implements Watchdog {
+
+        private final List<String> arguments = new ArrayList<>();
+        private final Map<String, String> environment = new HashMap<>(LocalGitScm.this.environment);
+        private String command;
+        private CommandErrorHandler errorHandler;
+        private Duration executionTimeout = DEFAULT_TIMEOUT;
+        private CommandExitHandler exitHandler;
+        private Duration idleTimeout = DEFAULT_TIMEOUT;
+        private CommandInputHandler inputHandler;
+        private CommandOutputHandler<T> outputHandler;
+        private volatile long lastActivity;
+        private volatile Process process;
+
+        /**
+         * Terminates the process, giving git the chance to terminate the processes it started, e.g. for the
+         * {@code ext::} transport, before killing it
+         */
+        @Override
+        public void cancel() {
+            Process current = process;
+            if (current == null) {
+                return;
+            }
+            current.destroy();
+            try {
+                if (!current.waitFor(KILL_GRACE_PERIOD, TimeUnit.MILLISECONDS)) {
+                    current.destroyForcibly();
+                }
+            } catch (InterruptedException e) {
+                current.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void resetWatchdog() {
+            lastActivity = System.nanoTime();
+        }
+
+        @SuppressWarnings("unchecked")
+        GitCommand<T> toCommand() {
+            GitCommand<T> gitCommand = mock(GitCommand.class, invocation -> {
+                Object[] args = invocation.getArguments();
+                switch (invocation.getMethod().getName()) {
+                    case "call":
+                        return call();
+                    case "start":
+                        LocalCommandFuture<T> future = new LocalCommandFuture<>();
+                        executor.execute(() -> {
+                            try {
+                                future.complete(call());
+                            } catch (RuntimeException e) {
+                                future.completeExceptionally(e);
+                            }
+                        });
+                        return future;
+                    case "setExecutionTimeout":
+                        executionTimeout = (Duration) args[0];
+                        return null;
+                    case "setIdleTimeout":
+                        idleTimeout = (Duration) args[0];
+                        return null;
+                    case "setTimeout":
+                        executionTimeout = idleTimeout = (Duration) args[0];
+                        return null;
+                    default:
+                        return RETURNS_DEFAULTS.answer(invocation);
+                }
+            });
+            return gitCommand;
+        }
+
+        private T call() {
+            List<String> commandLine = new ArrayList<>();
+            commandLine.add("git");
+            commandLine.add(command);
+            commandLine.addAll(arguments);
+            String description = String.join(" ", commandLine);
+
+            ProcessBuilder builder = new ProcessBuilder(commandLine).directory(repository.toFile());
+            builder.environment().putAll(environment);
+            running.incrementAndGet();
+            try {
+                process = builder.start();
+                resetWatchdog();
+                long started = System.nanoTime();
+
+                ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+                Thread stdoutPump = pump(process.getInputStream(), outputHandler, null);
+                Thread stderrPump = pump(process.getErrorStream(), errorHandler, stderr);
+                if (inputHandler != null) {
+                    inputHandler.setWatchdog(this);
+                    executor.execute(() -> inputHandler.process(process.getOutputStream()));
+                } else {
+                    process.getOutputStream().close();
+                }
+
+                String timeout = null;
+                while (!process.waitFor(20L, TimeUnit.MILLISECONDS)) {
+                    long now = System.nanoTime();
+                    if (now - started > executionTimeout.toNanos()) {
+                        timeout = "execution timeout of " + executionTimeout.getSeconds() + "s";
+                    } else if (now - lastActivity > idleTimeout.toNanos()) {
+                        timeout = "idle timeout of " + idleTimeout.getSeconds() + "s";
+                    }
+                    if (timeout != null) {
+                        killed.incrementAndGet();
+                        cancel();
+                        process.waitFor();
+                        break;
+                    }
+                }
+                // Processes started by git may hold on to its output after it was killed, so the output is abandoned
+                stdoutPump.join(timeout == null ? 0L : KILL_GRACE_PERIOD);
+                stderrPump.join(timeout == null ? 0L : KILL_GRACE_PERIOD);
+
+                if (timeout != null) {
+                    throw new IllegalStateException("'" + description + "' exceeded its " + timeout);
+                }
+                if (exitHandler != null) {
+                    exitHandler.onExit(description, process.exitValue(), stderr.toString("UTF-8"), null);
+                } else if (process.exitValue() != 0) {
+                    throw new IllegalStateException("'" + description + "' exited with " + process.exitValue() +
+                            ":\n" + stderr.toString("UTF-8"));
+                }
+                return outputHandler.getOutput();
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to run '" + description + "'", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancel();
+                throw new IllegalStateException("Interrupted while running '" + description + "'", e);
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+
+        /**
+         * Passes the output of the process to a handler, if there is one, counting any output as activity
+         *
+         * @param copy receives a copy of the output, if not {@code null}
+         */
+        private Thread pump(InputStream in, OutputHandler handler, OutputStream copy) {
+            InputStream monitored = new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int read = super.read();
+                    resetWatchdog();
+                    if (read != -1 && copy != null) {
+                        copy.write(read);
+                    }
+                    return read;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int read = super.read(b, off, len);
+                    resetWatchdog();
+                    if (read > 0 && copy != null) {
+                        copy.write(b, off, read);
+                    }
+                    return read;
+                }
+            };
+            Thread thread = new Thread(() -> {
+                try {
+                    if (handler == null) {
+                        ByteStreams.exhaust(monitored);
+                    } else {
+                        handler.setWatchdog(this);
+                        handler.process(monitored);
+                        handler.complete();
+                    }
+                } catch (Exception e) {
+                    // The process was killed, or the handler failed; the exit code says which
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+            return thread;
+        }
+    }
+
+    private static final class LocalCommandFuture<T> extends CompletableFuture<T> implements CommandFuture<T> {
+    }
+}
@@ -0,0 +1,64 @@
+package com.englishtown.bitbucket.hook;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link MirrorBandwidthLimiter}
+ */
+public class MirrorBandwidthLimiterTest {
+
+    private static final long KIB = 1024L;
+
+    private long now;
+
+    @Test
+    public void testReserveWithinBurst() {
+        MirrorBandwidthLimiter limiter = new MirrorBandwidthLimiter(0L, () -> now);
+
+        assertEquals(0L, limiter.reserve("mirror", KIB, "host", 30L * KIB));
+        assertEquals(0L, limiter.reserve("mirror", KIB, "host", 30L * KIB));
+        // The bucket is empty, but not in debt
+        assertEquals(0L, limiter.reserve("mirror", KIB, "host", 10L * KIB));
+    }
+
+    @Test
+    public void testReserveWaitsForDebt() {
+        MirrorBandwidthLimiter limiter = new MirrorBandwidthLimiter(0L, () -> now);
+
+        // 60s worth of transfer is available, so a 90s push leaves 30s of debt
+        assertEquals(0L, limiter.reserve("mirror", KIB, "host", 90L * KIB));
+        assertEquals(30_000L, limiter.reserve("mirror", KIB, "host", KIB));
+
+        now += 10_000L;
+        assertEquals(20_000L, limiter.reserve("mirror", KIB, "host", KIB));
+        // Other mirrors are not affected
+        assertEquals(0L, limiter.reserve("other", KIB, "host", KIB));
+
+        now += 20_000L;
+        assertEquals(0L, limiter.reserve("mirror", KIB, "host", KIB));
+    }
+
+    @Test
+    public void testReserveSharesHostLimit() {
+        MirrorBandwidthLimiter limiter = new MirrorBandwidthLimiter(KIB, () -> now);
+
+        assertEquals(0L, limiter.reserve("mirror", 0L, "host", 70L * KIB));
+        assertEquals(10_000L, limiter.reserve("other", 0L, "host", KIB));
+        assertEquals(0L, limiter.reserve("other", 0L, "elsewhere", KIB));
+    }
+
+    @Test
+    public void testReserveUnlimited() {
+        MirrorBandwidthLimiter limiter = new MirrorBandwidthLimiter(0L, () -> now);
+
+        assertFalse(limiter.isLimited(0L));
+        assertTrue(limiter.isLimited(KIB));
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0L, limiter.reserve("mirror", 0L, "host", Long.MAX_VALUE / 100L));
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.repository.RefChangeType;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link MirrorChangeSet}
+ */
+public class MirrorChangeSetTest {
+
+    private static final String A = "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa";
+    private static final String B = "bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb";
+    private static final String C = "cccccccccccccccccccccccccccccccccccccccc";
+    private static final String ZERO = "0000000000000000000000000000000000000000";
+
+    private static final MirrorSettings SETTINGS = new MirrorSettings() {
+        {
+            mirrorRepoUrl = "ssh://git@bitbucket-mirror.englishtown.com/scm/test/test.git";
+        }
+    };
+
+    @Test
+    public void testMerge() {
+        MirrorChangeSet changeSet = MirrorChangeSet.merge(Arrays.asList(
+                request(change("refs/heads/master", A, B, RefChangeType.UPDATE),
+                        change("refs/heads/feature", ZERO, A, RefChangeType.ADD)),
+                request(change("refs/heads/master", B, C, RefChangeType.UPDATE)),
+                request(change("refs/heads/feature", A, ZERO, RefChangeType.DELETE),
+                        change("refs/tags/v1.0", ZERO, C, RefChangeType.ADD))));
+
+        assertTrue(changeSet.isComplete());
+        List<MirrorRefChange> changes = new ArrayList<>(changeSet.getChanges());
+        assertEquals(2, changes.size());
+        // The feature branch was created and deleted again
+        assertChange(changes.get(0), "refs/heads/master", A, C, RefChangeType.UPDATE);
+        assertChange(changes.get(1), "refs/tags/v1.0", ZERO, C, RefChangeType.ADD);
+        assertEquals("2 ref(s): 1 created, 1 updated, 1 cancelled out", changeSet.summarize());
+    }
+
+    @Test
+    public void testMergeRecreatedRef() {
+        MirrorChangeSet changeSet = MirrorChangeSet.merge(Arrays.asList(
+                request(change("refs/heads/master", A, ZERO, RefChangeType.DELETE)),
+                request(change("refs/heads/master", ZERO, B, RefChangeType.ADD))));
+
+        List<MirrorRefChange> changes = new ArrayList<>(changeSet.getChanges());
+        assertEquals(1, changes.size());
+        assertChange(changes.get(0), "refs/heads/master", A, B, RefChangeType.UPDATE);
+    }
+
+    @Test
+    public void testMergeRevertedRef() {
+        MirrorChangeSet changeSet = MirrorChangeSet.merge(Arrays.asList(
+                request(change("refs/heads/master", A, B, RefChangeType.UPDATE)),
+                request(change("refs/heads/master", B, A, RefChangeType.UPDATE))));
+
+        assertTrue(changeSet.isComplete());
+        assertTrue(changeSet.isEmpty());
+        assertEquals("0 ref(s): 1 cancelled out", changeSet.summarize());
+    }
+
+    @Test
+    public void testMergeWithoutRefChanges() {
+        MirrorChangeSet changeSet = MirrorChangeSet.merge(Arrays.asList(
+                request(change("refs/heads/master", A, B, RefChangeType.UPDATE)),
+                new MirrorRequest(1, SETTINGS)));
+
+        assertFalse(changeSet.isComplete());
+        assertEquals(1, changeSet.size());
+        assertFalse(MirrorChangeSet.merge(Collections.emptyList()).isComplete());
+    }
+
+    private static void assertChange(MirrorRefChange change, String refId, String fromHash, String toHash,
+                                     RefChangeType type) {
+        assertEquals(refId, change.getRefId());
+        assertEquals(fromHash, change.getFromHash());
+        assertEquals(toHash, change.getToHash());
+        assertEquals(type, change.getType());
+    }
+
+    private static MirrorRefChange change(String refId, String fromHash, String toHash, RefChangeType type) {
+        return new MirrorRefChange(refId, fromHash, toHash, type);
+    }
+
+    private static MirrorRequest request(MirrorRefChange... changes) {
+        return new MirrorRequest(1, SETTINGS, Arrays.asList(changes));
+    }
+}
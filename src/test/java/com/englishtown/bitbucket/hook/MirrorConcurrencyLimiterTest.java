@@ -0,0 +1,145 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+import static com.atlassian.bitbucket.mockito.MockitoUtils.returnArg;
+import static com.englishtown.bitbucket.hook.MirrorConcurrencyLimiter.*;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link MirrorConcurrencyLimiter}
+ */
+public class MirrorConcurrencyLimiterTest {
+
+    @Rule
+    public MockitoRule mockitoRule = MockitoJUnit.rule().silent();
+
+    @Mock
+    private ScheduledExecutorService executor;
+    private double load;
+    @Mock
+    private ApplicationPropertiesService propertiesService;
+
+    @Before
+    public void setup() {
+        when(propertiesService.getPluginProperty(anyString(), anyBoolean())).thenAnswer(returnArg(1));
+        when(propertiesService.getPluginProperty(anyString(), anyInt())).thenAnswer(returnArg(1));
+        when(propertiesService.getPluginProperty(anyString(), anyLong())).thenAnswer(returnArg(1));
+        when(propertiesService.getPluginProperty(eq(PROP_ADAPTIVE), anyBoolean())).thenReturn(true);
+        when(propertiesService.getPluginProperty(eq(PROP_ADAPTIVE_MIN), anyInt())).thenReturn(2);
+        when(propertiesService.getPluginProperty(eq(PROP_ADAPTIVE_MAX), anyInt())).thenReturn(4);
+    }
+
+    @Test
+    public void testAdditiveIncrease() {
+        MirrorConcurrencyLimiter limiter = createLimiter();
+        assertEquals(2, limiter.getLimit());
+
+        // The limit grows by one after a full limit of pushes succeeded while at the limit
+        runSaturated(limiter, 2);
+        assertEquals(3, limiter.getLimit());
+        runSaturated(limiter, 3);
+        assertEquals(4, limiter.getLimit());
+
+        // Up to the maximum
+        runSaturated(limiter, 8);
+        assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public void testIncreaseRequiresSaturation() {
+        MirrorConcurrencyLimiter limiter = createLimiter();
+
+        for (int i = 0; i < 10; i++) {
+            limiter.release(limiter.acquire(), true, false);
+        }
+
+        assertEquals(2, limiter.getLimit());
+    }
+
+    @Test
+    public void testMultiplicativeDecrease() {
+        MirrorConcurrencyLimiter limiter = createLimiter();
+        runSaturated(limiter, 5);
+        assertEquals(4, limiter.getLimit());
+
+        long first = limiter.acquire();
+        long second = limiter.acquire();
+        limiter.release(first, false, false);
+        assertEquals(2, limiter.getLimit());
+
+        // The second push started before the decrease, so it does not decrease the limit again
+        limiter.release(second, true, true);
+        assertEquals(2, limiter.getLimit());
+        assertEquals(0, limiter.getRunning());
+    }
+
+    @Test
+    public void testDecreaseOnLoad() {
+        MirrorConcurrencyLimiter limiter = createLimiter();
+        runSaturated(limiter, 5);
+
+        load = 1.5d;
+        limiter.release(limiter.acquire(), true, false);
+
+        assertEquals(2, limiter.getLimit());
+    }
+
+    @Test
+    public void testTryAcquireRunsWaiter() {
+        MirrorConcurrencyLimiter limiter = createLimiter();
+        Runnable waiter = mock(Runnable.class);
+
+        long first = limiter.tryAcquire(waiter);
+        limiter.tryAcquire(waiter);
+        assertEquals(-1L, limiter.tryAcquire(waiter));
+        assertEquals(1, limiter.getWaiting());
+
+        limiter.release(first, true, false);
+
+        verify(executor).execute(same(waiter));
+        assertEquals(0, limiter.getWaiting());
+    }
+
+    @Test
+    public void testNotAdaptive() {
+        when(propertiesService.getPluginProperty(eq(PROP_ADAPTIVE), anyBoolean())).thenReturn(false);
+        MirrorConcurrencyLimiter limiter = createLimiter();
+
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire();
+        }
+        limiter.release(0L, false, true);
+
+        assertEquals(Integer.MAX_VALUE, limiter.getLimit());
+        assertEquals(99, limiter.getRunning());
+    }
+
+    private MirrorConcurrencyLimiter createLimiter() {
+        return new MirrorConcurrencyLimiter(propertiesService, executor, () -> load);
+    }
+
+    /**
+     * Runs pushes which each complete while the limit is used up, and succeed
+     */
+    private static void runSaturated(MirrorConcurrencyLimiter limiter, int pushes) {
+        for (int i = 0; i < pushes; i++) {
+            long[] permits = new long[limiter.getLimit()];
+            for (int j = 0; j < permits.length; j++) {
+                permits[j] = limiter.acquire();
+            }
+            for (long permit : permits) {
+                limiter.release(permit, true, false);
+            }
+        }
+    }
+}
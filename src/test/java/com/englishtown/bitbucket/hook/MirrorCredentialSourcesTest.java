@@ -0,0 +1,101 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static com.englishtown.bitbucket.hook.MirrorCredentialSources.PROP_CREDENTIALS_DIR;
+import static com.englishtown.bitbucket.hook.MirrorCredentialSources.PROP_TOKEN_ENDPOINTS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link MirrorCredentialSources}
+ */
+public class MirrorCredentialSourcesTest {
+
+    @Rule
+    public MockitoRule mockitoRule = MockitoJUnit.rule().silent();
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Mock
+    private ApplicationPropertiesService propertiesService;
+    private File credentialsDir;
+    private MirrorCredentialSources sources;
+
+    @Before
+    public void setup() throws IOException {
+        credentialsDir = temporaryFolder.newFolder("credentials");
+        when(propertiesService.getPluginProperty(eq(PROP_CREDENTIALS_DIR))).thenReturn(credentialsDir.getPath());
+        when(propertiesService.getPluginProperty(eq(PROP_TOKEN_ENDPOINTS)))
+                .thenReturn("https://Auth.Englishtown.com:443/oauth/token, http://localhost:8080/token");
+
+        sources = new MirrorCredentialSources(propertiesService);
+    }
+
+    @Test
+    public void testIsAllowedFile() throws IOException {
+        File token = new File(credentialsDir, "token");
+        Files.write(token.toPath(), new byte[0]);
+
+        assertTrue(sources.isAllowedFile(token.getPath()));
+        assertTrue(sources.isAllowedFile("token"));
+        // Files which don't exist yet can be configured before they are written
+        assertTrue(sources.isAllowedFile("later/token"));
+        assertEquals(token.toPath().toRealPath(), sources.resolveFile("sub/../token"));
+
+        assertFalse(sources.isAllowedFile(temporaryFolder.newFile("outside").getPath()));
+        assertFalse(sources.isAllowedFile("../outside"));
+        assertFalse(sources.isAllowedFile(""));
+        assertFalse(sources.isAllowedFile("/etc/passwd"));
+    }
+
+    @Test
+    public void testIsAllowedFileThroughSymbolicLink() throws IOException {
+        File outside = temporaryFolder.newFile("outside");
+        try {
+            Files.createSymbolicLink(new File(credentialsDir, "link").toPath(), outside.toPath());
+        } catch (UnsupportedOperationException | IOException e) {
+            // Symbolic links are not supported on this file system
+            return;
+        }
+
+        assertFalse(sources.isAllowedFile("link"));
+    }
+
+    @Test
+    public void testIsAllowedFileWithoutDirectory() throws IOException {
+        when(propertiesService.getPluginProperty(eq(PROP_CREDENTIALS_DIR))).thenReturn(null);
+        sources = new MirrorCredentialSources(propertiesService);
+
+        assertFalse(sources.isAllowedFile(temporaryFolder.newFile("token").getPath()));
+    }
+
+    @Test
+    public void testIsAllowedEndpoint() {
+        assertTrue(sources.isAllowedEndpoint("https://auth.englishtown.com/oauth/token"));
+        assertTrue(sources.isAllowedEndpoint("HTTPS://auth.englishtown.com:443/oauth/./token"));
+        assertTrue(sources.isAllowedEndpoint("http://localhost:8080/token"));
+
+        assertFalse(sources.isAllowedEndpoint("https://auth.englishtown.com/oauth/token/other"));
+        assertFalse(sources.isAllowedEndpoint("https://auth.englishtown.com.example.com/oauth/token"));
+        assertFalse(sources.isAllowedEndpoint("https://user@auth.englishtown.com/oauth/token"));
+        assertFalse(sources.isAllowedEndpoint("http://localhost:8081/token"));
+        assertFalse(sources.isAllowedEndpoint("http://169.254.169.254/latest/meta-data"));
+        assertFalse(sources.isAllowedEndpoint("file:///etc/passwd"));
+        assertFalse(sources.isAllowedEndpoint(""));
+    }
+}
@@ -0,0 +1,434 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.concurrent.ConcurrencyService;
+import com.atlassian.bitbucket.hook.repository.RepositoryHookService;
+import com.atlassian.bitbucket.i18n.I18nService;
+import com.atlassian.bitbucket.i18n.SimpleI18nService;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.repository.RepositoryService;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.atlassian.bitbucket.user.DummySecurityService;
+import com.atlassian.event.api.EventPublisher;
+import com.englishtown.bitbucket.hook.MirrorPushWatchdog.InFlightPush;
+import com.englishtown.bitbucket.hook.MirrorStatusIndex.MirrorStatus;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.atlassian.bitbucket.mockito.MockitoUtils.returnFirst;
+import static com.englishtown.bitbucket.hook.LocalGitScm.git;
+import static com.englishtown.bitbucket.hook.MirrorBucketProcessor.PROP_ASYNC;
+import static com.englishtown.bitbucket.hook.MirrorBucketProcessor.PROP_RETRY_DELAY;
+import static com.englishtown.bitbucket.hook.MirrorPushWatchdog.PROP_STALL_TIMEOUT;
+import static com.englishtown.bitbucket.hook.MirrorRepositoryHook.PROP_ATTEMPTS;
+import static com.englishtown.bitbucket.hook.MirrorRepositoryHook.PROP_THREADS;
+import static com.englishtown.bitbucket.hook.PushTimeoutPolicy.PROP_TIMEOUT_IDLE;
+import static com.englishtown.bitbucket.hook.PushTimeoutPolicy.PROP_TIMEOUT_MIN;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.*;
+
+/**
+ * Pushes with real git processes to local remotes which are slow, hang or reject connections, fronted by
+ * {@link FaultyRemote}, and checks the throughput, thread occupancy, timeouts and retries of
+ * {@link MirrorRepositoryHook} and {@link MirrorBucketProcessor}.
+ * <p>
+ * The process engine and bucketed executor of Bitbucket are simulated by {@link LocalGitScm} and
+ * {@link LocalBucketedExecutor}. The tests are skipped if git is not installed.
+ */
+public class MirrorFaultInjectionTest {
+
+    private static final long IDLE_TIMEOUT = 2L;
+    private static final int PACK_SIZE = 256 * 1024;
+
+    @Rule
+    public MockitoRule mockitoRule = MockitoJUnit.rule().silent();
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Mock
+    private ConcurrencyService concurrencyService;
+    @Mock
+    private MirrorCredentialStore credentialStore;
+    private ScheduledThreadPoolExecutor executorService;
+    private LocalBucketedExecutor<MirrorRequest> bucketedExecutor;
+    @Mock
+    private MirrorFetchSchedules fetchSchedules;
+    private MirrorRepositoryHook hook;
+    private I18nService i18nService = new SimpleI18nService();
+    private MirrorPushWatchdog pushWatchdog;
+    @Mock
+    private MirrorOutbox outbox;
+    @Mock
+    private MirrorPauseService pauseService;
+    private final Map<String, Object> properties = new HashMap<>();
+    @Mock
+    private ApplicationPropertiesService propertiesService;
+    @Mock
+    private Repository repository;
+    @Mock
+    private RepositoryHookService repositoryHookService;
+    @Mock
+    private RepositoryService repositoryService;
+    private LocalGitScm scm;
+    private Path source;
+    private MirrorStatusIndex statusIndex = new MirrorStatusIndex();
+
+    @BeforeClass
+    public static void checkGit() {
+        assumeTrue("git is not installed", LocalGitScm.isGitAvailable());
+    }
+
+    @Before
+    public void setup() throws IOException {
+        source = temporaryFolder.newFolder("source").toPath();
+        git(source, "init", "--quiet");
+        git(source, "config", "user.name", "Test");
+        git(source, "config", "user.email", "test@example.com");
+        // Random content does not compress or delta, so the size of the pack is predictable
+        Random random = new Random(42L);
+        for (int i = 0; i < 8; i++) {
+            byte[] content = new byte[PACK_SIZE / 8];
+            random.nextBytes(content);
+            Files.write(source.resolve("file-" + i + ".bin"), content);
+            git(source, "add", ".");
+            git(source, "commit", "--quiet", "-m", "Commit " + i);
+        }
+        git(source, "branch", "-M", "master");
+
+        when(credentialStore.resolve(anyString())).thenAnswer(returnFirst());
+        when(propertiesService.getPluginProperty(anyString(), anyInt())).thenAnswer(invocation ->
+                Integer.valueOf(String.valueOf(properties.getOrDefault(invocation.getArgument(0),
+                        invocation.getArgument(1)))));
+        when(propertiesService.getPluginProperty(anyString(), anyLong())).thenAnswer(invocation ->
+                Long.valueOf(String.valueOf(properties.getOrDefault(invocation.getArgument(0),
+                        invocation.getArgument(1)))));
+        when(propertiesService.getPluginProperty(anyString(), anyBoolean())).thenAnswer(invocation ->
+                Boolean.valueOf(String.valueOf(properties.getOrDefault(invocation.getArgument(0),
+                        invocation.getArgument(1)))));
+        when(propertiesService.getTempDir()).thenAnswer(invocation -> temporaryFolder.getRoot().toPath());
+
+        when(repository.getHierarchyId()).thenReturn("0123456789ab");
+        when(repository.getId()).thenReturn(1);
+        when(repositoryService.getById(1)).thenReturn(repository);
+
+        scm = new LocalGitScm(source);
+
+        properties.put(PROP_ATTEMPTS, 1);
+        properties.put(PROP_THREADS, 2);
+        properties.put(PROP_RETRY_DELAY, 100L);
+        properties.put(PROP_TIMEOUT_IDLE, IDLE_TIMEOUT);
+        // Much longer than the idle timeout, so a push which is killed was killed for being idle
+        properties.put(PROP_TIMEOUT_MIN, 60L);
+        properties.put(PROP_STALL_TIMEOUT, 0L);
+    }
+
+    @After
+    public void tearDown() {
+        if (pushWatchdog != null) {
+            pushWatchdog.onStop();
+        }
+        if (bucketedExecutor != null) {
+            bucketedExecutor.shutdown();
+        }
+        if (executorService != null) {
+            executorService.shutdownNow();
+        }
+        if (scm != null) {
+            scm.shutdown();
+        }
+    }
+
+    @Test
+    public void testSlowRemoteIsPushedWithinBandwidthCap() throws Exception {
+        long rate = 128L * 1024L;
+        FaultInjection remote = createRemote("slow", FaultyRemote.LATENCY, 500, FaultyRemote.RATE, rate);
+        start(false);
+
+        long start = System.nanoTime();
+        hook.pushNow(repository, remote.settings);
+        awaitPushed(remote, true);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertSynced(remote);
+        assertNotNull(getStatus(remote));
+        assertEquals(0L, getStatus(remote).getLastFailure());
+        // The pack is sent at no more than the capped rate, and the progress output keeps the idle timeout from
+        // killing the push even though the whole push takes longer than the idle timeout
+        assertTrue("Pushed in " + elapsed + "ms", elapsed >= 500L + PACK_SIZE * 1000L / rate * 9L / 10L);
+        assertTrue(elapsed > TimeUnit.SECONDS.toMillis(IDLE_TIMEOUT));
+        assertEquals(0, scm.getKilled());
+        verify(outbox).clear(eq(1), eq(remote.settings.mirrorRepoUrl), anyLong());
+    }
+
+    @Test
+    public void testHangingRemoteIsKilledByIdleTimeout() throws Exception {
+        FaultInjection remote = createHangingRemote();
+        start(false);
+
+        long start = System.nanoTime();
+        hook.pushNow(repository, remote.settings);
+        awaitPushed(remote, false);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(1, scm.getKilled());
+        assertTrue("Killed after " + elapsed + "ms", elapsed >= TimeUnit.SECONDS.toMillis(IDLE_TIMEOUT));
+        assertTrue("Killed after " + elapsed + "ms", elapsed < TimeUnit.SECONDS.toMillis(30L));
+        MirrorStatus status = getStatus(remote);
+        assertEquals(0L, status.getLastSuccess());
+        assertTrue(status.getLastError(), status.getLastError().contains("idle timeout"));
+        // The mirror is left dirty, and the process engine killed the git processes
+        verify(outbox, never()).clear(anyInt(), anyString(), anyLong());
+        assertEquals(0, scm.getRunning());
+        assertFalse(isSynced(remote));
+    }
+
+    @Test
+    public void testStalledPushIsKilledByWatchdog() throws Exception {
+        properties.put(PROP_STALL_TIMEOUT, 1L);
+        properties.put(PROP_TIMEOUT_IDLE, 30L);
+        FaultInjection remote = createHangingRemote();
+        start(false);
+
+        long start = System.nanoTime();
+        hook.pushNow(repository, remote.settings);
+        waitForConnection(remote);
+        List<InFlightPush> inFlight = pushWatchdog.getInFlight();
+        assertEquals(1, inFlight.size());
+        assertEquals(remote.settings.mirrorRepoUrl, inFlight.get(0).getMirrorUrl());
+        awaitPushed(remote, false);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // The watchdog cancelled the push long before the idle timeout of the process engine
+        assertEquals(0, scm.getKilled());
+        assertTrue("Killed after " + elapsed + "ms", elapsed < TimeUnit.SECONDS.toMillis(10L));
+        MirrorStatus status = getStatus(remote);
+        assertTrue(status.getLastError(), status.getLastError().contains("no progress for 1s while pushing"));
+        assertTrue(pushWatchdog.getInFlight().isEmpty());
+        assertFalse(isSynced(remote));
+    }
+
+    @Test
+    public void testFlakyRemoteIsRetriedUntilPushed() throws Exception {
+        properties.put(PROP_ATTEMPTS, 5);
+        FaultInjection remote = createRemote("flaky", FaultyRemote.REJECT, 2);
+        start(true);
+
+        hook.pushNow(repository, remote.settings);
+        awaitPushed(remote, true);
+
+        assertSynced(remote);
+        assertEquals(3, FaultyRemote.getConnections(remote.config));
+        MirrorStatus status = getStatus(remote);
+        assertTrue(status.getLastSuccess() >= status.getLastFailure());
+        verify(outbox).clear(eq(1), eq(remote.settings.mirrorRepoUrl), anyLong());
+    }
+
+    @Test
+    public void testRejectingRemoteIsRetriedUpToAttemptsAsync() throws Exception {
+        assertRejectingRemoteIsRetriedUpToAttempts(true);
+    }
+
+    @Test
+    public void testRejectingRemoteIsRetriedUpToAttemptsSync() throws Exception {
+        assertRejectingRemoteIsRetriedUpToAttempts(false);
+    }
+
+    @Test
+    public void testHangingRemoteOccupiesThreadUntilIdleTimeout() throws Exception {
+        properties.put(PROP_THREADS, 1);
+        FaultInjection hanging = createHangingRemote();
+        FaultInjection healthy = createRemote("healthy");
+        start(false);
+
+        hook.pushNow(repository, hanging.settings);
+        waitForConnection(hanging);
+        hook.pushNow(repository, healthy.settings);
+        awaitPushed(healthy, true);
+        awaitPushed(hanging, false);
+
+        // The only thread was busy with the hanging push, so the healthy mirror was pushed after it was killed
+        assertSynced(healthy);
+        assertEquals(1, scm.getKilled());
+        assertTrue(getStatus(healthy).getLastAttempt() >= getStatus(hanging).getLastFailure());
+        assertEquals(1, bucketedExecutor.getMaxBusy());
+    }
+
+    @Test
+    public void testHangingRemoteDoesNotOccupyThreadAsync() throws Exception {
+        properties.put(PROP_THREADS, 1);
+        FaultInjection hanging = createHangingRemote();
+        FaultInjection healthy = createRemote("healthy");
+        start(true);
+
+        hook.pushNow(repository, hanging.settings);
+        waitForConnection(hanging);
+        hook.pushNow(repository, healthy.settings);
+        awaitPushed(healthy, true);
+        awaitPushed(hanging, false);
+
+        // The thread only prepared the hanging push, so the healthy mirror was pushed while it was still hanging
+        assertSynced(healthy);
+        assertEquals(1, scm.getKilled());
+        assertTrue(getStatus(healthy).getLastSuccess() < getStatus(hanging).getLastFailure());
+        assertEquals(0L, getStatus(hanging).getLastSuccess());
+        assertFalse(isSynced(hanging));
+    }
+
+    private void assertRejectingRemoteIsRetriedUpToAttempts(boolean async) throws Exception {
+        properties.put(PROP_ATTEMPTS, 3);
+        FaultInjection remote = createRemote("rejecting", FaultyRemote.REJECT, Integer.MAX_VALUE);
+        start(async);
+
+        hook.pushNow(repository, remote.settings);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60L);
+        while (FaultyRemote.getConnections(remote.config) < 3) {
+            assertTrue("Timed out waiting for the retries", System.nanoTime() < deadline);
+            Thread.sleep(20L);
+        }
+        awaitPushed(remote, false);
+        // Nothing is retried once the attempts are used up
+        Thread.sleep(1000L);
+
+        assertEquals(3, FaultyRemote.getConnections(remote.config));
+        MirrorStatus status = getStatus(remote);
+        assertEquals(0L, status.getLastSuccess());
+        assertTrue(status.getLastError(), status.getLastError().contains("rejected connection 3"));
+        verify(outbox, never()).clear(anyInt(), anyString(), anyLong());
+        assertFalse(isSynced(remote));
+    }
+
+    private void assertSynced(FaultInjection remote) {
+        assertTrue(remote.name + " is not in sync", isSynced(remote));
+    }
+
+    /**
+     * Waits for the push to the remote to succeed or fail, and for the git processes to exit
+     */
+    private void awaitPushed(FaultInjection remote, boolean success) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60L);
+        while (true) {
+            MirrorStatus status = getStatus(remote);
+            if (status != null && (success ? status.getLastSuccess() : status.getLastFailure()) > 0L &&
+                    scm.getRunning() == 0) {
+                return;
+            }
+            assertTrue("Timed out waiting for the push to " + remote.name, System.nanoTime() < deadline);
+            Thread.sleep(20L);
+        }
+    }
+
+    private FaultInjection createRemote(String name, Object... faults) throws IOException, URISyntaxException {
+        Path remote = temporaryFolder.newFolder(name + ".git").toPath();
+        git(remote, "init", "--quiet", "--bare");
+
+        Properties config = new Properties();
+        for (int i = 0; i < faults.length; i += 2) {
+            config.setProperty((String) faults[i], String.valueOf(faults[i + 1]));
+        }
+        Path configFile = temporaryFolder.getRoot().toPath().resolve(name + ".properties");
+        try (OutputStream out = Files.newOutputStream(configFile)) {
+            config.store(out, null);
+        }
+
+        // The ext transport runs the wrapper as the remote, passing it the service to run
+        Path java = Paths.get(System.getProperty("java.home"), "bin", "java");
+        Path classes = Paths.get(FaultyRemote.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        MirrorSettings settings = new MirrorSettings();
+        settings.mirrorRepoUrl = "ext::" + java + " -cp " + classes + " " + FaultyRemote.class.getName() + " " +
+                configFile + " %S " + remote;
+        settings.username = "";
+        settings.password = "";
+        settings.refspec = "";
+
+        return new FaultInjection(name, configFile, remote, settings);
+    }
+
+    /**
+     * Creates a remote which stops responding a quarter of the way into the pack, until long after the idle timeout
+     */
+    private FaultInjection createHangingRemote() throws IOException, URISyntaxException {
+        return createRemote("hanging", FaultyRemote.HANG_AFTER, PACK_SIZE / 4,
+                FaultyRemote.HANG_FOR, TimeUnit.SECONDS.toMillis(IDLE_TIMEOUT * 3L));
+    }
+
+    private MirrorStatus getStatus(FaultInjection remote) {
+        return statusIndex.getStatuses(1).get(remote.settings.mirrorRepoUrl);
+    }
+
+    private boolean isSynced(FaultInjection remote) {
+        try {
+            return git(source, "rev-parse", "master").equals(git(remote.path, "rev-parse", "master"));
+        } catch (IllegalStateException e) {
+            // The remote has no master branch
+            return false;
+        }
+    }
+
+    private void start(boolean async) {
+        properties.put(PROP_ASYNC, async);
+
+        executorService = new ScheduledThreadPoolExecutor(2);
+        pushWatchdog = new MirrorPushWatchdog(propertiesService, executorService);
+        pushWatchdog.onStart();
+        MirrorBucketProcessor processor = new MirrorBucketProcessor(i18nService,
+                new DefaultMirrorCredentialProvider(credentialStore, propertiesService), propertiesService,
+                repositoryService, scm.getScmService(), new DummySecurityService(), outbox, mock(MirrorAuditLog.class),
+                statusIndex, pauseService, executorService,
+                new MirrorConcurrencyLimiter(propertiesService, executorService), pushWatchdog,
+                mock(EventPublisher.class));
+        bucketedExecutor = new LocalBucketedExecutor<>(MirrorRequest::toString, processor,
+                (Integer) properties.get(PROP_ATTEMPTS), (Integer) properties.get(PROP_THREADS));
+        doReturn(bucketedExecutor).when(concurrencyService).getBucketedExecutor(anyString(), any());
+
+        hook = new MirrorRepositoryHook(concurrencyService, credentialStore, propertiesService, processor,
+                outbox, repositoryHookService, new DummySecurityService(), executorService, statusIndex, pauseService,
+                fetchSchedules);
+    }
+
+    private static void waitForConnection(FaultInjection remote) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30L);
+        while (FaultyRemote.getConnections(remote.config) == 0) {
+            assertTrue("Timed out waiting for a connection to " + remote.name, System.nanoTime() < deadline);
+            Thread.sleep(20L);
+        }
+    }
+
+    private static class FaultInjection {
+
+        private final Path config;
+        private final String name;
+        private final Path path;
+        private final MirrorSettings settings;
+
+        FaultInjection(String name, Path config, Path path, MirrorSettings settings) {
+            this.config = config;
+            this.name = name;
+            this.path = path;
+            this.settings = settings;
+        }
+    }
+}
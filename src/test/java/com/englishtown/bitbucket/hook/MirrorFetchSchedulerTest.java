@@ -0,0 +1,209 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.concurrent.BucketedExecutor;
+import com.atlassian.bitbucket.concurrent.ConcurrencyService;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.repository.RepositoryService;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.atlassian.bitbucket.user.DummySecurityService;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.scheduler.JobRunnerRequest;
+import com.atlassian.scheduler.SchedulerService;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.LongUnaryOperator;
+
+import static com.atlassian.bitbucket.mockito.MockitoUtils.returnArg;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link MirrorFetchScheduler}
+ */
+public class MirrorFetchSchedulerTest {
+
+    private static final String URL_FETCH = "ssh://git@upstream.englishtown.com/scm/test/test.git";
+    private static final String URL_PUSH = "ssh://git@bitbucket-mirror.englishtown.com/scm/test/test.git";
+
+    private static final MirrorSettings FETCH_SETTINGS = new MirrorSettings() {
+        {
+            direction = DIRECTION_FETCH;
+            mirrorRepoUrl = URL_FETCH;
+        }
+    };
+    private static final MirrorSettings PUSH_SETTINGS = new MirrorSettings() {
+        {
+            mirrorRepoUrl = URL_PUSH;
+        }
+    };
+    private static final List<MirrorRequest> REQUESTS = Collections.singletonList(new MirrorRequest(1, FETCH_SETTINGS));
+
+    @Rule
+    public MockitoRule mockitoRule = MockitoJUnit.rule().silent();
+
+    @Mock
+    private BucketedExecutor<MirrorRequest> bucketedExecutor;
+    @Mock
+    private ConcurrencyService concurrencyService;
+    @Mock
+    private MirrorRepositoryHook hook;
+    @Mock
+    private MirrorPauseService pauseService;
+    @Mock
+    private MirrorBucketProcessor processor;
+    @Mock
+    private ApplicationPropertiesService propertiesService;
+    @Mock
+    private Repository repository;
+    @Mock
+    private RepositoryService repositoryService;
+    private MirrorFetchScheduler scheduler;
+    @Mock
+    private MirrorFetchSchedules schedules;
+    @Mock
+    private SchedulerService schedulerService;
+    @Spy
+    private SecurityService securityService = new DummySecurityService();
+
+    @Before
+    public void setup() {
+        doReturn(bucketedExecutor).when(concurrencyService).getBucketedExecutor(anyString(), any());
+        when(propertiesService.getPluginProperty(anyString(), anyLong())).thenAnswer(returnArg(1));
+        when(propertiesService.getPluginProperty(anyString(), anyInt())).thenAnswer(returnArg(1));
+
+        when(repository.getId()).thenReturn(1);
+        when(repositoryService.getById(eq(1))).thenReturn(repository);
+        when(hook.getMirrorSettings(same(repository))).thenReturn(Arrays.asList(FETCH_SETTINGS, PUSH_SETTINGS));
+
+        scheduler = new MirrorFetchScheduler(propertiesService, concurrencyService, hook, processor, schedules,
+                pauseService, repositoryService, schedulerService, securityService);
+    }
+
+    @Test
+    public void testNextInterval() {
+        // New mirrors start at the minimum interval
+        assertEquals(60_000L, scheduler.nextInterval(0L, false));
+        assertEquals(90_000L, scheduler.nextInterval(60_000L, false));
+        assertEquals(60_000L, scheduler.nextInterval(90_000L, true));
+        assertEquals(100_000L, scheduler.nextInterval(200_000L, true));
+        assertEquals(3_600_000L, scheduler.nextInterval(3_000_000L, false));
+    }
+
+    @Test
+    public void testProcessChanged() {
+        when(processor.fetch(same(FETCH_SETTINGS), same(repository))).thenReturn(true);
+
+        scheduler.process("ignored", REQUESTS);
+
+        assertEquals(100_000L, captureInterval().applyAsLong(200_000L));
+        // Fetched changes are passed on to the push mirrors
+        verify(hook).schedulePushes(same(repository), eq(Arrays.asList(FETCH_SETTINGS, PUSH_SETTINGS)));
+    }
+
+    @Test
+    public void testProcessUnchanged() {
+        scheduler.process("ignored", REQUESTS);
+
+        assertEquals(150_000L, captureInterval().applyAsLong(100_000L));
+        verify(hook, never()).schedulePushes(any(), any());
+    }
+
+    @Test
+    public void testProcessFailed() {
+        when(processor.fetch(any(), any())).thenThrow(new IllegalStateException("Intentional unit test exception"));
+
+        scheduler.process("ignored", REQUESTS);
+
+        assertEquals(100_000L, captureInterval().applyAsLong(100_000L));
+        verify(hook, never()).schedulePushes(any(), any());
+    }
+
+    @Test
+    public void testProcessWithDeletedRepository() {
+        when(repositoryService.getById(eq(1))).thenReturn(null);
+
+        scheduler.process("ignored", REQUESTS);
+
+        verify(schedules).clearAll(eq(1));
+        verifyZeroInteractions(processor);
+    }
+
+    @Test
+    public void testRunJob() {
+        claimDue(URL_FETCH);
+
+        scheduler.runJob(mock(JobRunnerRequest.class));
+
+        verify(bucketedExecutor).submit(argThat(request -> request.getRepositoryId() == 1 &&
+                request.getSettings() == FETCH_SETTINGS));
+        verify(schedules, never()).retain(anyInt(), any());
+    }
+
+    @Test
+    public void testRunJobWithPausedMirror() {
+        claimDue(URL_FETCH);
+        when(pauseService.isPaused(eq(1), eq(URL_FETCH))).thenReturn(true);
+
+        scheduler.runJob(mock(JobRunnerRequest.class));
+
+        verifyZeroInteractions(bucketedExecutor);
+    }
+
+    @Test
+    public void testRunJobWithRemovedMirror() {
+        claimDue("ssh://git@removed.englishtown.com/scm/test/test.git");
+
+        scheduler.runJob(mock(JobRunnerRequest.class));
+
+        verifyZeroInteractions(bucketedExecutor);
+        verify(schedules).retain(eq(1), eq(Collections.singletonList(URL_FETCH)));
+    }
+
+    @Test
+    public void testScheduleFetches() {
+        MirrorSettings paused = new MirrorSettings();
+        paused.direction = MirrorSettings.DIRECTION_FETCH;
+        paused.mirrorRepoUrl = "ssh://git@paused.englishtown.com/scm/test/test.git";
+        when(pauseService.isPaused(eq(1), eq(paused.mirrorRepoUrl))).thenReturn(true);
+
+        assertEquals(1, scheduler.scheduleFetches(repository, Arrays.asList(FETCH_SETTINGS, PUSH_SETTINGS, paused)));
+
+        // Delayed, so notifications in quick succession are coalesced
+        verify(bucketedExecutor).schedule(argThat(request -> request.getSettings() == FETCH_SETTINGS),
+                eq(5L), eq(TimeUnit.SECONDS));
+        verifyNoMoreInteractions(bucketedExecutor);
+    }
+
+    @Test
+    public void testOnStart() throws Exception {
+        scheduler.onStart();
+
+        verify(schedulerService).registerJobRunner(any(), same(scheduler));
+        verify(schedulerService).scheduleJob(any(), any());
+    }
+
+    private LongUnaryOperator captureInterval() {
+        ArgumentCaptor<LongUnaryOperator> captor = ArgumentCaptor.forClass(LongUnaryOperator.class);
+        verify(schedules).reschedule(eq(1), eq(URL_FETCH), anyLong(), captor.capture());
+        return captor.getValue();
+    }
+
+    private void claimDue(String mirrorUrl) {
+        doAnswer(invocation -> {
+            invocation.<BiConsumer<Integer, String>>getArgument(3).accept(1, mirrorUrl);
+            return null;
+        }).when(schedules).claimDue(anyLong(), anyInt(), anyLong(), any());
+    }
+}
@@ -0,0 +1,220 @@
+package com.englishtown.bitbucket.hook;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link MirrorLfsUploader}, against a stand-in for an LFS server
+ */
+public class MirrorLfsUploaderTest {
+
+    private static final String HIERARCHY_ID = "0123456789abcdef";
+    private static final Pattern OID = Pattern.compile("\"oid\":\"([0-9a-f]{64})\"");
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final List<String> authorizations = Collections.synchronizedList(new ArrayList<>());
+    private final List<List<String>> batches = Collections.synchronizedList(new ArrayList<>());
+    private final Set<String> failing = ConcurrentHashMap.newKeySet();
+    private final Map<String, byte[]> stored = new ConcurrentHashMap<>();
+    private final Set<String> verified = ConcurrentHashMap.newKeySet();
+    private String mirrorUrl;
+    private HttpServer server;
+    private Path storage;
+    private MirrorLfsUploader uploader;
+
+    @Before
+    public void setup() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        String base = "http://127.0.0.1:" + server.getAddress().getPort();
+        server.createContext("/scm/test/test.git/info/lfs/objects/batch", exchange -> {
+            authorizations.add(exchange.getRequestHeaders().getFirst("Authorization"));
+            List<String> oids = new ArrayList<>();
+            Matcher matcher = OID.matcher(read(exchange));
+            while (matcher.find()) {
+                oids.add(matcher.group(1));
+            }
+            batches.add(oids);
+
+            StringBuilder response = new StringBuilder("{\"transfer\":\"basic\",\"objects\":[");
+            for (String oid : oids) {
+                response.append(response.charAt(response.length() - 1) == '[' ? "" : ",")
+                        .append("{\"oid\":\"").append(oid).append("\",\"size\":1");
+                if (!stored.containsKey(oid)) {
+                    response.append(",\"actions\":{\"upload\":{\"href\":\"").append(base).append("/storage/")
+                            .append(oid).append("\",\"header\":{\"X-Upload-Token\":\"upload-token\"}},")
+                            .append("\"verify\":{\"href\":\"").append(base).append("/verify\"}}");
+                }
+                response.append("}");
+            }
+            respond(exchange, 200, response.append("]}").toString());
+        });
+        server.createContext("/storage/", exchange -> {
+            String oid = exchange.getRequestURI().getPath().substring("/storage/".length());
+            byte[] content = read(exchange).getBytes(StandardCharsets.UTF_8);
+            if (failing.remove(oid) || !"upload-token".equals(exchange.getRequestHeaders().getFirst("X-Upload-Token"))) {
+                respond(exchange, 500, "");
+                return;
+            }
+            stored.put(oid, content);
+            respond(exchange, 200, "");
+        });
+        server.createContext("/verify", exchange -> {
+            Matcher matcher = OID.matcher(read(exchange));
+            assertTrue(matcher.find());
+            verified.add(matcher.group(1));
+            respond(exchange, 200, "");
+        });
+        server.start();
+
+        mirrorUrl = base + "/scm/test/test.git";
+        storage = temporaryFolder.newFolder("storage").toPath();
+        uploader = new MirrorLfsUploader(storage, 2, 5000);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testUploadsMissingObjects() throws IOException {
+        MirrorLfsObject first = store("first");
+        MirrorLfsObject second = store("second");
+        MirrorLfsObject third = store("third");
+        stored.put(first.getOid(), "first".getBytes(StandardCharsets.UTF_8));
+
+        int uploaded = uploader.upload(mirrorUrl, HIERARCHY_ID, new MirrorCredentials("user", "secret"),
+                Arrays.asList(first, second, third));
+
+        assertEquals(2, uploaded);
+        assertEquals("second", new String(stored.get(second.getOid()), StandardCharsets.UTF_8));
+        assertEquals("third", new String(stored.get(third.getOid()), StandardCharsets.UTF_8));
+        assertEquals(2, verified.size());
+        assertEquals(Collections.singletonList("Basic dXNlcjpzZWNyZXQ="), authorizations);
+    }
+
+    @Test
+    public void testRetryResumesWithFailedObjects() throws IOException {
+        MirrorLfsObject first = store("first");
+        MirrorLfsObject second = store("second");
+        failing.add(second.getOid());
+
+        try {
+            uploader.upload(mirrorUrl, HIERARCHY_ID, MirrorCredentials.NONE, Arrays.asList(first, second));
+            fail("Expected the upload to fail");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().startsWith("Failed to upload LFS objects"));
+        }
+        assertTrue(stored.containsKey(first.getOid()));
+
+        // The object which was uploaded is not asked about again
+        assertEquals(1, uploader.upload(mirrorUrl, HIERARCHY_ID, MirrorCredentials.NONE,
+                Arrays.asList(first, second)));
+        assertEquals(Collections.singletonList(second.getOid()), batches.get(1));
+
+        assertEquals(0, uploader.upload(mirrorUrl, HIERARCHY_ID, MirrorCredentials.NONE,
+                Arrays.asList(first, second)));
+        assertEquals(2, batches.size());
+    }
+
+    @Test
+    public void testUploadsInBatches() throws IOException {
+        List<MirrorLfsObject> objects = new ArrayList<>();
+        for (int i = 0; i < MirrorLfsUploader.BATCH_SIZE + 1; i++) {
+            objects.add(store("object-" + i));
+        }
+
+        assertEquals(objects.size(), uploader.upload(mirrorUrl, HIERARCHY_ID, MirrorCredentials.NONE, objects));
+        assertEquals(2, batches.size());
+        assertEquals(MirrorLfsUploader.BATCH_SIZE, batches.get(0).size());
+    }
+
+    @Test
+    public void testSkipsObjectsMissingLocally() {
+        MirrorLfsObject missing = new MirrorLfsObject(sha256("missing"), 7L);
+
+        assertEquals(0, uploader.upload(mirrorUrl, HIERARCHY_ID, MirrorCredentials.NONE,
+                Collections.singletonList(missing)));
+        assertTrue(stored.isEmpty());
+    }
+
+    @Test
+    public void testParseBatchWithError() throws IOException {
+        String response = "{\"objects\":[{\"oid\":\"" + sha256("x") + "\",\"size\":1," +
+                "\"error\":{\"code\":422,\"message\":\"Invalid object\"}}]}";
+        try {
+            MirrorLfsUploader.parseBatch(new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8)));
+            fail("Expected the error to be reported");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().endsWith("Invalid object (422)"));
+        }
+    }
+
+    @Test
+    public void testGetEndpoint() {
+        assertEquals("https://mirror/scm/test/test.git/info/lfs",
+                MirrorLfsUploader.getEndpoint("https://mirror/scm/test/test.git"));
+        assertEquals("https://mirror/test.git/info/lfs", MirrorLfsUploader.getEndpoint("https://mirror/test/"));
+        assertFalse(MirrorLfsUploader.isSupported("ssh://git@mirror/test.git"));
+    }
+
+    /**
+     * Stores an object in the local LFS storage, in the nested layout git-lfs uses
+     */
+    private MirrorLfsObject store(String content) throws IOException {
+        String oid = sha256(content);
+        Path directory = storage.resolve(HIERARCHY_ID).resolve(oid.substring(0, 2)).resolve(oid.substring(2, 4));
+        Files.createDirectories(directory);
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        Files.write(directory.resolve(oid), bytes);
+        return new MirrorLfsObject(oid, bytes.length);
+    }
+
+    private static String read(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            return new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    @SuppressWarnings("UnstableApiUsage")
+    private static String sha256(String content) {
+        return Hashing.sha256().hashString(content, StandardCharsets.UTF_8).toString();
+    }
+}
@@ -0,0 +1,90 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.repository.RepositoryService;
+import com.atlassian.bitbucket.user.DummySecurityService;
+import com.atlassian.bitbucket.user.SecurityService;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link MirrorOutboxSweeper}
+ */
+public class MirrorOutboxSweeperTest {
+
+    private static final String URL_CONFIGURED = "ssh://git@bitbucket-mirror.englishtown.com/scm/test/test.git";
+    private static final String URL_REMOVED = "ssh://git@bitbucket-mirror.englishtown.com/scm/test/removed.git";
+
+    @Rule
+    public MockitoRule mockitoRule = MockitoJUnit.rule().silent();
+
+    @Mock
+    private MirrorRepositoryHook hook;
+    @Mock
+    private MirrorOutbox outbox;
+    @Mock
+    private Repository repository;
+    @Mock
+    private RepositoryService repositoryService;
+    @Captor
+    private ArgumentCaptor<List<MirrorSettings>> settingsCaptor;
+    @Spy
+    private SecurityService securityService = new DummySecurityService();
+    private MirrorOutboxSweeper sweeper;
+
+    @Before
+    public void setup() {
+        sweeper = new MirrorOutboxSweeper(hook, outbox, repositoryService, securityService);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testOnStart() {
+        doAnswer(invocation -> {
+            BiConsumer<Integer, String> callback = invocation.getArgument(0);
+            callback.accept(1, URL_CONFIGURED);
+            callback.accept(1, URL_REMOVED);
+            callback.accept(2, URL_CONFIGURED);
+            return null;
+        }).when(outbox).forEachDirty(any());
+
+        MirrorSettings configured = new MirrorSettings();
+        configured.mirrorRepoUrl = URL_CONFIGURED;
+        MirrorSettings other = new MirrorSettings();
+        other.mirrorRepoUrl = "ssh://git@bitbucket-mirror.englishtown.com/scm/test/other.git";
+
+        when(repositoryService.getById(eq(1))).thenReturn(repository);
+        when(hook.getMirrorSettings(same(repository))).thenReturn(Arrays.asList(configured, other));
+
+        sweeper.onStart();
+
+        verify(hook).schedulePushes(same(repository), settingsCaptor.capture());
+        assertEquals(1, settingsCaptor.getValue().size());
+        assertEquals(URL_CONFIGURED, settingsCaptor.getValue().get(0).mirrorRepoUrl);
+
+        verify(outbox).clear(eq(1), eq(URL_REMOVED), anyLong());
+        verify(outbox).clearAll(eq(2));
+        verify(outbox, never()).clear(eq(1), eq(URL_CONFIGURED), anyLong());
+    }
+
+    @Test
+    public void testOnStartWithoutDirtyMirrors() {
+        sweeper.onStart();
+
+        verifyZeroInteractions(hook, repositoryService);
+    }
+}
@@ -0,0 +1,152 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.repository.RepositoryService;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.atlassian.bitbucket.user.DummySecurityService;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.bitbucket.util.Page;
+import com.atlassian.sal.api.pluginsettings.PluginSettings;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import com.atlassian.scheduler.JobRunnerRequest;
+import com.atlassian.scheduler.SchedulerService;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.atlassian.bitbucket.mockito.MockitoUtils.returnArg;
+import static com.englishtown.bitbucket.hook.MirrorPasswordMigrator.SETTINGS_CURSOR;
+import static com.englishtown.bitbucket.hook.MirrorPasswordMigrator.SETTINGS_VERSION;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link MirrorPasswordMigrator}
+ */
+public class MirrorPasswordMigratorTest {
+
+    @Rule
+    public MockitoRule mockitoRule = MockitoJUnit.rule().silent();
+
+    @Mock
+    private MirrorRepositoryHook hook;
+    private MirrorPasswordMigrator migrator;
+    @Mock
+    private PasswordEncryptor passwordEncryptor;
+    @Mock
+    private PluginSettings pluginSettings;
+    @Mock
+    private PluginSettingsFactory pluginSettingsFactory;
+    @Mock
+    private ApplicationPropertiesService propertiesService;
+    @Mock
+    private Repository repository1;
+    @Mock
+    private Repository repository2;
+    @Mock
+    private RepositoryService repositoryService;
+    @Mock
+    private SchedulerService schedulerService;
+    @Spy
+    private SecurityService securityService = new DummySecurityService();
+    private final Map<String, Object> values = new HashMap<>();
+
+    @Before
+    public void setup() {
+        when(propertiesService.getPluginProperty(anyString(), anyLong())).thenAnswer(returnArg(1));
+        when(propertiesService.getPluginProperty(anyString(), anyInt())).thenAnswer(returnArg(1));
+        when(pluginSettingsFactory.createSettingsForKey(anyString())).thenReturn(pluginSettings);
+        when(pluginSettings.get(anyString())).thenAnswer(invocation -> values.get(invocation.<String>getArgument(0)));
+        when(pluginSettings.put(anyString(), any())).thenAnswer(invocation ->
+                values.put(invocation.getArgument(0), invocation.getArgument(1)));
+        when(passwordEncryptor.getKeyVersion()).thenReturn(2);
+
+        migrator = new MirrorPasswordMigrator(propertiesService, hook, passwordEncryptor, pluginSettingsFactory,
+                repositoryService, schedulerService, securityService);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testRunJob() {
+        Page<Repository> first = mock(Page.class);
+        when(first.getValues()).thenReturn(Arrays.asList(repository1, repository2));
+        when(first.getSize()).thenReturn(2);
+        Page<Repository> last = mock(Page.class);
+        when(last.getValues()).thenReturn(Arrays.asList(repository1, repository2));
+        when(last.getSize()).thenReturn(2);
+        when(last.getIsLastPage()).thenReturn(true);
+        when(repositoryService.findAll(any())).thenReturn(first, last);
+        when(hook.reencryptPasswords(any())).thenReturn(true, false, true, false);
+
+        migrator.runJob(mock(JobRunnerRequest.class));
+        assertEquals("2", values.get(SETTINGS_CURSOR));
+        assertEquals(null, values.get(SETTINGS_VERSION));
+
+        migrator.runJob(mock(JobRunnerRequest.class));
+        assertEquals("0", values.get(SETTINGS_CURSOR));
+        assertEquals("2", values.get(SETTINGS_VERSION));
+        verify(hook, times(2)).reencryptPasswords(same(repository1));
+        verify(hook, times(2)).reencryptPasswords(same(repository2));
+
+        // Once every repository is migrated, nothing is done until the key is rotated again
+        migrator.runJob(mock(JobRunnerRequest.class));
+        verify(repositoryService, times(2)).findAll(any());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testRunJobWithFailure() {
+        Page<Repository> page = mock(Page.class);
+        when(page.getValues()).thenReturn(Arrays.asList(repository1, repository2));
+        when(page.getSize()).thenReturn(2);
+        when(page.getIsLastPage()).thenReturn(true);
+        when(repositoryService.findAll(any())).thenReturn(page);
+        when(hook.reencryptPasswords(same(repository1)))
+                .thenThrow(new IllegalStateException("Intentional unit test exception"))
+                .thenReturn(true);
+
+        migrator.runJob(mock(JobRunnerRequest.class));
+        // The other repositories are still migrated, but the pass has to be repeated
+        verify(hook).reencryptPasswords(same(repository2));
+        assertEquals(null, values.get(SETTINGS_VERSION));
+
+        migrator.runJob(mock(JobRunnerRequest.class));
+        assertEquals("2", values.get(SETTINGS_VERSION));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testRunJobWithRotationDuringPass() {
+        Page<Repository> first = mock(Page.class);
+        when(first.getValues()).thenReturn(Arrays.asList(repository1));
+        when(first.getSize()).thenReturn(1);
+        Page<Repository> last = mock(Page.class);
+        when(last.getValues()).thenReturn(Arrays.asList(repository2));
+        when(last.getSize()).thenReturn(1);
+        when(last.getIsLastPage()).thenReturn(true);
+        when(repositoryService.findAll(any())).thenReturn(first, last);
+
+        migrator.runJob(mock(JobRunnerRequest.class));
+        when(passwordEncryptor.getKeyVersion()).thenReturn(3);
+        migrator.runJob(mock(JobRunnerRequest.class));
+
+        // The first repository was migrated to the previous version, so another pass is needed
+        assertEquals("2", values.get(SETTINGS_VERSION));
+    }
+
+    @Test
+    public void testOnStart() throws Exception {
+        migrator.onStart();
+
+        verify(schedulerService).registerJobRunner(any(), same(migrator));
+        verify(schedulerService).scheduleJob(any(), any());
+    }
+}
@@ -0,0 +1,75 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.repository.RefChangeType;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link MirrorPushCodec}
+ */
+public class MirrorPushCodecTest {
+
+    private static final String SHA1 = "0123456789abcdef0123456789abcdef01234567";
+    private static final String SHA256 = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+    private static final String ZERO = "0000000000000000000000000000000000000000";
+
+    @Test
+    public void testRoundTrip() {
+        List<MirrorRefChange> refChanges = Arrays.asList(
+                new MirrorRefChange("refs/heads/master", SHA1, ZERO, RefChangeType.DELETE),
+                new MirrorRefChange("refs/heads/feature/\u00fc", ZERO, SHA256, RefChangeType.ADD),
+                new MirrorRefChange("refs/tags/v1.0", "ABC", null, RefChangeType.UPDATE));
+
+        List<MirrorRefChange> decoded = MirrorPushCodec.decode(MirrorPushCodec.encode(refChanges));
+
+        assertEquals(3, decoded.size());
+        assertRefChange(refChanges.get(0), decoded.get(0));
+        assertRefChange(refChanges.get(1), decoded.get(1));
+        // Hashes which aren't lower case hex are kept as they are; null is not distinguished from empty
+        assertEquals("ABC", decoded.get(2).getFromHash());
+        assertEquals("", decoded.get(2).getToHash());
+    }
+
+    @Test
+    public void testDecodeEmpty() {
+        assertTrue(MirrorPushCodec.decode(null).isEmpty());
+        assertTrue(MirrorPushCodec.decode(new byte[0]).isEmpty());
+        assertTrue(MirrorPushCodec.decode(MirrorPushCodec.encode(Collections.emptyList())).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDecodeInvalid() {
+        MirrorPushCodec.decode(new byte[]{1, 2, 3});
+    }
+
+    @Test
+    public void testEncodeIsCompact() {
+        List<MirrorRefChange> refChanges = new ArrayList<>();
+        int raw = 0;
+        for (int i = 0; i < 1000; i++) {
+            MirrorRefChange refChange = new MirrorRefChange("refs/heads/feature/branch-" + i, ZERO, SHA1,
+                    RefChangeType.ADD);
+            refChanges.add(refChange);
+            raw += refChange.getRefId().length() + 2 * SHA1.length();
+        }
+
+        byte[] encoded = MirrorPushCodec.encode(refChanges);
+
+        assertTrue("Expected " + encoded.length + " to be less than a tenth of " + raw, encoded.length * 10 < raw);
+        assertEquals(1000, MirrorPushCodec.decode(encoded).size());
+    }
+
+    private static void assertRefChange(MirrorRefChange expected, MirrorRefChange actual) {
+        assertEquals(expected.getRefId(), actual.getRefId());
+        assertEquals(expected.getFromHash(), actual.getFromHash());
+        assertEquals(expected.getToHash(), actual.getToHash());
+        assertEquals(expected.getType(), actual.getType());
+    }
+}
@@ -0,0 +1,93 @@
+package com.englishtown.bitbucket.hook;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link MirrorPushTracker}
+ */
+public class MirrorPushTrackerTest {
+
+    @Rule
+    public MockitoRule mockitoRule = MockitoJUnit.rule().silent();
+
+    @Mock
+    private ScheduledExecutorService executor;
+    @Mock
+    private ScheduledFuture<?> poller;
+    private MirrorPushTracker tracker;
+
+    @Before
+    public void setup() {
+        doReturn(poller).when(executor).scheduleWithFixedDelay(any(), anyLong(), anyLong(), any());
+
+        tracker = new MirrorPushTracker(executor, 2, 100L);
+    }
+
+    @Test
+    public void testAcquireLimitsPushesPerHost() {
+        Runnable waiter = mock(Runnable.class);
+
+        assertTrue(tracker.acquire("host", waiter));
+        assertTrue(tracker.acquire("host", waiter));
+        assertFalse(tracker.acquire("host", waiter));
+        // Other hosts have their own budget
+        assertTrue(tracker.acquire("other", waiter));
+
+        tracker.release("host");
+
+        verify(executor).execute(same(waiter));
+        assertTrue(tracker.acquire("host", waiter));
+    }
+
+    @Test
+    public void testPollCompletesPushes() {
+        CompletableFuture<String> succeeded = new CompletableFuture<>();
+        CompletableFuture<String> failed = new CompletableFuture<>();
+        AtomicReference<String> result = new AtomicReference<>();
+        AtomicReference<RuntimeException> error = new AtomicReference<>();
+
+        tracker.track(succeeded, (value, e) -> result.set(value));
+        tracker.track(failed, (value, e) -> error.set(e));
+        verify(executor).scheduleWithFixedDelay(any(), eq(100L), eq(100L), eq(TimeUnit.MILLISECONDS));
+
+        succeeded.complete("pushed");
+        tracker.poll();
+
+        assertEquals("pushed", result.get());
+        assertNull(error.get());
+        assertEquals(1, tracker.getRunning());
+        verify(poller, never()).cancel(anyBoolean());
+
+        failed.completeExceptionally(new IllegalStateException("Intentional unit test exception"));
+        tracker.poll();
+
+        assertEquals("Intentional unit test exception", error.get().getMessage());
+        assertEquals(0, tracker.getRunning());
+        // The poller stops while nothing is running
+        verify(poller).cancel(eq(false));
+    }
+
+    @Test
+    public void testGetHost() {
+        assertEquals("mirror.example.com", MirrorPushTracker.getHost("https://user@Mirror.example.com/scm/a.git"));
+        assertEquals("mirror.example.com", MirrorPushTracker.getHost("ssh://git@mirror.example.com:7999/a.git"));
+        assertEquals("mirror.example.com", MirrorPushTracker.getHost("git@mirror.example.com:scm/a.git"));
+    }
+}
@@ -0,0 +1,210 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.project.Project;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.scm.CommandErrorHandler;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.atlassian.utils.process.Watchdog;
+import com.englishtown.bitbucket.hook.MirrorPushWatchdog.InFlightPush;
+import com.englishtown.bitbucket.hook.MirrorPushWatchdog.Phase;
+import com.google.common.io.ByteStreams;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.atlassian.bitbucket.mockito.MockitoUtils.returnArg;
+import static com.englishtown.bitbucket.hook.MirrorPushWatchdog.PROP_STALL_TIMEOUT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link MirrorPushWatchdog}
+ */
+public class MirrorPushWatchdogTest {
+
+    private static final String URL = "https://bitbucket-mirror.englishtown.com/scm/test/test.git";
+
+    @Rule
+    public MockitoRule mockitoRule = MockitoJUnit.rule().silent();
+
+    private final AtomicLong clock = new AtomicLong(1_000_000L);
+    @Mock
+    private CommandErrorHandler errorHandler;
+    @Mock
+    private ScheduledExecutorService executorService;
+    @Mock
+    private Watchdog process;
+    @Mock
+    private Project project;
+    @Mock
+    private ApplicationPropertiesService propertiesService;
+    @Mock
+    private Repository repository;
+    private MirrorPushWatchdog watchdog;
+
+    @Before
+    public void setup() {
+        when(project.getKey()).thenReturn("PROJ");
+        when(propertiesService.getPluginProperty(anyString(), anyLong())).thenAnswer(returnArg(1));
+        when(repository.getId()).thenReturn(1);
+        when(repository.getProject()).thenReturn(project);
+        when(repository.getSlug()).thenReturn("repo");
+
+        watchdog = new MirrorPushWatchdog(propertiesService, executorService, clock::get);
+    }
+
+    @Test
+    public void testTrack() {
+        InFlightPush push = watchdog.track(repository, URL);
+        clock.addAndGet(1000L);
+        InFlightPush other = watchdog.track(repository, URL + "2");
+
+        assertEquals(2, watchdog.getInFlight().size());
+        assertSame(push, watchdog.getInFlight().get(0));
+        assertEquals("PROJ/repo", push.getRepository());
+        assertEquals(1, push.getRepositoryId());
+        assertEquals(URL, push.getMirrorUrl());
+        assertEquals(Phase.PREPARING, push.getPhase());
+        assertEquals(1_000_000L, push.getStarted());
+
+        push.close();
+        assertEquals(1, watchdog.getInFlight().size());
+        assertSame(other, watchdog.getInFlight().get(0));
+        other.close();
+        assertTrue(watchdog.getInFlight().isEmpty());
+    }
+
+    @Test
+    public void testWatchCountsProgress() throws Exception {
+        InFlightPush push = watchdog.track(repository, URL);
+        ArgumentCaptor<InputStream> streamCaptor = ArgumentCaptor.forClass(InputStream.class);
+        doAnswer(invocation -> {
+            ByteStreams.exhaust(invocation.<InputStream>getArgument(0));
+            return null;
+        }).when(errorHandler).process(streamCaptor.capture());
+
+        CommandErrorHandler watched = push.watch(errorHandler);
+        watched.setWatchdog(process);
+        clock.addAndGet(5000L);
+        watched.process(new ByteArrayInputStream("Writing objects: 100% (3/3)".getBytes(StandardCharsets.UTF_8)));
+        watched.complete();
+
+        assertEquals(27L, push.getBytes());
+        assertEquals(1_005_000L, push.getLastActivity());
+        verify(errorHandler).setWatchdog(same(process));
+        verify(errorHandler).complete();
+    }
+
+    @Test
+    public void testCheckKillsStalledPush() throws Exception {
+        InFlightPush push = watchdog.track(repository, URL);
+        push.setPhase(Phase.PUSHING);
+        push.watch(errorHandler).setWatchdog(process);
+
+        clock.addAndGet(TimeUnit.SECONDS.toMillis(29L));
+        watchdog.check();
+        verify(process, never()).cancel();
+
+        clock.addAndGet(TimeUnit.SECONDS.toMillis(1L));
+        watchdog.check();
+        verify(process).cancel();
+        assertTrue(push.isKilled());
+
+        // The push is only killed once
+        watchdog.check();
+        verify(process).cancel();
+    }
+
+    @Test
+    public void testCheckIgnoresPushWithoutRunningCommand() throws Exception {
+        InFlightPush push = watchdog.track(repository, URL);
+        CommandErrorHandler watched = push.watch(errorHandler);
+        watched.setWatchdog(process);
+        watched.complete();
+
+        clock.addAndGet(TimeUnit.MINUTES.toMillis(5L));
+        watchdog.check();
+
+        verify(process, never()).cancel();
+        assertFalse(push.isKilled());
+    }
+
+    @Test
+    public void testCheckIgnoresPushMakingProgress() throws Exception {
+        InFlightPush push = watchdog.track(repository, URL);
+        CommandErrorHandler watched = push.watch(errorHandler);
+        watched.setWatchdog(process);
+
+        clock.addAndGet(TimeUnit.SECONDS.toMillis(20L));
+        watched.process(new ByteArrayInputStream(new byte[0]));
+        push.setPhase(Phase.PUSHING_BATCHES);
+        clock.addAndGet(TimeUnit.SECONDS.toMillis(20L));
+        watchdog.check();
+
+        verify(process, never()).cancel();
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        InFlightPush push = watchdog.track(repository, URL);
+        push.watch(errorHandler).setWatchdog(process);
+        InFlightPush other = watchdog.track(repository, URL + "2");
+        InFlightPush unrelated = watchdog.track(mock(Repository.class), URL);
+
+        watchdog.cancel(1, URL);
+        verify(process).cancel();
+        assertTrue(push.isCancelled());
+        assertFalse(other.isCancelled());
+        assertFalse(unrelated.isCancelled());
+
+        // A push which is cancelled before its command starts is cancelled as soon as it does
+        watchdog.cancel(1, null);
+        Watchdog started = mock(Watchdog.class);
+        other.watch(errorHandler).setWatchdog(started);
+        verify(started).cancel();
+        assertFalse(unrelated.isCancelled());
+    }
+
+    @Test
+    public void testStallTimeoutDisabled() throws Exception {
+        when(propertiesService.getPluginProperty(eq(PROP_STALL_TIMEOUT), anyLong())).thenReturn(0L);
+        watchdog = new MirrorPushWatchdog(propertiesService, executorService, clock::get);
+        watchdog.onStart();
+
+        InFlightPush push = watchdog.track(repository, URL);
+        push.watch(errorHandler).setWatchdog(process);
+        clock.addAndGet(TimeUnit.HOURS.toMillis(1L));
+        watchdog.check();
+
+        verify(process, never()).cancel();
+        verifyZeroInteractions(executorService);
+        assertEquals(1, watchdog.getInFlight().size());
+    }
+
+    @Test
+    public void testStartAndStop() {
+        doReturn(mock(ScheduledFuture.class)).when(executorService)
+                .scheduleWithFixedDelay(any(), anyLong(), anyLong(), any());
+
+        watchdog.onStart();
+        watchdog.onStart();
+        watchdog.onStop();
+
+        verify(executorService).scheduleWithFixedDelay(any(), eq(7500L), eq(7500L), eq(TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,138 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.concurrent.BucketedExecutor;
+import com.atlassian.bitbucket.concurrent.ConcurrencyService;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.repository.RepositoryService;
+import com.atlassian.bitbucket.scm.git.GitScm;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.atlassian.bitbucket.user.DummySecurityService;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.bitbucket.util.Page;
+import com.atlassian.sal.api.pluginsettings.PluginSettings;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import com.atlassian.scheduler.JobRunnerRequest;
+import com.atlassian.scheduler.SchedulerService;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.util.Collections;
+import java.util.List;
+
+import static com.atlassian.bitbucket.mockito.MockitoUtils.returnArg;
+import static com.englishtown.bitbucket.hook.MirrorReconciler.SETTINGS_CURSOR;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link MirrorReconciler}
+ */
+public class MirrorReconcilerTest {
+
+    private static final MirrorSettings SETTINGS = new MirrorSettings() {
+        {
+            mirrorRepoUrl = "ssh://git@bitbucket-mirror.englishtown.com/scm/test/test.git";
+        }
+    };
+    private static final List<MirrorRequest> REQUESTS = Collections.singletonList(new MirrorRequest(1, SETTINGS));
+
+    @Rule
+    public MockitoRule mockitoRule = MockitoJUnit.rule().silent();
+
+    @Mock
+    private BucketedExecutor<MirrorRequest> bucketedExecutor;
+    @Mock
+    private ConcurrencyService concurrencyService;
+    @Mock
+    private MirrorRepositoryHook hook;
+    @Mock
+    private PluginSettings pluginSettings;
+    @Mock
+    private PluginSettingsFactory pluginSettingsFactory;
+    @Mock
+    private ApplicationPropertiesService propertiesService;
+    @Mock
+    private MirrorBucketProcessor pushProcessor;
+    private MirrorReconciler reconciler;
+    @Mock
+    private Repository repository;
+    @Mock
+    private RepositoryService repositoryService;
+    @Mock
+    private SchedulerService schedulerService;
+    @Spy
+    private SecurityService securityService = new DummySecurityService();
+
+    @Before
+    public void setup() {
+        doReturn(bucketedExecutor).when(concurrencyService).getBucketedExecutor(anyString(), any());
+        when(propertiesService.getPluginProperty(anyString(), anyLong())).thenAnswer(returnArg(1));
+        when(propertiesService.getPluginProperty(anyString(), anyInt())).thenAnswer(returnArg(1));
+        when(pluginSettingsFactory.createSettingsForKey(anyString())).thenReturn(pluginSettings);
+
+        when(repository.getId()).thenReturn(1);
+        when(repository.getScmId()).thenReturn(GitScm.ID);
+        when(repositoryService.getById(eq(1))).thenReturn(repository);
+
+        reconciler = new MirrorReconciler(propertiesService, concurrencyService, hook, pushProcessor,
+                pluginSettingsFactory, repositoryService, schedulerService, securityService);
+    }
+
+    @Test
+    public void testProcessInSync() {
+        when(pushProcessor.isInSync(same(SETTINGS), same(repository))).thenReturn(true);
+
+        reconciler.process("ignored", REQUESTS);
+
+        verify(pushProcessor).isInSync(same(SETTINGS), same(repository));
+        verifyZeroInteractions(hook);
+    }
+
+    @Test
+    public void testProcessDrifted() {
+        reconciler.process("ignored", REQUESTS);
+
+        verify(hook).schedulePushes(same(repository), eq(Collections.singletonList(SETTINGS)));
+    }
+
+    @Test
+    public void testProcessWithEmptyRepository() {
+        when(repositoryService.isEmpty(same(repository))).thenReturn(true);
+
+        reconciler.process("ignored", REQUESTS);
+
+        verifyZeroInteractions(hook, pushProcessor);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testRunJob() {
+        when(pluginSettings.get(eq(SETTINGS_CURSOR))).thenReturn("500");
+
+        Page<Repository> page = mock(Page.class);
+        when(page.getValues()).thenReturn(Collections.singletonList(repository));
+        when(page.getSize()).thenReturn(1);
+        when(page.getIsLastPage()).thenReturn(true);
+        when(repositoryService.findAll(any())).thenReturn(page);
+        when(hook.getMirrorSettings(same(repository))).thenReturn(Collections.singletonList(SETTINGS));
+
+        reconciler.runJob(mock(JobRunnerRequest.class));
+
+        verify(bucketedExecutor).submit(argThat(request -> request.getRepositoryId() == 1 &&
+                request.getSettings() == SETTINGS));
+        // The last page was checked, so the next run starts over
+        verify(pluginSettings).put(eq(SETTINGS_CURSOR), eq("0"));
+    }
+
+    @Test
+    public void testOnStart() throws Exception {
+        reconciler.onStart();
+
+        verify(schedulerService).registerJobRunner(any(), same(reconciler));
+        verify(schedulerService).scheduleJob(any(), any());
+    }
+}
@@ -0,0 +1,85 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.concurrent.BucketedExecutor;
+import com.atlassian.bitbucket.concurrent.ConcurrencyService;
+import com.atlassian.bitbucket.hook.repository.PostRepositoryHookContext;
+import com.atlassian.bitbucket.hook.repository.RepositoryHookRequest;
+import com.atlassian.bitbucket.hook.repository.RepositoryHookService;
+import com.atlassian.bitbucket.hook.repository.RepositoryPushHookRequest;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.scm.git.GitScm;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.atlassian.bitbucket.setting.Settings;
+import com.atlassian.bitbucket.user.DummySecurityService;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * Microbenchmark for the overhead {@link MirrorRepositoryHook#postUpdate} adds to the thread which updated the
+ * repository. Not run as part of the build; run {@link #main} from the test classpath.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MirrorRepositoryHookBenchmark {
+
+    private PostRepositoryHookContext context;
+    private ScheduledExecutorService executorService;
+    private MirrorRepositoryHook hook;
+    private RepositoryHookRequest request;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(MirrorRepositoryHookBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        ApplicationPropertiesService propertiesService = mock(ApplicationPropertiesService.class, withSettings().stubOnly());
+        when(propertiesService.getPluginProperty(anyString(), anyInt())).thenAnswer(i -> i.getArgument(1));
+
+        ConcurrencyService concurrencyService = mock(ConcurrencyService.class, withSettings().stubOnly());
+        doReturn(mock(BucketedExecutor.class, withSettings().stubOnly()))
+                .when(concurrencyService).getBucketedExecutor(anyString(), any());
+
+        Settings settings = mock(Settings.class, withSettings().stubOnly());
+        when(settings.asMap()).thenReturn(Collections.emptyMap());
+        context = mock(PostRepositoryHookContext.class, withSettings().stubOnly());
+        when(context.getSettings()).thenReturn(settings);
+
+        Repository repository = mock(Repository.class, withSettings().stubOnly());
+        when(repository.getId()).thenReturn(1);
+        when(repository.getScmId()).thenReturn(GitScm.ID);
+        request = new RepositoryPushHookRequest.Builder(repository).build();
+
+        executorService = Executors.newSingleThreadScheduledExecutor();
+        hook = new MirrorRepositoryHook(concurrencyService, mock(MirrorCredentialStore.class), propertiesService,
+                mock(MirrorBucketProcessor.class), mock(MirrorOutbox.class), mock(RepositoryHookService.class),
+                new DummySecurityService(), executorService, new MirrorStatusIndex(), mock(MirrorPauseService.class),
+                mock(MirrorFetchSchedules.class));
+    }
+
+    @TearDown
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    @Benchmark
+    public void postUpdate() {
+        hook.postUpdate(context, request);
+    }
+}
@@ -2,33 +2,55 @@ package com.englishtown.bitbucket.hook;
 
 import com.atlassian.bitbucket.concurrent.BucketedExecutor;
 import com.atlassian.bitbucket.concurrent.ConcurrencyService;
+import com.atlassian.bitbucket.event.hook.RepositoryHookSettingsChangedEvent;
+import com.atlassian.bitbucket.event.repository.RepositoryDeletedEvent;
+import com.atlassian.bitbucket.event.repository.RepositoryModifiedEvent;
+import com.atlassian.bitbucket.event.repository.RepositoryRefsChangedEvent;
 import com.atlassian.bitbucket.hook.repository.*;
 import com.atlassian.bitbucket.project.Project;
+import com.atlassian.bitbucket.repository.MinimalRef;
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.RefChangeType;
 import com.atlassian.bitbucket.repository.Repository;
 import com.atlassian.bitbucket.scm.git.GitScm;
 import com.atlassian.bitbucket.scope.Scope;
 import com.atlassian.bitbucket.scope.Scopes;
 import com.atlassian.bitbucket.server.ApplicationPropertiesService;
 import com.atlassian.bitbucket.setting.Settings;
+import com.atlassian.bitbucket.setting.SettingsBuilder;
 import com.atlassian.bitbucket.setting.SettingsValidationErrors;
+import com.atlassian.bitbucket.user.DummySecurityService;
+import com.atlassian.bitbucket.user.SecurityService;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.MockitoJUnit;
 import org.mockito.junit.MockitoRule;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import static com.atlassian.bitbucket.mockito.MockitoUtils.returnArg;
 import static com.englishtown.bitbucket.hook.MirrorRepositoryHook.PROP_ATTEMPTS;
+import static com.englishtown.bitbucket.hook.MirrorRepositoryHook.PROP_DISPATCH_BATCH_SIZE;
+import static com.englishtown.bitbucket.hook.MirrorRepositoryHook.PROP_GLOBAL_PREFIX;
+import static com.englishtown.bitbucket.hook.MirrorRepositoryHook.PROP_SETTINGS_CACHE_TTL;
 import static com.englishtown.bitbucket.hook.MirrorRepositoryHook.PROP_THREADS;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.*;
 
 /**
@@ -38,6 +60,8 @@ public class MirrorRepositoryHookTest {
 
     @Rule
     public MockitoRule mockitoRule = MockitoJUnit.rule().silent();
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
 
     private final String mirrorRepoUrlHttp = "https://bitbucket-mirror.englishtown.com/scm/test/test.git";
     private final String mirrorRepoUrlSsh = "ssh://git@bitbucket-mirror.englishtown.com/scm/test/test.git";
@@ -45,6 +69,8 @@ public class MirrorRepositoryHookTest {
     private final String refspec = "+refs/heads/master:refs/heads/master +refs/heads/develop:refs/heads/develop";
     private final String username = "test-user";
 
+    private static final String TEMPLATE_URL = "https://backup.englishtown.com/scm/{project}/{repo}.git";
+
     @Mock
     private BucketedExecutor<MirrorRequest> bucketedExecutor;
     @Mock
@@ -53,43 +79,202 @@ public class MirrorRepositoryHookTest {
     private ConcurrencyService concurrencyService;
     private MirrorRepositoryHook hook;
     @Mock
-    private PasswordEncryptor passwordEncryptor;
+    private ScheduledExecutorService executorService;
+    @Mock
+    private MirrorCredentialStore credentialStore;
+    @Mock
+    private MirrorFetchSchedules fetchSchedules;
+    @Mock
+    private MirrorOutbox outbox;
+    @Mock
+    private MirrorPauseService pauseService;
     @Mock
     private ApplicationPropertiesService propertiesService;
+    @Mock
+    private RepositoryHookService repositoryHookService;
     @Captor
     private ArgumentCaptor<MirrorRequest> requestCaptor;
+    @Spy
+    private SecurityService securityService = new DummySecurityService();
     @Mock
-    private SettingsReflectionHelper settingsReflectionHelper;
+    private MirrorStatusIndex statusIndex;
 
     @Before
     public void setup() {
         doReturn(bucketedExecutor).when(concurrencyService).getBucketedExecutor(anyString(), any());
+        doAnswer(invocation -> {
+            invocation.<Runnable>getArgument(0).run();
+            return null;
+        }).when(executorService).execute(any());
 
         when(propertiesService.getPluginProperty(eq(PROP_ATTEMPTS), anyInt())).thenAnswer(returnArg(1));
         when(propertiesService.getPluginProperty(eq(PROP_THREADS), anyInt())).thenAnswer(returnArg(1));
+        when(propertiesService.getPluginProperty(eq(PROP_DISPATCH_BATCH_SIZE), anyInt())).thenAnswer(returnArg(1));
 
-        hook = new MirrorRepositoryHook(concurrencyService, passwordEncryptor,
-                propertiesService, bucketProcessor, settingsReflectionHelper);
+        hook = createHook();
     }
 
     @Test
     public void testPostUpdate() {
-        when(passwordEncryptor.decrypt(anyString())).thenReturn(password);
-
         Repository repo = mock(Repository.class);
         when(repo.getId()).thenReturn(1);
         when(repo.getScmId()).thenReturn(GitScm.ID);
 
         hook.postUpdate(buildContext(), new RepositoryPushHookRequest.Builder(repo).build());
 
-        verify(repo).getId();
+        verify(repo, atLeastOnce()).getId();
         verify(repo).getScmId();
         verify(bucketedExecutor).schedule(requestCaptor.capture(), eq(5L), same(TimeUnit.SECONDS));
+        verify(outbox).markDirty(eq(1), eq(mirrorRepoUrlHttp));
+        verify(statusIndex).onQueued(eq(1), eq(mirrorRepoUrlHttp));
 
         MirrorRequest request = requestCaptor.getValue();
         assertEquals(1, request.getRepositoryId());
     }
 
+    @Test
+    public void testPostUpdateSkipsPausedMirror() {
+        Repository repo = mock(Repository.class);
+        when(repo.getId()).thenReturn(1);
+        when(repo.getScmId()).thenReturn(GitScm.ID);
+        when(pauseService.getPaused(eq(1))).thenReturn(Collections.singleton(mirrorRepoUrlHttp));
+
+        hook.postUpdate(buildContext(), new RepositoryPushHookRequest.Builder(repo).build());
+
+        // The changes are tracked, so they are pushed when the mirror is resumed
+        verify(outbox).markDirty(eq(1), eq(mirrorRepoUrlHttp));
+        verifyZeroInteractions(bucketedExecutor, statusIndex);
+    }
+
+    @Test
+    public void testPushNow() {
+        Repository repo = mock(Repository.class);
+        when(repo.getId()).thenReturn(1);
+        MirrorSettings settings = new MirrorSettings();
+        settings.mirrorRepoUrl = mirrorRepoUrlSsh;
+
+        hook.pushNow(repo, settings);
+
+        verify(outbox).markDirty(eq(1), eq(mirrorRepoUrlSsh));
+        verify(statusIndex).onQueued(eq(1), eq(mirrorRepoUrlSsh));
+        verify(bucketedExecutor).submit(requestCaptor.capture());
+        assertSame(settings, requestCaptor.getValue().getSettings());
+    }
+
+    @Test
+    public void testPostUpdateIsDispatchedInBackground() {
+        Repository repo = mock(Repository.class);
+        when(repo.getId()).thenReturn(1);
+        when(repo.getScmId()).thenReturn(GitScm.ID);
+
+        // Capture the drain task instead of running it
+        ArgumentCaptor<Runnable> taskCaptor = ArgumentCaptor.forClass(Runnable.class);
+        doNothing().when(executorService).execute(taskCaptor.capture());
+
+        RefChange first = mockRefChange("refs/heads/master", "1111", "2222");
+        RefChange second = mockRefChange("refs/heads/master", "2222", "3333");
+        PostRepositoryHookContext context = buildContext();
+        hook.postUpdate(context, new RepositoryPushHookRequest.Builder(repo).refChange(first).build());
+        hook.postUpdate(context, new RepositoryPushHookRequest.Builder(repo).refChange(second).build());
+
+        // Nothing is resolved or scheduled on the calling thread, and a single drain task is submitted
+        verify(executorService).execute(any());
+        verifyZeroInteractions(bucketedExecutor, outbox);
+        verify(context.getSettings(), never()).asMap();
+
+        taskCaptor.getValue().run();
+
+        // Both updates are coalesced into a single request
+        verify(bucketedExecutor).schedule(requestCaptor.capture(), eq(5L), same(TimeUnit.SECONDS));
+        MirrorRequest request = requestCaptor.getValue();
+        assertEquals(2, request.getRefChanges().size());
+        assertEquals("2222", request.getRefChanges().get(1).getFromHash());
+        assertEquals("3333", request.getRefChanges().get(1).getToHash());
+    }
+
+    @Test
+    public void testPostUpdateSkipsRefsWhichAreNotMirrored() {
+        Repository repo = mock(Repository.class);
+        when(repo.getId()).thenReturn(1);
+        when(repo.getScmId()).thenReturn(GitScm.ID);
+
+        hook.postUpdate(buildContext(), new RepositoryPushHookRequest.Builder(repo)
+                .refChange(mockRefChange("refs/heads/feature", "1111", "2222"))
+                .build());
+
+        verifyZeroInteractions(bucketedExecutor, outbox, statusIndex);
+    }
+
+    @Test
+    public void testPostUpdateSkipsIgnoredTriggers() {
+        Repository repo = mock(Repository.class);
+        when(repo.getId()).thenReturn(1);
+        when(repo.getScmId()).thenReturn(GitScm.ID);
+        PostRepositoryHookContext context = buildContext();
+        when(context.getSettings().getString(eq(MirrorRepositoryHook.SETTING_IGNORED_TRIGGERS), eq("")))
+                .thenReturn("file-edit, repo_push");
+
+        hook.postUpdate(context, new RepositoryPushHookRequest.Builder(repo)
+                .refChange(mockRefChange("refs/heads/master", "1111", "2222"))
+                .build());
+
+        verifyZeroInteractions(bucketedExecutor, outbox, statusIndex);
+    }
+
+    @Test
+    public void testPostUpdatePushesChangesOfTriggersWhichAreNotIgnored() {
+        Repository repo = mock(Repository.class);
+        when(repo.getId()).thenReturn(1);
+        when(repo.getScmId()).thenReturn(GitScm.ID);
+        ArgumentCaptor<Runnable> taskCaptor = ArgumentCaptor.forClass(Runnable.class);
+        doNothing().when(executorService).execute(taskCaptor.capture());
+        PostRepositoryHookContext context = buildContext();
+        when(context.getSettings().getString(eq(MirrorRepositoryHook.SETTING_IGNORED_TRIGGERS), eq("")))
+                .thenReturn("file-edit");
+
+        RepositoryHookRequest edit = buildRequest(StandardRepositoryHookTrigger.FILE_EDIT, repo);
+        RefChange editChange = mockRefChange("refs/heads/master", "1111", "2222");
+        doReturn(Collections.singletonList(editChange)).when(edit).getRefChanges();
+        hook.postUpdate(context, edit);
+        hook.postUpdate(context, new RepositoryPushHookRequest.Builder(repo)
+                .refChange(mockRefChange("refs/heads/develop", "3333", "4444"))
+                .build());
+        taskCaptor.getValue().run();
+
+        verify(bucketedExecutor).schedule(requestCaptor.capture(), eq(5L), same(TimeUnit.SECONDS));
+        List<MirrorRefChange> refChanges = requestCaptor.getValue().getRefChanges();
+        assertEquals(1, refChanges.size());
+        assertEquals("refs/heads/develop", refChanges.get(0).getRefId());
+    }
+
+    @Test
+    public void testGetMirrorSettingsForRepository() {
+        Repository repo = mock(Repository.class);
+        RepositoryHook repositoryHook = mock(RepositoryHook.class);
+        when(repositoryHook.isEnabled()).thenReturn(true);
+        when(repositoryHookService.getByKey(any(), eq(MirrorRepositoryHook.HOOK_KEY))).thenReturn(repositoryHook);
+
+        Settings settings = defaultSettings();
+        RepositoryHookSettings hookSettings = mock(RepositoryHookSettings.class);
+        when(hookSettings.getSettings()).thenReturn(settings);
+        when(repositoryHookService.getSettings(any())).thenReturn(hookSettings);
+
+        List<MirrorSettings> mirrors = hook.getMirrorSettings(repo);
+
+        assertEquals(1, mirrors.size());
+        assertEquals(mirrorRepoUrlHttp, mirrors.get(0).mirrorRepoUrl);
+    }
+
+    @Test
+    public void testGetMirrorSettingsForRepositoryWhenDisabled() {
+        Repository repo = mock(Repository.class);
+        RepositoryHook repositoryHook = mock(RepositoryHook.class);
+        when(repositoryHookService.getByKey(any(), eq(MirrorRepositoryHook.HOOK_KEY))).thenReturn(repositoryHook);
+
+        assertTrue(hook.getMirrorSettings(repo).isEmpty());
+        verify(repositoryHookService, never()).getSettings(any());
+    }
+
     @Test
     public void testPostUpdateForHgRepository() {
         Repository repo = mock(Repository.class);
@@ -156,6 +341,13 @@ public class MirrorRepositoryHookTest {
                 .thenReturn("")
                 .thenReturn(password);
 
+        when(settings.getString(eq(MirrorRepositoryHook.SETTING_DIRECTION + "0"), anyString()))
+                .thenReturn(MirrorSettings.DIRECTION_PUSH);
+        when(settings.getString(eq(MirrorRepositoryHook.SETTING_CREDENTIAL_TYPE + "0"), anyString()))
+                .thenReturn(MirrorSettings.CREDENTIALS_STATIC);
+        when(settings.getString(eq(MirrorRepositoryHook.SETTING_CREDENTIAL_SOURCE + "0"), anyString()))
+                .thenReturn("");
+
         when(settings.getString(eq(MirrorRepositoryHook.SETTING_REFSPEC + "0"), eq("")))
                 .thenReturn("??")
                 .thenReturn("+refs/heads/master:refs/heads/master")
@@ -214,6 +406,343 @@ public class MirrorRepositoryHookTest {
         hook.validate(settings, errors, scope);
         verify(errors, never()).addFormError(anyString());
         verify(errors, never()).addFieldError(anyString(), anyString());
+        // Statuses of mirrors which were removed are dropped
+        verify(statusIndex).retain(eq(0), eq(Collections.singletonList(mirrorRepoUrlHttp)));
+        verify(fetchSchedules, atLeastOnce()).retain(eq(0), eq(Collections.emptyList()));
+    }
+
+    @Test
+    public void testValidateRegistersFetchMirrors() {
+        Settings settings = defaultSettings();
+        when(settings.getString(eq(MirrorRepositoryHook.SETTING_DIRECTION), anyString()))
+                .thenReturn(MirrorSettings.DIRECTION_FETCH);
+        when(settings.getString(eq(MirrorRepositoryHook.SETTING_REFSPEC), eq("")))
+                .thenReturn("refs/heads/*:refs/heads/*");
+
+        Repository repo = mock(Repository.class);
+        when(repo.getId()).thenReturn(1);
+        SettingsValidationErrors errors = mock(SettingsValidationErrors.class);
+
+        hook.validate(settings, errors, Scopes.repository(repo));
+
+        verify(errors, never()).addFieldError(anyString(), anyString());
+        verify(fetchSchedules).retain(eq(1), eq(Collections.singletonList(mirrorRepoUrlHttp)));
+        verify(fetchSchedules).register(eq(1), eq(mirrorRepoUrlHttp));
+        // Fetch mirrors are never pushed to
+        verify(outbox, never()).markDirty(anyInt(), anyString());
+        verify(bucketedExecutor, never()).schedule(any(), anyLong(), any());
+    }
+
+    @Test
+    public void testValidateFetchMirrorWithForcedRefspec() {
+        Settings settings = defaultSettings();
+        when(settings.getString(eq(MirrorRepositoryHook.SETTING_DIRECTION), anyString()))
+                .thenReturn(MirrorSettings.DIRECTION_FETCH);
+        when(settings.getString(eq(MirrorRepositoryHook.SETTING_REFSPEC), eq("")))
+                .thenReturn("refs/heads/*:refs/heads/* +refs/tags/*:refs/tags/*");
+        SettingsValidationErrors errors = mock(SettingsValidationErrors.class);
+
+        hook.validate(settings, errors, Scopes.repository(mock(Repository.class)));
+
+        verify(errors).addFieldError(eq(MirrorRepositoryHook.SETTING_REFSPEC + "0"), anyString());
+        verifyZeroInteractions(fetchSchedules);
+    }
+
+    @Test
+    public void testValidateRefspecs() {
+        Settings settings = defaultSettings();
+        when(settings.getString(eq(MirrorRepositoryHook.SETTING_REFSPEC), eq("")))
+                .thenReturn("refs/heads/main")
+                .thenReturn("refs/heads/a refs/heads/b:refs/heads/b")
+                .thenReturn("refs/heads/a:refs/heads/a refs/heads/b?");
+        Scope scope = Scopes.repository(mock(Repository.class));
+        SettingsValidationErrors errors;
+
+        // Refspecs without a destination are accepted, as git does
+        errors = mock(SettingsValidationErrors.class);
+        hook.validate(settings, errors, scope);
+        verify(errors, never()).addFieldError(anyString(), anyString());
+
+        errors = mock(SettingsValidationErrors.class);
+        hook.validate(settings, errors, scope);
+        verify(errors, never()).addFieldError(anyString(), anyString());
+
+        // Every refspec is checked, not only the first
+        errors = mock(SettingsValidationErrors.class);
+        hook.validate(settings, errors, scope);
+        verify(errors).addFieldError(eq(MirrorRepositoryHook.SETTING_REFSPEC + "0"), anyString());
+    }
+
+    @Test
+    public void testValidateInvalidDirection() {
+        Settings settings = defaultSettings();
+        when(settings.getString(eq(MirrorRepositoryHook.SETTING_DIRECTION), anyString())).thenReturn("sideways");
+
+        SettingsValidationErrors errors = mock(SettingsValidationErrors.class);
+        hook.validate(settings, errors, Scopes.repository(mock(Repository.class)));
+
+        verify(errors).addFieldError(eq(MirrorRepositoryHook.SETTING_DIRECTION + "0"), anyString());
+        verifyZeroInteractions(fetchSchedules);
+    }
+
+    @Test
+    public void testValidateOffPeakWindowAndBandwidthLimit() {
+        Settings settings = defaultSettings();
+        when(settings.getString(eq(MirrorRepositoryHook.SETTING_OFF_PEAK_WINDOW), eq("")))
+                .thenReturn("22:00-06:00")
+                .thenReturn("10pm to 6am");
+        when(settings.getString(eq(MirrorRepositoryHook.SETTING_BANDWIDTH_LIMIT), eq("")))
+                .thenReturn("2048")
+                .thenReturn("fast");
+
+        SettingsValidationErrors errors = mock(SettingsValidationErrors.class);
+        hook.validate(settings, errors, Scopes.repository(mock(Repository.class)));
+        verify(errors, never()).addFieldError(anyString(), anyString());
+
+        errors = mock(SettingsValidationErrors.class);
+        hook.validate(settings, errors, Scopes.repository(mock(Repository.class)));
+        verify(errors).addFieldError(eq(MirrorRepositoryHook.SETTING_OFF_PEAK_WINDOW + "0"), anyString());
+        verify(errors).addFieldError(eq(MirrorRepositoryHook.SETTING_BANDWIDTH_LIMIT + "0"), anyString());
+    }
+
+    @Test
+    public void testValidateCredentialSources() throws IOException {
+        File credentialsDir = temporaryFolder.newFolder("credentials");
+        when(propertiesService.getPluginProperty(eq(MirrorCredentialSources.PROP_CREDENTIALS_DIR)))
+                .thenReturn(credentialsDir.getPath());
+        when(propertiesService.getPluginProperty(eq(MirrorCredentialSources.PROP_TOKEN_ENDPOINTS)))
+                .thenReturn("https://auth.englishtown.com/token");
+        hook = createHook();
+
+        Settings settings = defaultSettings();
+        when(settings.getString(eq(MirrorRepositoryHook.SETTING_PASSWORD), eq(""))).thenReturn("");
+        when(settings.getString(eq(MirrorRepositoryHook.SETTING_CREDENTIAL_TYPE), anyString()))
+                .thenReturn(MirrorSettings.CREDENTIALS_FILE)
+                .thenReturn(MirrorSettings.CREDENTIALS_FILE)
+                .thenReturn(MirrorSettings.CREDENTIALS_FILE)
+                .thenReturn(MirrorSettings.CREDENTIALS_TOKEN)
+                .thenReturn(MirrorSettings.CREDENTIALS_TOKEN)
+                .thenReturn("vault");
+        when(settings.getString(eq(MirrorRepositoryHook.SETTING_CREDENTIAL_SOURCE), anyString()))
+                .thenReturn("")
+                .thenReturn(new File(credentialsDir, "token").getPath())
+                .thenReturn("/etc/passwd")
+                .thenReturn("")
+                .thenReturn("http://169.254.169.254/latest/meta-data");
+        Scope scope = Scopes.repository(mock(Repository.class));
+        SettingsValidationErrors errors;
+
+        // A file has to be named, but no password is needed
+        errors = mock(SettingsValidationErrors.class);
+        hook.validate(settings, errors, scope);
+        verify(errors).addFieldError(eq(MirrorRepositoryHook.SETTING_CREDENTIAL_SOURCE + "0"), anyString());
+        verify(errors, never()).addFieldError(eq(MirrorRepositoryHook.SETTING_PASSWORD + "0"), anyString());
+
+        errors = mock(SettingsValidationErrors.class);
+        hook.validate(settings, errors, scope);
+        verify(errors, never()).addFieldError(anyString(), anyString());
+
+        // Files outside the directory allowed by the system administrator are rejected
+        errors = mock(SettingsValidationErrors.class);
+        hook.validate(settings, errors, scope);
+        verify(errors).addFieldError(eq(MirrorRepositoryHook.SETTING_CREDENTIAL_SOURCE + "0"), anyString());
+
+        // Tokens need the client secret and an allowed endpoint
+        errors = mock(SettingsValidationErrors.class);
+        hook.validate(settings, errors, scope);
+        verify(errors).addFieldError(eq(MirrorRepositoryHook.SETTING_CREDENTIAL_SOURCE + "0"), anyString());
+        verify(errors).addFieldError(eq(MirrorRepositoryHook.SETTING_PASSWORD + "0"), anyString());
+
+        errors = mock(SettingsValidationErrors.class);
+        hook.validate(settings, errors, scope);
+        verify(errors).addFieldError(eq(MirrorRepositoryHook.SETTING_CREDENTIAL_SOURCE + "0"), anyString());
+
+        errors = mock(SettingsValidationErrors.class);
+        hook.validate(settings, errors, scope);
+        verify(errors).addFieldError(eq(MirrorRepositoryHook.SETTING_CREDENTIAL_TYPE + "0"), anyString());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testReencryptPasswords() {
+        Map<String, Object> values = new HashMap<>();
+        values.put(MirrorRepositoryHook.SETTING_MIRROR_REPO_URL, mirrorRepoUrlHttp);
+        values.put(MirrorRepositoryHook.SETTING_PASSWORD, "encrypted:old");
+        values.put(MirrorRepositoryHook.SETTING_PASSWORD + "1", "stored:current");
+        Settings settings = mock(Settings.class);
+        when(settings.asMap()).thenReturn(values);
+        mockHookSettings(settings);
+        when(credentialStore.isReference(eq("stored:current"))).thenReturn(true);
+        when(credentialStore.store(any(), eq("encrypted:old"))).thenReturn("stored:new");
+
+        SettingsBuilder settingsBuilder = mockSettingsBuilder();
+        Repository repo = mockRepository();
+        when(repositoryHookService.setSettings(any())).thenAnswer(invocation -> {
+            // Saving the settings validates them, which should not push to the mirrors
+            hook.validate(defaultSettings(), mock(SettingsValidationErrors.class), Scopes.repository(repo));
+            return null;
+        });
+
+        assertTrue(hook.reencryptPasswords(repo));
+
+        ArgumentCaptor<Map<String, Object>> valuesCaptor = ArgumentCaptor.forClass(Map.class);
+        verify(settingsBuilder).addAll(valuesCaptor.capture());
+        assertEquals("stored:new", valuesCaptor.getValue().get(MirrorRepositoryHook.SETTING_PASSWORD));
+        assertEquals("stored:current", valuesCaptor.getValue().get(MirrorRepositoryHook.SETTING_PASSWORD + "1"));
+        assertEquals(mirrorRepoUrlHttp, valuesCaptor.getValue().get(MirrorRepositoryHook.SETTING_MIRROR_REPO_URL));
+        verify(repositoryHookService).setSettings(any());
+        verifyZeroInteractions(bucketedExecutor);
+
+        // Once the passwords are stored, only the stored passwords are re-encrypted
+        values.put(MirrorRepositoryHook.SETTING_PASSWORD, "stored:new");
+        when(credentialStore.isReference(eq("stored:new"))).thenReturn(true);
+        when(credentialStore.reencrypt(any())).thenReturn(0, 1);
+        assertFalse(hook.reencryptPasswords(repo));
+        assertTrue(hook.reencryptPasswords(repo));
+        verify(repositoryHookService).setSettings(any());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testValidateStoresPasswords() {
+        Repository repo = mockRepository();
+        Scope scope = Scopes.repository(repo);
+        when(credentialStore.store(same(scope), eq(password))).thenReturn("stored:id");
+        when(credentialStore.resolve(eq("stored:id"))).thenReturn(password);
+        when(credentialStore.isReference(eq("stored:id"))).thenReturn(true);
+
+        SettingsValidationErrors errors = mock(SettingsValidationErrors.class);
+        hook.validate(defaultSettings(), errors, scope);
+
+        // The password is stored before the settings are saved, and only the reference is pushed with
+        verifyZeroInteractions(errors);
+        verify(credentialStore).store(any(), anyString());
+        verify(repositoryHookService, never()).setSettings(any());
+        verify(bucketedExecutor).schedule(requestCaptor.capture(), eq(5L), same(TimeUnit.SECONDS));
+        assertEquals("stored:id", requestCaptor.getValue().getSettings().password);
+
+        // Once saved, the settings are rewritten with the reference to the password which was stored
+        Map<String, Object> values = new HashMap<>();
+        values.put(MirrorRepositoryHook.SETTING_MIRROR_REPO_URL, mirrorRepoUrlHttp);
+        values.put(MirrorRepositoryHook.SETTING_USERNAME, username);
+        values.put(MirrorRepositoryHook.SETTING_PASSWORD, password);
+        Settings settings = mock(Settings.class);
+        when(settings.asMap()).thenReturn(values);
+        SettingsBuilder settingsBuilder = mockSettingsBuilder();
+
+        hook.onSettingsChanged(settingsChangedEvent(MirrorRepositoryHook.HOOK_KEY, scope, settings));
+
+        ArgumentCaptor<Map<String, Object>> valuesCaptor = ArgumentCaptor.forClass(Map.class);
+        verify(settingsBuilder).addAll(valuesCaptor.capture());
+        assertEquals("stored:id", valuesCaptor.getValue().get(MirrorRepositoryHook.SETTING_PASSWORD));
+        assertEquals(username, valuesCaptor.getValue().get(MirrorRepositoryHook.SETTING_USERNAME));
+        verify(repositoryHookService).setSettings(any());
+        verify(credentialStore).store(any(), anyString());
+        verify(credentialStore).retain(same(scope), eq(Collections.singletonList("stored:id")));
+    }
+
+    @Test
+    public void testValidateWithErrorsDoesNotStorePasswords() {
+        Settings settings = defaultSettings();
+        when(settings.getString(eq(MirrorRepositoryHook.SETTING_REFSPEC), eq(""))).thenReturn("??");
+
+        SettingsValidationErrors errors = mock(SettingsValidationErrors.class);
+        hook.validate(settings, errors, Scopes.repository(mockRepository()));
+
+        verify(errors).addFieldError(eq(MirrorRepositoryHook.SETTING_REFSPEC + "0"), anyString());
+
+        verify(credentialStore, never()).store(any(), anyString());
+        verifyZeroInteractions(bucketedExecutor);
+    }
+
+    @Test
+    public void testValidateFailsIfPasswordsCannotBeStored() {
+        when(credentialStore.store(any(), eq(password))).thenThrow(new RuntimeException("Unable to store"));
+
+        SettingsValidationErrors errors = mock(SettingsValidationErrors.class);
+        hook.validate(defaultSettings(), errors, Scopes.repository(mockRepository()));
+
+        // The settings are not saved with the plaintext password, nor pushed with
+        verify(errors).addFormError(anyString());
+        verifyZeroInteractions(bucketedExecutor);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testOnSettingsChangedStoresPasswordsNotValidatedOnThisNode() {
+        Map<String, Object> values = new HashMap<>();
+        values.put(MirrorRepositoryHook.SETTING_MIRROR_REPO_URL + "1", mirrorRepoUrlHttp);
+        values.put(MirrorRepositoryHook.SETTING_PASSWORD + "1", password);
+        Settings settings = mock(Settings.class);
+        when(settings.asMap()).thenReturn(values);
+        Scope scope = Scopes.repository(mockRepository());
+        when(credentialStore.store(same(scope), eq(password))).thenReturn("stored:id");
+        when(credentialStore.isReference(eq("stored:id"))).thenReturn(true);
+        SettingsBuilder settingsBuilder = mockSettingsBuilder();
+
+        hook.onSettingsChanged(settingsChangedEvent(MirrorRepositoryHook.HOOK_KEY, scope, settings));
+
+        ArgumentCaptor<Map<String, Object>> valuesCaptor = ArgumentCaptor.forClass(Map.class);
+        verify(settingsBuilder).addAll(valuesCaptor.capture());
+        assertEquals("stored:id", valuesCaptor.getValue().get(MirrorRepositoryHook.SETTING_PASSWORD + "1"));
+        verify(credentialStore).retain(same(scope), eq(Collections.singletonList("stored:id")));
+        verifyZeroInteractions(bucketedExecutor);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testOnSettingsChangedClearsCredentialsOfNonHttpMirrors() {
+        Map<String, Object> values = new HashMap<>();
+        values.put(MirrorRepositoryHook.SETTING_MIRROR_REPO_URL, mirrorRepoUrlSsh);
+        values.put(MirrorRepositoryHook.SETTING_USERNAME, username);
+        values.put(MirrorRepositoryHook.SETTING_PASSWORD, password);
+        values.put(MirrorRepositoryHook.SETTING_CREDENTIAL_TYPE, MirrorSettings.CREDENTIALS_FILE);
+        values.put(MirrorRepositoryHook.SETTING_CREDENTIAL_SOURCE, "/credentials");
+        Settings settings = mock(Settings.class);
+        when(settings.asMap()).thenReturn(values);
+        Scope scope = Scopes.repository(mockRepository());
+        SettingsBuilder settingsBuilder = mockSettingsBuilder();
+
+        hook.onSettingsChanged(settingsChangedEvent(MirrorRepositoryHook.HOOK_KEY, scope, settings));
+
+        ArgumentCaptor<Map<String, Object>> valuesCaptor = ArgumentCaptor.forClass(Map.class);
+        verify(settingsBuilder).addAll(valuesCaptor.capture());
+        assertEquals(mirrorRepoUrlSsh, valuesCaptor.getValue().get(MirrorRepositoryHook.SETTING_MIRROR_REPO_URL));
+        assertEquals("", valuesCaptor.getValue().get(MirrorRepositoryHook.SETTING_USERNAME));
+        assertEquals("", valuesCaptor.getValue().get(MirrorRepositoryHook.SETTING_PASSWORD));
+        assertEquals(MirrorSettings.CREDENTIALS_STATIC,
+                valuesCaptor.getValue().get(MirrorRepositoryHook.SETTING_CREDENTIAL_TYPE));
+        assertEquals("", valuesCaptor.getValue().get(MirrorRepositoryHook.SETTING_CREDENTIAL_SOURCE));
+        verify(credentialStore, never()).store(any(), anyString());
+        verify(credentialStore).retain(same(scope), eq(Collections.emptyList()));
+    }
+
+    @Test
+    public void testOnSettingsChangedDeletesUnreferencedPasswords() {
+        Map<String, Object> values = new HashMap<>();
+        values.put(MirrorRepositoryHook.SETTING_MIRROR_REPO_URL, mirrorRepoUrlHttp);
+        values.put(MirrorRepositoryHook.SETTING_PASSWORD, "stored:id");
+        values.put(MirrorRepositoryHook.SETTING_PASSWORD + "1", "");
+        Settings settings = mock(Settings.class);
+        when(settings.asMap()).thenReturn(values);
+        when(credentialStore.isReference(eq("stored:id"))).thenReturn(true);
+        Scope scope = Scopes.repository(mockRepository());
+
+        hook.onSettingsChanged(settingsChangedEvent(MirrorRepositoryHook.HOOK_KEY, scope, settings));
+
+        verify(credentialStore, never()).store(any(), anyString());
+        verify(credentialStore).retain(same(scope), eq(Collections.singletonList("stored:id")));
+        verify(repositoryHookService, never()).setSettings(any());
+        verifyZeroInteractions(bucketedExecutor, outbox);
+    }
+
+    @Test
+    public void testOnSettingsChangedIgnoresOtherHooks() {
+        Settings settings = mock(Settings.class);
+
+        hook.onSettingsChanged(settingsChangedEvent("other:hook", Scopes.repository(mockRepository()), settings));
+
+        verifyZeroInteractions(credentialStore, repositoryHookService, settings);
     }
 
     @Test
@@ -228,13 +757,222 @@ public class MirrorRepositoryHookTest {
 
     @Test
     public void testValidateForProject() {
+        Settings settings = defaultSettings();
+        when(settings.getString(eq(MirrorRepositoryHook.SETTING_MIRROR_REPO_URL), eq("")))
+                .thenReturn(TEMPLATE_URL);
         SettingsValidationErrors errors = mock(SettingsValidationErrors.class);
-        Project project = mock(Project.class);
-        Settings settings = mock(Settings.class);
 
-        hook.validate(settings, errors, Scopes.project(project));
+        hook.validate(settings, errors, Scopes.project(mock(Project.class)));
 
-        verifyZeroInteractions(bucketedExecutor, errors, settings);
+        verifyZeroInteractions(errors);
+        // Repositories are pushed to when they are next updated or reconciled
+        verifyZeroInteractions(bucketedExecutor, outbox, fetchSchedules);
+    }
+
+    @Test
+    public void testValidateForProjectRequiresTemplate() {
+        SettingsValidationErrors errors = mock(SettingsValidationErrors.class);
+
+        hook.validate(defaultSettings(), errors, Scopes.project(mock(Project.class)));
+
+        verify(errors).addFieldError(eq(MirrorRepositoryHook.SETTING_MIRROR_REPO_URL + "0"), anyString());
+    }
+
+    @Test
+    public void testGetMirrorSettingsExpandsTemplates() {
+        Settings settings = defaultSettings();
+        when(settings.getString(eq(MirrorRepositoryHook.SETTING_MIRROR_REPO_URL), eq("")))
+                .thenReturn(TEMPLATE_URL);
+        mockHookSettings(settings);
+
+        List<MirrorSettings> mirrors = hook.getMirrorSettings(mockRepository());
+
+        assertEquals(1, mirrors.size());
+        assertEquals("https://backup.englishtown.com/scm/test/my-repo.git", mirrors.get(0).mirrorRepoUrl);
+        assertEquals(username, mirrors.get(0).username);
+    }
+
+    @Test
+    public void testGetMirrorSettingsIsCached() {
+        when(propertiesService.getPluginProperty(eq(PROP_SETTINGS_CACHE_TTL), anyLong())).thenReturn(60L);
+        hook = createHook();
+        mockHookSettings(defaultSettings());
+        Repository repo = mockRepository();
+
+        assertEquals(1, hook.getMirrorSettings(repo).size());
+        assertEquals(1, hook.getMirrorSettings(repo).size());
+        verify(repositoryHookService).getSettings(any());
+
+        // Saving the settings of the repository drops its cached settings
+        hook.validate(defaultSettings(), mock(SettingsValidationErrors.class), Scopes.repository(repo));
+        hook.getMirrorSettings(repo);
+        verify(repositoryHookService, times(2)).getSettings(any());
+    }
+
+    @Test
+    public void testGetMirrorSettingsWithGlobalMirror() {
+        when(propertiesService.getPluginProperty(eq(PROP_GLOBAL_PREFIX + "url"))).thenReturn(TEMPLATE_URL);
+        when(propertiesService.getPluginProperty(eq(PROP_GLOBAL_PREFIX + "username"))).thenReturn(username);
+        hook = createHook();
+        mockHookSettings(defaultSettings());
+
+        List<MirrorSettings> mirrors = hook.getMirrorSettings(mockRepository());
+
+        assertEquals(2, mirrors.size());
+        assertEquals(mirrorRepoUrlHttp, mirrors.get(0).mirrorRepoUrl);
+        assertEquals("https://backup.englishtown.com/scm/test/my-repo.git", mirrors.get(1).mirrorRepoUrl);
+        assertEquals(username, mirrors.get(1).username);
+    }
+
+    @Test
+    public void testOnRefsChangedPushesToGlobalMirror() {
+        when(propertiesService.getPluginProperty(eq(PROP_GLOBAL_PREFIX + "url"))).thenReturn(TEMPLATE_URL);
+        hook = createHook();
+        Repository repo = mockRepository();
+        RepositoryRefsChangedEvent event = mock(RepositoryRefsChangedEvent.class);
+        when(event.getRepository()).thenReturn(repo);
+        RefChange refChange = mockRefChange("refs/heads/master", "1111", "2222");
+        when(event.getRefChanges()).thenReturn(Collections.singletonList(refChange));
+
+        hook.onRefsChanged(event);
+
+        verify(bucketedExecutor).schedule(requestCaptor.capture(), eq(5L), same(TimeUnit.SECONDS));
+        MirrorRequest request = requestCaptor.getValue();
+        assertEquals("https://backup.englishtown.com/scm/test/my-repo.git", request.getSettings().mirrorRepoUrl);
+        assertEquals(1, request.getRefChanges().size());
+        // The hook settings of the repository are not needed
+        verifyZeroInteractions(repositoryHookService);
+    }
+
+    @Test
+    public void testOnRefsChangedWithoutGlobalMirror() {
+        Repository repo = mockRepository();
+        RepositoryRefsChangedEvent event = mock(RepositoryRefsChangedEvent.class);
+        when(event.getRepository()).thenReturn(repo);
+
+        hook.onRefsChanged(event);
+
+        verifyZeroInteractions(bucketedExecutor, outbox);
+    }
+
+    @Test
+    public void testOnRepositoryDeleted() {
+        Repository repo = mockRepository();
+        RepositoryDeletedEvent event = mock(RepositoryDeletedEvent.class);
+        when(event.getRepository()).thenReturn(repo);
+
+        hook.onRepositoryDeleted(event);
+
+        verify(bucketProcessor).cancel(eq(1), isNull());
+        verify(outbox).clearAll(eq(1));
+        verify(statusIndex).remove(eq(1));
+        verify(pauseService).clear(eq(1));
+        verify(fetchSchedules).clearAll(eq(1));
+        verify(credentialStore).retain(any(Scope.class), eq(Collections.emptyList()));
+        verifyZeroInteractions(bucketedExecutor);
+    }
+
+    @Test
+    public void testOnRepositoryModifiedPushesToNewUrl() {
+        Settings settings = defaultSettings();
+        when(settings.getString(eq(MirrorRepositoryHook.SETTING_MIRROR_REPO_URL), eq("")))
+                .thenReturn(TEMPLATE_URL);
+        mockHookSettings(settings);
+        String oldUrl = "https://backup.englishtown.com/scm/test/old-repo.git";
+        String newUrl = "https://backup.englishtown.com/scm/test/my-repo.git";
+        when(pauseService.isPaused(eq(1), eq(oldUrl))).thenReturn(true);
+        Repository oldRepo = mockRepository();
+        when(oldRepo.getSlug()).thenReturn("old-repo");
+
+        hook.onRepositoryModified(modifiedEvent(oldRepo, mockRepository()));
+
+        verify(bucketProcessor).cancel(eq(1), eq(oldUrl));
+        verify(outbox).clear(eq(1), eq(oldUrl), anyLong());
+        verify(pauseService).resume(eq(1), eq(oldUrl));
+        verify(pauseService).pause(eq(1), eq(newUrl));
+        verify(statusIndex).retain(eq(1), eq(Collections.singleton(newUrl)));
+        verify(outbox).markDirty(eq(1), eq(newUrl));
+        verify(bucketedExecutor).schedule(requestCaptor.capture(), eq(5L), same(TimeUnit.SECONDS));
+        assertEquals(newUrl, requestCaptor.getValue().getSettings().mirrorRepoUrl);
+        assertTrue(requestCaptor.getValue().getRefChanges().isEmpty());
+    }
+
+    @Test
+    public void testOnRepositoryModifiedWithoutTemplates() {
+        mockHookSettings(defaultSettings());
+        Repository oldRepo = mockRepository();
+        when(oldRepo.getSlug()).thenReturn("old-repo");
+
+        hook.onRepositoryModified(modifiedEvent(oldRepo, mockRepository()));
+
+        verify(bucketProcessor, never()).cancel(anyInt(), any());
+        verify(statusIndex).retain(eq(1), eq(Collections.singleton(mirrorRepoUrlHttp)));
+        verifyZeroInteractions(bucketedExecutor);
+    }
+
+    @Test
+    public void testOnRepositoryModifiedIgnoresOtherChanges() {
+        hook.onRepositoryModified(modifiedEvent(mockRepository(), mockRepository()));
+
+        verify(bucketProcessor, never()).cancel(anyInt(), any());
+        verifyZeroInteractions(bucketedExecutor, outbox, repositoryHookService, statusIndex);
+    }
+
+    private MirrorRepositoryHook createHook() {
+        return new MirrorRepositoryHook(concurrencyService, credentialStore, propertiesService, bucketProcessor,
+                outbox, repositoryHookService, securityService, executorService, statusIndex, pauseService,
+                fetchSchedules);
+    }
+
+    private RepositoryModifiedEvent modifiedEvent(Repository oldRepo, Repository repo) {
+        RepositoryModifiedEvent event = mock(RepositoryModifiedEvent.class);
+        when(event.getOldValue()).thenReturn(oldRepo);
+        when(event.getNewValue()).thenReturn(repo);
+        when(event.getRepository()).thenReturn(repo);
+        return event;
+    }
+
+    private RepositoryHookSettingsChangedEvent settingsChangedEvent(String hookKey, Scope scope, Settings settings) {
+        RepositoryHookDetails details = mock(RepositoryHookDetails.class);
+        when(details.getKey()).thenReturn(hookKey);
+        RepositoryHook repositoryHook = mock(RepositoryHook.class);
+        when(repositoryHook.getDetails()).thenReturn(details);
+
+        RepositoryHookSettingsChangedEvent event = mock(RepositoryHookSettingsChangedEvent.class);
+        when(event.getRepositoryHook()).thenReturn(repositoryHook);
+        when(event.getScope()).thenReturn(scope);
+        when(event.getSettings()).thenReturn(settings);
+        return event;
+    }
+
+    @SuppressWarnings("unchecked")
+    private SettingsBuilder mockSettingsBuilder() {
+        SettingsBuilder settingsBuilder = mock(SettingsBuilder.class);
+        when(settingsBuilder.addAll(any(Map.class))).thenReturn(settingsBuilder);
+        when(repositoryHookService.createSettingsBuilder()).thenReturn(settingsBuilder);
+        return settingsBuilder;
+    }
+
+    private void mockHookSettings(Settings settings) {
+        RepositoryHook repositoryHook = mock(RepositoryHook.class);
+        when(repositoryHook.isEnabled()).thenReturn(true);
+        when(repositoryHookService.getByKey(any(), eq(MirrorRepositoryHook.HOOK_KEY))).thenReturn(repositoryHook);
+
+        RepositoryHookSettings hookSettings = mock(RepositoryHookSettings.class);
+        when(hookSettings.getSettings()).thenReturn(settings);
+        when(repositoryHookService.getSettings(any())).thenReturn(hookSettings);
+    }
+
+    private Repository mockRepository() {
+        Project project = mock(Project.class);
+        when(project.getKey()).thenReturn("TEST");
+
+        Repository repo = mock(Repository.class);
+        when(repo.getId()).thenReturn(1);
+        when(repo.getProject()).thenReturn(project);
+        when(repo.getScmId()).thenReturn(GitScm.ID);
+        when(repo.getSlug()).thenReturn("my-repo");
+        return repo;
     }
 
     private PostRepositoryHookContext buildContext() {
@@ -246,6 +984,18 @@ public class MirrorRepositoryHookTest {
         return context;
     }
 
+    private RefChange mockRefChange(String refId, String fromHash, String toHash) {
+        MinimalRef ref = mock(MinimalRef.class);
+        when(ref.getId()).thenReturn(refId);
+
+        RefChange refChange = mock(RefChange.class);
+        when(refChange.getRef()).thenReturn(ref);
+        when(refChange.getFromHash()).thenReturn(fromHash);
+        when(refChange.getToHash()).thenReturn(toHash);
+        when(refChange.getType()).thenReturn(RefChangeType.UPDATE);
+        return refChange;
+    }
+
     private RepositoryHookRequest buildRequest(RepositoryHookTrigger trigger, Repository repo) {
         RepositoryHookRequest request = mock(RepositoryHookRequest.class);
         when(request.getTrigger()).thenReturn(trigger);
@@ -263,6 +1013,11 @@ public class MirrorRepositoryHookTest {
         when(settings.getString(eq(MirrorRepositoryHook.SETTING_USERNAME), eq(""))).thenReturn(username);
         when(settings.getString(eq(MirrorRepositoryHook.SETTING_PASSWORD), eq(""))).thenReturn(password);
         when(settings.getString(eq(MirrorRepositoryHook.SETTING_REFSPEC), eq(""))).thenReturn(refspec);
+        when(settings.getString(eq(MirrorRepositoryHook.SETTING_DIRECTION), anyString()))
+                .thenReturn(MirrorSettings.DIRECTION_PUSH);
+        when(settings.getString(eq(MirrorRepositoryHook.SETTING_CREDENTIAL_TYPE), anyString()))
+                .thenReturn(MirrorSettings.CREDENTIALS_STATIC);
+        when(settings.getString(eq(MirrorRepositoryHook.SETTING_CREDENTIAL_SOURCE), anyString())).thenReturn("");
         when(settings.getBoolean(eq(MirrorRepositoryHook.SETTING_TAGS), eq(true))).thenReturn(true);
         when(settings.getBoolean(eq(MirrorRepositoryHook.SETTING_NOTES), eq(true))).thenReturn(true);
         when(settings.getBoolean(eq(MirrorRepositoryHook.SETTING_ATOMIC), eq(true))).thenReturn(true);
@@ -0,0 +1,96 @@
+package com.englishtown.bitbucket.hook;
+
+import com.englishtown.bitbucket.hook.MirrorStatusIndex.MirrorStatus;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link MirrorStatusIndex}
+ */
+public class MirrorStatusIndexTest {
+
+    private static final String URL_1 = "ssh://git@bitbucket-mirror.englishtown.com/scm/test/one.git";
+    private static final String URL_2 = "ssh://git@bitbucket-mirror.englishtown.com/scm/test/two.git";
+
+    private final MirrorStatusIndex statusIndex = new MirrorStatusIndex();
+
+    @Test
+    public void testPushLifecycle() {
+        statusIndex.onQueued(1, URL_1);
+        statusIndex.onQueued(1, URL_1);
+        statusIndex.onQueued(1, URL_1);
+
+        assertEquals(3, statusIndex.getStatuses(1).get(URL_1).getQueued());
+
+        statusIndex.onStarted(1, URL_1, 2, 100L);
+        statusIndex.onFailed(1, URL_1, 200L, "error");
+
+        MirrorStatus status = statusIndex.getStatuses(1).get(URL_1);
+        assertEquals(1, status.getQueued());
+        assertEquals(100L, status.getLastAttempt());
+        assertEquals(0L, status.getLastSuccess());
+        assertEquals(200L, status.getLastFailure());
+        assertEquals("error", status.getLastError());
+
+        // Retries of a failed batch are processed again, so the count never goes negative
+        statusIndex.onStarted(1, URL_1, 2, 300L);
+        statusIndex.onSucceeded(1, URL_1, 400L);
+
+        status = statusIndex.getStatuses(1).get(URL_1);
+        assertEquals(0, status.getQueued());
+        assertEquals(300L, status.getLastAttempt());
+        assertEquals(400L, status.getLastSuccess());
+        assertEquals(200L, status.getLastFailure());
+        assertEquals("error", status.getLastError());
+    }
+
+    @Test
+    public void testOnFailedTruncatesLongErrors() {
+        char[] error = new char[MirrorStatusIndex.MAX_ERROR_LENGTH * 2];
+        Arrays.fill(error, 'x');
+
+        statusIndex.onFailed(1, URL_1, 100L, new String(error));
+
+        assertEquals(MirrorStatusIndex.MAX_ERROR_LENGTH + 3,
+                statusIndex.getStatuses(1).get(URL_1).getLastError().length());
+    }
+
+    @Test
+    public void testRemoveAndRetain() {
+        statusIndex.onQueued(1, URL_1);
+        statusIndex.onQueued(1, URL_2);
+        statusIndex.onQueued(2, URL_1);
+
+        statusIndex.retain(1, Collections.singletonList(URL_2));
+        assertEquals(Collections.singleton(URL_2), statusIndex.getStatuses(1).keySet());
+
+        statusIndex.remove(2);
+        assertTrue(statusIndex.getStatuses(2).isEmpty());
+        assertTrue(statusIndex.getStatuses(3).isEmpty());
+    }
+
+    @Test
+    public void testWriteStatuses() throws IOException {
+        statusIndex.onQueued(1, URL_1);
+        statusIndex.onStarted(1, URL_1, 1, 100L);
+        statusIndex.onFailed(1, URL_1, 200L, "fatal: \"error\"");
+        Map<String, MirrorStatus> statuses = statusIndex.getStatuses(1);
+
+        StringWriter writer = new StringWriter();
+        JsonGenerator json = new JsonFactory().createJsonGenerator(writer);
+        MirrorStatusResource.writeStatuses(json, statuses, Collections.singleton(URL_1));
+        json.flush();
+
+        assertEquals("{\"values\":[{\"mirrorRepoUrl\":\"" + URL_1 + "\",\"paused\":true,\"queued\":0,\"lastAttempt\":100," +
+                "\"lastFailure\":200,\"lastError\":\"fatal: \\\"error\\\"\"}]}", writer.toString());
+    }
+}
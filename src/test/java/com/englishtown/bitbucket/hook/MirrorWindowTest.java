@@ -0,0 +1,52 @@
+package com.englishtown.bitbucket.hook;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.LocalTime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link MirrorWindow}
+ */
+public class MirrorWindowTest {
+
+    @Test
+    public void testParse() {
+        assertNull(MirrorWindow.parse(null));
+        assertNull(MirrorWindow.parse(" "));
+        assertEquals("22:00-06:30", MirrorWindow.parse(" 22:00 - 06:30 ").toString());
+
+        for (String window : new String[]{"22:00", "22:00-25:00", "nightly", "01:00-01:00", "01:00-02:00-03:00"}) {
+            try {
+                MirrorWindow.parse(window);
+                fail("Expected " + window + " to be rejected");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testUntilOpen() {
+        MirrorWindow window = MirrorWindow.parse("01:00-05:00");
+
+        assertEquals(Duration.ZERO, window.untilOpen(LocalTime.of(1, 0)));
+        assertEquals(Duration.ZERO, window.untilOpen(LocalTime.of(4, 59)));
+        assertEquals(Duration.ofMinutes(30L), window.untilOpen(LocalTime.of(0, 30)));
+        assertEquals(Duration.ofHours(20L), window.untilOpen(LocalTime.of(5, 0)));
+    }
+
+    @Test
+    public void testUntilOpenAcrossMidnight() {
+        MirrorWindow window = MirrorWindow.parse("22:00-06:00");
+
+        assertEquals(Duration.ZERO, window.untilOpen(LocalTime.of(23, 0)));
+        assertEquals(Duration.ZERO, window.untilOpen(LocalTime.of(2, 0)));
+        assertEquals(Duration.ofHours(16L), window.untilOpen(LocalTime.of(6, 0)));
+        assertEquals(Duration.ofMinutes(1L), window.untilOpen(LocalTime.of(21, 59)));
+    }
+}
@@ -4,6 +4,9 @@ import com.atlassian.bitbucket.scm.CommandExitHandler;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
 import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.*;
 
@@ -41,6 +44,15 @@ public class PasswordHandlerTest {
 
     }
 
+    @Test
+    public void testGetOutputTrimsProgress() throws Exception {
+
+        handler.process(new ByteArrayInputStream(("Writing objects:  50% (1/2)\rWriting objects: 100% (2/2), done.\n" +
+                "To " + secretText + "\n").getBytes(StandardCharsets.UTF_8)));
+        assertEquals("Writing objects: 100% (2/2), done.\nTo " + cleanedText + "\n", handler.getOutput());
+
+    }
+
     @Test
     public void testOnCancel() throws Exception {
 
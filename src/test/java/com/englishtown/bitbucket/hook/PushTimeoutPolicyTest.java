@@ -0,0 +1,123 @@
+package com.englishtown.bitbucket.hook;
+
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.englishtown.bitbucket.hook.PushTimeoutPolicy.Operation;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.time.Duration;
+
+import static com.atlassian.bitbucket.mockito.MockitoUtils.returnArg;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link PushTimeoutPolicy}
+ */
+public class PushTimeoutPolicyTest {
+
+    private static final String KEY = "1:ssh://git@bitbucket-mirror.englishtown.com/scm/test/test.git";
+
+    @Rule
+    public MockitoRule mockitoRule = MockitoJUnit.rule().silent();
+
+    private PushTimeoutPolicy policy;
+    @Mock
+    private ApplicationPropertiesService propertiesService;
+
+    @Before
+    public void setup() {
+        when(propertiesService.getPluginProperty(anyString(), anyLong())).thenAnswer(returnArg(1));
+        when(propertiesService.getPluginProperty(anyString(), anyInt())).thenAnswer(returnArg(1));
+
+        policy = new PushTimeoutPolicy(propertiesService);
+    }
+
+    @Test
+    public void testGetTimeoutWithoutHistory() {
+        assertEquals(Duration.ofSeconds(120L), policy.getTimeout(KEY, Operation.FULL, () -> 0L));
+        assertEquals(Duration.ofSeconds(130L), policy.getTimeout(KEY, Operation.FULL, () -> 10L * 1024L * 1024L));
+    }
+
+    @Test
+    public void testGetTimeoutIsCapped() {
+        assertEquals(Duration.ofSeconds(3600L), policy.getTimeout(KEY, Operation.FULL, () -> Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testGetTimeoutFromHistory() {
+        for (int i = 1; i <= PushTimeoutPolicy.MIN_SAMPLES; i++) {
+            policy.recordSuccess(KEY, Operation.FULL, Duration.ofSeconds(100L * i));
+        }
+
+        // p99 of 100s..500s is 500s, multiplied by the default factor of 3
+        assertEquals(Duration.ofSeconds(1500L), policy.getTimeout(KEY, Operation.FULL, () -> 0L));
+    }
+
+    @Test
+    public void testGetTimeoutIsNeverShorterThanSizeBased() {
+        for (int i = 0; i < PushTimeoutPolicy.MIN_SAMPLES; i++) {
+            policy.recordSuccess(KEY, Operation.FULL, Duration.ofMillis(100L));
+        }
+
+        // 120s base timeout plus 600MiB at 1MiB/s
+        assertEquals(Duration.ofSeconds(720L), policy.getTimeout(KEY, Operation.FULL, () -> 600L * 1024L * 1024L));
+    }
+
+    @Test
+    public void testGetTimeoutKeepsHistoryPerOperation() {
+        for (int i = 0; i < PushTimeoutPolicy.MIN_SAMPLES; i++) {
+            policy.recordSuccess(KEY, Operation.FULL, Duration.ofSeconds(200L));
+            policy.recordSuccess(KEY, Operation.INCREMENTAL, Duration.ofSeconds(1L));
+            policy.recordSuccess(KEY, Operation.FETCH, Duration.ofSeconds(300L));
+        }
+
+        assertEquals(Duration.ofSeconds(600L), policy.getTimeout(KEY, Operation.FULL, () -> 0L));
+        assertEquals(Duration.ofSeconds(120L), policy.getTimeout(KEY, Operation.INCREMENTAL, () -> 0L));
+        assertEquals(Duration.ofSeconds(900L), policy.getTimeout(KEY, Operation.FETCH, () -> 0L));
+        assertFalse(policy.isSlow(KEY, Operation.FULL, Duration.ofSeconds(300L)));
+        assertTrue(policy.isSlow(KEY, Operation.INCREMENTAL, Duration.ofSeconds(3L)));
+    }
+
+    @Test
+    public void testGetTimeoutHistoryIsBounded() {
+        policy.recordSuccess(KEY, Operation.FULL, Duration.ofSeconds(1000L));
+        for (int i = 0; i < PushTimeoutPolicy.HISTORY_SIZE; i++) {
+            policy.recordSuccess(KEY, Operation.FULL, Duration.ofSeconds(100L));
+        }
+
+        // The slow push has been evicted from the history
+        assertEquals(Duration.ofSeconds(300L), policy.getTimeout(KEY, Operation.FULL, () -> 0L));
+    }
+
+    @Test
+    public void testRecordFailure() {
+        // Without any history, a failure says nothing about how long a push takes
+        policy.recordFailure(KEY, Operation.FULL, Duration.ofSeconds(500L));
+        assertFalse(policy.hasHistory(KEY));
+
+        for (int i = 0; i < PushTimeoutPolicy.MIN_SAMPLES; i++) {
+            policy.recordSuccess(KEY, Operation.FULL, Duration.ofSeconds(100L));
+        }
+        // A quick failure doesn't shorten the timeout, but a push which ran longer than any other lengthens it
+        policy.recordFailure(KEY, Operation.FULL, Duration.ofSeconds(1L));
+        assertEquals(Duration.ofSeconds(300L), policy.getTimeout(KEY, Operation.FULL, () -> 0L));
+        policy.recordFailure(KEY, Operation.FULL, Duration.ofSeconds(300L));
+        assertEquals(Duration.ofSeconds(900L), policy.getTimeout(KEY, Operation.FULL, () -> 0L));
+    }
+
+    @Test
+    public void testHasHistory() {
+        policy.recordSuccess(KEY, Operation.FETCH, Duration.ofSeconds(1L));
+        assertFalse(policy.hasHistory(KEY));
+
+        policy.recordSuccess(KEY, Operation.INCREMENTAL, Duration.ofSeconds(1L));
+        assertTrue(policy.hasHistory(KEY));
+    }
+}
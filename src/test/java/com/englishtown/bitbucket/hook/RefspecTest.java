@@ -0,0 +1,105 @@
+package com.englishtown.bitbucket.hook;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link Refspec}
+ */
+public class RefspecTest {
+
+    @Test
+    public void testParse() {
+        Refspec refspec = Refspec.parse("+refs/heads/*:refs/heads/*");
+
+        assertTrue(refspec.isForce());
+        assertEquals("refs/heads/*", refspec.getSource());
+        assertEquals("refs/heads/*", refspec.getDestination());
+        assertEquals("+refs/heads/*:refs/heads/*", refspec.toString());
+    }
+
+    @Test
+    public void testParseSourceOnly() {
+        Refspec refspec = Refspec.parse("refs/heads/main");
+
+        assertFalse(refspec.isForce());
+        assertEquals("refs/heads/main", refspec.getSource());
+        assertEquals("refs/heads/main", refspec.getDestination());
+        assertEquals("refs/heads/main", refspec.map("refs/heads/main"));
+        assertNull(refspec.map("refs/heads/main2"));
+        // The refspec is passed to git unchanged, but fetched with its destination to update the ref
+        assertEquals("refs/heads/main", refspec.toString());
+        assertEquals("refs/heads/main:refs/heads/main", refspec.withDestination().toString());
+        assertEquals("+refs/heads/*", Refspec.parse("+refs/heads/*").toString());
+        assertEquals("refs/heads/feature", Refspec.parse("+refs/heads/*").map("refs/heads/feature"));
+    }
+
+    @Test
+    public void testParseMultipleTokens() {
+        MirrorSettings settings = new MirrorSettings();
+        settings.refspec = "refs/heads/a refs/heads/b:refs/heads/b";
+
+        List<Refspec> refspecs = settings.getRefspecs();
+        assertEquals("refs/heads/a", refspecs.get(0).toString());
+        assertEquals("refs/heads/b:refs/heads/b", refspecs.get(1).toString());
+        assertEquals("refs/heads/a:refs/heads/a", settings.getFetchRefspecs().get(0).toString());
+    }
+
+    @Test
+    public void testParseInvalid() {
+        for (String refspec : new String[]{"", "+", "??", "refs/heads/*:refs/heads/main", "refs/heads/a:b:c",
+                "refs/heads/a..b", "refs/heads/**"}) {
+            try {
+                Refspec.parse(refspec);
+                fail("Expected " + refspec + " to be invalid");
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testMap() {
+        Refspec refspec = Refspec.parse("+refs/heads/*:refs/heads/mirror/*");
+
+        assertEquals("refs/heads/mirror/master", refspec.map("refs/heads/master"));
+        assertEquals("refs/heads/mirror/feature/x", refspec.map("refs/heads/feature/x"));
+        assertNull(refspec.map("refs/tags/v1.0"));
+    }
+
+    @Test
+    public void testMapWithoutWildcard() {
+        Refspec refspec = Refspec.parse("refs/heads/master:refs/heads/main");
+
+        assertEquals("refs/heads/main", refspec.map("refs/heads/master"));
+        assertNull(refspec.map("refs/heads/master2"));
+    }
+
+    @Test
+    public void testForRef() {
+        assertEquals("+refs/tags/v1.0:refs/tags/v1.0",
+                Refspec.parse("+refs/tags/*:refs/tags/*").forRef("refs/tags/v1.0"));
+        assertEquals("refs/tags/v1.0:refs/tags/v1.0",
+                Refspec.parse("refs/tags/*:refs/tags/*").forRef("refs/tags/v1.0"));
+        assertNull(Refspec.parse("refs/tags/*:refs/tags/*").forRef("refs/heads/master"));
+    }
+
+    @Test
+    public void testGetSourcePrefix() {
+        assertEquals("refs/heads/", Refspec.parse("+refs/heads/*:refs/heads/*").getSourcePrefix());
+        assertEquals("refs/heads/", Refspec.parse("+refs/heads/release-*:refs/heads/release-*").getSourcePrefix());
+        assertEquals("refs/heads/master", Refspec.parse("refs/heads/master:refs/heads/master").getSourcePrefix());
+    }
+
+    @Test
+    public void testReverse() {
+        Refspec refspec = Refspec.parse("+refs/heads/*:refs/heads/mirror/*").reverse();
+
+        assertTrue(refspec.isForce());
+        assertEquals("refs/heads/master", refspec.map("refs/heads/mirror/master"));
+        assertEquals("refs/heads/mirror/", refspec.getSourcePrefix());
+    }
+}